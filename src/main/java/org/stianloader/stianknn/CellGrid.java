@@ -0,0 +1,506 @@
+package org.stianloader.stianknn;
+
+import java.util.Arrays;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * The geometry of the uniform grid of cells underlying the grid-based indices, alongside of the K nearest neighbour
+ * searches over that grid. The searches decide which cells are visited in which order and when the search is complete,
+ * while the index decides how the points of a visited cell are offered to the {@link ResultContainer} through a
+ * {@link CellScanner}.
+ *
+ * <p>Cells are identified by their X- and Y-coordinate in cells, where the cell (0, 0) starts at (minX, minY).
+ * Cells on the edge of the grid are considered to extend infinitely outwards, as points outside of the bounds
+ * of the grid are clamped onto the edge cells.
+ */
+final class CellGrid {
+
+    /**
+     * A binary min-heap of cells keyed by their minimum distance to a query point, used by
+     * {@link CellGrid#searchBestFirst(float, float, int, ResultContainer, CellQueue, CellScanner) best-first} searches.
+     * Cells are identified by their position {@code cellY * cellStripSize + cellX} within the grid.
+     */
+    static final class CellQueue {
+        private int @NotNull[] cells = new int[64];
+        private float @NotNull[] keys = new float[64];
+        private int size;
+
+        void clear() {
+            this.size = 0;
+        }
+
+        boolean isEmpty() {
+            return this.size == 0;
+        }
+
+        /**
+         * Obtain the key of the nearest cell within the queue, which must not be empty.
+         *
+         * @return The squared minimum distance of the nearest cell.
+         */
+        float peekKey() {
+            return this.keys[0];
+        }
+
+        /**
+         * Remove the nearest cell from the queue, which must not be empty.
+         *
+         * @return The position of the removed cell.
+         */
+        int pop() {
+            int cell = this.cells[0];
+            int size = --this.size;
+            float key = this.keys[size];
+            int last = this.cells[size];
+            int i = 0;
+            int half = size >>> 1;
+            while (i < half) {
+                int child = (i << 1) + 1;
+                if (child + 1 < size && this.keys[child + 1] < this.keys[child]) {
+                    child++;
+                }
+                if (this.keys[child] >= key) {
+                    break;
+                }
+                this.keys[i] = this.keys[child];
+                this.cells[i] = this.cells[child];
+                i = child;
+            }
+            this.keys[i] = key;
+            this.cells[i] = last;
+            return cell;
+        }
+
+        void push(float key, int cell) {
+            if (this.size == this.keys.length) {
+                this.keys = Arrays.copyOf(this.keys, this.size * 2);
+                this.cells = Arrays.copyOf(this.cells, this.size * 2);
+            }
+
+            int i = this.size++;
+            while (i != 0) {
+                int parent = (i - 1) >>> 1;
+                if (this.keys[parent] <= key) {
+                    break;
+                }
+                this.keys[i] = this.keys[parent];
+                this.cells[i] = this.cells[parent];
+                i = parent;
+            }
+            this.keys[i] = key;
+            this.cells[i] = cell;
+        }
+    }
+
+    /**
+     * Offers the points of a cell to a {@link ResultContainer} on behalf of the searches of a {@link CellGrid}.
+     */
+    @FunctionalInterface
+    interface CellScanner {
+        /**
+         * Check whether the given cell may contain any point which would be offered to the container, such that
+         * {@link CellGrid#searchBestFirst(float, float, int, ResultContainer, CellQueue, CellScanner) best-first}
+         * searches do not queue cells which are known to yield nothing. Ring searches do not consult this method.
+         *
+         * @param cellX The X-coordinate of the cell, in cells.
+         * @param cellY The Y-coordinate of the cell, in cells.
+         * @param rc The container of the search.
+         * @return False if scanning the cell would offer no point to the container, true otherwise.
+         */
+        default boolean isCandidate(int cellX, int cellY, @NotNull ResultContainer rc) {
+            return true;
+        }
+
+        /**
+         * Offer the points within the given cell to the provided {@link ResultContainer}.
+         *
+         * @param cellX The X-coordinate of the cell, in cells.
+         * @param cellY The Y-coordinate of the cell, in cells.
+         * @param x The X-coordinate of the query point.
+         * @param y The Y-coordinate of the query point.
+         * @param nearestNeighbours The maximum amount of results to collect.
+         * @param rc The container to collect the results in.
+         */
+        void scanCell(int cellX, int cellY, float x, float y, int nearestNeighbours, @NotNull ResultContainer rc);
+    }
+
+    final float cellHeight;
+    /**
+     * The amount of cells in a row of the grid.
+     */
+    final int cellStripSize;
+    final float cellWidth;
+    final float maxX;
+    final float maxY;
+    final float minX;
+    final float minY;
+    /**
+     * The amount of rows of the grid.
+     */
+    final int verticalCellCount;
+
+    CellGrid(float minX, float minY, float maxX, float maxY, float cellWidth, float cellHeight) {
+        this.minX = minX;
+        this.minY = minY;
+        this.maxX = maxX;
+        this.maxY = maxY;
+        this.cellWidth = cellWidth;
+        this.cellHeight = cellHeight;
+        this.cellStripSize = (int) ((maxX - minX) / cellWidth) + 1;
+        this.verticalCellCount = (int) ((maxY - minY) / cellHeight) + 1;
+    }
+
+    /**
+     * Compute the squared minimum distance between the query point and the area covered by the
+     * cell at the given cell coordinates. Cells on the edge of the grid are considered to extend
+     * infinitely outwards as points outside of the bounds of the grid are clamped onto the edge cells.
+     *
+     * @param cellX The X-coordinate of the cell, in cells.
+     * @param cellY The Y-coordinate of the cell, in cells.
+     * @param x The X-coordinate of the query point.
+     * @param y The Y-coordinate of the query point.
+     * @return The squared distance between the query point and the nearest point in the cell.
+     */
+    float cellDistance2(int cellX, int cellY, float x, float y) {
+        float dx = 0;
+        float cellMinX = cellX * this.cellWidth + this.minX;
+        if (cellX != 0 && x < cellMinX) {
+            dx = cellMinX - x;
+        } else if (cellX != this.cellStripSize - 1 && x > cellMinX + this.cellWidth) {
+            dx = x - (cellMinX + this.cellWidth);
+        }
+
+        float dy = 0;
+        float cellMinY = cellY * this.cellHeight + this.minY;
+        if (cellY != 0 && y < cellMinY) {
+            dy = cellMinY - y;
+        } else if (cellY != this.verticalCellCount - 1 && y > cellMinY + this.cellHeight) {
+            dy = y - (cellMinY + this.cellHeight);
+        }
+
+        return dx * dx + dy * dy;
+    }
+
+    /**
+     * Compute the squared maximum distance between the query point and the area covered by the
+     * cell at the given cell coordinates. As cells on the edge of the grid are considered to extend
+     * infinitely outwards, the maximum distance to such cells is infinite.
+     *
+     * @param cellX The X-coordinate of the cell, in cells.
+     * @param cellY The Y-coordinate of the cell, in cells.
+     * @param x The X-coordinate of the query point.
+     * @param y The Y-coordinate of the query point.
+     * @return The squared distance between the query point and the farthest point in the cell.
+     */
+    float cellMaxDistance2(int cellX, int cellY, float x, float y) {
+        if (cellX == 0 || cellY == 0 || cellX == this.cellStripSize - 1 || cellY == this.verticalCellCount - 1) {
+            return Float.POSITIVE_INFINITY;
+        }
+
+        float cellMinX = cellX * this.cellWidth + this.minX;
+        float cellMinY = cellY * this.cellHeight + this.minY;
+        float dx = Math.max(Math.abs(x - cellMinX), Math.abs(x - (cellMinX + this.cellWidth)));
+        float dy = Math.max(Math.abs(y - cellMinY), Math.abs(y - (cellMinY + this.cellHeight)));
+        return dx * dx + dy * dy;
+    }
+
+    int cellX(float x) {
+        return Math.max(0, (int) ((Math.min(x, this.maxX) - this.minX) / this.cellWidth));
+    }
+
+    int cellY(float y) {
+        return Math.max(0, (int) ((Math.min(y, this.maxY) - this.minY) / this.cellHeight));
+    }
+
+    /**
+     * Compute the squared distance between the query point and the inner border of the ring of cells with the
+     * given distance (in cells) around the cell of the query point, which no cell of this or any later ring
+     * can be nearer than.
+     *
+     * @param cellX The X-coordinate of the cell of the query point, in cells.
+     * @param cellY The Y-coordinate of the cell of the query point, in cells.
+     * @param ring The distance of the ring to the cell of the query point, in cells. Must be at least 1.
+     * @param x The X-coordinate of the query point.
+     * @param y The Y-coordinate of the query point.
+     * @return The squared distance to the ring, or {@link Float#POSITIVE_INFINITY} if the ring lies entirely outside of the grid.
+     */
+    float ringDistance2(int cellX, int cellY, int ring, float x, float y) {
+        int lowX = cellX - ring;
+        int upX = cellX + ring;
+        int lowY = cellY - ring;
+        int upY = cellY + ring;
+
+        float borderDist = Float.POSITIVE_INFINITY;
+        if (lowX >= 0) {
+            borderDist = x - ((lowX + 1) * this.cellWidth + this.minX);
+        }
+        if (upX < this.cellStripSize) {
+            borderDist = Math.min(borderDist, (upX * this.cellWidth + this.minX) - x);
+        }
+        if (lowY >= 0) {
+            borderDist = Math.min(borderDist, y - ((lowY + 1) * this.cellHeight + this.minY));
+        }
+        if (upY < this.verticalCellCount) {
+            borderDist = Math.min(borderDist, (upY * this.cellHeight + this.minY) - y);
+        }
+
+        if (borderDist == Float.POSITIVE_INFINITY) {
+            return Float.POSITIVE_INFINITY;
+        }
+        borderDist = Math.max(0, borderDist);
+        return borderDist * borderDist;
+    }
+
+    /**
+     * Search the K nearest points to the query point in {@link SpatialQueryArray.SearchMode#BEST_FIRST best-first} order.
+     * Cells are only pushed to the queue once the inner border of their ring is nearer than the
+     * nearest queued cell, so the queue only ever holds the frontier of the search.
+     *
+     * @param x The X-coordinate of the query point.
+     * @param y The Y-coordinate of the query point.
+     * @param nearestNeighbours The amount of neighbours (K) to search.
+     * @param rc The container to store the results in.
+     * @param queue The queue to store the cells which are yet to be visited in.
+     * @param scanner The scanner offering the points of the visited cells to the container.
+     * @return The reason the search terminated.
+     */
+    QueryStatistics.@NotNull Termination searchBestFirst(float x, float y, int nearestNeighbours, @NotNull ResultContainer rc, @NotNull CellQueue queue, @NotNull CellScanner scanner) {
+        rc.reset(nearestNeighbours);
+        if (nearestNeighbours <= 0) {
+            return QueryStatistics.Termination.NOTHING_REQUESTED;
+        }
+
+        final int cellX = this.cellX(x);
+        final int cellY = this.cellY(y);
+        queue.clear();
+        queue.push(this.cellDistance2(cellX, cellY, x, y), cellY * this.cellStripSize + cellX);
+        int ring = 1;
+        float ringDist2 = this.ringDistance2(cellX, cellY, ring, x, y);
+
+        while (true) {
+            float cellDist2 = queue.isEmpty() ? Float.POSITIVE_INFINITY : queue.peekKey();
+            float nextDist2 = Math.min(cellDist2, ringDist2);
+            if (nextDist2 == Float.POSITIVE_INFINITY) {
+                return QueryStatistics.Termination.EXHAUSTED;
+            } else if (rc.found == nearestNeighbours && nextDist2 >= rc.maxDist2 * rc.pruneScale) {
+                return QueryStatistics.Termination.DISTANCE_BOUND;
+            }
+
+            if (ringDist2 <= cellDist2) {
+                if (QueryStatistics.ENABLED) {
+                    rc.statistics.ringExpansions++;
+                }
+
+                int lowX = cellX - ring;
+                int upX = cellX + ring;
+                int lowY = cellY - ring;
+                int upY = cellY + ring;
+                for (int cx = Math.max(0, lowX), endX = Math.min(this.cellStripSize - 1, upX); cx <= endX; cx++) {
+                    if (lowY >= 0) {
+                        this.pushCell(queue, cx, lowY, x, y, nearestNeighbours, rc, scanner);
+                    }
+                    if (upY < this.verticalCellCount) {
+                        this.pushCell(queue, cx, upY, x, y, nearestNeighbours, rc, scanner);
+                    }
+                }
+                for (int cy = Math.max(0, lowY + 1), endY = Math.min(this.verticalCellCount - 1, upY - 1); cy <= endY; cy++) {
+                    if (lowX >= 0) {
+                        this.pushCell(queue, lowX, cy, x, y, nearestNeighbours, rc, scanner);
+                    }
+                    if (upX < this.cellStripSize) {
+                        this.pushCell(queue, upX, cy, x, y, nearestNeighbours, rc, scanner);
+                    }
+                }
+
+                ringDist2 = this.ringDistance2(cellX, cellY, ++ring, x, y);
+            } else {
+                int position = queue.pop();
+                scanner.scanCell(position % this.cellStripSize, position / this.cellStripSize, x, y, nearestNeighbours, rc);
+            }
+        }
+    }
+
+    /**
+     * Push the cell at the given cell coordinates onto the queue of a best-first search, unless the
+     * cell yields no points or cannot contain a point nearer than the K-th nearest point found so far.
+     */
+    private void pushCell(@NotNull CellQueue queue, int cellX, int cellY, float x, float y, int nearestNeighbours, @NotNull ResultContainer rc, @NotNull CellScanner scanner) {
+        if (!scanner.isCandidate(cellX, cellY, rc)) {
+            return;
+        }
+
+        float dist2 = this.cellDistance2(cellX, cellY, x, y);
+        if (rc.found != nearestNeighbours || dist2 < rc.maxDist2 * rc.pruneScale) {
+            queue.push(dist2, cellY * this.cellStripSize + cellX);
+        }
+    }
+
+    /**
+     * Search the K nearest points to the query point in {@link SpatialQueryArray.SearchMode#RINGS rings} around
+     * the cell of the query point.
+     *
+     * @param x The X-coordinate of the query point.
+     * @param y The Y-coordinate of the query point.
+     * @param nearestNeighbours The amount of neighbours (K) to search.
+     * @param rc The container to store the results in.
+     * @param scanner The scanner offering the points of the visited cells to the container.
+     * @return The reason the search terminated.
+     */
+    QueryStatistics.@NotNull Termination searchRings(float x, float y, int nearestNeighbours, @NotNull ResultContainer rc, @NotNull CellScanner scanner) {
+        final int cellX = this.cellX(x);
+        final int cellY = this.cellY(y);
+
+        rc.reset(nearestNeighbours);
+        if (nearestNeighbours <= 0) {
+            return QueryStatistics.Termination.NOTHING_REQUESTED;
+        }
+
+        scanner.scanCell(cellX, cellY, x, y, nearestNeighbours, rc);
+
+        float cellMinX = cellX * this.cellWidth + this.minX;
+        float cellMaxX = cellMinX + this.cellWidth;
+        float cellMinY = cellY * this.cellHeight + this.minY;
+        float cellMaxY = cellMinY + this.cellHeight;
+
+        float nearestCellBorderX = Math.min(Math.abs(x - cellMinX), Math.abs(x - cellMaxX));
+        float nearestCellBorderY = Math.min(Math.abs(y - cellMinY), Math.abs(y - cellMaxY));
+        float nearestCellBorderDist = Math.min(nearestCellBorderX, nearestCellBorderY);
+
+        if (rc.found == nearestNeighbours && rc.maxDist2 * rc.pruneScale <= nearestCellBorderDist * nearestCellBorderDist) {
+            return QueryStatistics.Termination.DISTANCE_BOUND;
+        }
+
+        int cellXLow = cellX;
+        int cellXUp = cellX;
+        int cellYLow = cellY;
+        int cellYUp = cellY;
+
+        while (true) {
+            if (QueryStatistics.ENABLED) {
+                rc.statistics.ringExpansions++;
+            }
+
+            int startX = cellXLow;
+            boolean shrinkX = false;
+            if (cellXLow > 0) {
+                startX--;
+                shrinkX = true;
+            }
+
+            int endX = cellXUp;
+            boolean growX = false;
+            if (cellXUp < this.cellStripSize - 1) {
+                endX++;
+                growX = true;
+            }
+
+            int startY = cellYLow;
+            boolean shrinkY = false;
+            if (cellYLow > 0) {
+                startY--;
+                shrinkY = true;
+            }
+
+            int endY = cellYUp;
+            boolean growY = false;
+            if (cellYUp < this.verticalCellCount - 1) {
+                endY++;
+                growY = true;
+            }
+
+            if (shrinkY) {
+                for (int cx = startX; cx <= endX; cx++) {
+                    scanner.scanCell(cx, startY, x, y, nearestNeighbours, rc);
+                }
+            }
+
+            if (growY) {
+                for (int cx = startX; cx <= endX; cx++) {
+                    scanner.scanCell(cx, endY, x, y, nearestNeighbours, rc);
+                }
+            }
+
+            if (shrinkX) {
+                for (int cY = cellYLow; cY <= cellYUp; cY++) {
+                    scanner.scanCell(startX, cY, x, y, nearestNeighbours, rc);
+                }
+            }
+
+            if (growX) {
+                for (int cY = cellYLow; cY <= cellYUp; cY++) {
+                    scanner.scanCell(endX, cY, x, y, nearestNeighbours, rc);
+                }
+            }
+
+            if (growX || shrinkX) {
+                nearestCellBorderX += this.cellWidth;
+            }
+
+            if (growY || shrinkY) {
+                nearestCellBorderY += this.cellHeight;
+            } else if (!(growX || shrinkX)) {
+                return QueryStatistics.Termination.EXHAUSTED;
+            }
+
+            nearestCellBorderDist = Math.min(nearestCellBorderX, nearestCellBorderY);
+            float distSqr = nearestCellBorderDist * nearestCellBorderDist;
+
+            if (rc.found == nearestNeighbours && rc.maxDist2 * rc.pruneScale < distSqr) {
+                return QueryStatistics.Termination.DISTANCE_BOUND;
+            }
+
+            cellYLow = Math.max(0, cellYLow - 1);
+            cellYUp = Math.min(this.verticalCellCount - 1, cellYUp + 1);
+            cellXLow = Math.max(0, cellXLow - 1);
+            cellXUp = Math.min(this.cellStripSize - 1, cellXUp + 1);
+        }
+    }
+
+    /**
+     * Compute the squared minimum distance between the query point and the area covered by a sub-cell
+     * of a subdivided cell. Like with {@link #cellDistance2(int, int, float, float)}, sub-cells on the
+     * edge of the grid are considered to extend infinitely outwards.
+     *
+     * @param cellX The X-coordinate of the cell, in cells.
+     * @param cellY The Y-coordinate of the cell, in cells.
+     * @param subdivisions The amount of sub-cells on each axis of the cell.
+     * @param subcellX The X-coordinate of the sub-cell within the cell, in sub-cells.
+     * @param subcellY The Y-coordinate of the sub-cell within the cell, in sub-cells.
+     * @param x The X-coordinate of the query point.
+     * @param y The Y-coordinate of the query point.
+     * @return The squared distance between the query point and the nearest point in the sub-cell.
+     */
+    float subcellDistance2(int cellX, int cellY, int subdivisions, int subcellX, int subcellY, float x, float y) {
+        float subcellWidth = this.cellWidth / subdivisions;
+        float subcellHeight = this.cellHeight / subdivisions;
+
+        float dx = 0;
+        float subcellMinX = cellX * this.cellWidth + this.minX + subcellX * subcellWidth;
+        if ((cellX != 0 || subcellX != 0) && x < subcellMinX) {
+            dx = subcellMinX - x;
+        } else if ((cellX != this.cellStripSize - 1 || subcellX != subdivisions - 1) && x > subcellMinX + subcellWidth) {
+            dx = x - (subcellMinX + subcellWidth);
+        }
+
+        float dy = 0;
+        float subcellMinY = cellY * this.cellHeight + this.minY + subcellY * subcellHeight;
+        if ((cellY != 0 || subcellY != 0) && y < subcellMinY) {
+            dy = subcellMinY - y;
+        } else if ((cellY != this.verticalCellCount - 1 || subcellY != subdivisions - 1) && y > subcellMinY + subcellHeight) {
+            dy = y - (subcellMinY + subcellHeight);
+        }
+
+        return dx * dx + dy * dy;
+    }
+
+    int subcellX(int cellX, int subdivisions, float x) {
+        float relative = (x - this.minX) / this.cellWidth - cellX;
+        return Math.max(0, Math.min(subdivisions - 1, (int) (relative * subdivisions)));
+    }
+
+    int subcellY(int cellY, int subdivisions, float y) {
+        float relative = (y - this.minY) / this.cellHeight - cellY;
+        return Math.max(0, Math.min(subdivisions - 1, (int) (relative * subdivisions)));
+    }
+}
@@ -0,0 +1,380 @@
+package org.stianloader.stianknn;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * A handle for repeatedly querying the K nearest neighbours of a query point which moves only slightly
+ * between consecutive queries, such as a camera or a unit which is queried once per frame.
+ *
+ * <p>Whenever the handle performs a full search against the {@link SpatialQueryArray}, it does not only retain
+ * the K nearest points, but all points within a shell of {@code 2 * margin} beyond the K-th nearest point.
+ * A subsequent query then merely ranks the points of the shell. The result is exact as long as the K-th nearest
+ * point of the shell is provably nearer than any point outside of the shell, which is always the case while the
+ * query point is within {@code margin} of the position the shell was built for, and often even beyond that.
+ * Otherwise, a new shell is built through a full search. The margin thus trades the size of a shell (and thus the
+ * cost of ranking it) against the frequency of full searches. Where points are dense, a shell is limited to
+ * {@code 2 * K} points (but at least K + 16 points), which effectively shrinks the margin of the shell.
+ *
+ * <p>Additionally, the most recently built shells are kept in a least-recently-used cache keyed by the quantized
+ * position they were built for, such that query points revisiting a previous position (or alternating between a
+ * few positions) do not require a full search either. The cache is not consulted for queries which the most recent
+ * shell already covers.
+ *
+ * <p>Results are exactly those of {@link SpatialQueryArray#queryKnn(float, float, int, int[], float[])},
+ * except for the order of points with equal distance. Like a {@link SpatialQueryArray.QueryContext}, a handle
+ * is not thread-safe and is meant to be confined to a single thread. The index must not change while a handle is used.
+ *
+ * @param <E> The type of the elements stored in the index.
+ */
+public final class CoherentKnnQuery<@NotNull E> {
+
+    /**
+     * The points within a given distance of the position a full search was performed at.
+     */
+    private static final class Shell {
+        private float centerX;
+        private float centerY;
+        /**
+         * The squared radius of the shell. Every point of the index which is not part of the shell
+         * is farther away than this from the center. Infinite if the shell contains all points.
+         */
+        private float radius2;
+        private int size;
+        private int @NotNull[] slots = new int[0];
+        private float @NotNull[] xs = new float[0];
+        private float @NotNull[] ys = new float[0];
+
+        void add(int slot, float x, float y) {
+            if (this.size == this.slots.length) {
+                int capacity = Math.max(16, this.size * 2);
+                this.slots = Arrays.copyOf(this.slots, capacity);
+                this.xs = Arrays.copyOf(this.xs, capacity);
+                this.ys = Arrays.copyOf(this.ys, capacity);
+            }
+            this.slots[this.size] = slot;
+            this.xs[this.size] = x;
+            this.ys[this.size++] = y;
+        }
+    }
+
+    /**
+     * The relative tolerance applied when checking whether a shell covers a query point, which is far larger than
+     * the rounding error of the compared distances.
+     */
+    private static final double TOLERANCE = 1e-5;
+
+    /**
+     * The minimum amount of points a shell may contain in addition to the K nearest points.
+     */
+    private static final int MIN_SHELL_EXTRA = 16;
+
+    /**
+     * The most recently built shells, keyed by their quantized position, least recently used first.
+     */
+    @NotNull
+    private final LinkedHashMap<Long, Shell> cache;
+    private final int cacheCapacity;
+    private long cacheHits;
+    @NotNull
+    private final SpatialQueryArray.QueryContext<E> context = new SpatialQueryArray.QueryContext<>();
+    private long coherentHits;
+    @Nullable
+    private Shell current;
+    @NotNull
+    private final SpatialQueryArray<E> index;
+    private final float margin;
+    private final int neighbourCount;
+    private final float quantum;
+    @NotNull
+    private final ResultContainer rc;
+    private long searches;
+    /**
+     * The maximum amount of points of a shell, which bounds the cost of ranking the points of a shell where points are dense.
+     */
+    private final int shellCapacity;
+    /**
+     * A shell evicted from the cache, whose arrays are reused by the next full search.
+     */
+    @Nullable
+    private Shell spare;
+
+    /**
+     * Construct a new handle which queries the given index.
+     *
+     * @param index The index to query.
+     * @param neighbourCount The amount of neighbours (K) to query.
+     * @param margin The distance the query point may move away from the position of a full search before a new full
+     * search is required, must be positive.
+     * @param cacheCapacity The amount of shells kept in the cache of recent positions, or 0 to disable the cache.
+     */
+    public CoherentKnnQuery(@NotNull SpatialQueryArray<E> index, int neighbourCount, float margin, int cacheCapacity) {
+        if (neighbourCount < 0) {
+            throw new IllegalArgumentException("Negative neighbour count: " + neighbourCount);
+        } else if (!(margin > 0) || margin == Float.POSITIVE_INFINITY) {
+            throw new IllegalArgumentException("Invalid margin: " + margin);
+        } else if (cacheCapacity < 0) {
+            throw new IllegalArgumentException("Negative cache capacity: " + cacheCapacity);
+        }
+
+        this.index = index;
+        this.neighbourCount = neighbourCount;
+        this.margin = margin;
+        this.cacheCapacity = cacheCapacity;
+        this.shellCapacity = neighbourCount == 0 ? 0 : neighbourCount + Math.max(neighbourCount, CoherentKnnQuery.MIN_SHELL_EXTRA);
+        // Any two positions within the same quantum are within the margin of each other
+        this.quantum = margin * (float) Math.sqrt(0.5);
+        this.rc = new ResultContainer(neighbourCount);
+        this.cache = new LinkedHashMap<Long, Shell>(16, 0.75F, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Shell> eldest) {
+                if (this.size() <= cacheCapacity) {
+                    return false;
+                }
+                CoherentKnnQuery<E> query = CoherentKnnQuery.this;
+                if (eldest.getValue() != query.current) {
+                    query.spare = eldest.getValue();
+                }
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Perform a full search at the given position and store the points within {@code 2 * margin} of the K-th
+     * nearest point in the given shell, limited to the {@link #shellCapacity} nearest points.
+     */
+    private void build(@NotNull Shell shell, float x, float y) {
+        SpatialQueryArray<E> index = this.index;
+        shell.centerX = x;
+        shell.centerY = y;
+        shell.size = 0;
+
+        ResultContainer rc = index.queryKnnSlots(x, y, this.shellCapacity, this.context);
+        int count = rc.found;
+        if (count < this.shellCapacity || this.neighbourCount == 0) {
+            // The shell contains all points of the index
+            shell.radius2 = Float.POSITIVE_INFINITY;
+        } else {
+            float radius = (float) Math.sqrt(rc.distances2[this.neighbourCount - 1]) + this.margin * 2;
+            float radius2 = radius * radius;
+            if (radius2 < rc.distances2[count - 1]) {
+                // All points within the radius were found, as they are nearer than the farthest found point
+                shell.radius2 = radius2;
+                while (count > this.neighbourCount && rc.distances2[count - 1] > radius2) {
+                    count--;
+                }
+            } else {
+                // Points outside of the shell may be exactly as far away as the farthest point of the shell
+                shell.radius2 = rc.distances2[count - 1];
+            }
+        }
+
+        for (int i = 0; i < count; i++) {
+            int slot = rc.slots[i];
+            shell.add(slot, index.slotX(slot), index.slotY(slot));
+        }
+    }
+
+    /**
+     * Check whether the given shell certainly contains the K nearest points of the query point, given that
+     * {@link #rank(Shell, float, float)} was already called for the query point and the shell.
+     */
+    private boolean covers(@NotNull Shell shell, float x, float y) {
+        ResultContainer rc = this.rc;
+        if (shell.radius2 == Float.POSITIVE_INFINITY) {
+            return true;
+        } else if (rc.found < this.neighbourCount) {
+            return false;
+        }
+
+        // Distances are subject to rounding errors relative to the magnitude of the coordinates
+        double radius = Math.sqrt(shell.radius2);
+        double magnitude = Math.max(Math.max(Math.abs(x), Math.abs(y)), Math.max(Math.abs(shell.centerX), Math.abs(shell.centerY))) + radius;
+        double slack = Math.ulp((float) magnitude) * 4.0;
+        double distance = Math.hypot((double) x - shell.centerX, (double) y - shell.centerY);
+        double nearest = Math.sqrt(rc.distances2[rc.found - 1]) * (1 + CoherentKnnQuery.TOLERANCE) + slack;
+        // Any point outside of the shell is at least (radius - distance) away from the query point
+        return nearest < radius * (1 - CoherentKnnQuery.TOLERANCE) - slack - distance;
+    }
+
+    /**
+     * Obtain the amount of queries answered from a shell of the cache of recent positions.
+     *
+     * @return The amount of cache hits.
+     */
+    public long getCacheHits() {
+        return this.cacheHits;
+    }
+
+    /**
+     * Obtain the amount of queries answered from the most recently used shell.
+     *
+     * @return The amount of coherent hits.
+     */
+    public long getCoherentHits() {
+        return this.coherentHits;
+    }
+
+    /**
+     * Obtain the index queried by this handle.
+     *
+     * @return The index.
+     */
+    @NotNull
+    public SpatialQueryArray<E> getIndex() {
+        return this.index;
+    }
+
+    /**
+     * Obtain the distance the query point may move before a new full search is required.
+     *
+     * @return The margin.
+     */
+    public float getMargin() {
+        return this.margin;
+    }
+
+    /**
+     * Obtain the amount of neighbours (K) queried by this handle.
+     *
+     * @return The amount of neighbours.
+     */
+    public int getNeighbourCount() {
+        return this.neighbourCount;
+    }
+
+    /**
+     * Obtain the amount of queries which required a full search of the index.
+     *
+     * @return The amount of full searches.
+     */
+    public long getSearchCount() {
+        return this.searches;
+    }
+
+    /**
+     * Forget all shells, such that the next query performs a full search.
+     */
+    public void invalidate() {
+        this.cache.clear();
+        this.current = null;
+    }
+
+    /**
+     * Quantize the given position into the key of the cache of recent positions. Positions outside the range
+     * of an int merely collide with other positions, which is harmless as shells are checked before they are used.
+     */
+    private long key(float x, float y) {
+        long quantizedX = (int) Math.floor(x / this.quantum);
+        long quantizedY = (int) Math.floor(y / this.quantum);
+        return (quantizedX << 32) | (quantizedY & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Query the K nearest neighbours of the given point, emitting the elements to the given consumer
+     * nearest element first.
+     *
+     * @param x The X-coordinate of the query point.
+     * @param y The Y-coordinate of the query point.
+     * @param out The consumer to which the elements are emitted.
+     */
+    public void queryKnn(float x, float y, @NotNull Consumer<@NotNull E> out) {
+        Shell shell = this.search(x, y);
+        ResultContainer rc = this.rc;
+        for (int i = 0; i < rc.found; i++) {
+            out.accept(this.index.payload(shell.slots[rc.slots[i]]));
+        }
+    }
+
+    /**
+     * Query the K nearest neighbours of the given point, see
+     * {@link SpatialQueryArray#queryKnn(float, float, int, int[], float[])}.
+     *
+     * @param x The X-coordinate of the query point.
+     * @param y The Y-coordinate of the query point.
+     * @param outIds The array to write the ids of the points to, must have a size of at least {@link #getNeighbourCount()}.
+     * @param outDist2 The array to write the squared distances of the points to, must have a size of at least {@link #getNeighbourCount()}.
+     * @return The amount of points found, which is smaller than K only if the index contains fewer points.
+     */
+    public int queryKnn(float x, float y, int @NotNull[] outIds, float @NotNull[] outDist2) {
+        if (outIds.length < this.neighbourCount || outDist2.length < this.neighbourCount) {
+            throw new IllegalArgumentException("Output arrays too small: Expected at least " + this.neighbourCount + " elements, but got " + outIds.length + " and " + outDist2.length);
+        }
+
+        Shell shell = this.search(x, y);
+        ResultContainer rc = this.rc;
+        for (int i = 0; i < rc.found; i++) {
+            outIds[i] = this.index.slotId(shell.slots[rc.slots[i]]);
+        }
+        System.arraycopy(rc.distances2, 0, outDist2, 0, rc.found);
+        return rc.found;
+    }
+
+    /**
+     * Rank the points of the given shell by their distance to the query point, leaving the K nearest
+     * points of the shell in {@link #rc}. The slots of the container refer to positions within the shell.
+     */
+    private void rank(@NotNull Shell shell, float x, float y) {
+        this.rc.reset(this.neighbourCount);
+        if (this.neighbourCount != 0) {
+            DistanceKernel.scanRange(shell.xs, shell.ys, 0, shell.size, x, y, this.neighbourCount, this.rc);
+        }
+        this.rc.sort();
+    }
+
+    /**
+     * Find the K nearest points of the query point, leaving them in {@link #rc}.
+     *
+     * @return The shell the slots of {@link #rc} refer to.
+     */
+    @NotNull
+    private Shell search(float x, float y) {
+        Shell shell = this.current;
+        if (shell != null) {
+            this.rank(shell, x, y);
+            if (this.covers(shell, x, y)) {
+                this.coherentHits++;
+                return shell;
+            }
+        }
+
+        long key = this.key(x, y);
+        shell = this.cache.get(key);
+        if (shell != null && shell != this.current) {
+            this.rank(shell, x, y);
+            if (this.covers(shell, x, y)) {
+                this.cacheHits++;
+                this.current = shell;
+                return shell;
+            }
+        }
+
+        this.searches++;
+        if (this.cacheCapacity == 0) {
+            // Without a cache, the previous shell is no longer referenced
+            shell = this.current;
+        } else {
+            shell = this.spare;
+            this.spare = null;
+        }
+        if (shell == null) {
+            shell = new Shell();
+        }
+        this.build(shell, x, y);
+        // The shell contains the K nearest points of its center, so it needs not to be checked
+        this.rank(shell, x, y);
+        this.current = shell;
+        if (this.cacheCapacity != 0) {
+            this.cache.put(key, shell);
+        }
+        return shell;
+    }
+}
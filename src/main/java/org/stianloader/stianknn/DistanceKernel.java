@@ -0,0 +1,90 @@
+package org.stianloader.stianknn;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * The innermost loop of K-nearest-neighbour queries on grid-based indices: Computing the squared
+ * distance between the query point and a contiguous range of points, offering each point to a
+ * {@link ResultContainer}.
+ *
+ * <p>This is the portable scalar implementation. Multi-release jars contain a replacement of this class
+ * for Java 17 and newer (located in {@code src/main/java17}), which uses the incubating Vector API if the
+ * {@code jdk.incubator.vector} module is present at runtime and falls back to this implementation otherwise.
+ * Both implementations produce identical results.
+ */
+final class DistanceKernel {
+
+    /**
+     * Check whether the vectorized implementation is in use.
+     *
+     * @return Always false for the scalar implementation.
+     */
+    static boolean isVectorized() {
+        return false;
+    }
+
+    /**
+     * Compute the distance of all points within the range from {@code start} (inclusive) to {@code end}
+     * (exclusive) to the query point and offer them to the provided {@link ResultContainer}, in ascending order of their slot.
+     *
+     * @param xs The X-coordinates of the points, indexed by slot.
+     * @param ys The Y-coordinates of the points, indexed by slot.
+     * @param start The first slot to scan.
+     * @param end The slot after the last slot to scan.
+     * @param x The X-coordinate of the query point.
+     * @param y The Y-coordinate of the query point.
+     * @param nearestNeighbours The maximum amount of results to collect.
+     * @param rc The container to collect the results in.
+     */
+    static void scanRange(float @NotNull[] xs, float @NotNull[] ys, int start, int end, float x, float y, int nearestNeighbours, @NotNull ResultContainer rc) {
+        for (int i = start; i < end; i++) {
+            float x2 = x - xs[i];
+            float y2 = y - ys[i];
+            float dst2 = x2 * x2 + y2 * y2;
+
+            if (rc.found < nearestNeighbours) {
+                rc.addValueNotFull(dst2, i);
+            } else if (dst2 < rc.maxDist2) {
+                rc.addValueFull(dst2, i);
+            }
+        }
+    }
+
+    /**
+     * Variant of {@link #scanRange(float[], float[], int, int, float, float, int, ResultContainer)} which only
+     * offers points whose category mask shares at least one bit with the given mask. Non-matching points are
+     * skipped before their distance is computed.
+     *
+     * @param xs The X-coordinates of the points, indexed by slot.
+     * @param ys The Y-coordinates of the points, indexed by slot.
+     * @param masks The category masks of the points, indexed by slot.
+     * @param mask The mask the category mask of a point needs to share at least one bit with.
+     * @param start The first slot to scan.
+     * @param end The slot after the last slot to scan.
+     * @param x The X-coordinate of the query point.
+     * @param y The Y-coordinate of the query point.
+     * @param nearestNeighbours The maximum amount of results to collect.
+     * @param rc The container to collect the results in.
+     */
+    static void scanRangeMatching(float @NotNull[] xs, float @NotNull[] ys, int @NotNull[] masks, int mask, int start, int end, float x, float y, int nearestNeighbours, @NotNull ResultContainer rc) {
+        for (int i = start; i < end; i++) {
+            if ((masks[i] & mask) == 0) {
+                continue;
+            }
+
+            float x2 = x - xs[i];
+            float y2 = y - ys[i];
+            float dst2 = x2 * x2 + y2 * y2;
+
+            if (rc.found < nearestNeighbours) {
+                rc.addValueNotFull(dst2, i);
+            } else if (dst2 < rc.maxDist2) {
+                rc.addValueFull(dst2, i);
+            }
+        }
+    }
+
+    private DistanceKernel() {
+        throw new AssertionError();
+    }
+}
@@ -0,0 +1,229 @@
+package org.stianloader.stianknn;
+
+import java.util.Collection;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * The parameters defining the layout of the grid of a {@link SpatialQueryArray}: The bounds of the grid,
+ * the dimensions of an individual cell and the occupancy above which cells are subdivided into a finer
+ * sub-grid.
+ *
+ * <p>Parameters can either be chosen manually or derived from the points that should be stored in the
+ * grid through {@link #derive(Collection, int)}. As the choice of parameters has a large impact on the
+ * performance of queries, the {@link #toString()} method reports all parameters in a format suitable
+ * for logging.
+ */
+public final class GridParameters {
+
+    /**
+     * The order in which the cells of a {@link SpatialQueryArray}, and thus the points within them, are laid out in memory.
+     */
+    public static enum CellOrder {
+        /**
+         * Cells are laid out along a Z-order (Morton) curve, where the index of a cell is obtained by interleaving the bits
+         * of its X- and Y-coordinates. Cells which are close to each other on both axes are thus mostly close to each other
+         * in memory, too, which benefits queries on large grids whose cells do not fit into the CPU caches.
+         *
+         * <p>The curve covers a grid whose dimensions are rounded up to powers of two, so the offset table of the grid
+         * has up to four times as many entries as there are cells.
+         */
+        MORTON,
+
+        /**
+         * Cells are laid out row by row, such that horizontally adjacent cells are adjacent in memory,
+         * while vertically adjacent cells are an entire row apart.
+         */
+        ROW_MAJOR;
+    }
+
+    /**
+     * The maximum amount of cells a derived grid may have per point. Limits the size of the cell
+     * offset table for sparse data sets.
+     */
+    private static final int MAX_CELLS_PER_POINT = 4;
+
+    /**
+     * The maximum amount of sub-cells a subdivided cell has on each axis.
+     */
+    static final int MAX_SUBDIVISIONS = 16;
+
+    /**
+     * Derive the parameters of a grid from the points that should be stored in it. The bounds of the grid
+     * are the bounding box of the points. The dimensions of the cells are chosen such that a cell
+     * contains about half of the requested neighbours on average, assuming the points are distributed
+     * uniformly. Cells which contain more than eight times the average amount of points get subdivided.
+     *
+     * @param points The points that are going to be stored in the grid.
+     * @param targetNeighbourCount The amount of neighbours (K) that will typically be queried.
+     * @return The derived parameters.
+     */
+    @NotNull
+    public static GridParameters derive(@NotNull Collection<? extends @NotNull PointObjectPair<?>> points, int targetNeighbourCount) {
+        float minX = Float.POSITIVE_INFINITY;
+        float minY = Float.POSITIVE_INFINITY;
+        float maxX = Float.NEGATIVE_INFINITY;
+        float maxY = Float.NEGATIVE_INFINITY;
+        for (PointObjectPair<?> pair : points) {
+            minX = Math.min(minX, pair.x);
+            minY = Math.min(minY, pair.y);
+            maxX = Math.max(maxX, pair.x);
+            maxY = Math.max(maxY, pair.y);
+        }
+
+        if (points.isEmpty()) {
+            return new GridParameters(0, 0, 0, 0, 1, 1, Integer.MAX_VALUE);
+        }
+
+        int pointCount = points.size();
+        float width = Math.max(maxX - minX, Float.MIN_NORMAL);
+        float height = Math.max(maxY - minY, Float.MIN_NORMAL);
+        float targetOccupancy = Math.max(1, targetNeighbourCount / 2F);
+
+        // Cells are square: width * height / cellSize^2 cells with pointCount / cellCount points each
+        double cellSize = Math.sqrt(width * (double) height * targetOccupancy / pointCount);
+        double maxCells = (double) pointCount * GridParameters.MAX_CELLS_PER_POINT + 1;
+        if ((width / cellSize + 1) * (height / cellSize + 1) > maxCells) {
+            cellSize = Math.sqrt(width * (double) height / maxCells);
+        }
+        // Degenerate bounds (e.g. all points on a line) must not result in more cells than permitted
+        cellSize = Math.max(cellSize, Math.max(width, height) / maxCells);
+
+        int subdivisionThreshold = (int) Math.min(Integer.MAX_VALUE, Math.max(8, 8 * (long) Math.ceil(targetOccupancy)));
+        return new GridParameters(minX, minY, maxX, maxY, (float) cellSize, (float) cellSize, subdivisionThreshold);
+    }
+
+    private final float cellHeight;
+    @NotNull
+    private final CellOrder cellOrder;
+    private final float cellWidth;
+    private final float maxX;
+    private final float maxY;
+    private final float minX;
+    private final float minY;
+    private final int subdivisionThreshold;
+
+    /**
+     * Define the parameters of a grid manually.
+     *
+     * @param minX The minimum X-coordinate of the grid.
+     * @param minY The minimum Y-coordinate of the grid.
+     * @param maxX The maximum X-coordinate of the grid.
+     * @param maxY The maximum Y-coordinate of the grid.
+     * @param cellWidth The width of an individual cell.
+     * @param cellHeight The height of an individual cell.
+     * @param subdivisionThreshold The amount of points a cell must exceed for it to be subdivided into
+     * a sub-grid. {@link Integer#MAX_VALUE} disables subdivision.
+     */
+    public GridParameters(float minX, float minY, float maxX, float maxY, float cellWidth, float cellHeight, int subdivisionThreshold) {
+        this(minX, minY, maxX, maxY, cellWidth, cellHeight, subdivisionThreshold, CellOrder.ROW_MAJOR);
+    }
+
+    /**
+     * Define the parameters of a grid manually, including the order in which its cells are laid out.
+     *
+     * @param minX The minimum X-coordinate of the grid.
+     * @param minY The minimum Y-coordinate of the grid.
+     * @param maxX The maximum X-coordinate of the grid.
+     * @param maxY The maximum Y-coordinate of the grid.
+     * @param cellWidth The width of an individual cell.
+     * @param cellHeight The height of an individual cell.
+     * @param subdivisionThreshold The amount of points a cell must exceed for it to be subdivided into
+     * a sub-grid. {@link Integer#MAX_VALUE} disables subdivision.
+     * @param cellOrder The order in which the cells are laid out in memory.
+     */
+    public GridParameters(float minX, float minY, float maxX, float maxY, float cellWidth, float cellHeight, int subdivisionThreshold, @NotNull CellOrder cellOrder) {
+        if (!(cellWidth > 0) || !(cellHeight > 0)) {
+            throw new IllegalArgumentException("Cell dimensions must be positive, but got " + cellWidth + "x" + cellHeight);
+        } else if (subdivisionThreshold < 1) {
+            throw new IllegalArgumentException("Subdivision threshold must be positive, but got " + subdivisionThreshold);
+        }
+
+        this.minX = minX;
+        this.minY = minY;
+        this.maxX = maxX;
+        this.maxY = maxY;
+        this.cellWidth = cellWidth;
+        this.cellHeight = cellHeight;
+        this.subdivisionThreshold = subdivisionThreshold;
+        this.cellOrder = cellOrder;
+    }
+
+    public float getCellHeight() {
+        return this.cellHeight;
+    }
+
+    /**
+     * Obtain the order in which the cells of the grid are laid out in memory.
+     *
+     * @return The order of the cells, {@link CellOrder#ROW_MAJOR} unless specified otherwise.
+     */
+    @NotNull
+    public CellOrder getCellOrder() {
+        return this.cellOrder;
+    }
+
+    public float getCellWidth() {
+        return this.cellWidth;
+    }
+
+    public float getMaxX() {
+        return this.maxX;
+    }
+
+    public float getMaxY() {
+        return this.maxY;
+    }
+
+    public float getMinX() {
+        return this.minX;
+    }
+
+    public float getMinY() {
+        return this.minY;
+    }
+
+    /**
+     * Obtain the amount of points a cell must exceed for it to be subdivided into a sub-grid.
+     *
+     * @return The subdivision threshold, {@link Integer#MAX_VALUE} if subdivision is disabled.
+     */
+    public int getSubdivisionThreshold() {
+        return this.subdivisionThreshold;
+    }
+
+    /**
+     * Compute the amount of sub-cells a cell with the given amount of points is split into on each axis.
+     * Sub-cells aim to contain about a quarter of {@link #getSubdivisionThreshold()} points.
+     *
+     * @param occupancy The amount of points in the cell.
+     * @return The amount of sub-cells on each axis, or 1 if the cell should not be subdivided.
+     */
+    int getSubdivisions(int occupancy) {
+        if (occupancy <= this.subdivisionThreshold) {
+            return 1;
+        }
+        double targetOccupancy = Math.max(1, this.subdivisionThreshold / 4);
+        return (int) Math.min(GridParameters.MAX_SUBDIVISIONS, Math.ceil(Math.sqrt(occupancy / targetOccupancy)));
+    }
+
+    @Override
+    public String toString() {
+        return "GridParameters[bounds=(" + this.minX + ", " + this.minY + ") to (" + this.maxX + ", " + this.maxY
+                + "), cell=" + this.cellWidth + "x" + this.cellHeight
+                + ", subdivisionThreshold=" + (this.subdivisionThreshold == Integer.MAX_VALUE ? "disabled" : Integer.toString(this.subdivisionThreshold))
+                + ", cellOrder=" + this.cellOrder
+                + "]";
+    }
+
+    /**
+     * Obtain parameters which only differ from these parameters in the order in which the cells are laid out.
+     *
+     * @param cellOrder The order of the cells.
+     * @return The parameters with the given order of cells.
+     */
+    @NotNull
+    public GridParameters withCellOrder(@NotNull CellOrder cellOrder) {
+        return new GridParameters(this.minX, this.minY, this.maxX, this.maxY, this.cellWidth, this.cellHeight, this.subdivisionThreshold, cellOrder);
+    }
+}
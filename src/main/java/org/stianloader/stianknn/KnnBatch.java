@@ -0,0 +1,103 @@
+package org.stianloader.stianknn;
+
+import java.util.Arrays;
+import java.util.function.IntUnaryOperator;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * The parts of {@link SpatialIndexKNN#queryKnnBatch(float[], float[], int, int[], float[])} which are shared
+ * by all indices: Validating the arguments, ordering the query points such that consecutive queries touch
+ * the same parts of the index, and writing the results of every query to the output arrays.
+ */
+final class KnnBatch {
+
+    /**
+     * Searches the K nearest points of a single query point.
+     */
+    @FunctionalInterface
+    interface Search {
+        /**
+         * Search the K nearest points of the given query point.
+         *
+         * @param x The X-coordinate of the query point.
+         * @param y The Y-coordinate of the query point.
+         * @param nearestNeighbours The maximum amount of points to search (K).
+         * @return The container holding the found points, which need not be sorted yet.
+         */
+        @NotNull
+        ResultContainer search(float x, float y, int nearestNeighbours);
+    }
+
+    /**
+     * Maps a query point to the key by which the query points of a batch are ordered.
+     */
+    @FunctionalInterface
+    interface SortKey {
+        int key(float x, float y);
+    }
+
+    /**
+     * Validate the arguments of a batch query, throwing an {@link IllegalArgumentException} if they are invalid.
+     */
+    static void checkArguments(float @NotNull[] xs, float @NotNull[] ys, int neighbourCount, int @NotNull[] outIndices, float @NotNull[] outDist2) {
+        int queryCount = xs.length;
+        if (ys.length != queryCount) {
+            throw new IllegalArgumentException("Length of xs (" + queryCount + ") does not match the length of ys (" + ys.length + ")");
+        } else if (neighbourCount < 0) {
+            throw new IllegalArgumentException("Negative neighbour count: " + neighbourCount);
+        } else if (outIndices.length < (long) queryCount * neighbourCount || outDist2.length < (long) queryCount * neighbourCount) {
+            throw new IllegalArgumentException("Output arrays too small: Expected at least " + ((long) queryCount * neighbourCount) + " elements, but got " + outIndices.length + " and " + outDist2.length);
+        }
+    }
+
+    /**
+     * Sort the query points by their key. The key of each query point is stored within the upper 32 bits
+     * of the returned values, the index of the query point within the lower 32 bits.
+     */
+    static long @NotNull[] order(float @NotNull[] xs, float @NotNull[] ys, @NotNull SortKey sortKey) {
+        int queryCount = xs.length;
+        long[] order = new long[queryCount];
+        for (int i = 0; i < queryCount; i++) {
+            order[i] = ((long) sortKey.key(xs[i], ys[i])) << 32 | i;
+        }
+        Arrays.sort(order);
+        return order;
+    }
+
+    /**
+     * Fill the output ranges of the given query from the {@code found}-th entry onwards with an id of {@code -1}
+     * and a distance of {@link Float#POSITIVE_INFINITY}.
+     */
+    static void pad(int query, int neighbourCount, int found, int @NotNull[] outIndices, float @NotNull[] outDist2) {
+        int outOffset = query * neighbourCount;
+        Arrays.fill(outIndices, outOffset + found, outOffset + neighbourCount, -1);
+        Arrays.fill(outDist2, outOffset + found, outOffset + neighbourCount, Float.POSITIVE_INFINITY);
+    }
+
+    /**
+     * Execute the queries from {@code start} (inclusive) to {@code end} (exclusive) in the given order,
+     * writing the results of every query to its range of the output arrays.
+     *
+     * @param ids Maps the slot of a found point to the id which is written to {@code outIndices}.
+     */
+    static void run(float @NotNull[] xs, float @NotNull[] ys, int neighbourCount, int @NotNull[] outIndices, float @NotNull[] outDist2,
+            long @NotNull[] order, int start, int end, @NotNull Search search, @NotNull IntUnaryOperator ids) {
+        for (int i = start; i < end; i++) {
+            int query = (int) order[i];
+            ResultContainer rc = search.search(xs[query], ys[query], neighbourCount);
+            rc.sort();
+
+            int outOffset = query * neighbourCount;
+            for (int j = 0; j < rc.found; j++) {
+                outIndices[outOffset + j] = ids.applyAsInt(rc.slots[j]);
+            }
+            System.arraycopy(rc.distances2, 0, outDist2, outOffset, rc.found);
+            KnnBatch.pad(query, neighbourCount, rc.found, outIndices, outDist2);
+        }
+    }
+
+    private KnnBatch() {
+        throw new AssertionError();
+    }
+}
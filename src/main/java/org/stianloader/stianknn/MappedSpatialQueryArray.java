@@ -0,0 +1,423 @@
+package org.stianloader.stianknn;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.IntFunction;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * A read-only view of a {@link SpatialQueryArray} that was written to a file through
+ * {@link SpatialQueryArray#writeTo(java.nio.channels.WritableByteChannel)}. The file is memory-mapped
+ * and queries operate on the mapped buffers directly, so opening an index does not copy the points
+ * onto the heap and the pages of the file are shared between all processes mapping the same file.
+ *
+ * <p>The file only stores the ids of the points, that is their position within the collection the
+ * original index was built from. Elements are resolved through a caller-provided mapping from ids
+ * to elements whenever a query reports them.
+ *
+ * <p>The file consists of a header followed by the tables of the index, all values being stored
+ * as 4 byte little-endian integers or floats:
+ * <ol>
+ * <li>The magic value {@code SKNN} and the version of the format ({@link #FORMAT_VERSION}).</li>
+ * <li>The bounds of the grid (minX, minY, maxX, maxY), the dimensions of a cell (width, height) and the
+ * subdivision threshold.</li>
+ * <li>The amount of cells per strip, the amount of strips, the amount of points, and the lengths
+ * of the sub-cell tables.</li>
+ * <li>The cell offset table, the sub-cell tables, the X-coordinates, the Y-coordinates and the ids
+ * of the points, in this order.</li>
+ * </ol>
+ *
+ * <p>Instances of this class are safe for concurrent queries.
+ *
+ * @param <E> The type of the elements stored in the index.
+ */
+public class MappedSpatialQueryArray<@NotNull E> implements SpatialIndexKNN<E> {
+
+    /**
+     * The version of the file format written by this version of the library.
+     */
+    static final int FORMAT_VERSION = 1;
+
+    /**
+     * The size of the header of the file format, in bytes.
+     */
+    static final int HEADER_SIZE = 56;
+
+    /**
+     * The magic value every file starts with, which are the ASCII characters {@code SKNN}
+     * when read as a little-endian integer.
+     */
+    static final int MAGIC = 0x4E4E4B53;
+
+    /**
+     * Memory-map the index stored in the file at the given path.
+     *
+     * <p>The file is mapped read-only and remains mapped until the returned instance is garbage collected.
+     * The file must not be modified while it is mapped.
+     *
+     * @param <E> The type of the elements stored in the index.
+     * @param path The path of the file.
+     * @param elements The mapping from the id of a point to its element.
+     * @return The mapped index.
+     * @throws IOException If the file cannot be read or is not a valid index.
+     */
+    @NotNull
+    public static <@NotNull E> MappedSpatialQueryArray<E> map(@NotNull Path path, @NotNull IntFunction<? extends E> elements) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Index file " + path + " is too large to be mapped: " + size + " bytes");
+            }
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            return new MappedSpatialQueryArray<>(buffer, elements);
+        }
+    }
+
+    @NotNull
+    private static ByteBuffer slice(@NotNull ByteBuffer buffer, int offset, int length) {
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position(offset);
+        duplicate.limit(offset + length);
+        return duplicate.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * The geometry of the grid, which also performs the searches of this index.
+     */
+    @NotNull
+    private final CellGrid cellGrid;
+
+    /**
+     * Offset table of the grid, as in {@link SpatialQueryArray}.
+     */
+    @NotNull
+    private final IntBuffer cellStart;
+
+    @NotNull
+    private final ThreadLocal<ResultContainer> defaultContainer = ThreadLocal.withInitial(() -> new ResultContainer(40));
+
+    @NotNull
+    private final IntFunction<? extends E> elements;
+
+    /**
+     * The ids of all points, sorted by the cell they are located in.
+     */
+    @NotNull
+    private final IntBuffer ids;
+
+    @NotNull
+    private final GridParameters parameters;
+
+    /**
+     * Offers the points of visited cells to the searches of {@link #cellGrid}.
+     */
+    @NotNull
+    private final CellGrid.CellScanner scanner = this::scanCell;
+
+    /**
+     * Offset tables of subdivided cells, as in {@link SpatialQueryArray}.
+     */
+    @NotNull
+    private final IntBuffer subcellStart;
+
+    /**
+     * The offset of the sub-grid of each cell within {@link #subcellStart}, or -1 if the cell is not subdivided.
+     * Is empty if no cell is subdivided.
+     */
+    @NotNull
+    private final IntBuffer subdivisions;
+
+    /**
+     * The X-coordinates of all points, sorted by the cell they are located in.
+     */
+    @NotNull
+    private final FloatBuffer xs;
+
+    /**
+     * The Y-coordinates of all points, sorted by the cell they are located in.
+     */
+    @NotNull
+    private final FloatBuffer ys;
+
+    private MappedSpatialQueryArray(@NotNull ByteBuffer buffer, @NotNull IntFunction<? extends E> elements) throws IOException {
+        buffer = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.capacity() < MappedSpatialQueryArray.HEADER_SIZE || buffer.getInt(0) != MappedSpatialQueryArray.MAGIC) {
+            throw new IOException("Not a spatial index file");
+        } else if (buffer.getInt(4) != MappedSpatialQueryArray.FORMAT_VERSION) {
+            throw new IOException("Unsupported spatial index file version " + buffer.getInt(4) + ", expected " + MappedSpatialQueryArray.FORMAT_VERSION);
+        }
+
+        float minX = buffer.getFloat(8);
+        float minY = buffer.getFloat(12);
+        float maxX = buffer.getFloat(16);
+        float maxY = buffer.getFloat(20);
+        float cellWidth = buffer.getFloat(24);
+        float cellHeight = buffer.getFloat(28);
+        int subdivisionThreshold = buffer.getInt(32);
+        int cellStripSize = buffer.getInt(36);
+        int verticalCellCount = buffer.getInt(40);
+        int pointCount = buffer.getInt(44);
+        int subdivisionsLength = buffer.getInt(48);
+        int subcellStartLength = buffer.getInt(52);
+
+        if (!(cellWidth > 0) || !(cellHeight > 0) || subdivisionThreshold < 1) {
+            throw new IOException("Corrupt spatial index file: Invalid grid parameters");
+        }
+
+        this.elements = elements;
+        this.cellGrid = new CellGrid(minX, minY, maxX, maxY, cellWidth, cellHeight);
+        this.parameters = new GridParameters(minX, minY, maxX, maxY, cellWidth, cellHeight, subdivisionThreshold);
+
+        long cellCount = (long) cellStripSize * verticalCellCount;
+        long expectedSize = MappedSpatialQueryArray.HEADER_SIZE + 4L * (cellCount + 1 + subdivisionsLength + subcellStartLength + 3L * pointCount);
+        if (cellStripSize != this.cellGrid.cellStripSize || verticalCellCount != this.cellGrid.verticalCellCount) {
+            throw new IOException("Corrupt spatial index file: The grid has " + cellStripSize + "x" + verticalCellCount
+                    + " cells, but its bounds define " + this.cellGrid.cellStripSize + "x" + this.cellGrid.verticalCellCount + " cells");
+        } else if (cellStripSize <= 0 || verticalCellCount <= 0 || pointCount < 0 || subcellStartLength < 0
+                || (subdivisionsLength != 0 && subdivisionsLength != cellCount)) {
+            throw new IOException("Corrupt spatial index file: Invalid table dimensions");
+        } else if (expectedSize != buffer.capacity()) {
+            throw new IOException("Corrupt spatial index file: Expected " + expectedSize + " bytes, but got " + buffer.capacity());
+        }
+
+        int offset = MappedSpatialQueryArray.HEADER_SIZE;
+        this.cellStart = MappedSpatialQueryArray.slice(buffer, offset, 4 * ((int) cellCount + 1)).asIntBuffer();
+        offset += 4 * ((int) cellCount + 1);
+        this.subdivisions = MappedSpatialQueryArray.slice(buffer, offset, 4 * subdivisionsLength).asIntBuffer();
+        offset += 4 * subdivisionsLength;
+        this.subcellStart = MappedSpatialQueryArray.slice(buffer, offset, 4 * subcellStartLength).asIntBuffer();
+        offset += 4 * subcellStartLength;
+        this.xs = MappedSpatialQueryArray.slice(buffer, offset, 4 * pointCount).asFloatBuffer();
+        offset += 4 * pointCount;
+        this.ys = MappedSpatialQueryArray.slice(buffer, offset, 4 * pointCount).asFloatBuffer();
+        offset += 4 * pointCount;
+        this.ids = MappedSpatialQueryArray.slice(buffer, offset, 4 * pointCount).asIntBuffer();
+        this.checkTables(pointCount);
+    }
+
+    private int cellIndex(int cellX, int cellY) {
+        return cellY * this.cellGrid.cellStripSize + cellX;
+    }
+
+    /**
+     * Verify that the offset tables only reference points stored within the file, such that queries
+     * on a corrupt file cannot read outside of the mapped tables. The coordinates and ids of the points
+     * are not verified. Runs in linear time with respect to the size of the offset tables.
+     *
+     * @param pointCount The amount of points stored in the file.
+     * @throws IOException If any offset table is invalid.
+     */
+    private void checkTables(int pointCount) throws IOException {
+        IntBuffer cellStart = this.cellStart;
+        IntBuffer subdivisions = this.subdivisions;
+        IntBuffer subcellStart = this.subcellStart;
+        int cellCount = cellStart.limit() - 1;
+
+        if (cellStart.get(0) != 0 || cellStart.get(cellCount) != pointCount) {
+            throw new IOException("Corrupt spatial index file: The cell offset table does not span all " + pointCount + " points");
+        }
+
+        for (int cell = 0; cell < cellCount; cell++) {
+            int start = cellStart.get(cell);
+            int end = cellStart.get(cell + 1);
+            if (end < start || end > pointCount) {
+                throw new IOException("Corrupt spatial index file: Invalid offsets " + start + " to " + end + " of the cell " + cell);
+            }
+
+            int offset = subdivisions.limit() == 0 ? -1 : subdivisions.get(cell);
+            if (offset < 0) {
+                continue;
+            } else if (offset >= subcellStart.limit() - 1) {
+                throw new IOException("Corrupt spatial index file: The sub-grid of the cell " + cell + " is located outside of the sub-cell table");
+            }
+
+            int subdivisionCount = subcellStart.get(offset);
+            long last = offset + 1 + (long) subdivisionCount * subdivisionCount;
+            if (subdivisionCount < 1 || last >= subcellStart.limit()) {
+                throw new IOException("Corrupt spatial index file: The sub-grid of the cell " + cell + " is located outside of the sub-cell table");
+            } else if (subcellStart.get(offset + 1) != start || subcellStart.get((int) last) != end) {
+                throw new IOException("Corrupt spatial index file: The sub-grid of the cell " + cell + " does not span the points of the cell");
+            }
+
+            for (int subcell = offset + 1; subcell < last; subcell++) {
+                if (subcellStart.get(subcell + 1) < subcellStart.get(subcell)) {
+                    throw new IOException("Corrupt spatial index file: Decreasing offsets within the sub-grid of the cell " + cell);
+                }
+            }
+        }
+    }
+
+    @NotNull
+    private E element(int slot) {
+        E element = this.elements.apply(this.ids.get(slot));
+        if (element == null) {
+            throw new IllegalStateException("No element is associated with the id " + this.ids.get(slot));
+        }
+        return element;
+    }
+
+    /**
+     * Obtain the layout of the grid of the mapped index.
+     *
+     * @return The {@link GridParameters} the index was built with.
+     */
+    @NotNull
+    public GridParameters getParameters() {
+        return this.parameters;
+    }
+
+    @Override
+    @Nullable
+    public E query1nn(float x, float y) {
+        ResultContainer rc = this.defaultContainer.get();
+        this.searchKnn(x, y, 1, rc);
+        if (rc.found == 0) {
+            return null;
+        }
+        return this.element(rc.slots[0]);
+    }
+
+    @Override
+    public void queryKnn(float x, float y, int neighbourCount, @NotNull Consumer<@NotNull E> out) {
+        ResultContainer rc = this.defaultContainer.get();
+        this.searchKnn(x, y, neighbourCount, rc);
+        rc.sort();
+
+        for (int i = 0; i < rc.found; i++) {
+            out.accept(this.element(rc.slots[i]));
+        }
+    }
+
+    /**
+     * Query the K nearest points to the query point, writing their ids and squared distances to the
+     * given arrays, ordered from nearest to farthest. Does not resolve any elements.
+     *
+     * @param x The X-coordinate of the query point.
+     * @param y The Y-coordinate of the query point.
+     * @param neighbourCount The amount of neighbours (K) to search.
+     * @param outIds The array to write the ids of the points to.
+     * @param outDist2 The array to write the squared distances of the points to.
+     * @return The amount of points found, at most {@code neighbourCount}.
+     */
+    public int queryKnn(float x, float y, int neighbourCount, int @NotNull[] outIds, float @NotNull[] outDist2) {
+        if (outIds.length < neighbourCount || outDist2.length < neighbourCount) {
+            throw new IllegalArgumentException("Output arrays too small: Expected at least " + neighbourCount + " elements, but got " + outIds.length + " and " + outDist2.length);
+        }
+
+        ResultContainer rc = this.defaultContainer.get();
+        this.searchKnn(x, y, neighbourCount, rc);
+        rc.sort();
+        for (int i = 0; i < rc.found; i++) {
+            outIds[i] = this.ids.get(rc.slots[i]);
+        }
+        System.arraycopy(rc.distances2, 0, outDist2, 0, rc.found);
+        return rc.found;
+    }
+
+    @Override
+    public void queryKnnBatch(float @NotNull[] xs, float @NotNull[] ys, int neighbourCount, int @NotNull[] outIndices, float @NotNull[] outDist2) {
+        KnnBatch.checkArguments(xs, ys, neighbourCount, outIndices, outDist2);
+        long[] order = KnnBatch.order(xs, ys, (x, y) -> this.cellIndex(this.cellGrid.cellX(x), this.cellGrid.cellY(y)));
+        ResultContainer rc = this.defaultContainer.get();
+        KnnBatch.run(xs, ys, neighbourCount, outIndices, outDist2, order, 0, xs.length, (x, y, nearestNeighbours) -> {
+            this.searchKnn(x, y, nearestNeighbours, rc);
+            return rc;
+        }, this.ids::get);
+    }
+
+    @Override
+    public void queryKnnWhile(float x, float y, int neighbourCount, @NotNull Predicate<@NotNull E> out) {
+        ResultContainer rc = this.defaultContainer.get();
+        this.searchKnn(x, y, neighbourCount, rc);
+
+        rc.beginPoll();
+        for (int i = 0; i < rc.found; i++) {
+            if (!out.test(this.element(rc.pollSlot()))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Offer the points within the given cell to the provided {@link ResultContainer}, skipping the cell
+     * or its sub-cells if they cannot contain a point nearer than the K nearest points found so far.
+     *
+     * @param cellX The X-coordinate of the cell, in cells.
+     * @param cellY The Y-coordinate of the cell, in cells.
+     * @param x The X-coordinate of the query point.
+     * @param y The Y-coordinate of the query point.
+     * @param nearestNeighbours The amount of neighbours (K) to search.
+     * @param rc The container to store the results in.
+     */
+    private void scanCell(int cellX, int cellY, float x, float y, int nearestNeighbours, @NotNull ResultContainer rc) {
+        if (rc.found == nearestNeighbours && this.cellGrid.cellDistance2(cellX, cellY, x, y) >= rc.maxDist2) {
+            return;
+        }
+
+        int cell = this.cellIndex(cellX, cellY);
+        int offset = this.subdivisions.limit() == 0 ? -1 : this.subdivisions.get(cell);
+        if (offset < 0) {
+            this.scanRange(this.cellStart.get(cell), this.cellStart.get(cell + 1), x, y, nearestNeighbours, rc);
+            return;
+        }
+
+        int subdivisions = this.subcellStart.get(offset);
+        for (int sy = 0, subcell = offset + 1; sy < subdivisions; sy++) {
+            for (int sx = 0; sx < subdivisions; sx++, subcell++) {
+                if (rc.found == nearestNeighbours && this.cellGrid.subcellDistance2(cellX, cellY, subdivisions, sx, sy, x, y) >= rc.maxDist2) {
+                    continue;
+                }
+                this.scanRange(this.subcellStart.get(subcell), this.subcellStart.get(subcell + 1), x, y, nearestNeighbours, rc);
+            }
+        }
+    }
+
+    private void scanRange(int start, int end, float x, float y, int nearestNeighbours, @NotNull ResultContainer rc) {
+        final FloatBuffer xs = this.xs;
+        final FloatBuffer ys = this.ys;
+        for (int i = start; i < end; i++) {
+            float x2 = x - xs.get(i);
+            float y2 = y - ys.get(i);
+            float dst2 = x2 * x2 + y2 * y2;
+
+            if (rc.found < nearestNeighbours) {
+                rc.addValueNotFull(dst2, i);
+            } else if (dst2 < rc.maxDist2) {
+                rc.addValueFull(dst2, i);
+            }
+        }
+    }
+
+    /**
+     * Search the K nearest points to the query point, storing their slots and distances in the
+     * given {@link ResultContainer}. The search expands in square rings around the cell of the query point,
+     * skipping cells which cannot contain a nearer point than the K nearest points found so far.
+     *
+     * @param x The X-coordinate of the query point.
+     * @param y The Y-coordinate of the query point.
+     * @param nearestNeighbours The amount of neighbours (K) to search.
+     * @param rc The container to store the results in.
+     */
+    private void searchKnn(float x, float y, int nearestNeighbours, @NotNull ResultContainer rc) {
+        this.cellGrid.searchRings(x, y, nearestNeighbours, rc, this.scanner);
+    }
+
+    /**
+     * Obtain the amount of points stored in the mapped index.
+     *
+     * @return The amount of points.
+     */
+    public int size() {
+        return this.ids.limit();
+    }
+}
@@ -0,0 +1,388 @@
+package org.stianloader.stianknn;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.function.Consumer;
+import java.util.function.IntUnaryOperator;
+import java.util.function.Predicate;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * A mutable variant of the {@link SpatialQueryArray}, intended for points that move frequently.
+ * Rather than rebuilding the entire index whenever a point moves, points can be inserted, removed
+ * and moved individually.
+ *
+ * <p>Points are identified by handles, which are returned by {@link #insert(Object, float, float)}.
+ * Handles are small non-negative integers and double as the ids used by {@link #queryKnnBatch(float[], float[], int, int[], float[])}.
+ * The handle of a removed point may be reused by subsequently inserted points, but until then the live handles
+ * are not dense: Unlike the ids of the other indices, they do not necessarily fill the range from 0 to {@link #size()}.
+ *
+ * <p>Each cell of the grid keeps the coordinates of its points in its own contiguous arrays.
+ * Moving a point within the same cell is thus a constant-time operation, while moving a point
+ * to another cell merely removes it from the old cell (by swapping in the last point of the cell)
+ * and appends it to the new cell.
+ *
+ * <p>This class is not thread-safe. Concurrent queries are supported as long as no
+ * thread modifies the index at the same time.
+ *
+ * @param <E> The type of the elements stored in the index.
+ */
+public class MutableSpatialQueryArray<@NotNull E> implements SpatialIndexKNN<E> {
+
+    /**
+     * The initial capacity of a cell once the first point is added to it.
+     */
+    private static final int INITIAL_CELL_CAPACITY = 4;
+
+    private static final int @NotNull[] NO_HANDLES = new int[0];
+    private static final float @NotNull[] NO_POINTS = new float[0];
+
+    /**
+     * The handles of the points within each cell. The handle of the point in the cell {@code c} located
+     * at the slot {@code s} is stored at {@code cellHandles[c][s]}.
+     */
+    private final int @NotNull[] @NotNull[] cellHandles;
+
+    /**
+     * The amount of points within each cell.
+     */
+    private final int @NotNull[] cellSizes;
+
+    /**
+     * The geometry of the grid, which also drives the K nearest neighbour searches.
+     */
+    @NotNull
+    private final CellGrid cellGrid;
+
+    /**
+     * The X-coordinates of the points within each cell, laid out the same way as {@link #cellHandles}.
+     */
+    private final float @NotNull[] @NotNull[] cellXs;
+
+    /**
+     * The Y-coordinates of the points within each cell, laid out the same way as {@link #cellHandles}.
+     */
+    private final float @NotNull[] @NotNull[] cellYs;
+
+    @NotNull
+    private final ThreadLocal<ResultContainer> defaultContainer = ThreadLocal.withInitial(() -> new ResultContainer(40));
+
+    /**
+     * The head of the free list of handles, or -1 if no handle is free. The next free handle after
+     * a free handle {@code h} is stored in {@code handleSlots[h]}.
+     */
+    private int freeHandle = -1;
+
+    /**
+     * The cell in which the point with a given handle is located in, or -1 if the handle is not in use.
+     */
+    private int @NotNull[] handleCells;
+
+    /**
+     * The slot within the cell in which the point with a given handle is located in.
+     */
+    private int @NotNull[] handleSlots;
+
+    /**
+     * The amount of handles that were ever given out, that is the lowest handle that was never used.
+     */
+    private int handleWatermark;
+
+    /**
+     * The elements stored in this index, indexed by their handle.
+     */
+    private @Nullable Object @NotNull[] payloads;
+
+    /**
+     * Offers the points of visited cells to the searches of {@link #cellGrid}.
+     */
+    @NotNull
+    private final CellGrid.CellScanner scanner = this::scanCell;
+
+    private int size;
+
+    /**
+     * Construct a new, empty {@link MutableSpatialQueryArray}.
+     *
+     * <p>Points outside of the given bounds are supported, but will be treated as if they
+     * were located in the nearest cell on the edge of the grid, which is detrimental to performance.
+     *
+     * @param minX The minimum X-coordinate of the grid.
+     * @param minY The minimum Y-coordinate of the grid.
+     * @param maxX The maximum X-coordinate of the grid.
+     * @param maxY The maximum Y-coordinate of the grid.
+     * @param cellWidth The width of an individual cell.
+     * @param cellHeight The height of an individual cell.
+     */
+    public MutableSpatialQueryArray(float minX, float minY, float maxX, float maxY, float cellWidth, float cellHeight) {
+        this.cellGrid = new CellGrid(minX, minY, maxX, maxY, cellWidth, cellHeight);
+
+        int cellCount = this.cellGrid.cellStripSize * this.cellGrid.verticalCellCount;
+        this.cellHandles = new int[cellCount][];
+        this.cellXs = new float[cellCount][];
+        this.cellYs = new float[cellCount][];
+        this.cellSizes = new int[cellCount];
+        Arrays.fill(this.cellHandles, MutableSpatialQueryArray.NO_HANDLES);
+        Arrays.fill(this.cellXs, MutableSpatialQueryArray.NO_POINTS);
+        Arrays.fill(this.cellYs, MutableSpatialQueryArray.NO_POINTS);
+
+        this.handleCells = new int[16];
+        this.handleSlots = new int[16];
+        this.payloads = new Object[16];
+    }
+
+    /**
+     * Append a point to the given cell.
+     *
+     * @param cell The index of the cell.
+     * @param handle The handle of the point.
+     * @param x The X-coordinate of the point.
+     * @param y The Y-coordinate of the point.
+     */
+    private void addToCell(int cell, int handle, float x, float y) {
+        int slot = this.cellSizes[cell]++;
+        if (slot == this.cellHandles[cell].length) {
+            int capacity = Math.max(MutableSpatialQueryArray.INITIAL_CELL_CAPACITY, slot * 2);
+            this.cellHandles[cell] = Arrays.copyOf(this.cellHandles[cell], capacity);
+            this.cellXs[cell] = Arrays.copyOf(this.cellXs[cell], capacity);
+            this.cellYs[cell] = Arrays.copyOf(this.cellYs[cell], capacity);
+        }
+
+        this.cellHandles[cell][slot] = handle;
+        this.cellXs[cell][slot] = x;
+        this.cellYs[cell][slot] = y;
+        this.handleCells[handle] = cell;
+        this.handleSlots[handle] = slot;
+    }
+
+    private int cellIndex(int cellX, int cellY) {
+        return cellY * this.cellGrid.cellStripSize + cellX;
+    }
+
+    private void checkHandle(int handle) {
+        if (handle < 0 || handle >= this.handleWatermark || this.handleCells[handle] < 0) {
+            throw new NoSuchElementException("No point with the handle " + handle + " exists");
+        }
+    }
+
+    /**
+     * Obtain the element associated with the point with the given handle.
+     *
+     * @param handle The handle of the point.
+     * @return The element of the point.
+     * @throws NoSuchElementException If no point with the given handle exists.
+     */
+    @NotNull
+    public E get(int handle) {
+        this.checkHandle(handle);
+        @SuppressWarnings("unchecked")
+        E object = (E) this.payloads[handle];
+        assert object != null;
+        return object;
+    }
+
+    /**
+     * Insert a new point into the index.
+     *
+     * @param element The element associated with the point.
+     * @param x The X-coordinate of the point.
+     * @param y The Y-coordinate of the point.
+     * @return The handle of the inserted point, which is required to later move or remove the point.
+     */
+    public int insert(@NotNull E element, float x, float y) {
+        int handle = this.freeHandle;
+        if (handle >= 0) {
+            this.freeHandle = this.handleSlots[handle];
+        } else {
+            handle = this.handleWatermark++;
+            if (handle == this.handleCells.length) {
+                int capacity = handle * 2;
+                this.handleCells = Arrays.copyOf(this.handleCells, capacity);
+                this.handleSlots = Arrays.copyOf(this.handleSlots, capacity);
+                this.payloads = Arrays.copyOf(this.payloads, capacity);
+            }
+        }
+
+        this.payloads[handle] = element;
+        this.addToCell(this.cellIndex(this.cellGrid.cellX(x), this.cellGrid.cellY(y)), handle, x, y);
+        this.size++;
+        return handle;
+    }
+
+    /**
+     * Move an existing point to a new location. If the point stays within the same cell,
+     * this is a constant-time operation.
+     *
+     * @param handle The handle of the point, as returned by {@link #insert(Object, float, float)}.
+     * @param x The new X-coordinate of the point.
+     * @param y The new Y-coordinate of the point.
+     * @throws NoSuchElementException If no point with the given handle exists.
+     */
+    public void move(int handle, float x, float y) {
+        this.checkHandle(handle);
+        int oldCell = this.handleCells[handle];
+        int newCell = this.cellIndex(this.cellGrid.cellX(x), this.cellGrid.cellY(y));
+
+        if (oldCell == newCell) {
+            int slot = this.handleSlots[handle];
+            this.cellXs[oldCell][slot] = x;
+            this.cellYs[oldCell][slot] = y;
+        } else {
+            this.removeFromCell(oldCell, this.handleSlots[handle]);
+            this.addToCell(newCell, handle, x, y);
+        }
+    }
+
+    @Override
+    @Nullable
+    public E query1nn(float x, float y) {
+        ResultContainer rc = this.defaultContainer.get();
+        this.searchKnn(x, y, 1, rc);
+        if (rc.found == 0) {
+            return null;
+        }
+
+        @SuppressWarnings("unchecked")
+        E object = (E) this.payloads[rc.slots[0]];
+        return object;
+    }
+
+    @Override
+    public void queryKnn(float x, float y, int neighbourCount, @NotNull Consumer<@NotNull E> out) {
+        ResultContainer rc = this.defaultContainer.get();
+        this.searchKnn(x, y, neighbourCount, rc);
+        rc.sort();
+
+        for (int i = 0; i < rc.found; i++) {
+            @SuppressWarnings("unchecked")
+            E object = (E) this.payloads[rc.slots[i]];
+            assert object != null;
+            out.accept(object);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>The ids written by this method are the handles of the points.
+     */
+    @Override
+    public void queryKnnBatch(float @NotNull[] xs, float @NotNull[] ys, int neighbourCount, int @NotNull[] outIndices, float @NotNull[] outDist2) {
+        KnnBatch.checkArguments(xs, ys, neighbourCount, outIndices, outDist2);
+        long[] order = KnnBatch.order(xs, ys, (x, y) -> this.cellIndex(this.cellGrid.cellX(x), this.cellGrid.cellY(y)));
+        ResultContainer rc = this.defaultContainer.get();
+        KnnBatch.run(xs, ys, neighbourCount, outIndices, outDist2, order, 0, xs.length, (x, y, nearestNeighbours) -> {
+            this.searchKnn(x, y, nearestNeighbours, rc);
+            return rc;
+        }, IntUnaryOperator.identity());
+    }
+
+    @Override
+    public void queryKnnWhile(float x, float y, int neighbourCount, @NotNull Predicate<@NotNull E> out) {
+        ResultContainer rc = this.defaultContainer.get();
+        this.searchKnn(x, y, neighbourCount, rc);
+
+        rc.beginPoll();
+        for (int i = 0; i < rc.found; i++) {
+            @SuppressWarnings("unchecked")
+            E object = (E) this.payloads[rc.pollSlot()];
+            assert object != null;
+            if (!out.test(object)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Remove a point from the index. The handle of the point becomes invalid and may be
+     * reused by subsequent insertions.
+     *
+     * @param handle The handle of the point, as returned by {@link #insert(Object, float, float)}.
+     * @throws NoSuchElementException If no point with the given handle exists.
+     */
+    public void remove(int handle) {
+        this.checkHandle(handle);
+        this.removeFromCell(this.handleCells[handle], this.handleSlots[handle]);
+        this.handleCells[handle] = -1;
+        this.handleSlots[handle] = this.freeHandle;
+        this.payloads[handle] = null;
+        this.freeHandle = handle;
+        this.size--;
+    }
+
+    /**
+     * Remove the point at the given slot from a cell by moving the last point of the cell into
+     * the slot. The handle of the removed point is left untouched.
+     *
+     * @param cell The index of the cell.
+     * @param slot The slot of the point within the cell.
+     */
+    private void removeFromCell(int cell, int slot) {
+        int last = --this.cellSizes[cell];
+        if (slot != last) {
+            int movedHandle = this.cellHandles[cell][last];
+            this.cellHandles[cell][slot] = movedHandle;
+            this.cellXs[cell][slot] = this.cellXs[cell][last];
+            this.cellYs[cell][slot] = this.cellYs[cell][last];
+            this.handleSlots[movedHandle] = slot;
+        }
+    }
+
+    /**
+     * Offer all points within the given cell to the provided {@link ResultContainer}, unless the cell
+     * cannot contain a point nearer than the K nearest points found so far.
+     *
+     * @param cellX The X-coordinate of the cell, in cells.
+     * @param cellY The Y-coordinate of the cell, in cells.
+     * @param x The X-coordinate of the query point.
+     * @param y The Y-coordinate of the query point.
+     * @param nearestNeighbours The maximum amount of results to collect.
+     * @param rc The container to collect the results in.
+     */
+    private void scanCell(int cellX, int cellY, float x, float y, int nearestNeighbours, @NotNull ResultContainer rc) {
+        int cell = this.cellIndex(cellX, cellY);
+        if (this.cellSizes[cell] == 0 || (rc.found == nearestNeighbours && this.cellGrid.cellDistance2(cellX, cellY, x, y) >= rc.maxDist2)) {
+            return;
+        }
+
+        final int[] handles = this.cellHandles[cell];
+        final float[] xs = this.cellXs[cell];
+        final float[] ys = this.cellYs[cell];
+        for (int i = 0, end = this.cellSizes[cell]; i < end; i++) {
+            float x2 = x - xs[i];
+            float y2 = y - ys[i];
+            float dst2 = x2 * x2 + y2 * y2;
+
+            if (rc.found < nearestNeighbours) {
+                rc.addValueNotFull(dst2, handles[i]);
+            } else if (dst2 < rc.maxDist2) {
+                rc.addValueFull(dst2, handles[i]);
+            }
+        }
+    }
+
+    /**
+     * Search the K nearest points to the query point, storing their handles and distances in the
+     * given {@link ResultContainer}. The search expands in square rings around the cell of the query point,
+     * skipping cells which cannot contain a nearer point than the K nearest points found so far.
+     *
+     * @param x The X-coordinate of the query point.
+     * @param y The Y-coordinate of the query point.
+     * @param nearestNeighbours The amount of neighbours (K) to search.
+     * @param rc The container to store the results in.
+     */
+    private void searchKnn(float x, float y, int nearestNeighbours, @NotNull ResultContainer rc) {
+        this.cellGrid.searchRings(x, y, nearestNeighbours, rc, this.scanner);
+    }
+
+    /**
+     * Obtain the amount of points currently stored in this index.
+     *
+     * @return The amount of points.
+     */
+    public int size() {
+        return this.size;
+    }
+}
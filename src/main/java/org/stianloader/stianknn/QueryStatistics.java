@@ -0,0 +1,103 @@
+package org.stianloader.stianknn;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Statistics about the work performed by a single query, used to tune the layout of an index
+ * (for example the cell dimensions of a {@link SpatialQueryArray}) against real query distributions.
+ *
+ * <p>Statistics are only collected if the system property {@code org.stianloader.stianknn.statistics}
+ * is set to {@code true} when this class is initialized. Otherwise all recording code paths are guarded
+ * by the constant {@link #ENABLED} and eliminated by the JIT compiler, so they do not incur any
+ * overhead.
+ *
+ * <p>Instances of this class are reused for consecutive queries and are not thread-safe.
+ * See {@link QueryStatisticsAggregate} for statistics aggregated over many queries.
+ */
+public final class QueryStatistics {
+
+    /**
+     * The reason why a query stopped searching for further points.
+     */
+    public static enum Termination {
+        /**
+         * All remaining candidates are provably farther away than the points found so far,
+         * or than the maximum distance of the query.
+         */
+        DISTANCE_BOUND,
+
+        /**
+         * All candidates were examined, that is the search covered the entire index.
+         */
+        EXHAUSTED,
+
+        /**
+         * The query requested no points at all, so no search took place.
+         */
+        NOTHING_REQUESTED;
+    }
+
+    /**
+     * Whether statistics are collected.
+     */
+    public static final boolean ENABLED = Boolean.getBoolean("org.stianloader.stianknn.statistics");
+
+    int cellsVisited;
+    long pointsExamined;
+    int ringExpansions;
+    @Nullable
+    Termination termination;
+
+    /**
+     * Obtain the amount of cells whose points were examined. Always 0 for indices which are not based on cells.
+     *
+     * @return The amount of visited cells.
+     */
+    public int getCellsVisited() {
+        return this.cellsVisited;
+    }
+
+    /**
+     * Obtain the amount of points whose distance to the query point was evaluated.
+     *
+     * @return The amount of examined candidate points.
+     */
+    public long getPointsExamined() {
+        return this.pointsExamined;
+    }
+
+    /**
+     * Obtain the amount of times the search area was expanded beyond the initial search area.
+     * For grid-based indices this is the amount of rings of cells around the cell of the query point
+     * that were searched, for {@link SpatialQueryArrayLegacy} the amount of searches performed
+     * after the initial search.
+     *
+     * @return The amount of expansions of the search area.
+     */
+    public int getRingExpansions() {
+        return this.ringExpansions;
+    }
+
+    /**
+     * Obtain the reason why the query stopped searching.
+     *
+     * @return The reason of the termination, or null if no query was recorded yet.
+     */
+    @Nullable
+    public Termination getTermination() {
+        return this.termination;
+    }
+
+    void reset() {
+        this.cellsVisited = 0;
+        this.pointsExamined = 0;
+        this.ringExpansions = 0;
+        this.termination = null;
+    }
+
+    @Override
+    public String toString() {
+        return "QueryStatistics[cellsVisited=" + this.cellsVisited + ", pointsExamined=" + this.pointsExamined
+                + ", ringExpansions=" + this.ringExpansions + ", termination=" + this.termination + "]";
+    }
+}
@@ -0,0 +1,105 @@
+package org.stianloader.stianknn;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Counters summing up the {@link QueryStatistics} of all queries performed on an index.
+ * The counters are striped ({@link LongAdder}), so recording statistics remains cheap even when the
+ * index is queried by many threads concurrently.
+ *
+ * <p>The counters only change if {@link QueryStatistics#ENABLED statistics are enabled}.
+ * As the counters are updated independently of each other, a snapshot taken while queries are
+ * running is not necessarily consistent.
+ */
+public final class QueryStatisticsAggregate {
+
+    @NotNull
+    private final LongAdder cellsVisited = new LongAdder();
+    @NotNull
+    private final LongAdder pointsExamined = new LongAdder();
+    @NotNull
+    private final LongAdder queries = new LongAdder();
+    @NotNull
+    private final LongAdder ringExpansions = new LongAdder();
+    @NotNull
+    private final LongAdder @NotNull[] terminations = new LongAdder[QueryStatistics.Termination.values().length];
+
+    QueryStatisticsAggregate() {
+        for (int i = 0; i < this.terminations.length; i++) {
+            this.terminations[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Add the statistics of a single query, whose termination must already be set.
+     *
+     * @param statistics The statistics of the query.
+     */
+    void add(@NotNull QueryStatistics statistics) {
+        QueryStatistics.Termination termination = statistics.termination;
+        assert termination != null;
+        this.queries.increment();
+        this.cellsVisited.add(statistics.cellsVisited);
+        this.pointsExamined.add(statistics.pointsExamined);
+        this.ringExpansions.add(statistics.ringExpansions);
+        this.terminations[termination.ordinal()].increment();
+    }
+
+    public long getCellsVisited() {
+        return this.cellsVisited.sum();
+    }
+
+    public long getPointsExamined() {
+        return this.pointsExamined.sum();
+    }
+
+    public long getQueryCount() {
+        return this.queries.sum();
+    }
+
+    public long getRingExpansions() {
+        return this.ringExpansions.sum();
+    }
+
+    /**
+     * Obtain the amount of queries that stopped searching for the given reason.
+     *
+     * @param termination The reason of the termination.
+     * @return The amount of queries that terminated for the given reason.
+     */
+    public long getTerminationCount(@NotNull QueryStatistics.Termination termination) {
+        return this.terminations[termination.ordinal()].sum();
+    }
+
+    /**
+     * Reset all counters to 0, for example to start measuring a new period of time.
+     */
+    public void reset() {
+        this.queries.reset();
+        this.cellsVisited.reset();
+        this.pointsExamined.reset();
+        this.ringExpansions.reset();
+        for (LongAdder termination : this.terminations) {
+            termination.reset();
+        }
+    }
+
+    /**
+     * Report the counters alongside of their averages per query, in a format suitable for logging.
+     */
+    @Override
+    public String toString() {
+        long queries = this.getQueryCount();
+        double divisor = Math.max(1, queries);
+        StringBuilder builder = new StringBuilder("QueryStatisticsAggregate[queries=").append(queries);
+        builder.append(", cellsVisited=").append(this.getCellsVisited()).append(" (").append(this.getCellsVisited() / divisor).append("/query)");
+        builder.append(", pointsExamined=").append(this.getPointsExamined()).append(" (").append(this.getPointsExamined() / divisor).append("/query)");
+        builder.append(", ringExpansions=").append(this.getRingExpansions()).append(" (").append(this.getRingExpansions() / divisor).append("/query)");
+        for (QueryStatistics.Termination termination : QueryStatistics.Termination.values()) {
+            builder.append(", ").append(termination).append('=').append(this.getTerminationCount(termination));
+        }
+        return builder.append(']').toString();
+    }
+}
@@ -0,0 +1,247 @@
+package org.stianloader.stianknn;
+
+import java.util.Arrays;
+
+/**
+ * Collects the K nearest points encountered during a query of a grid-based index.
+ * Points are identified by their slot, that is the index of the point within the
+ * backing storage of the index.
+ *
+ * <p>For small values of K, the found points are kept sorted through insertion sort at all times.
+ * As each accepted point costs O(K) this way, values of K beyond {@link #HEAP_THRESHOLD} instead
+ * maintain the points as a binary max-heap (rooted at index 0) where accepting a point costs only
+ * O(log K). The points are then only sorted once the search is complete, either entirely through
+ * {@link #sort()} or lazily through {@link #beginPoll()} and {@link #pollSlot()}. Below the threshold,
+ * the sequential memory accesses of insertion sort outweigh its worse complexity.
+ */
+final class ResultContainer {
+    /**
+     * The value of K beyond which the found points are kept as a heap instead of a sorted array.
+     */
+    static final int HEAP_THRESHOLD = 256;
+
+    public float[] distances2;
+    public int found;
+    /**
+     * Whether the found points are currently stored as a max-heap.
+     */
+    private boolean heap;
+    /**
+     * The mask the category mask of a point needs to share at least one bit with in order to be offered to this
+     * container, or 0 if all points are offered. Only honoured by indices which store category masks, see
+     * {@link SpatialQueryArray#queryKnnMatching(float, float, int, int, java.util.function.Consumer)}.
+     */
+    public int mask;
+    public float maxDist2;
+    /**
+     * The amount of points already returned by {@link #pollSlot()}.
+     */
+    private int polled;
+    /**
+     * The factor by which {@link #maxDist2} is scaled before it is compared against the minimum distance of a
+     * cell (or of a ring of cells) in order to decide whether the cell still needs to be searched. This is
+     * {@code 1 / (1 + epsilon)^2} for approximate queries and 1 for exact queries. Points themselves are always
+     * accepted based on the unscaled distance.
+     */
+    public float pruneScale = 1F;
+    /**
+     * The indices of the found points within the backing storage of the index,
+     * sorted in ascending order of their distance (which are stored in {@link #distances2})
+     * once {@link #sort()} was called.
+     */
+    public int[] slots;
+    /**
+     * Scratch space used by {@link #sort()}.
+     */
+    private long[] sortKeys = new long[0];
+    /**
+     * The statistics of the current query, only maintained if {@link QueryStatistics#ENABLED statistics are enabled}.
+     */
+    final QueryStatistics statistics = new QueryStatistics();
+
+    ResultContainer(int neighbours) {
+        this.distances2 = new float[neighbours];
+        this.slots = new int[neighbours];
+        this.found = 0;
+        this.maxDist2 = Float.POSITIVE_INFINITY;
+    }
+
+    void addValueFull(float dist2, int slot) {
+        if (this.heap) {
+            this.siftDownMax(0, this.found, dist2, slot);
+            this.maxDist2 = this.distances2[0];
+            return;
+        }
+
+        int i = this.found - 1;
+        while (i > 0 && this.distances2[i - 1] > dist2) {
+            this.distances2[i] = this.distances2[i - 1];
+            this.slots[i] = this.slots[i - 1];
+            i--;
+        }
+
+        this.distances2[i] = dist2;
+        this.slots[i] = slot;
+        this.maxDist2 = this.distances2[this.found - 1];
+    }
+
+    void addValueNotFull(float dist2, int slot) {
+        int i = this.found++;
+        if (this.heap) {
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (this.distances2[parent] >= dist2) {
+                    break;
+                }
+                this.distances2[i] = this.distances2[parent];
+                this.slots[i] = this.slots[parent];
+                i = parent;
+            }
+            this.distances2[i] = dist2;
+            this.slots[i] = slot;
+            this.maxDist2 = this.distances2[0];
+            return;
+        }
+
+        while (i > 0 && this.distances2[i - 1] > dist2) {
+            this.distances2[i] = this.distances2[i - 1];
+            this.slots[i] = this.slots[i - 1];
+            i--;
+        }
+
+        this.distances2[i] = dist2;
+        this.slots[i] = slot;
+        this.maxDist2 = this.distances2[this.found - 1];
+    }
+
+    /**
+     * Prepare emitting the found points one by one in ascending order of their distance through {@link #pollSlot()}.
+     * Unlike {@link #sort()}, this only costs O(K) up front (plus O(log K) per polled point) if the points are
+     * stored as a heap, which is cheaper if only few of the points are actually read.
+     * Must be called after the search is complete and before {@link #pollSlot()} is first called.
+     */
+    void beginPoll() {
+        this.polled = 0;
+        if (this.heap) {
+            for (int i = (this.found >>> 1) - 1; i >= 0; i--) {
+                this.siftDownMin(i, this.found, this.distances2[i], this.slots[i]);
+            }
+        }
+    }
+
+    /**
+     * Obtain the slot of the nearest point which was not yet returned by this method since {@link #beginPoll()}
+     * was called. Must be called at most {@link #found} times. This method invalidates the order of
+     * {@link #slots} and {@link #distances2}.
+     *
+     * @return The slot of the next nearest point.
+     */
+    int pollSlot() {
+        if (!this.heap) {
+            return this.slots[this.polled++];
+        }
+
+        // The remaining points are a min-heap within [0, size)
+        int size = this.found - this.polled++;
+        int slot = this.slots[0];
+        if (--size > 0) {
+            this.siftDownMin(0, size, this.distances2[size], this.slots[size]);
+        }
+        return slot;
+    }
+
+    void reset(int nearestNeighbours) {
+        this.found = 0;
+        this.maxDist2 = Float.POSITIVE_INFINITY;
+        this.heap = nearestNeighbours > ResultContainer.HEAP_THRESHOLD;
+        if (QueryStatistics.ENABLED) {
+            this.statistics.reset();
+        }
+
+        if (this.slots.length < nearestNeighbours) {
+            this.distances2 = new float[nearestNeighbours];
+            this.slots = new int[nearestNeighbours];
+        }
+    }
+
+    /**
+     * Place a point at the given index of the max-heap within [0, size), moving it towards the leaves
+     * until the heap property is restored. The previous point at the index is discarded.
+     *
+     * @param i The index to place the point at.
+     * @param size The size of the heap.
+     * @param dist2 The squared distance of the point.
+     * @param slot The slot of the point.
+     */
+    private void siftDownMax(int i, int size, float dist2, int slot) {
+        int half = size >>> 1;
+        while (i < half) {
+            int child = (i << 1) + 1;
+            if (child + 1 < size && this.distances2[child + 1] > this.distances2[child]) {
+                child++;
+            }
+            if (this.distances2[child] <= dist2) {
+                break;
+            }
+            this.distances2[i] = this.distances2[child];
+            this.slots[i] = this.slots[child];
+            i = child;
+        }
+        this.distances2[i] = dist2;
+        this.slots[i] = slot;
+    }
+
+    /**
+     * Counterpart of {@link #siftDownMax(int, int, float, int)} for a min-heap.
+     *
+     * @param i The index to place the point at.
+     * @param size The size of the heap.
+     * @param dist2 The squared distance of the point.
+     * @param slot The slot of the point.
+     */
+    private void siftDownMin(int i, int size, float dist2, int slot) {
+        int half = size >>> 1;
+        while (i < half) {
+            int child = (i << 1) + 1;
+            if (child + 1 < size && this.distances2[child + 1] < this.distances2[child]) {
+                child++;
+            }
+            if (this.distances2[child] >= dist2) {
+                break;
+            }
+            this.distances2[i] = this.distances2[child];
+            this.slots[i] = this.slots[child];
+            i = child;
+        }
+        this.distances2[i] = dist2;
+        this.slots[i] = slot;
+    }
+
+    /**
+     * Sort the found points in ascending order of their distance, which is required before
+     * {@link #slots} and {@link #distances2} are read once the search is complete.
+     * This is a no-op unless the points are stored as a heap.
+     */
+    void sort() {
+        if (!this.heap) {
+            return;
+        }
+
+        // Squared distances are never negative, so the order of their raw bits matches their numerical order
+        // and sorting distance and slot packed into a single long sorts by distance first.
+        long[] keys = this.sortKeys;
+        if (keys.length < this.found) {
+            this.sortKeys = keys = new long[this.slots.length];
+        }
+        for (int i = 0; i < this.found; i++) {
+            keys[i] = ((long) Float.floatToRawIntBits(this.distances2[i])) << 32 | this.slots[i];
+        }
+        Arrays.sort(keys, 0, this.found);
+        for (int i = 0; i < this.found; i++) {
+            long key = keys[i];
+            this.distances2[i] = Float.intBitsToFloat((int) (key >>> 32));
+            this.slots[i] = (int) key;
+        }
+        this.heap = false;
+    }
+}
@@ -0,0 +1,273 @@
+package org.stianloader.stianknn;
+
+import java.util.Collection;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Holds the current snapshot of a {@link SpatialQueryArray} which is rebuilt from scratch whenever the
+ * underlying points change, while other threads keep querying the previous snapshot. Snapshots are
+ * immutable and published through an atomic reference swap, so readers never block, never wait for a
+ * rebuild and never observe a partially built index.
+ *
+ * <p>The arrays backing a retired snapshot are reused by the next rebuild, such that rebuilding an index
+ * of a steady size does not allocate any large arrays. In order to know when a retired snapshot is no
+ * longer in use, readers pin the current epoch while they query a snapshot: each reader thread announces
+ * the epoch in which it started reading, and a snapshot which was retired in epoch {@code e} is only reused
+ * once no reader thread is pinned to an epoch before {@code e}. If a reader is still pinned by the time of
+ * the next rebuild, the retired snapshot is left to the garbage collector instead and the rebuild allocates
+ * new arrays.
+ *
+ * <p>The query methods of this class pin the current snapshot for the duration of a single query. Callers
+ * which need to issue multiple queries against the same snapshot can pin a snapshot explicitly through
+ * {@link #pin()}. Rebuilds are serialized among each other, but are independent of any readers.
+ *
+ * @param <E> The type of the elements stored in the index.
+ */
+public class SnapshotSpatialQueryArray<@NotNull E> implements SpatialIndexKNN<E> {
+
+    /**
+     * A snapshot pinned by the current thread, which remains valid (that is, its arrays are not reused)
+     * until it is {@link #close() closed}. A pin must be closed by the thread which acquired it.
+     *
+     * <p>Pins are reentrant: pinning again while the thread already holds a pin yields the same snapshot.
+     * The snapshot, as well as any iterator obtained from it, must not be used once the (outermost) pin is closed.
+     */
+    public final class Pin implements AutoCloseable {
+        private int depth;
+        /**
+         * The epoch the thread is pinned to, or {@link Long#MAX_VALUE} if the thread is not pinned.
+         */
+        private volatile long epoch = Long.MAX_VALUE;
+        @Nullable
+        private SpatialQueryArray<E> snapshot;
+        @Nullable
+        private Thread thread;
+
+        @Override
+        public void close() {
+            assert this.thread == Thread.currentThread() : "Pin closed by a thread which does not hold it";
+            if (this.depth <= 0) {
+                throw new IllegalStateException("Pin is not held");
+            } else if (--this.depth == 0) {
+                this.snapshot = null;
+                this.epoch = Long.MAX_VALUE;
+            }
+        }
+
+        /**
+         * Obtain the pinned snapshot.
+         *
+         * @return The snapshot which remains valid until this pin is closed.
+         */
+        @NotNull
+        public SpatialQueryArray<E> getIndex() {
+            SpatialQueryArray<E> snapshot = this.snapshot;
+            if (snapshot == null) {
+                throw new IllegalStateException("Pin is not held");
+            }
+            return snapshot;
+        }
+    }
+
+    @NotNull
+    private final SpatialQueryArray.BuildBuffers buffers = new SpatialQueryArray.BuildBuffers();
+
+    /**
+     * The context used by queries of the current thread, shared by all snapshots so that
+     * publishing a new snapshot does not cause any allocations on the side of the readers.
+     */
+    @NotNull
+    private final ThreadLocal<SpatialQueryArray.QueryContext<E>> contexts = ThreadLocal.withInitial(SpatialQueryArray.QueryContext::new);
+
+    @NotNull
+    private final AtomicReference<@NotNull SpatialQueryArray<E>> current;
+
+    /**
+     * The current epoch, incremented whenever a snapshot is retired.
+     */
+    @NotNull
+    private final AtomicLong epoch = new AtomicLong();
+
+    @NotNull
+    private final ThreadLocal<Pin> pin = ThreadLocal.withInitial(() -> {
+        Pin pin = new Pin();
+        pin.thread = Thread.currentThread();
+        this.pins.add(pin);
+        return pin;
+    });
+
+    /**
+     * The pins of all threads that ever pinned a snapshot of this holder. The pins of terminated
+     * threads remain registered, but as they are no longer pinned they never delay the reuse of a snapshot.
+     */
+    @NotNull
+    private final CopyOnWriteArrayList<Pin> pins = new CopyOnWriteArrayList<>();
+
+    @Nullable
+    private final ForkJoinPool pool;
+
+    /**
+     * The snapshot replaced by the last rebuild, or null if it was already reused or discarded.
+     * Guarded by the monitor of this instance.
+     */
+    @Nullable
+    private SpatialQueryArray<E> retired;
+
+    /**
+     * The epoch in which {@link #retired} was retired.
+     */
+    private long retiredEpoch;
+
+    /**
+     * Construct a new holder whose initial snapshot is the given index. The holder takes ownership of the index,
+     * that is the arrays backing the index may be reused once it was replaced by a newer snapshot, so the index must
+     * not be used other than through this holder.
+     *
+     * @param initial The initial snapshot.
+     * @param pool The pool to rebuild the index on, or null to rebuild the index on the thread calling {@link #publish(Collection, GridParameters)}.
+     */
+    public SnapshotSpatialQueryArray(@NotNull SpatialQueryArray<E> initial, @Nullable ForkJoinPool pool) {
+        this.current = new AtomicReference<>(initial);
+        this.pool = pool;
+    }
+
+    /**
+     * Obtain the current snapshot without pinning it. The arrays backing the returned snapshot may be
+     * reused as soon as two further snapshots are published, so the returned index must only be used while
+     * the calling thread holds a {@link #pin()}, or while no snapshots are published.
+     *
+     * @return The current snapshot.
+     */
+    @NotNull
+    public SpatialQueryArray<E> getCurrent() {
+        return this.current.get();
+    }
+
+    /**
+     * Check whether no thread may still use snapshots retired in the given epoch.
+     */
+    private boolean isQuiescent(long retiredEpoch) {
+        for (Pin pin : this.pins) {
+            if (pin.epoch < retiredEpoch) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Pin the current snapshot for the current thread. The snapshot remains valid until the returned pin is
+     * closed, which should happen through a try-with-resources statement:
+     *
+     * <pre>{@code
+     * try (SnapshotSpatialQueryArray<E>.Pin pin = holder.pin()) {
+     *     SpatialQueryArray<E> index = pin.getIndex();
+     *     // Query the index
+     * }
+     * }</pre>
+     *
+     * <p>Pinning is wait-free and does not allocate, apart from the first pin of every thread.
+     *
+     * @return The pin of the current thread.
+     */
+    @NotNull
+    public Pin pin() {
+        Pin pin = this.pin.get();
+        if (pin.depth++ == 0) {
+            // The epoch must be announced before the snapshot is read. Any snapshot read afterwards is
+            // either the current snapshot or was retired in an epoch after the announced epoch.
+            pin.epoch = this.epoch.get();
+            pin.snapshot = this.current.get();
+        }
+        return pin;
+    }
+
+    /**
+     * Rebuild the index from the given points and publish it as the new snapshot. Queries started after this
+     * method returns observe the new snapshot, while queries which are already running complete on the previous snapshot.
+     * The points are assigned ids in the iteration order of the collection, as with
+     * {@link SpatialQueryArray#SpatialQueryArray(Collection, GridParameters)}.
+     *
+     * <p>If no thread still uses the snapshot retired by the previous call of this method, its arrays are reused
+     * by the new snapshot. Otherwise the new snapshot is built into newly allocated arrays.
+     *
+     * @param points The points to store in the index.
+     * @param parameters The layout of the grid.
+     * @return The newly published snapshot.
+     */
+    @NotNull
+    public synchronized SpatialQueryArray<E> publish(@NotNull Collection<PointObjectPair<E>> points, @NotNull GridParameters parameters) {
+        SpatialQueryArray<E> retired = this.retired;
+        this.retired = null;
+        if (retired != null && this.isQuiescent(this.retiredEpoch)) {
+            this.buffers.recycled = retired;
+        }
+
+        SpatialQueryArray<E> snapshot = SpatialQueryArray.build(points, parameters, this.pool, this.buffers);
+        this.buffers.recycled = null;
+        this.retired = this.current.getAndSet(snapshot);
+        this.retiredEpoch = this.epoch.incrementAndGet();
+        return snapshot;
+    }
+
+    @Override
+    @Nullable
+    public E query1nn(float x, float y) {
+        try (Pin pin = this.pin()) {
+            return pin.getIndex().query1nn(x, y);
+        }
+    }
+
+    @Override
+    public void queryKnn(float x, float y, int neighbourCount, @NotNull Consumer<@NotNull E> out) {
+        try (Pin pin = this.pin()) {
+            pin.getIndex().queryKnn(x, y, neighbourCount, out, this.contexts.get());
+        }
+    }
+
+    /**
+     * Primitive variant of {@link #queryKnn(float, float, int, Consumer)}, see
+     * {@link SpatialQueryArray#queryKnn(float, float, int, int[], float[])}.
+     *
+     * @param x The X-coordinate of the query point.
+     * @param y The Y-coordinate of the query point.
+     * @param neighbourCount The maximum amount of points to find.
+     * @param outIds The array to write the ids of the points to, must have a size of at least {@code neighbourCount}.
+     * @param outDist2 The array to write the squared distances of the points to, must have a size of at least {@code neighbourCount}.
+     * @return The amount of points found.
+     */
+    public int queryKnn(float x, float y, int neighbourCount, int @NotNull[] outIds, float @NotNull[] outDist2) {
+        try (Pin pin = this.pin()) {
+            return pin.getIndex().queryKnn(x, y, neighbourCount, outIds, outDist2, this.contexts.get());
+        }
+    }
+
+    @Override
+    public void queryKnnApproximate(float x, float y, int neighbourCount, float epsilon, @NotNull Consumer<@NotNull E> out) {
+        try (Pin pin = this.pin()) {
+            pin.getIndex().queryKnnApproximate(x, y, neighbourCount, epsilon, out, this.contexts.get());
+        }
+    }
+
+    @Override
+    public void queryKnnBatch(float @NotNull[] xs, float @NotNull[] ys, int neighbourCount, int @NotNull[] outIndices, float @NotNull[] outDist2) {
+        try (Pin pin = this.pin()) {
+            pin.getIndex().queryKnnBatch(xs, ys, neighbourCount, outIndices, outDist2, this.contexts.get());
+        }
+    }
+
+    @Override
+    public void queryKnnWhile(float x, float y, int neighbourCount, @NotNull Predicate<@NotNull E> out) {
+        try (Pin pin = this.pin()) {
+            pin.getIndex().queryKnnWhile(x, y, neighbourCount, out, this.contexts.get());
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package org.stianloader.stianknn;
 
 import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 import org.jetbrains.annotations.NotNull;
 
@@ -14,7 +15,15 @@ import org.jetbrains.annotations.NotNull;
  *
  * <p>This interface does not specify the behaviour when K is extremely large. Large values of K
  * may result in overwhelming inefficiencies as well K elements are collected. This is especially
- * critical if only a small fraction of the K elements are actually being read or otherwise used.
+ * critical if only a small fraction of the K elements are actually being read or otherwise used,
+ * in which case {@link #queryKnnWhile(float, float, int, Predicate)} should be used so that
+ * implementations can avoid ordering (or resolving) the elements that are never read.
+ *
+ * <p>Elements within an index are additionally identified by integer ids. How these ids are assigned
+ * is defined by the implementation, but generally they are dense, that is they range from 0 (inclusive)
+ * up to the amount of elements within the index (exclusive) and correspond to the position of the element
+ * in the collection the index was built from. Indices from which elements can be removed, such as the
+ * {@link MutableSpatialQueryArray}, may however leave gaps within the range of ids.
  *
  * @param <T> The type of the elements stored in the index.
  */
@@ -22,4 +31,77 @@ public interface SpatialIndexKNN<T> extends SpatialIndex1NN<T> {
 
     void queryKnn(float x, float y, int neighbourCount, @NotNull Consumer<@NotNull T> out);
 
+    /**
+     * Approximate variant of {@link #queryKnn(float, float, int, Consumer)}, which may skip parts of the index
+     * that can only contain marginally nearer elements. The i-th emitted element is at most {@code 1 + epsilon}
+     * times as far away from the query point as the true i-th nearest element, so an epsilon of 0 yields the
+     * exact K nearest elements. The elements are still emitted nearest element first.
+     *
+     * <p>The default implementation ignores the error bound and performs an exact query, which trivially
+     * satisfies the contract.
+     *
+     * @param x The X-coordinate of the query point.
+     * @param y The Y-coordinate of the query point.
+     * @param neighbourCount The maximum amount of elements to emit (K).
+     * @param epsilon The relative error bound, must be finite and not negative.
+     * @param out The consumer to which the elements are emitted, nearest element first.
+     */
+    default void queryKnnApproximate(float x, float y, int neighbourCount, float epsilon, @NotNull Consumer<@NotNull T> out) {
+        if (!(epsilon >= 0) || epsilon == Float.POSITIVE_INFINITY) {
+            throw new IllegalArgumentException("Epsilon must be finite and not negative, but got " + epsilon);
+        }
+        this.queryKnn(x, y, neighbourCount, out);
+    }
+
+    /**
+     * Query the K nearest neighbours of multiple query points at once. The query point at index {@code i}
+     * is defined by {@code xs[i]} and {@code ys[i]}. The ids of the nearest elements are written to
+     * {@code outIndices[i * neighbourCount]} up to (exclusive) {@code outIndices[(i + 1) * neighbourCount]},
+     * nearest element first. The squared distances of these elements are written to the same indices
+     * of {@code outDist2}. If fewer than K elements exist, the remaining slots are filled with an id of
+     * {@code -1} and a distance of {@link Float#POSITIVE_INFINITY}.
+     *
+     * <p>Implementations are free to process the query points in any order they see fit, which
+     * is why this method may perform better than repeatedly calling
+     * {@link #queryKnn(float, float, int, Consumer)}. The results are always written in the order of
+     * the query points.
+     *
+     * <p>The default implementation throws an {@link UnsupportedOperationException}, as this interface can neither
+     * resolve the id nor the distance of an element. All indices of this library override this method.
+     *
+     * @param xs The X-coordinates of the query points.
+     * @param ys The Y-coordinates of the query points.
+     * @param neighbourCount The amount of neighbours (K) to query for each query point.
+     * @param outIndices The array to write the ids of the found elements to, must have a size of at least
+     * {@code xs.length * neighbourCount}.
+     * @param outDist2 The array to write the squared distances of the found elements to, must have a size
+     * of at least {@code xs.length * neighbourCount}.
+     * @throws UnsupportedOperationException If the index does not support batch queries.
+     */
+    default void queryKnnBatch(float @NotNull[] xs, float @NotNull[] ys, int neighbourCount, int @NotNull[] outIndices, float @NotNull[] outDist2) {
+        throw new UnsupportedOperationException(this.getClass().getName() + " does not support batch queries");
+    }
+
+    /**
+     * Variant of {@link #queryKnn(float, float, int, Consumer)} which stops emitting elements as soon as
+     * the predicate returns false. The elements are emitted nearest element first, such that the predicate
+     * sees a prefix of the K nearest elements.
+     *
+     * <p>The default implementation merely discards the elements after the predicate returned false, but
+     * implementations are encouraged to only order the elements that are actually emitted.
+     *
+     * @param x The X-coordinate of the query point.
+     * @param y The Y-coordinate of the query point.
+     * @param neighbourCount The maximum amount of elements to emit (K).
+     * @param out The predicate to which the elements are emitted, returning false if no further elements should be emitted.
+     */
+    default void queryKnnWhile(float x, float y, int neighbourCount, @NotNull Predicate<@NotNull T> out) {
+        boolean[] stopped = new boolean[1];
+        this.queryKnn(x, y, neighbourCount, (element) -> {
+            if (!stopped[0] && !out.test(element)) {
+                stopped[0] = true;
+            }
+        });
+    }
+
 }
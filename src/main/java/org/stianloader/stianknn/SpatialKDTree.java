@@ -0,0 +1,452 @@
+package org.stianloader.stianknn;
+
+import java.util.Collection;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * A static, balanced 2D k-d tree. Unlike the {@link SpatialQueryArray}, the performance of the k-d tree
+ * does not depend on a well-chosen cell size, which makes it the better choice for data sets whose density
+ * varies greatly.
+ *
+ * <p>The tree is implicit, that is it is stored without any pointers. All points are stored in flat arrays,
+ * where the root of the subtree spanning the range from {@code lo} (inclusive) to {@code hi} (exclusive)
+ * is the median located at {@code (lo + hi) >>> 1}. All points before the median have a coordinate smaller
+ * than or equal to the median on the splitting axis, all points after the median a coordinate that is larger
+ * than or equal to it. The splitting axis alternates between the X axis (at even depths) and the Y axis
+ * (at odd depths). Subtrees with at most {@link #LEAF_SIZE} points are not split any further and are scanned
+ * linearly instead.
+ *
+ * <p>Instances of this class are immutable once constructed and can thus be queried by an arbitrary
+ * amount of threads concurrently.
+ *
+ * @param <E> The type of the elements stored in the index.
+ */
+public class SpatialKDTree<@NotNull E> implements SpatialIndexKNN<E>, SpatialRingIndex1NN<E> {
+
+    /**
+     * The thread-confined state of a query: An explicit stack of the subtrees which are yet to be
+     * visited, alongside of the bounding boxes of these subtrees, and the found results.
+     */
+    private static final class SearchState {
+        /**
+         * The maximum height of the stack. As the nearer child is always visited first and the stack
+         * grows by at most one element per level of the tree, the stack cannot exceed the height of the
+         * tree (which is at most 32 levels) by more than one element.
+         */
+        private static final int MAX_STACK_SIZE = 64;
+
+        final float @NotNull[] boxMaxX = new float[SearchState.MAX_STACK_SIZE];
+        final float @NotNull[] boxMaxY = new float[SearchState.MAX_STACK_SIZE];
+        final float @NotNull[] boxMinX = new float[SearchState.MAX_STACK_SIZE];
+        final float @NotNull[] boxMinY = new float[SearchState.MAX_STACK_SIZE];
+        final int @NotNull[] depth = new int[SearchState.MAX_STACK_SIZE];
+        final int @NotNull[] hi = new int[SearchState.MAX_STACK_SIZE];
+        final int @NotNull[] lo = new int[SearchState.MAX_STACK_SIZE];
+        /**
+         * The squared minimum distance between the query point and the bounding box of the subtree.
+         */
+        final float @NotNull[] minDist2 = new float[SearchState.MAX_STACK_SIZE];
+        @NotNull
+        final ResultContainer rc = new ResultContainer(40);
+        int size;
+
+        void push(int lo, int hi, int depth, float minX, float minY, float maxX, float maxY, float minDist2) {
+            int i = this.size++;
+            this.lo[i] = lo;
+            this.hi[i] = hi;
+            this.depth[i] = depth;
+            this.boxMinX[i] = minX;
+            this.boxMinY[i] = minY;
+            this.boxMaxX[i] = maxX;
+            this.boxMaxY[i] = maxY;
+            this.minDist2[i] = minDist2;
+        }
+    }
+
+    /**
+     * The maximum amount of points within a subtree for it to be scanned linearly
+     * instead of being split any further.
+     */
+    private static final int LEAF_SIZE = 8;
+
+    private static float maxDistance2(float x, float y, float minX, float minY, float maxX, float maxY) {
+        float dx = Math.max(Math.abs(x - minX), Math.abs(x - maxX));
+        float dy = Math.max(Math.abs(y - minY), Math.abs(y - maxY));
+        return dx * dx + dy * dy;
+    }
+
+    private static float minDistance2(float x, float y, float minX, float minY, float maxX, float maxY) {
+        float dx = Math.max(0, Math.max(minX - x, x - maxX));
+        float dy = Math.max(0, Math.max(minY - y, y - maxY));
+        return dx * dx + dy * dy;
+    }
+
+    /**
+     * Interleave the lower 16 bits of two integers to obtain a morton code (or z-order curve index).
+     *
+     * @param x The integer whose bits should end up at the even bit positions.
+     * @param y The integer whose bits should end up at the odd bit positions.
+     * @return The interleaved bits.
+     */
+    private static int mortonCode(int x, int y) {
+        return SpatialKDTree.spreadBits(x) | (SpatialKDTree.spreadBits(y) << 1);
+    }
+
+    private static int spreadBits(int value) {
+        value &= 0xFFFF;
+        value = (value | (value << 8)) & 0x00FF00FF;
+        value = (value | (value << 4)) & 0x0F0F0F0F;
+        value = (value | (value << 2)) & 0x33333333;
+        value = (value | (value << 1)) & 0x55555555;
+        return value;
+    }
+
+    @NotNull
+    private final ThreadLocal<SearchState> defaultState = ThreadLocal.withInitial(SearchState::new);
+
+    /**
+     * The ids of the points, as per the order of the points in the collection the tree was built from.
+     */
+    private final int @NotNull[] ids;
+
+    private final float maxX;
+    private final float maxY;
+    private final float minX;
+    private final float minY;
+    private final @NotNull Object @NotNull[] payloads;
+    private final float @NotNull[] xs;
+    private final float @NotNull[] ys;
+
+    /**
+     * Construct a new {@link SpatialKDTree} containing the given points.
+     * The points are assigned ids in the iteration order of the collection,
+     * that is the first point has the id 0, the second point the id 1 and so on.
+     *
+     * @param points The points to store in the tree.
+     */
+    public SpatialKDTree(@NotNull Collection<@NotNull PointObjectPair<E>> points) {
+        int pointCount = points.size();
+        this.xs = new float[pointCount];
+        this.ys = new float[pointCount];
+        this.payloads = new Object[pointCount];
+        this.ids = new int[pointCount];
+
+        float minX = Float.POSITIVE_INFINITY;
+        float minY = Float.POSITIVE_INFINITY;
+        float maxX = Float.NEGATIVE_INFINITY;
+        float maxY = Float.NEGATIVE_INFINITY;
+        int i = 0;
+        for (PointObjectPair<E> pair : points) {
+            this.xs[i] = pair.x;
+            this.ys[i] = pair.y;
+            this.payloads[i] = pair.object;
+            this.ids[i] = i++;
+            minX = Math.min(minX, pair.x);
+            minY = Math.min(minY, pair.y);
+            maxX = Math.max(maxX, pair.x);
+            maxY = Math.max(maxY, pair.y);
+        }
+
+        this.minX = minX;
+        this.minY = minY;
+        this.maxX = maxX;
+        this.maxY = maxY;
+
+        this.build(0, pointCount, 0);
+    }
+
+    private void build(int lo, int hi, int depth) {
+        while (hi - lo > SpatialKDTree.LEAF_SIZE) {
+            int mid = (lo + hi) >>> 1;
+            this.select(lo, hi, mid, (depth & 1) == 0 ? this.xs : this.ys);
+            this.build(mid + 1, hi, depth + 1);
+            hi = mid;
+            depth++;
+        }
+    }
+
+    private float coordinate(int axis, int slot) {
+        return axis == 0 ? this.xs[slot] : this.ys[slot];
+    }
+
+    @Override
+    @Nullable
+    public E query1nn(float x, float y) {
+        return this.query1nn(x, y, Float.NEGATIVE_INFINITY, Float.POSITIVE_INFINITY);
+    }
+
+    @Override
+    @Nullable
+    public E query1nn(float x, float y, float minDistanceSquared, float maxDistanceSquared) {
+        if (this.xs.length == 0) {
+            return null;
+        }
+
+        SearchState state = this.defaultState.get();
+        state.size = 0;
+        state.push(0, this.xs.length, 0, this.minX, this.minY, this.maxX, this.maxY, SpatialKDTree.minDistance2(x, y, this.minX, this.minY, this.maxX, this.maxY));
+
+        int bestSlot = -1;
+        float bestDist2 = maxDistanceSquared;
+        while (state.size != 0) {
+            int top = --state.size;
+            if (state.minDist2[top] >= bestDist2) {
+                continue;
+            }
+
+            float bMinX = state.boxMinX[top];
+            float bMinY = state.boxMinY[top];
+            float bMaxX = state.boxMaxX[top];
+            float bMaxY = state.boxMaxY[top];
+            if (SpatialKDTree.maxDistance2(x, y, bMinX, bMinY, bMaxX, bMaxY) < minDistanceSquared) {
+                continue; // The entire subtree lies within the inner radius of the ring
+            }
+
+            int lo = state.lo[top];
+            int hi = state.hi[top];
+            int depth = state.depth[top];
+
+            if (hi - lo <= SpatialKDTree.LEAF_SIZE) {
+                for (int i = lo; i < hi; i++) {
+                    float dx = x - this.xs[i];
+                    float dy = y - this.ys[i];
+                    float dst2 = dx * dx + dy * dy;
+                    if (dst2 >= minDistanceSquared && dst2 < bestDist2) {
+                        bestDist2 = dst2;
+                        bestSlot = i;
+                    }
+                }
+                continue;
+            }
+
+            int mid = (lo + hi) >>> 1;
+            float dx = x - this.xs[mid];
+            float dy = y - this.ys[mid];
+            float dst2 = dx * dx + dy * dy;
+            if (dst2 >= minDistanceSquared && dst2 < bestDist2) {
+                bestDist2 = dst2;
+                bestSlot = mid;
+            }
+
+            this.pushChildren(state, x, y, lo, hi, depth, bMinX, bMinY, bMaxX, bMaxY, bestDist2);
+        }
+
+        if (bestSlot < 0) {
+            return null;
+        }
+
+        @SuppressWarnings("unchecked")
+        E object = (E) this.payloads[bestSlot];
+        return object;
+    }
+
+    @Override
+    public void queryKnn(float x, float y, int neighbourCount, @NotNull Consumer<@NotNull E> out) {
+        ResultContainer rc = this.searchKnn(x, y, neighbourCount, this.defaultState.get());
+        rc.sort();
+        for (int i = 0; i < rc.found; i++) {
+            @SuppressWarnings("unchecked")
+            E object = (E) this.payloads[rc.slots[i]];
+            out.accept(object);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>The query points are processed in the order of their morton code (z-order curve index)
+     * within the bounding box of the tree, so consecutive queries tend to visit the same subtrees.
+     */
+    @Override
+    public void queryKnnBatch(float @NotNull[] xs, float @NotNull[] ys, int neighbourCount, int @NotNull[] outIndices, float @NotNull[] outDist2) {
+        KnnBatch.checkArguments(xs, ys, neighbourCount, outIndices, outDist2);
+
+        float scaleX = 0xFFFF / Math.max(Float.MIN_NORMAL, this.maxX - this.minX);
+        float scaleY = 0xFFFF / Math.max(Float.MIN_NORMAL, this.maxY - this.minY);
+        long[] order = KnnBatch.order(xs, ys, (x, y) -> {
+            int qx = (int) Math.max(0, Math.min(0xFFFF, (x - this.minX) * scaleX));
+            int qy = (int) Math.max(0, Math.min(0xFFFF, (y - this.minY) * scaleY));
+            return SpatialKDTree.mortonCode(qx, qy);
+        });
+
+        SearchState state = this.defaultState.get();
+        KnnBatch.run(xs, ys, neighbourCount, outIndices, outDist2, order, 0, xs.length, (x, y, nearestNeighbours) -> this.searchKnn(x, y, nearestNeighbours, state), (slot) -> this.ids[slot]);
+    }
+
+    @Override
+    public void queryKnnWhile(float x, float y, int neighbourCount, @NotNull Predicate<@NotNull E> out) {
+        ResultContainer rc = this.searchKnn(x, y, neighbourCount, this.defaultState.get());
+
+        rc.beginPoll();
+        for (int i = 0; i < rc.found; i++) {
+            @SuppressWarnings("unchecked")
+            E object = (E) this.payloads[rc.pollSlot()];
+            if (!out.test(object)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Push both children of the subtree spanning from {@code lo} to {@code hi} onto the stack,
+     * with the child nearer to the query point being pushed last so that it is visited first.
+     * Children whose bounding box is at least {@code bound} (squared) away from the query point are skipped.
+     */
+    private void pushChildren(@NotNull SearchState state, float x, float y, int lo, int hi, int depth,
+            float bMinX, float bMinY, float bMaxX, float bMaxY, float bound) {
+        int mid = (lo + hi) >>> 1;
+        int axis = depth & 1;
+        float split = this.coordinate(axis, mid);
+
+        float lowMaxX = axis == 0 ? split : bMaxX;
+        float lowMaxY = axis == 0 ? bMaxY : split;
+        float highMinX = axis == 0 ? split : bMinX;
+        float highMinY = axis == 0 ? bMinY : split;
+
+        float lowDist2 = SpatialKDTree.minDistance2(x, y, bMinX, bMinY, lowMaxX, lowMaxY);
+        float highDist2 = SpatialKDTree.minDistance2(x, y, highMinX, highMinY, bMaxX, bMaxY);
+
+        boolean lowFirst = (axis == 0 ? x : y) <= split;
+        if (lowFirst) {
+            if (highDist2 < bound && mid + 1 < hi) {
+                state.push(mid + 1, hi, depth + 1, highMinX, highMinY, bMaxX, bMaxY, highDist2);
+            }
+            if (lowDist2 < bound && lo < mid) {
+                state.push(lo, mid, depth + 1, bMinX, bMinY, lowMaxX, lowMaxY, lowDist2);
+            }
+        } else {
+            if (lowDist2 < bound && lo < mid) {
+                state.push(lo, mid, depth + 1, bMinX, bMinY, lowMaxX, lowMaxY, lowDist2);
+            }
+            if (highDist2 < bound && mid + 1 < hi) {
+                state.push(mid + 1, hi, depth + 1, highMinX, highMinY, bMaxX, bMaxY, highDist2);
+            }
+        }
+    }
+
+    /**
+     * Search the K nearest points of the query point. Subtrees are visited nearest-first and are skipped
+     * as soon as their bounding box is farther away than the K-th nearest point found so far.
+     *
+     * @param x The X-coordinate of the query point.
+     * @param y The Y-coordinate of the query point.
+     * @param neighbourCount The amount of neighbours (K) to search.
+     * @param state The state to use for the search.
+     * @return The {@link ResultContainer} of the state, containing the slots of the nearest points.
+     */
+    @NotNull
+    private ResultContainer searchKnn(float x, float y, int neighbourCount, @NotNull SearchState state) {
+        ResultContainer rc = state.rc;
+        rc.reset(neighbourCount);
+        if (neighbourCount <= 0 || this.xs.length == 0) {
+            return rc;
+        }
+
+        state.size = 0;
+        state.push(0, this.xs.length, 0, this.minX, this.minY, this.maxX, this.maxY, SpatialKDTree.minDistance2(x, y, this.minX, this.minY, this.maxX, this.maxY));
+
+        while (state.size != 0) {
+            int top = --state.size;
+            if (rc.found == neighbourCount && state.minDist2[top] >= rc.maxDist2) {
+                continue;
+            }
+
+            int lo = state.lo[top];
+            int hi = state.hi[top];
+
+            if (hi - lo <= SpatialKDTree.LEAF_SIZE) {
+                for (int i = lo; i < hi; i++) {
+                    float dx = x - this.xs[i];
+                    float dy = y - this.ys[i];
+                    float dst2 = dx * dx + dy * dy;
+                    if (rc.found < neighbourCount) {
+                        rc.addValueNotFull(dst2, i);
+                    } else if (dst2 < rc.maxDist2) {
+                        rc.addValueFull(dst2, i);
+                    }
+                }
+                continue;
+            }
+
+            int mid = (lo + hi) >>> 1;
+            float dx = x - this.xs[mid];
+            float dy = y - this.ys[mid];
+            float dst2 = dx * dx + dy * dy;
+            if (rc.found < neighbourCount) {
+                rc.addValueNotFull(dst2, mid);
+            } else if (dst2 < rc.maxDist2) {
+                rc.addValueFull(dst2, mid);
+            }
+
+            float bound = rc.found == neighbourCount ? rc.maxDist2 : Float.POSITIVE_INFINITY;
+            this.pushChildren(state, x, y, lo, hi, state.depth[top], state.boxMinX[top], state.boxMinY[top], state.boxMaxX[top], state.boxMaxY[top], bound);
+        }
+
+        return rc;
+    }
+
+    /**
+     * Partially sort the range from {@code lo} (inclusive) to {@code hi} (exclusive) such that the point at
+     * {@code n} is the point that would be there if the range was fully sorted by the given coordinate.
+     * All points before {@code n} have a coordinate smaller than or equal to it, all points after {@code n}
+     * a coordinate larger than or equal to it (quickselect).
+     */
+    private void select(int lo, int hi, int n, float @NotNull[] keys) {
+        hi--;
+        while (hi > lo) {
+            // Median-of-three pivot selection
+            int center = (lo + hi) >>> 1;
+            if (keys[center] < keys[lo]) {
+                this.swap(center, lo);
+            }
+            if (keys[hi] < keys[lo]) {
+                this.swap(hi, lo);
+            }
+            if (keys[hi] < keys[center]) {
+                this.swap(hi, center);
+            }
+            float pivot = keys[center];
+
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (keys[i] < pivot) {
+                    i++;
+                }
+                while (keys[j] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    this.swap(i++, j--);
+                }
+            }
+
+            if (n <= j) {
+                hi = j;
+            } else if (n >= i) {
+                lo = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private void swap(int a, int b) {
+        float tx = this.xs[a];
+        this.xs[a] = this.xs[b];
+        this.xs[b] = tx;
+        float ty = this.ys[a];
+        this.ys[a] = this.ys[b];
+        this.ys[b] = ty;
+        Object tp = this.payloads[a];
+        this.payloads[a] = this.payloads[b];
+        this.payloads[b] = tp;
+        int ti = this.ids[a];
+        this.ids[a] = this.ids[b];
+        this.ids[b] = ti;
+    }
+}
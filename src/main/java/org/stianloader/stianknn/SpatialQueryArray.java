@@ -1,10 +1,18 @@
 package org.stianloader.stianknn;
 
-import java.util.ArrayList;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.List;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -12,315 +20,2529 @@ import org.jetbrains.annotations.Nullable;
 /**
  * Code heavily based on <a href="https://gist.github.com/Ret-Mode/98cfe91a655e8f496902071a372e4f6c">a gist made by someone else.</a>
  *
+ * <p>Instances of this class are immutable once constructed and can thus be queried by an arbitrary
+ * amount of threads concurrently. Intermediate query state is kept in {@link QueryContext} instances,
+ * which are either supplied by the caller or taken from a thread-local default.
+ *
  * @param <E>
  */
-public class SpatialQueryArray<@NotNull E> implements SpatialIndexKNN<E> {
+public class SpatialQueryArray<@NotNull E> implements SpatialIndexKNN<E>, SpatialRingIndex1NN<E>, SpatialRangeIndex<E> {
+
+    /**
+     * Recursively splits a batch of queries sorted by {@link SpatialQueryArray#queryKnnBatch(float[], float[], int, int[], float[], ForkJoinPool)}
+     * into smaller batches which are executed in parallel.
+     */
+    private final class BatchTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int end;
+        private final int neighbourCount;
+        private final long @NotNull[] order;
+        private final int @NotNull[] outIndices;
+        private final float @NotNull[] outDist2;
+        private final int start;
+        private final float @NotNull[] xs;
+        private final float @NotNull[] ys;
+
+        BatchTask(float @NotNull[] xs, float @NotNull[] ys, int neighbourCount, int @NotNull[] outIndices, float @NotNull[] outDist2, long @NotNull[] order, int start, int end) {
+            this.xs = xs;
+            this.ys = ys;
+            this.neighbourCount = neighbourCount;
+            this.outIndices = outIndices;
+            this.outDist2 = outDist2;
+            this.order = order;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.end - this.start <= SpatialQueryArray.BATCH_SPLIT_SIZE) {
+                SpatialQueryArray.this.queryKnnBatch0(this.xs, this.ys, this.neighbourCount, this.outIndices, this.outDist2, this.order, this.start, this.end, SpatialQueryArray.this.defaultContext.get());
+                return;
+            }
+
+            int center = (this.start + this.end) >>> 1;
+            ForkJoinTask.invokeAll(new BatchTask(this.xs, this.ys, this.neighbourCount, this.outIndices, this.outDist2, this.order, this.start, center),
+                    new BatchTask(this.xs, this.ys, this.neighbourCount, this.outIndices, this.outDist2, this.order, center, this.end));
+        }
+    }
+
+    /**
+     * Arrays which are reused by consecutive builds in order to avoid allocating them anew for every build,
+     * see {@link SnapshotSpatialQueryArray}. Instances must not be used by multiple builds concurrently.
+     */
+    static final class BuildBuffers {
+        private int @Nullable[] @NotNull[] histograms = new int[0][];
+        private int @NotNull[] pointCells = new int[0];
+
+        /**
+         * An index which is no longer queried by anyone and whose arrays are thus taken over by the next build.
+         * The build resets this field to null.
+         */
+        @Nullable
+        SpatialQueryArray<?> recycled;
+
+        private @Nullable Object @NotNull[] sourcePayloads = new Object[0];
+        private float @NotNull[] sourceXs = new float[0];
+        private float @NotNull[] sourceYs = new float[0];
+
+        /**
+         * The scratch space used to subdivide cells when building sequentially.
+         */
+        @NotNull
+        final SubdivisionScratch subdivision = new SubdivisionScratch();
+
+        /**
+         * Release the references to the elements of the last build, such that they can be garbage collected.
+         */
+        void clearSource() {
+            Arrays.fill(this.sourcePayloads, null);
+            Arrays.fill(this.subdivision.payloads, null);
+        }
+
+        /**
+         * Obtain at least {@code chunkCount} zeroed histograms of at least {@code cellCount} entries each.
+         */
+        int @NotNull[] @NotNull[] histograms(int chunkCount, int cellCount) {
+            if (this.histograms.length < chunkCount) {
+                this.histograms = Arrays.copyOf(this.histograms, chunkCount);
+            }
+            for (int chunk = 0; chunk < chunkCount; chunk++) {
+                int[] histogram = this.histograms[chunk];
+                if (histogram == null || histogram.length < cellCount) {
+                    this.histograms[chunk] = new int[cellCount];
+                } else {
+                    Arrays.fill(histogram, 0, cellCount, 0);
+                }
+            }
+            @SuppressWarnings("null")
+            int @NotNull[] @NotNull[] histograms = this.histograms;
+            return histograms;
+        }
+
+        int @NotNull[] pointCells(int pointCount) {
+            if (this.pointCells.length < pointCount) {
+                this.pointCells = new int[pointCount];
+            }
+            return this.pointCells;
+        }
+    }
+
+    /**
+     * Offers the points of the cells visited by the searches of the {@link CellGrid} to the {@link ResultContainer},
+     * skipping cells which are empty or contain no point matching the {@link ResultContainer#mask category mask}
+     * of the container.
+     */
+    private final class GridScanner implements CellGrid.CellScanner {
+        @Override
+        public boolean isCandidate(int cellX, int cellY, @NotNull ResultContainer rc) {
+            SpatialQueryArray<E> grid = SpatialQueryArray.this;
+            int cell = grid.cellIndex(cellX, cellY);
+            return grid.cellStart[cell] != grid.cellStart[cell + 1] && (rc.mask == 0 || grid.cellMatches(cell, rc.mask));
+        }
+
+        @Override
+        public void scanCell(int cellX, int cellY, float x, float y, int nearestNeighbours, @NotNull ResultContainer rc) {
+            SpatialQueryArray.this.scanCell(cellX, cellY, x, y, nearestNeighbours, rc);
+        }
+    }
+
+    /**
+     * Iterates over the elements of the index in ascending order of their distance to a query point.
+     * Uses a single priority queue containing three kinds of entries: Points, which are yielded once they
+     * reach the head of the queue, cells, which are expanded into their points, and rings of cells around the
+     * cell of the query point, which are expanded into their cells as well as the next ring. Each entry is
+     * keyed by the minimum distance of anything it may expand to, so entries are only expanded once
+     * nothing nearer is left and the work done is proportional to the amount of elements consumed.
+     *
+     * <p>On ties, rings and cells are expanded before points are yielded. Thus all elements with
+     * equal distance are yielded, in no particular order.
+     */
+    private final class IncrementalIterator implements Iterator<@NotNull E> {
+        private static final int KIND_CELL = 1;
+        private static final int KIND_POINT = 2;
+        private static final int KIND_RING = 0;
+
+        private final int cellX;
+        private final int cellY;
+        private long @NotNull[] entries = new long[16];
+        private float @NotNull[] keys = new float[16];
+        private int size;
+        private final float x;
+        private final float y;
+
+        IncrementalIterator(float x, float y) {
+            this.x = x;
+            this.y = y;
+            this.cellX = SpatialQueryArray.this.cellGrid.cellX(x);
+            this.cellY = SpatialQueryArray.this.cellGrid.cellY(y);
+            this.pushCell(this.cellX, this.cellY);
+            this.pushRing(1);
+        }
+
+        private boolean before(int a, int b) {
+            float keyA = this.keys[a];
+            float keyB = this.keys[b];
+            // The kind is stored in the upper bits of the entry, so comparing entries orders by kind on ties
+            return keyA < keyB || (keyA == keyB && this.entries[a] < this.entries[b]);
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (this.size != 0) {
+                long entry = this.entries[0];
+                int kind = (int) (entry >>> 32);
+                if (kind == IncrementalIterator.KIND_POINT) {
+                    return true;
+                }
+
+                this.pop();
+                int value = (int) entry;
+                if (kind == IncrementalIterator.KIND_RING) {
+                    this.expandRing(value);
+                } else {
+                    for (int i = SpatialQueryArray.this.cellStart[value], end = SpatialQueryArray.this.cellStart[value + 1]; i < end; i++) {
+                        this.push(SpatialQueryArray.this.distance2(i, this.x, this.y), ((long) IncrementalIterator.KIND_POINT) << 32 | i);
+                    }
+                }
+            }
+            return false;
+        }
+
+        private void expandRing(int ring) {
+            SpatialQueryArray<E> grid = SpatialQueryArray.this;
+            int lowX = this.cellX - ring;
+            int upX = this.cellX + ring;
+            int lowY = this.cellY - ring;
+            int upY = this.cellY + ring;
+
+            for (int cx = Math.max(0, lowX), endX = Math.min(grid.cellStripSize - 1, upX); cx <= endX; cx++) {
+                if (lowY >= 0) {
+                    this.pushCell(cx, lowY);
+                }
+                if (upY < grid.verticalCellCount) {
+                    this.pushCell(cx, upY);
+                }
+            }
+
+            for (int cy = Math.max(0, lowY + 1), endY = Math.min(grid.verticalCellCount - 1, upY - 1); cy <= endY; cy++) {
+                if (lowX >= 0) {
+                    this.pushCell(lowX, cy);
+                }
+                if (upX < grid.cellStripSize) {
+                    this.pushCell(upX, cy);
+                }
+            }
+
+            this.pushRing(ring + 1);
+        }
+
+        @Override
+        @NotNull
+        public E next() {
+            if (!this.hasNext()) {
+                throw new NoSuchElementException("Iterator exhausted");
+            }
+
+            int slot = (int) this.entries[0];
+            this.pop();
+            E object = SpatialQueryArray.this.payload(slot);
+            return object;
+        }
+
+        private void pop() {
+            int last = --this.size;
+            this.keys[0] = this.keys[last];
+            this.entries[0] = this.entries[last];
+
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= this.size) {
+                    break;
+                }
+                if (child + 1 < this.size && this.before(child + 1, child)) {
+                    child++;
+                }
+                if (!this.before(child, i)) {
+                    break;
+                }
+                this.swap(i, child);
+                i = child;
+            }
+        }
+
+        private void push(float key, long entry) {
+            if (this.size == this.keys.length) {
+                this.keys = Arrays.copyOf(this.keys, this.size * 2);
+                this.entries = Arrays.copyOf(this.entries, this.size * 2);
+            }
+
+            int i = this.size++;
+            this.keys[i] = key;
+            this.entries[i] = entry;
+            while (i != 0) {
+                int parent = (i - 1) >>> 1;
+                if (!this.before(i, parent)) {
+                    break;
+                }
+                this.swap(i, parent);
+                i = parent;
+            }
+        }
+
+        private void pushCell(int cellX, int cellY) {
+            SpatialQueryArray<E> grid = SpatialQueryArray.this;
+            int cell = grid.cellIndex(cellX, cellY);
+            if (grid.cellStart[cell] != grid.cellStart[cell + 1]) {
+                this.push(grid.cellGrid.cellDistance2(cellX, cellY, this.x, this.y), ((long) IncrementalIterator.KIND_CELL) << 32 | cell);
+            }
+        }
+
+        private void pushRing(int ring) {
+            float borderDist2 = SpatialQueryArray.this.cellGrid.ringDistance2(this.cellX, this.cellY, ring, this.x, this.y);
+            if (borderDist2 != Float.POSITIVE_INFINITY) {
+                this.push(borderDist2, ring); // KIND_RING is 0
+            }
+        }
+
+        private void swap(int a, int b) {
+            float key = this.keys[a];
+            this.keys[a] = this.keys[b];
+            this.keys[b] = key;
+            long entry = this.entries[a];
+            this.entries[a] = this.entries[b];
+            this.entries[b] = entry;
+        }
+    }
+
+    /**
+     * Computes the K nearest neighbours of the points of a range of cell rows, see
+     * {@link SpatialQueryArray#queryKnnGraph(int, int[], float[], ForkJoinPool)}.
+     *
+     * <p>Points are processed block by block, where a block is either a cell which is not subdivided or a
+     * sub-cell of a subdivided cell. As the points of a block are stored contiguously, the candidate blocks
+     * of all points within a block are gathered only once: Starting with the cell of the block, rings of
+     * cells are gathered until they contain more than K points. The largest distance between the bounding box
+     * of the block and the bounding box of any gathered block then bounds the distance of the K-th nearest
+     * neighbour of every point within the block, so further rings are only gathered while they are nearer than
+     * that. Each point then scans the candidate blocks in ascending order of their distance to its block,
+     * stopping once no remaining block can contain a point nearer than the K-th nearest point found so far.
+     *
+     * <p>Instances are confined to a single thread.
+     */
+    private final class KnnJoin {
+        /**
+         * See {@link SpatialQueryArray#computeBlockBounds(float[], int, int)}.
+         */
+        private final float @NotNull[] bounds;
+        /**
+         * The squared distance which the K-th nearest neighbour of every point within the current block is known
+         * not to exceed, or infinity if not yet known.
+         */
+        private float candidateBound2;
+        private int candidateCount;
+        private int candidatePoints;
+        /**
+         * The candidate blocks of the current block, each packed as the raw bits of the squared minimum distance
+         * between both blocks in the upper 32 bits and the candidate block in the lower 32 bits. As squared distances
+         * are never negative, sorting the packed values sorts the candidates by their distance.
+         */
+        private long @NotNull[] candidates = new long[64];
+        /**
+         * Scratch space of {@link #limitCandidates(int)}.
+         */
+        private long @NotNull[] maxDistances = new long[0];
+        private final int neighbourCount;
+        private final float @NotNull[] outDist2;
+        private final int @NotNull[] outIndices;
+        /**
+         * The container collecting the neighbours of a single point. As the point itself is among the
+         * found points, the container collects one more point than requested.
+         */
+        @NotNull
+        private final ResultContainer rc;
+
+        KnnJoin(float @NotNull[] bounds, int neighbourCount, int @NotNull[] outIndices, float @NotNull[] outDist2) {
+            this.bounds = bounds;
+            this.neighbourCount = neighbourCount;
+            this.outIndices = outIndices;
+            this.outDist2 = outDist2;
+            this.rc = new ResultContainer(this.getSearchCount());
+        }
+
+        private void addCandidate(int candidate, int start, int end, int block) {
+            if (start == end) {
+                return;
+            }
+
+            float[] bounds = this.bounds;
+            int a = block << 2;
+            int b = candidate << 2;
+            float dx = Math.max(0, Math.max(bounds[b] - bounds[a + 2], bounds[a] - bounds[b + 2]));
+            float dy = Math.max(0, Math.max(bounds[b + 1] - bounds[a + 3], bounds[a + 1] - bounds[b + 3]));
+            float dist2 = dx * dx + dy * dy;
+            if (dist2 > this.candidateBound2) {
+                return;
+            }
+
+            if (this.candidateCount == this.candidates.length) {
+                this.candidates = Arrays.copyOf(this.candidates, this.candidateCount * 2);
+            }
+            this.candidates[this.candidateCount++] = ((long) Float.floatToRawIntBits(dist2)) << 32 | candidate;
+            this.candidatePoints += end - start;
+        }
+
+        private void gatherCell(int cellX, int cellY, int block) {
+            int cell = SpatialQueryArray.this.cellIndex(cellX, cellY);
+            int offset = SpatialQueryArray.this.subdivisions.length == 0 ? -1 : SpatialQueryArray.this.subdivisions[cell];
+            if (offset < 0) {
+                this.addCandidate(cell, SpatialQueryArray.this.cellStart[cell], SpatialQueryArray.this.cellStart[cell + 1], block);
+                return;
+            }
+
+            int[] subcellStart = SpatialQueryArray.this.subcellStart;
+            int cellCount = SpatialQueryArray.this.cellCount;
+            for (int subcell = offset + 1, end = subcell + subcellStart[offset] * subcellStart[offset]; subcell < end; subcell++) {
+                this.addCandidate(cellCount + subcell, subcellStart[subcell], subcellStart[subcell + 1], block);
+            }
+        }
+
+        /**
+         * Gather the candidate blocks of the given block, sorted by their distance to the block.
+         */
+        private void gatherCandidates(int cellX, int cellY, int block) {
+            this.candidateBound2 = Float.POSITIVE_INFINITY;
+            this.candidateCount = 0;
+            this.candidatePoints = 0;
+            int searchCount = this.getSearchCount();
+
+            for (int ring = 0; ; ring++) {
+                if (ring != 0) {
+                    float ringDistance2 = this.ringDistance2(cellX, cellY, ring, block);
+                    if (ringDistance2 == Float.POSITIVE_INFINITY || ringDistance2 > this.candidateBound2) {
+                        break;
+                    }
+                }
+
+                for (int y = Math.max(0, cellY - ring), maxY = Math.min(SpatialQueryArray.this.verticalCellCount - 1, cellY + ring); y <= maxY; y++) {
+                    if (y == cellY - ring || y == cellY + ring) {
+                        for (int x = Math.max(0, cellX - ring), maxX = Math.min(SpatialQueryArray.this.cellStripSize - 1, cellX + ring); x <= maxX; x++) {
+                            this.gatherCell(x, y, block);
+                        }
+                    } else {
+                        if (cellX - ring >= 0) {
+                            this.gatherCell(cellX - ring, y, block);
+                        }
+                        if (cellX + ring < SpatialQueryArray.this.cellStripSize) {
+                            this.gatherCell(cellX + ring, y, block);
+                        }
+                    }
+                }
+
+                if (this.candidateBound2 == Float.POSITIVE_INFINITY && this.candidatePoints >= searchCount) {
+                    this.limitCandidates(block);
+                }
+            }
+
+            Arrays.sort(this.candidates, 0, this.candidateCount);
+        }
+
+        /**
+         * Obtain the amount of points to search for each point, including the point itself.
+         */
+        private int getSearchCount() {
+            return Math.min(this.neighbourCount, SpatialQueryArray.this.pointCount - 1) + 1;
+        }
+
+        private void join(int cellX, int cellY, int block, int start, int end) {
+            if (start == end) {
+                return;
+            }
+
+            this.gatherCandidates(cellX, cellY, block);
+
+            final float[] xs = SpatialQueryArray.this.xs;
+            final float[] ys = SpatialQueryArray.this.ys;
+            final int[] ids = SpatialQueryArray.this.ids;
+            final int[] cellStart = SpatialQueryArray.this.cellStart;
+            final int[] subcellStart = SpatialQueryArray.this.subcellStart;
+            final int cellCount = SpatialQueryArray.this.cellCount;
+            final ResultContainer rc = this.rc;
+            final int neighbourCount = this.neighbourCount;
+            final int searchCount = this.getSearchCount();
+
+            for (int slot = start; slot < end; slot++) {
+                float x = xs[slot];
+                float y = ys[slot];
+                rc.reset(searchCount);
+                for (int i = 0; i < this.candidateCount; i++) {
+                    long key = this.candidates[i];
+                    if (rc.found == searchCount && Float.intBitsToFloat((int) (key >>> 32)) >= rc.maxDist2) {
+                        break;
+                    }
+
+                    int candidate = (int) key;
+                    if (rc.found == searchCount && this.pointDistance2(candidate, x, y) >= rc.maxDist2) {
+                        continue;
+                    }
+
+                    if (candidate < cellCount) {
+                        SpatialQueryArray.this.scanRange(cellStart[candidate], cellStart[candidate + 1], x, y, searchCount, rc);
+                    } else {
+                        SpatialQueryArray.this.scanRange(subcellStart[candidate - cellCount], subcellStart[candidate - cellCount + 1], x, y, searchCount, rc);
+                    }
+                }
+                rc.sort();
+
+                int outOffset = ids[slot] * neighbourCount;
+                int written = 0;
+                for (int j = 0; j < rc.found && written < neighbourCount; j++) {
+                    if (rc.slots[j] == slot) {
+                        continue;
+                    }
+                    this.outIndices[outOffset + written] = ids[rc.slots[j]];
+                    this.outDist2[outOffset + written] = rc.distances2[j];
+                    written++;
+                }
+
+                Arrays.fill(this.outIndices, outOffset + written, outOffset + neighbourCount, -1);
+                Arrays.fill(this.outDist2, outOffset + written, outOffset + neighbourCount, Float.POSITIVE_INFINITY);
+            }
+        }
+
+        /**
+         * Compute the distance which the K-th nearest neighbour of any point within the given block cannot exceed,
+         * now that the gathered candidates contain enough points, and drop all candidates beyond that distance.
+         * Candidates at exactly that distance must be retained, as they may contain the K-th nearest neighbour.
+         *
+         * <p>The distance is the smallest maximum distance between the block and a candidate such that the
+         * candidates within that maximum distance contain enough points.
+         */
+        private void limitCandidates(int block) {
+            float[] bounds = this.bounds;
+            int a = block << 2;
+            if (this.maxDistances.length < this.candidateCount) {
+                this.maxDistances = new long[this.candidates.length];
+            }
+            for (int i = 0; i < this.candidateCount; i++) {
+                int b = ((int) this.candidates[i]) << 2;
+                float dx = Math.max(bounds[a + 2] - bounds[b], bounds[b + 2] - bounds[a]);
+                float dy = Math.max(bounds[a + 3] - bounds[b + 1], bounds[b + 3] - bounds[a + 1]);
+                this.maxDistances[i] = ((long) Float.floatToRawIntBits(dx * dx + dy * dy)) << 32 | (int) this.candidates[i];
+            }
+            Arrays.sort(this.maxDistances, 0, this.candidateCount);
+
+            float bound2 = Float.POSITIVE_INFINITY;
+            int searchCount = this.getSearchCount();
+            for (int i = 0, points = 0; i < this.candidateCount; i++) {
+                points += SpatialQueryArray.this.blockSize((int) this.maxDistances[i]);
+                if (points >= searchCount) {
+                    bound2 = Float.intBitsToFloat((int) (this.maxDistances[i] >>> 32));
+                    break;
+                }
+            }
+
+            int retained = 0;
+            for (int i = 0; i < this.candidateCount; i++) {
+                long key = this.candidates[i];
+                if (Float.intBitsToFloat((int) (key >>> 32)) <= bound2) {
+                    this.candidates[retained++] = key;
+                }
+            }
+            this.candidateCount = retained;
+            this.candidateBound2 = bound2;
+        }
+
+        private float pointDistance2(int block, float x, float y) {
+            int b = block << 2;
+            float dx = Math.max(0, Math.max(this.bounds[b] - x, x - this.bounds[b + 2]));
+            float dy = Math.max(0, Math.max(this.bounds[b + 1] - y, y - this.bounds[b + 3]));
+            return dx * dx + dy * dy;
+        }
+
+        /**
+         * Compute the squared minimum distance between the bounding box of the given block within the cell at the
+         * given cell coordinates and any cell of the given ring or beyond.
+         *
+         * @return The squared distance, or infinity if no such cell exists.
+         */
+        private float ringDistance2(int cellX, int cellY, int ring, int block) {
+            SpatialQueryArray<E> grid = SpatialQueryArray.this;
+            int b = block << 2;
+            float distance = Float.POSITIVE_INFINITY;
+            if (cellX - ring >= 0) {
+                distance = Math.min(distance, this.bounds[b] - ((cellX - ring + 1) * grid.cellWidth + grid.minX));
+            }
+            if (cellX + ring < grid.cellStripSize) {
+                distance = Math.min(distance, (cellX + ring) * grid.cellWidth + grid.minX - this.bounds[b + 2]);
+            }
+            if (cellY - ring >= 0) {
+                distance = Math.min(distance, this.bounds[b + 1] - ((cellY - ring + 1) * grid.cellHeight + grid.minY));
+            }
+            if (cellY + ring < grid.verticalCellCount) {
+                distance = Math.min(distance, (cellY + ring) * grid.cellHeight + grid.minY - this.bounds[b + 3]);
+            }
+
+            if (distance == Float.POSITIVE_INFINITY) {
+                return distance;
+            }
+            distance = Math.max(0, distance);
+            return distance * distance;
+        }
+
+        void run(int fromRow, int toRow) {
+            SpatialQueryArray<E> grid = SpatialQueryArray.this;
+            int cellCount = grid.cellCount;
+            for (int cellY = fromRow; cellY < toRow; cellY++) {
+                for (int cellX = 0; cellX < grid.cellStripSize; cellX++) {
+                    int cell = grid.cellIndex(cellX, cellY);
+                    int offset = grid.subdivisions.length == 0 ? -1 : grid.subdivisions[cell];
+                    if (offset < 0) {
+                        this.join(cellX, cellY, cell, grid.cellStart[cell], grid.cellStart[cell + 1]);
+                        continue;
+                    }
+
+                    for (int subcell = offset + 1, end = subcell + grid.subcellStart[offset] * grid.subcellStart[offset]; subcell < end; subcell++) {
+                        this.join(cellX, cellY, cellCount + subcell, grid.subcellStart[subcell], grid.subcellStart[subcell + 1]);
+                    }
+                }
+            }
+        }
+    }
+
+    @FunctionalInterface
+    static interface RangeAction {
+        void run(int from, int to);
+    }
+
+    private static final class RangeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        @NotNull
+        private final RangeAction action;
+        private final int from;
+        private final int grain;
+        private final int to;
+
+        RangeTask(@NotNull RangeAction action, int from, int to, int grain) {
+            this.action = action;
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.to - this.from <= this.grain) {
+                this.action.run(this.from, this.to);
+                return;
+            }
+
+            int center = (this.from + this.to) >>> 1;
+            ForkJoinTask.invokeAll(new RangeTask(this.action, this.from, center, this.grain),
+                    new RangeTask(this.action, center, this.to, this.grain));
+        }
+    }
+
+    /**
+     * The order in which the cells of the grid are visited by K nearest neighbour queries.
+     * Both modes yield the same neighbours, they only differ in the amount of work performed.
+     *
+     * @see QueryContext#setSearchMode(SearchMode)
+     */
+    public static enum SearchMode {
+        /**
+         * Visit the cells in ascending order of their exact minimum distance to the query point and stop
+         * as soon as that distance reaches the distance of the K-th nearest point found so far. This visits
+         * as few cells as possible at the cost of maintaining a priority queue of cells.
+         */
+        BEST_FIRST,
+
+        /**
+         * Visit the cells in square rings of increasing size around the cell of the query point, stopping once
+         * the distance to the nearest border of the searched area exceeds the distance of the K-th nearest
+         * point found so far. Each ring is searched in its entirety, even if only few of its cells can
+         * contain nearer points.
+         */
+        RINGS;
+    }
+
+    /**
+     * The points an index is built from, in the order in which they were supplied.
+     */
+    private static final class SourcePoints {
+        @NotNull
+        private static SourcePoints of(@NotNull Collection<? extends @NotNull PointObjectPair<?>> points, int @Nullable[] masks, @Nullable BuildBuffers buffers) {
+            int pointCount = points.size();
+            float[] xs;
+            float[] ys;
+            Object[] payloads;
+            if (buffers == null) {
+                xs = new float[pointCount];
+                ys = new float[pointCount];
+                payloads = new Object[pointCount];
+            } else {
+                if (buffers.sourceXs.length < pointCount) {
+                    buffers.sourceXs = new float[pointCount];
+                    buffers.sourceYs = new float[pointCount];
+                    buffers.sourcePayloads = new Object[pointCount];
+                }
+                xs = buffers.sourceXs;
+                ys = buffers.sourceYs;
+                payloads = buffers.sourcePayloads;
+            }
+
+            int i = 0;
+            for (PointObjectPair<?> pair : points) {
+                xs[i] = pair.x;
+                ys[i] = pair.y;
+                payloads[i++] = pair.object;
+            }
+            return new SourcePoints(xs, ys, payloads, masks, pointCount);
+        }
+
+        /**
+         * The amount of points, the arrays may be larger if they are reused from a previous build.
+         */
+        private final int count;
+        /**
+         * The category masks of the points, or null if the points have no categories.
+         */
+        private final int @Nullable[] masks;
+        private final @NotNull Object @Nullable[] payloads;
+        private final float @NotNull[] xs;
+        private final float @NotNull[] ys;
+
+        SourcePoints(float @NotNull[] xs, float @NotNull[] ys, @NotNull Object @Nullable[] payloads, int @Nullable[] masks, int count) {
+            if (masks != null && masks.length != count) {
+                throw new IllegalArgumentException("Expected a category mask for each of the " + count + " points, but got " + masks.length + " masks");
+            }
+            this.xs = xs;
+            this.ys = ys;
+            this.payloads = payloads;
+            this.masks = masks;
+            this.count = count;
+        }
+    }
+
+    /**
+     * Scratch space for {@link SpatialQueryArray#subdivideCells(int, int, SubdivisionScratch)}, which grows
+     * as needed and can be reused for any amount of builds.
+     */
+    private static final class SubdivisionScratch {
+        private int @NotNull[] cursors = new int[0];
+        private int @NotNull[] ids = new int[0];
+        private int @NotNull[] masks = new int[0];
+        private @Nullable Object @NotNull[] payloads = new Object[0];
+        private int @NotNull[] subcells = new int[0];
+        private float @NotNull[] xs = new float[0];
+        private float @NotNull[] ys = new float[0];
+
+        void ensureCapacity(int occupancy, boolean payloads, boolean masks) {
+            if (this.ids.length < occupancy) {
+                this.ids = new int[occupancy];
+                this.subcells = new int[occupancy];
+                this.xs = new float[occupancy];
+                this.ys = new float[occupancy];
+            }
+            if (payloads && this.payloads.length < occupancy) {
+                this.payloads = new Object[occupancy];
+            }
+            if (masks && this.masks.length < occupancy) {
+                this.masks = new int[occupancy];
+            }
+        }
+
+        int @NotNull[] cursors(int subcellCount) {
+            if (this.cursors.length < subcellCount) {
+                this.cursors = new int[subcellCount];
+            }
+            return this.cursors;
+        }
+    }
+
+    /**
+     * A reusable container for the intermediate state of a single query.
+     *
+     * <p>Instances of this class are not thread-safe and are meant to be confined to a single thread,
+     * however they can be reused for an arbitrary amount of queries, which avoids allocations on the
+     * hot path. As the index itself is immutable, any amount of threads may query the same
+     * {@link SpatialQueryArray} concurrently as long as each thread uses its own context.
+     *
+     * <p>A context must not be used by nested queries: the consumer passed to
+     * {@link SpatialQueryArray#queryKnn(float, float, int, Consumer, QueryContext)} must not
+     * reuse the context it is being invoked from.
+     *
+     * @param <T> The type of the elements stored in the index.
+     */
+    public static final class QueryContext<T> {
+        @NotNull
+        private final CellGrid.CellQueue cells = new CellGrid.CellQueue();
+        @NotNull
+        private final ResultContainer rc = new ResultContainer(40);
+        @NotNull
+        private SearchMode searchMode = SearchMode.RINGS;
+
+        /**
+         * Obtain the order in which K nearest neighbour queries using this context visit the cells of the grid.
+         *
+         * @return The search mode, {@link SearchMode#RINGS} by default.
+         */
+        @NotNull
+        public SearchMode getSearchMode() {
+            return this.searchMode;
+        }
+
+        /**
+         * Obtain the statistics of the last nearest-neighbour query which used this context. The returned
+         * instance is updated by every subsequent query. The statistics are only collected if
+         * {@link QueryStatistics#ENABLED statistics are enabled}.
+         *
+         * @return The statistics of the last query.
+         */
+        @NotNull
+        public QueryStatistics getStatistics() {
+            return this.rc.statistics;
+        }
+
+        /**
+         * Set the order in which K nearest neighbour queries using this context visit the cells of the grid.
+         *
+         * @param searchMode The search mode to use.
+         */
+        public void setSearchMode(@NotNull SearchMode searchMode) {
+            this.searchMode = searchMode;
+        }
+    }
+
+    /**
+     * The amount of queries a batch needs to at least have in order to be split into multiple
+     * {@link ForkJoinTask fork-join tasks}. Smaller batches are always executed on the calling thread.
+     */
+    private static final int BATCH_SPLIT_SIZE = 2048;
+
+    /**
+     * The amount of cells processed by a single task when building the index in parallel.
+     */
+    private static final int BUILD_CELL_GRAIN = 8192;
+
+    /**
+     * The minimum amount of points each chunk should have when building the index in parallel.
+     */
+    private static final int BUILD_MIN_CHUNK_SIZE = 16384;
+
+    /**
+     * The amount of cells processed by a single task when computing the K nearest neighbours of all points in parallel.
+     * Tasks always process entire rows of cells.
+     */
+    private static final int JOIN_CELL_GRAIN = 256;
+
+    /**
+     * The value of {@link #subdivisions} and {@link #subcellStart} if no cell is subdivided.
+     */
+    private static final int @NotNull[] NO_SUBDIVISIONS = new int[0];
+
+    /**
+     * The size of the buffer used by {@link #writeTo(WritableByteChannel)}, in bytes.
+     */
+    private static final int WRITE_BUFFER_SIZE = 1 << 16;
+
+    private static void flush(@NotNull WritableByteChannel channel, @NotNull ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Run the given action over the range from {@code from} (inclusive) to {@code to} (exclusive).
+     * If a pool is given, the range is split into parts of at most {@code grain} elements which are
+     * processed in parallel. Returns once the entire range has been processed.
+     */
+    static void forEachRange(@Nullable ForkJoinPool pool, int from, int to, int grain, @NotNull RangeAction action) {
+        if (pool == null || to - from <= grain) {
+            action.run(from, to);
+        } else {
+            pool.invoke(new RangeTask(action, from, to, grain));
+        }
+    }
+
+    /**
+     * Compute the amount of chunks the points are split into when building the index in parallel.
+     * As each chunk requires its own histogram with an entry for every cell, the amount of chunks
+     * is limited such that all histograms combined have no more than four entries per point.
+     */
+    private static int getBuildChunkCount(int pointCount, int cellCount, int parallelism) {
+        long maxChunksByMemory = Math.max(1L, 4L * pointCount / Math.max(1, cellCount));
+        long maxChunksBySize = Math.max(1L, pointCount / SpatialQueryArray.BUILD_MIN_CHUNK_SIZE);
+        return (int) Math.min(Math.min(maxChunksByMemory, maxChunksBySize), parallelism);
+    }
+
+    /**
+     * Compute the bits each coordinate along an axis contributes to the index of a cell laid out in Morton order.
+     * The lowest bits shared by both axes are interleaved, while the remaining bits of the longer axis are placed above them.
+     *
+     * @param cells The amount of cells along the axis.
+     * @param bits The amount of bits of a coordinate along the axis.
+     * @param otherBits The amount of bits of a coordinate along the other axis.
+     * @param shift The position of the lowest bit of the axis within the index, 0 for the X-axis and 1 for the Y-axis.
+     * @return The bits of the index for each coordinate along the axis.
+     */
+    private static int @NotNull[] mortonBits(int cells, int bits, int otherBits, int shift) {
+        int interleaved = Math.min(bits, otherBits);
+        int[] mortonBits = new int[cells];
+        for (int coordinate = 0; coordinate < cells; coordinate++) {
+            int index = (coordinate >>> interleaved) << (interleaved * 2);
+            for (int bit = 0; bit < interleaved; bit++) {
+                index |= ((coordinate >>> bit) & 1) << (bit * 2 + shift);
+            }
+            mortonBits[coordinate] = index;
+        }
+        return mortonBits;
+    }
+
+    /**
+     * Compute the factor by which the squared distance of the K-th nearest point found so far is scaled before it is
+     * compared against the minimum distance of a cell, such that every point found is at most {@code 1 + epsilon}
+     * times as far away as the true neighbour of the same rank.
+     *
+     * @param epsilon The relative error bound of the approximate query, must not be negative.
+     * @return The factor {@code 1 / (1 + epsilon)^2}.
+     */
+    private static float pruneScale(float epsilon) {
+        if (!(epsilon >= 0) || epsilon == Float.POSITIVE_INFINITY) {
+            throw new IllegalArgumentException("Epsilon must be finite and not negative, but got " + epsilon);
+        }
+        double factor = 1D + epsilon;
+        return (float) (1D / (factor * factor));
+    }
+
+    /**
+     * Reuse the given array if it has at least the given length, or allocate a new array otherwise.
+     */
+    private static float @NotNull[] recycleFloats(float @Nullable[] array, int length) {
+        return array != null && array.length >= length ? array : new float[length];
+    }
+
+    /**
+     * Reuse the given array if it has at least the given length, or allocate a new array otherwise.
+     */
+    private static int @NotNull[] recycleInts(int @Nullable[] array, int length) {
+        return array != null && array.length >= length ? array : new int[length];
+    }
+
+    /**
+     * Reuse the given array if it has at least the given length, or allocate a new array otherwise.
+     */
+    private static @NotNull Object @NotNull[] recycleObjects(@NotNull Object @Nullable[] array, int length) {
+        return array != null && array.length >= length ? array : new Object[length];
+    }
+
+    /**
+     * Append the first {@code length} values to the buffer, flushing the buffer to the channel whenever it is full.
+     * The buffer may still contain data that was not yet written once this method returns.
+     */
+    private static void writeFloats(@NotNull WritableByteChannel channel, @NotNull ByteBuffer buffer, float @NotNull[] values, int length) throws IOException {
+        for (int i = 0; i < length;) {
+            if (buffer.remaining() < 4) {
+                SpatialQueryArray.flush(channel, buffer);
+            }
+            int count = Math.min(length - i, buffer.remaining() / 4);
+            buffer.asFloatBuffer().put(values, i, count);
+            buffer.position(buffer.position() + 4 * count);
+            i += count;
+        }
+    }
+
+    /**
+     * Append the first {@code length} values to the buffer, flushing the buffer to the channel whenever it is full.
+     * The buffer may still contain data that was not yet written once this method returns.
+     */
+    private static void writeInts(@NotNull WritableByteChannel channel, @NotNull ByteBuffer buffer, int @NotNull[] values, int length) throws IOException {
+        for (int i = 0; i < length;) {
+            if (buffer.remaining() < 4) {
+                SpatialQueryArray.flush(channel, buffer);
+            }
+            int count = Math.min(length - i, buffer.remaining() / 4);
+            buffer.asIntBuffer().put(values, i, count);
+            buffer.position(buffer.position() + 4 * count);
+            i += count;
+        }
+    }
+
+    /**
+     * The amount of cell indices, that is the amount of entries of {@link #cellStart} (excluding its final entry)
+     * and {@link #subdivisions}. Equals the amount of cells of the grid, unless the cells are laid out in
+     * {@link GridParameters.CellOrder#MORTON Morton order}, where indices of cells outside of the grid remain unused.
+     */
+    private final int cellCount;
+    /**
+     * The geometry of the grid, which also drives the K nearest neighbour searches.
+     */
+    @NotNull
+    private final CellGrid cellGrid;
+    private final float cellHeight;
+    /**
+     * The bitwise OR of the category masks of all points within each cell, indexed like {@link #cellStart}.
+     * Allows {@link #queryKnnMatching(float, float, int, int, Consumer) filtered queries} to skip cells without
+     * any matching point without scanning them. Is null if the points have no category masks.
+     */
+    private final int @Nullable[] cellMasks;
+
+    /**
+     * Offset table of the grid. The points located in the cell with the index {@code i}
+     * are stored within the packed arrays ({@link #xs}, {@link #ys} and {@link #payloads})
+     * in the range from {@code cellStart[i]} (inclusive) to {@code cellStart[i + 1]} (exclusive).
+     *
+     * <p>By default, the cells are laid out with horizontal strips being kept intact, with y values closer to
+     * positive infinity being put more towards to the end of the table, with y values closer to
+     * negative infinity tending towards the front of the table. See {@link #cellIndex(int, int)}
+     * for the alternative layout in {@link GridParameters.CellOrder#MORTON Morton order}.
+     */
+    private final int @NotNull[] cellStart;
+    /**
+     * Amount of cells a strip has (or the width of the grid, in cells).
+     */
+    private final int cellStripSize;
+    private final float cellWidth;
+    /**
+     * The ids of all points stored in this index, sorted by the cell they are located in.
+     * The id of a point is its position within the collection this index was built from.
+     */
+    private final int @NotNull[] ids;
+
+    /**
+     * The category masks of all points stored in this index, sorted by the cell they are located in,
+     * or null if the index was built without category masks (in which case every point matches every mask).
+     */
+    private final int @Nullable[] masks;
+
+    private final float maxX;
+    private final float maxY;
+
+    private final float minX;
+
+    private final float minY;
+
+    /**
+     * The bits contributed by the X-coordinate of a cell to the index of the cell if the cells are laid out in
+     * {@link GridParameters.CellOrder#MORTON Morton order}, or null if the cells are laid out row by row.
+     */
+    private final int @Nullable[] mortonXs;
+
+    /**
+     * The bits contributed by the Y-coordinate of a cell to the index of the cell, see {@link #mortonXs}.
+     */
+    private final int @Nullable[] mortonYs;
+
+    /**
+     * The elements stored in this index, sorted by the cell they are located in.
+     * The object at any given index corresponds to the point at the same index
+     * within {@link #xs} and {@link #ys}.
+     *
+     * <p>Is null if the index was built from bare coordinates through
+     * {@link #ofCoordinates(float[], float[], GridParameters)}, in which case
+     * the elements of the index are the (boxed) ids of the points.
+     */
+    private final @NotNull Object @Nullable[] payloads;
+
+    @NotNull
+    private final GridParameters parameters;
+
+    /**
+     * The amount of points stored in this index. The arrays storing the points may be larger
+     * if they were reused from a previous build, see {@link BuildBuffers}.
+     */
+    private final int pointCount;
+
+    /**
+     * Offers the points of visited cells to the searches of {@link #cellGrid}.
+     */
+    @NotNull
+    private final CellGrid.CellScanner scanner = new GridScanner();
+
+    /**
+     * Offset tables of subdivided cells. If the cell with the index {@code i} is subdivided,
+     * {@code o = subdivisions[i]} is non-negative and {@code subcellStart[o]} stores the amount
+     * of sub-cells {@code s} on each axis. The points of the sub-cell {@code (sx, sy)} are stored in the range
+     * from {@code subcellStart[o + 1 + sy * s + sx]} (inclusive) to {@code subcellStart[o + 2 + sy * s + sx]}
+     * (exclusive). The points of a subdivided cell are still stored contiguously, so the range of the cell
+     * as defined by {@link #cellStart} remains valid.
+     */
+    private final int @NotNull[] subcellStart;
+
+    /**
+     * The amount of entries of {@link #subcellStart} which are in use.
+     */
+    private final int subcellTableSize;
+
+    /**
+     * The offset of the sub-grid of each cell within {@link #subcellStart}, or -1 if the cell is not subdivided.
+     * Is an empty array if no cell is subdivided.
+     */
+    private final int @NotNull[] subdivisions;
+
+    /**
+     * Statistics aggregated over all queries, only maintained if {@link QueryStatistics#ENABLED statistics are enabled}.
+     */
+    @NotNull
+    private final QueryStatisticsAggregate statistics = new QueryStatisticsAggregate();
+
+    /**
+     * The context used by queries which do not explicitly supply their own {@link QueryContext}.
+     * As {@link QueryContext} instances are thread-confined, each thread gets its own.
+     */
+    @NotNull
+    private final ThreadLocal<QueryContext<E>> defaultContext = ThreadLocal.withInitial(QueryContext::new);
+
+    /**
+     * Amount of cells in a vertical column within the grid.
+     * Note that by default only rows (called strips as far as this class is concerned) are stored
+     * continuously in memory, individual columns will be chopped up in memory, but will
+     * be stored with a stride corresponding to the size of the rows, as defined
+     * by {@link SpatialQueryArray#cellStripSize}.
+     */
+    private final int verticalCellCount;
+
+    /**
+     * The X-coordinates of all points stored in this index, sorted by the cell they are located in.
+     */
+    private final float @NotNull[] xs;
+
+    /**
+     * The Y-coordinates of all points stored in this index, sorted by the cell they are located in.
+     */
+    private final float @NotNull[] ys;
+
+    /**
+     * Construct a new {@link SpatialQueryArray} containing the given points.
+     * The points are assigned ids in the iteration order of the collection,
+     * that is the first point has the id 0, the second point the id 1 and so on.
+     *
+     * <p>Points outside of the given bounds are supported, but will be treated as if they
+     * were located in the nearest cell on the edge of the grid, which is detrimental to performance.
+     *
+     * @param points The points to store in the index.
+     * @param minX The minimum X-coordinate of the grid.
+     * @param minY The minimum Y-coordinate of the grid.
+     * @param maxX The maximum X-coordinate of the grid.
+     * @param maxY The maximum Y-coordinate of the grid.
+     * @param cellWidth The width of an individual cell.
+     * @param cellHeight The height of an individual cell.
+     */
+    public SpatialQueryArray(Collection<PointObjectPair<E>> points, float minX, float minY, float maxX, float maxY, float cellWidth, float cellHeight) {
+        this(points, new GridParameters(minX, minY, maxX, maxY, cellWidth, cellHeight, Integer.MAX_VALUE));
+    }
+
+    /**
+     * Construct a new {@link SpatialQueryArray} containing the given points, with the layout of the grid
+     * being defined by the given {@link GridParameters}.
+     * The points are assigned ids in the iteration order of the collection,
+     * that is the first point has the id 0, the second point the id 1 and so on.
+     *
+     * <p>Cells containing more points than {@link GridParameters#getSubdivisionThreshold()} are
+     * subdivided into a finer sub-grid, which allows queries to skip parts of dense cells.
+     *
+     * @param points The points to store in the index.
+     * @param parameters The layout of the grid.
+     */
+    public SpatialQueryArray(Collection<PointObjectPair<E>> points, @NotNull GridParameters parameters) {
+        this(SourcePoints.of(points, null, null), parameters, null, null);
+    }
+
+    private SpatialQueryArray(@NotNull SourcePoints source, @NotNull GridParameters parameters, @Nullable ForkJoinPool pool, @Nullable BuildBuffers buffers) {
+        this.parameters = parameters;
+        final CellGrid cellGrid = this.cellGrid = new CellGrid(parameters.getMinX(), parameters.getMinY(), parameters.getMaxX(), parameters.getMaxY(), parameters.getCellWidth(), parameters.getCellHeight());
+        this.maxX = cellGrid.maxX;
+        this.maxY = cellGrid.maxY;
+        this.minX = cellGrid.minX;
+        this.minY = cellGrid.minY;
+        this.cellWidth = cellGrid.cellWidth;
+        this.cellHeight = cellGrid.cellHeight;
+        this.cellStripSize = cellGrid.cellStripSize;
+        this.verticalCellCount = cellGrid.verticalCellCount;
+        if (parameters.getCellOrder() == GridParameters.CellOrder.MORTON) {
+            int bitsX = 32 - Integer.numberOfLeadingZeros(this.cellStripSize - 1);
+            int bitsY = 32 - Integer.numberOfLeadingZeros(this.verticalCellCount - 1);
+            if (bitsX + bitsY > 30) {
+                throw new IllegalArgumentException("Grid of " + this.cellStripSize + "x" + this.verticalCellCount + " cells is too large to be laid out in Morton order");
+            }
+            this.mortonXs = SpatialQueryArray.mortonBits(this.cellStripSize, bitsX, bitsY, 0);
+            this.mortonYs = SpatialQueryArray.mortonBits(this.verticalCellCount, bitsY, bitsX, 1);
+            this.cellCount = 1 << (bitsX + bitsY);
+        } else {
+            this.mortonXs = null;
+            this.mortonYs = null;
+            this.cellCount = this.cellStripSize * this.verticalCellCount;
+        }
+
+        final float[] sourceXs = source.xs;
+        final float[] sourceYs = source.ys;
+        final Object[] sourcePayloads = source.payloads;
+        final int pointCount = this.pointCount = source.count;
+        final int cellCount = this.cellCount;
+
+        // Arrays taken over from a retired index may be larger than needed and contain arbitrary data
+        final SpatialQueryArray<?> recycled = buffers == null ? null : buffers.recycled;
+        if (buffers != null) {
+            buffers.recycled = null;
+        }
+        final int[] pointCells = buffers == null ? new int[pointCount] : buffers.pointCells(pointCount);
+        final int[] cellStart = this.cellStart = SpatialQueryArray.recycleInts(recycled == null ? null : recycled.cellStart, cellCount + 1);
+        cellStart[0] = 0;
+        final float[] xs = this.xs = SpatialQueryArray.recycleFloats(recycled == null ? null : recycled.xs, pointCount);
+        final float[] ys = this.ys = SpatialQueryArray.recycleFloats(recycled == null ? null : recycled.ys, pointCount);
+        final Object[] payloads = this.payloads = sourcePayloads == null ? null : SpatialQueryArray.recycleObjects(recycled == null ? null : recycled.payloads, pointCount);
+        final int[] ids = this.ids = SpatialQueryArray.recycleInts(recycled == null ? null : recycled.ids, pointCount);
+        final int[] sourceMasks = source.masks;
+        final int[] masks = this.masks = sourceMasks == null ? null : SpatialQueryArray.recycleInts(recycled == null ? null : recycled.masks, pointCount);
+        if (payloads != null && recycled != null && payloads == recycled.payloads && pointCount < recycled.pointCount) {
+            // Do not keep the elements of the retired index alive
+            Arrays.fill(payloads, pointCount, recycled.pointCount, null);
+        }
+
+        // Counting sort over chunks of the points. Each chunk counts the amount of its points within
+        // each cell independently. Afterwards the points of a cell are laid out chunk by chunk, so the
+        // resulting order is the same regardless of the amount of chunks.
+        final int chunkCount = pool == null ? 1 : SpatialQueryArray.getBuildChunkCount(pointCount, cellCount, pool.getParallelism());
+        final int chunkSize = chunkCount == 0 ? 0 : (pointCount + chunkCount - 1) / chunkCount;
+        final int[][] histograms = buffers == null ? new int[chunkCount][cellCount] : buffers.histograms(chunkCount, cellCount);
+
+        // First count the amount of points within each cell ...
+        SpatialQueryArray.forEachRange(pool, 0, chunkCount, 1, (fromChunk, toChunk) -> {
+            for (int chunk = fromChunk; chunk < toChunk; chunk++) {
+                int[] histogram = histograms[chunk];
+                for (int i = chunk * chunkSize, end = Math.min(pointCount, i + chunkSize); i < end; i++) {
+                    int cell = this.cellIndex(this.cellGrid.cellX(sourceXs[i]), this.cellGrid.cellY(sourceYs[i]));
+                    pointCells[i] = cell;
+                    histogram[cell]++;
+                }
+            }
+        });
+
+        // ... then compute the offset of each chunk within each cell ...
+        SpatialQueryArray.forEachRange(pool, 0, cellCount, SpatialQueryArray.BUILD_CELL_GRAIN, (fromCell, toCell) -> {
+            for (int cell = fromCell; cell < toCell; cell++) {
+                int occupancy = 0;
+                for (int chunk = 0; chunk < chunkCount; chunk++) {
+                    int count = histograms[chunk][cell];
+                    histograms[chunk][cell] = occupancy;
+                    occupancy += count;
+                }
+                cellStart[cell + 1] = occupancy;
+            }
+        });
+
+        // ... and the offset of each cell ...
+        int subcellTableSize = 0;
+        for (int cell = 1; cell <= cellCount; cell++) {
+            int subdivisions = parameters.getSubdivisions(cellStart[cell]);
+            if (subdivisions != 1) {
+                subcellTableSize += subdivisions * subdivisions + 2;
+            }
+            cellStart[cell] += cellStart[cell - 1];
+        }
+
+        // ... and finally scatter the points into their cells.
+        SpatialQueryArray.forEachRange(pool, 0, chunkCount, 1, (fromChunk, toChunk) -> {
+            for (int chunk = fromChunk; chunk < toChunk; chunk++) {
+                int[] cursor = histograms[chunk];
+                for (int i = chunk * chunkSize, end = Math.min(pointCount, i + chunkSize); i < end; i++) {
+                    int cell = pointCells[i];
+                    int slot = cellStart[cell] + cursor[cell]++;
+                    xs[slot] = sourceXs[i];
+                    ys[slot] = sourceYs[i];
+                    if (payloads != null) {
+                        payloads[slot] = sourcePayloads[i];
+                    }
+                    if (masks != null) {
+                        masks[slot] = sourceMasks[i];
+                    }
+                    ids[slot] = i;
+                }
+            }
+        });
+
+        // Summarize the categories of each cell, which are not affected by subdividing the cell
+        if (masks == null) {
+            this.cellMasks = null;
+        } else {
+            final int[] cellMasks = this.cellMasks = SpatialQueryArray.recycleInts(recycled == null ? null : recycled.cellMasks, cellCount);
+            SpatialQueryArray.forEachRange(pool, 0, cellCount, SpatialQueryArray.BUILD_CELL_GRAIN, (fromCell, toCell) -> {
+                for (int cell = fromCell; cell < toCell; cell++) {
+                    int cellMask = 0;
+                    for (int slot = cellStart[cell], end = cellStart[cell + 1]; slot < end; slot++) {
+                        cellMask |= masks[slot];
+                    }
+                    cellMasks[cell] = cellMask;
+                }
+            });
+        }
+
+        this.subcellTableSize = subcellTableSize;
+        if (subcellTableSize == 0) {
+            this.subdivisions = SpatialQueryArray.NO_SUBDIVISIONS;
+            this.subcellStart = SpatialQueryArray.NO_SUBDIVISIONS;
+            return;
+        }
+
+        // Sort the points of overfull cells by the sub-cell they are located in, again using a counting sort
+        this.subdivisions = SpatialQueryArray.recycleInts(recycled == null ? null : recycled.subdivisions, cellCount);
+        this.subcellStart = SpatialQueryArray.recycleInts(recycled == null ? null : recycled.subcellStart, subcellTableSize);
+        Arrays.fill(this.subcellStart, 0, subcellTableSize, 0);
+        int tableOffset = 0;
+        for (int cell = 0; cell < cellCount; cell++) {
+            int subdivisions = parameters.getSubdivisions(cellStart[cell + 1] - cellStart[cell]);
+            if (subdivisions == 1) {
+                this.subdivisions[cell] = -1;
+            } else {
+                this.subdivisions[cell] = tableOffset;
+                this.subcellStart[tableOffset] = subdivisions;
+                tableOffset += subdivisions * subdivisions + 2;
+            }
+        }
+
+        if (pool == null) {
+            this.subdivideCells(0, cellCount, buffers == null ? new SubdivisionScratch() : buffers.subdivision);
+        } else {
+            SpatialQueryArray.forEachRange(pool, 0, cellCount, SpatialQueryArray.BUILD_CELL_GRAIN, (fromCell, toCell) -> {
+                this.subdivideCells(fromCell, toCell, new SubdivisionScratch());
+            });
+        }
+    }
+
+    /**
+     * Construct a new {@link SpatialQueryArray} containing the given points, building the index in parallel
+     * on the given {@link ForkJoinPool}. The resulting index is identical to the index constructed by
+     * {@link #SpatialQueryArray(Collection, GridParameters)}, including the assigned ids and the order of
+     * the points within each cell.
+     *
+     * <p>The points are split into chunks whose points are counted and scattered into their cells
+     * independently, so the build scales with the amount of threads of the pool as long as the
+     * amount of points is large compared to the amount of cells. Small indices are built sequentially.
+     *
+     * @param <E> The type of the elements stored in the index.
+     * @param points The points to store in the index.
+     * @param parameters The layout of the grid.
+     * @param pool The pool to build the index on, or null to build the index on the calling thread.
+     * @return The newly constructed index.
+     */
+    @NotNull
+    public static <E> SpatialQueryArray<E> build(@NotNull Collection<PointObjectPair<E>> points, @NotNull GridParameters parameters, @Nullable ForkJoinPool pool) {
+        return new SpatialQueryArray<>(SourcePoints.of(points, null, null), parameters, pool, null);
+    }
+
+    /**
+     * Variant of {@link #build(Collection, GridParameters, ForkJoinPool)} which assigns a category mask to each point.
+     * The point with the id {@code i} is assigned the mask {@code masks[i]}. The bits of a mask are defined by the caller,
+     * e.g. one bit per faction or type of object. {@link #queryKnnMatching(float, float, int, int, Consumer)} only yields points
+     * whose mask shares at least one bit with the mask of the query.
+     *
+     * <p>The bitwise OR of the masks of the points within each cell is stored alongside of the grid, so that filtered
+     * queries skip cells without any matching point instead of scanning them. The supplied array is copied and may be
+     * modified afterwards.
+     *
+     * @param <E> The type of the elements stored in the index.
+     * @param points The points to store in the index.
+     * @param masks The category masks of the points, in the iteration order of the collection.
+     * @param parameters The layout of the grid.
+     * @param pool The pool to build the index on, or null to build the index on the calling thread.
+     * @return The newly constructed index.
+     */
+    @NotNull
+    public static <E> SpatialQueryArray<E> build(@NotNull Collection<PointObjectPair<E>> points, int @NotNull[] masks, @NotNull GridParameters parameters, @Nullable ForkJoinPool pool) {
+        return new SpatialQueryArray<>(SourcePoints.of(points, masks, null), parameters, pool, null);
+    }
+
+    /**
+     * Variant of {@link #build(Collection, GridParameters, ForkJoinPool)} which reuses the given buffers,
+     * including the arrays of the {@link BuildBuffers#recycled recycled} index (if any).
+     * The returned index does not reference the buffers, but may share arrays with the recycled index.
+     *
+     * @param <E> The type of the elements stored in the index.
+     * @param points The points to store in the index.
+     * @param parameters The layout of the grid.
+     * @param pool The pool to build the index on, or null to build the index on the calling thread.
+     * @param buffers The buffers to reuse.
+     * @return The newly constructed index.
+     */
+    @NotNull
+    static <E> SpatialQueryArray<E> build(@NotNull Collection<PointObjectPair<E>> points, @NotNull GridParameters parameters, @Nullable ForkJoinPool pool, @NotNull BuildBuffers buffers) {
+        SpatialQueryArray<E> index = new SpatialQueryArray<>(SourcePoints.of(points, null, buffers), parameters, pool, buffers);
+        buffers.clearSource();
+        return index;
+    }
+
+    /**
+     * Construct a new {@link SpatialQueryArray} whose layout is automatically derived from the given points
+     * through {@link GridParameters#derive(Collection, int)}. The chosen layout can be obtained through
+     * {@link #getParameters()}.
+     *
+     * @param <E> The type of the elements stored in the index.
+     * @param points The points to store in the index.
+     * @param targetNeighbourCount The amount of neighbours (K) that will typically be queried.
+     * @return The newly constructed index.
+     */
+    @NotNull
+    public static <E> SpatialQueryArray<E> create(@NotNull Collection<PointObjectPair<E>> points, int targetNeighbourCount) {
+        return new SpatialQueryArray<>(points, GridParameters.derive(points, targetNeighbourCount));
+    }
+
+    /**
+     * Construct a new {@link SpatialQueryArray} from bare coordinates, without any associated elements.
+     * The point defined by {@code xs[i]} and {@code ys[i]} is assigned the id {@code i}, which also
+     * serves as the element of the point. This allows callers to keep the data associated with the points
+     * in their own (primitive) arrays, indexed by the ids returned by
+     * {@link #queryKnn(float, float, int, int[], float[])} and similar methods.
+     *
+     * <p>The supplied arrays are copied and may be modified afterwards.
+     *
+     * @param xs The X-coordinates of the points.
+     * @param ys The Y-coordinates of the points.
+     * @param parameters The layout of the grid.
+     * @return The newly constructed index.
+     */
+    @NotNull
+    public static SpatialQueryArray<@NotNull Integer> ofCoordinates(float @NotNull[] xs, float @NotNull[] ys, @NotNull GridParameters parameters) {
+        return SpatialQueryArray.ofCoordinates(xs, ys, parameters, null);
+    }
+
+    /**
+     * Construct a new {@link SpatialQueryArray} from bare coordinates, building the index in parallel on the
+     * given {@link ForkJoinPool}. Behaves like {@link #ofCoordinates(float[], float[], GridParameters)}
+     * otherwise.
+     *
+     * @param xs The X-coordinates of the points.
+     * @param ys The Y-coordinates of the points.
+     * @param parameters The layout of the grid.
+     * @param pool The pool to build the index on, or null to build the index on the calling thread.
+     * @return The newly constructed index.
+     */
+    @NotNull
+    public static SpatialQueryArray<@NotNull Integer> ofCoordinates(float @NotNull[] xs, float @NotNull[] ys, @NotNull GridParameters parameters, @Nullable ForkJoinPool pool) {
+        if (xs.length != ys.length) {
+            throw new IllegalArgumentException("Length of xs (" + xs.length + ") does not match the length of ys (" + ys.length + ")");
+        }
+        return new SpatialQueryArray<>(new SourcePoints(xs, ys, null, null, xs.length), parameters, pool, null);
+    }
+
+    /**
+     * Construct a new {@link SpatialQueryArray} from bare coordinates, assigning the category mask {@code masks[i]}
+     * to the point with the id {@code i}. Behaves like {@link #ofCoordinates(float[], float[], GridParameters, ForkJoinPool)}
+     * otherwise. See {@link #build(Collection, int[], GridParameters, ForkJoinPool)} for the meaning of the masks.
+     *
+     * @param xs The X-coordinates of the points.
+     * @param ys The Y-coordinates of the points.
+     * @param masks The category masks of the points.
+     * @param parameters The layout of the grid.
+     * @param pool The pool to build the index on, or null to build the index on the calling thread.
+     * @return The newly constructed index.
+     */
+    @NotNull
+    public static SpatialQueryArray<@NotNull Integer> ofCoordinates(float @NotNull[] xs, float @NotNull[] ys, int @NotNull[] masks, @NotNull GridParameters parameters, @Nullable ForkJoinPool pool) {
+        if (xs.length != ys.length) {
+            throw new IllegalArgumentException("Length of xs (" + xs.length + ") does not match the length of ys (" + ys.length + ")");
+        }
+        return new SpatialQueryArray<>(new SourcePoints(xs, ys, null, masks, xs.length), parameters, pool, null);
+    }
+
+    /**
+     * Obtain the amount of points within a block, see {@link #computeBlockBounds(float[], int, int)}.
+     */
+    private int blockSize(int block) {
+        int cellCount = this.cellCount;
+        if (block < cellCount) {
+            return this.cellStart[block + 1] - this.cellStart[block];
+        }
+        return this.subcellStart[block - cellCount + 1] - this.subcellStart[block - cellCount];
+    }
+
+    /**
+     * Compute the index of the cell at the given cell coordinates within {@link #cellStart} and {@link #subdivisions}.
+     * Cells are laid out row by row by default. In {@link GridParameters.CellOrder#MORTON Morton order}, the bits of the
+     * coordinates are interleaved, with the bit {@code i} of the X-coordinate becoming the bit {@code 2i} of the index and
+     * the bit {@code i} of the Y-coordinate the bit {@code 2i + 1}. The interleaved bits of each coordinate are precomputed.
+     *
+     * @param cellX The X-coordinate of the cell, in cells.
+     * @param cellY The Y-coordinate of the cell, in cells.
+     * @return The index of the cell.
+     */
+    private int cellIndex(int cellX, int cellY) {
+        int[] mortonXs = this.mortonXs;
+        if (mortonXs == null) {
+            return cellY * this.cellStripSize + cellX;
+        }
+        return mortonXs[cellX] | this.mortonYs[cellY];
+    }
+
+    /**
+     * Check whether the cell with the given index may contain a point whose category mask shares at least one bit
+     * with the given mask, based on the summary of the categories of the cell.
+     *
+     * @param cell The index of the cell.
+     * @param mask The mask to match.
+     * @return False if no point of the cell matches the mask, true if a point may match.
+     */
+    private boolean cellMatches(int cell, int mask) {
+        int[] cellMasks = this.cellMasks;
+        return cellMasks == null || (cellMasks[cell] & mask) != 0;
+    }
+
+    /**
+     * Compute the bounding boxes of the points within all blocks of the given range of cells, where a block is either
+     * a cell which is not subdivided or a sub-cell of a subdivided cell. The bounding boxes are stored as
+     * (minX, minY, maxX, maxY) tuples. The block of a cell which is not subdivided is identified by the index of the
+     * cell, while the block of a sub-cell is identified by the index of its start within {@link #subcellStart} plus
+     * the amount of cells. The bounding boxes of empty blocks are undefined.
+     *
+     * @param bounds The array to store the bounding boxes in.
+     * @param fromCell The first cell to process (inclusive).
+     * @param toCell The last cell to process (exclusive).
+     */
+    private void computeBlockBounds(float @NotNull[] bounds, int fromCell, int toCell) {
+        int cellCount = this.cellCount;
+        for (int cell = fromCell; cell < toCell; cell++) {
+            int offset = this.subdivisions.length == 0 ? -1 : this.subdivisions[cell];
+            if (offset < 0) {
+                this.computeBlockBounds(bounds, cell, this.cellStart[cell], this.cellStart[cell + 1]);
+                continue;
+            }
 
-    private static class ResultContainer<T> {
-        public int found;
-        public float maxDist2;
-        public List<Results<T>> result;
+            for (int subcell = offset + 1, end = subcell + this.subcellStart[offset] * this.subcellStart[offset]; subcell < end; subcell++) {
+                this.computeBlockBounds(bounds, cellCount + subcell, this.subcellStart[subcell], this.subcellStart[subcell + 1]);
+            }
+        }
+    }
+
+    private void computeBlockBounds(float @NotNull[] bounds, int block, int start, int end) {
+        float minX = Float.POSITIVE_INFINITY;
+        float minY = Float.POSITIVE_INFINITY;
+        float maxX = Float.NEGATIVE_INFINITY;
+        float maxY = Float.NEGATIVE_INFINITY;
+        for (int slot = start; slot < end; slot++) {
+            minX = Math.min(minX, this.xs[slot]);
+            minY = Math.min(minY, this.ys[slot]);
+            maxX = Math.max(maxX, this.xs[slot]);
+            maxY = Math.max(maxY, this.ys[slot]);
+        }
+
+        int b = block << 2;
+        bounds[b] = minX;
+        bounds[b + 1] = minY;
+        bounds[b + 2] = maxX;
+        bounds[b + 3] = maxY;
+    }
+
+    private float distance2(int slot, float x, float y) {
+        float dx = x - this.xs[slot];
+        float dy = y - this.ys[slot];
+        return dx * dx + dy * dy;
+    }
+
+    /**
+     * Obtain the statistics of the last nearest-neighbour query of the calling thread which did not
+     * supply its own {@link QueryContext}. The returned instance is updated by every subsequent query
+     * of the calling thread. The statistics are only collected if {@link QueryStatistics#ENABLED statistics are enabled}.
+     *
+     * @return The statistics of the last query of the calling thread.
+     * @see QueryContext#getStatistics()
+     */
+    @NotNull
+    public QueryStatistics getLastQueryStatistics() {
+        return this.defaultContext.get().rc.statistics;
+    }
+
+    /**
+     * Obtain the parameters defining the layout of the grid of this index.
+     *
+     * @return The parameters of the grid.
+     */
+    @NotNull
+    public GridParameters getParameters() {
+        return this.parameters;
+    }
+
+    /**
+     * Obtain the amount of points stored in this index.
+     *
+     * @return The amount of points.
+     */
+    public int getPointCount() {
+        return this.pointCount;
+    }
 
-        ResultContainer(int neighbours) {
-            this.result = new ArrayList<>(neighbours);
-            this.found = 0;
-            this.maxDist2 = Float.POSITIVE_INFINITY;
+    /**
+     * Obtain the statistics aggregated over all queries of this index.
+     * The statistics are only collected if {@link QueryStatistics#ENABLED statistics are enabled}.
+     *
+     * @return The aggregated statistics of this index.
+     */
+    @NotNull
+    public QueryStatisticsAggregate getStatistics() {
+        return this.statistics;
+    }
 
-            for (int i = 0; i < neighbours; i++) {
-                this.result.add(new Results<>());
+    /**
+     * Obtain the amount of cells which were subdivided into a sub-grid due to exceeding
+     * {@link GridParameters#getSubdivisionThreshold()}.
+     *
+     * @return The amount of subdivided cells.
+     */
+    public int getSubdividedCellCount() {
+        int count = 0;
+        for (int offset : this.subdivisions) {
+            if (offset >= 0) {
+                count++;
             }
         }
+        return count;
+    }
 
-        void addValueFull(float dist2, T obj) {
-            Results<T> r = this.result.get(this.found - 1);
-            r.distance2 = dist2;
-            r.object = obj;
+    @SuppressWarnings("unchecked")
+    @NotNull
+    E payload(int slot) {
+        Object[] payloads = this.payloads;
+        return (E) (payloads == null ? Integer.valueOf(this.ids[slot]) : payloads[slot]);
+    }
 
-            int prevFound = this.found - 2;
-            while (prevFound >= 0) {
-                Results<T> prevObj = this.result.get(prevFound);
-                if (prevObj.distance2 > r.distance2) {
-                    this.result.set(prevFound + 1, prevObj);
-                    this.result.set(prevFound, r);
-                    prevFound--;
-                } else {
-                    break;
-                }
+    int slotId(int slot) {
+        return this.ids[slot];
+    }
+
+    float slotX(int slot) {
+        return this.xs[slot];
+    }
+
+    float slotY(int slot) {
+        return this.ys[slot];
+    }
+
+    /**
+     * Sort the points of all subdivided cells within the given range of cells by the sub-cell they
+     * are located in. The offset of the sub-grid of each cell must already be set in {@link #subdivisions}
+     * and the amount of sub-cells per axis in the first entry of the sub-grid in {@link #subcellStart}.
+     *
+     * @param fromCell The first cell to process (inclusive).
+     * @param toCell The last cell to process (exclusive).
+     * @param scratch The scratch space to use, which must not be used concurrently.
+     */
+    private void subdivideCells(int fromCell, int toCell, @NotNull SubdivisionScratch scratch) {
+        int maxOccupancy = 0;
+        for (int cell = fromCell; cell < toCell; cell++) {
+            if (this.subdivisions[cell] >= 0) {
+                maxOccupancy = Math.max(maxOccupancy, this.cellStart[cell + 1] - this.cellStart[cell]);
             }
+        }
 
-            this.maxDist2 = this.result.get(this.found - 1).distance2;
+        if (maxOccupancy == 0) {
+            return;
         }
 
-        void addValueNotFull(float dist2, T obj) {
-            Results<T> r = this.result.get(this.found);
-            r.distance2 = dist2;
-            r.object = obj;
+        scratch.ensureCapacity(maxOccupancy, this.payloads != null, this.masks != null);
+        int[] subcellOfPoint = scratch.subcells;
+        float[] tempXs = scratch.xs;
+        float[] tempYs = scratch.ys;
+        Object[] tempPayloads = this.payloads == null ? null : scratch.payloads;
+        int[] masks = this.masks;
+        int[] tempMasks = masks == null ? null : scratch.masks;
+        int[] tempIds = scratch.ids;
 
-            int prevFound = this.found - 1;
-            while (prevFound >= 0) {
-                Results<T> prevObj = this.result.get(prevFound);
-                if (prevObj.distance2 > r.distance2) {
-                    this.result.set(prevFound + 1, prevObj);
-                    this.result.set(prevFound, r);
-                    prevFound--;
-                } else {
-                    break;
-                }
+        for (int cell = fromCell; cell < toCell; cell++) {
+            int tableOffset = this.subdivisions[cell];
+            if (tableOffset < 0) {
+                continue;
             }
 
-            this.maxDist2 = this.result.get(this.found++).distance2;
-        }
+            int start = this.cellStart[cell];
+            int end = this.cellStart[cell + 1];
+            int subdivisions = this.subcellStart[tableOffset];
+            int cellX = this.cellGrid.cellX(this.xs[start]);
+            int cellY = this.cellGrid.cellY(this.ys[start]);
+            int subcellBase = tableOffset + 1;
+
+            for (int slot = start; slot < end; slot++) {
+                int subcell = this.cellGrid.subcellY(cellY, subdivisions, this.ys[slot]) * subdivisions + this.cellGrid.subcellX(cellX, subdivisions, this.xs[slot]);
+                subcellOfPoint[slot - start] = subcell;
+                this.subcellStart[subcellBase + subcell + 1]++;
+            }
 
-        void reset(int nearestNeighbours) {
-            this.found = 0;
-            this.maxDist2 = Float.POSITIVE_INFINITY;
+            this.subcellStart[subcellBase] = start;
+            for (int subcell = 1; subcell <= subdivisions * subdivisions; subcell++) {
+                this.subcellStart[subcellBase + subcell] += this.subcellStart[subcellBase + subcell - 1];
+            }
 
-            while (this.result.size() < nearestNeighbours) {
-                this.result.add(new Results<>());
+            int occupancy = end - start;
+            System.arraycopy(this.xs, start, tempXs, 0, occupancy);
+            System.arraycopy(this.ys, start, tempYs, 0, occupancy);
+            if (tempPayloads != null) {
+                System.arraycopy(this.payloads, start, tempPayloads, 0, occupancy);
+            }
+            if (masks != null) {
+                System.arraycopy(masks, start, tempMasks, 0, occupancy);
+            }
+            System.arraycopy(this.ids, start, tempIds, 0, occupancy);
+            int[] subcellCursor = scratch.cursors(subdivisions * subdivisions);
+            System.arraycopy(this.subcellStart, subcellBase, subcellCursor, 0, subdivisions * subdivisions);
+            for (int j = 0; j < occupancy; j++) {
+                int slot = subcellCursor[subcellOfPoint[j]]++;
+                this.xs[slot] = tempXs[j];
+                this.ys[slot] = tempYs[j];
+                if (tempPayloads != null) {
+                    this.payloads[slot] = tempPayloads[j];
+                }
+                if (masks != null) {
+                    masks[slot] = tempMasks[j];
+                }
+                this.ids[slot] = tempIds[j];
             }
         }
     }
 
-    private static class Results<T> {
-        public float distance2;
-        @Nullable
-        public T object;
+    @Override
+    @Nullable
+    public E query1nn(float x, float y) {
+        int slot = this.search1nn(x, y, Float.NEGATIVE_INFINITY, Float.POSITIVE_INFINITY);
+        return slot < 0 ? null : this.payload(slot);
     }
 
-    private final float cellHeight;
     /**
-     * Amount of cells a strip has (or the width of the grid, in cells).
+     * {@inheritDoc}
+     *
+     * <p>Cells which lie entirely within the inner radius or entirely outside the outer radius
+     * of the ring are skipped without being scanned.
      */
-    private final int cellStripSize;
-    private final float cellWidth;
-    private final float maxX;
-    private final float maxY;
+    @Override
+    @Nullable
+    public E query1nn(float x, float y, float minDistanceSquared, float maxDistanceSquared) {
+        int slot = this.search1nn(x, y, minDistanceSquared, maxDistanceSquared);
+        return slot < 0 ? null : this.payload(slot);
+    }
 
-    private final float minX;
+    @Override
+    public void queryKnn(float x, float y, int nearestNeighbours, @NotNull Consumer<@NotNull E> out) {
+        this.queryKnn(x, y, nearestNeighbours, out, this.defaultContext.get());
+    }
 
-    private final float minY;
+    /**
+     * Variant of {@link #queryKnn(float, float, int, Consumer)} which uses a caller-supplied
+     * {@link QueryContext} instead of the thread-local default. The context must not be used
+     * by any other thread while this method is running.
+     *
+     * @param x The X-coordinate of the query point.
+     * @param y The Y-coordinate of the query point.
+     * @param nearestNeighbours The maximum amount of elements to emit.
+     * @param out The consumer to which the elements are emitted, nearest element first.
+     * @param context The context to store intermediate results in.
+     */
+    public void queryKnn(float x, float y, int nearestNeighbours, @NotNull Consumer<@NotNull E> out, @NotNull QueryContext<E> context) {
+        final ResultContainer rc = context.rc;
+        this.searchKnn(x, y, nearestNeighbours, context);
+        rc.sort();
+
+        for (int i = 0; i < rc.found; i++) {
+            out.accept(this.payload(rc.slots[i]));
+        }
+    }
+
+    /**
+     * Primitive variant of {@link #queryKnn(float, float, int, Consumer)}, which writes the ids of the
+     * K nearest points alongside of their squared distances to the supplied arrays instead of emitting
+     * the elements themselves. The nearest point is written to index 0.
+     *
+     * @param x The X-coordinate of the query point.
+     * @param y The Y-coordinate of the query point.
+     * @param nearestNeighbours The maximum amount of points to find.
+     * @param outIds The array to write the ids of the points to, must have a size of at least {@code nearestNeighbours}.
+     * @param outDist2 The array to write the squared distances of the points to, must have a size of at least {@code nearestNeighbours}.
+     * @return The amount of points found, which is smaller than {@code nearestNeighbours} only if the index contains fewer points.
+     */
+    public int queryKnn(float x, float y, int nearestNeighbours, int @NotNull[] outIds, float @NotNull[] outDist2) {
+        return this.queryKnn(x, y, nearestNeighbours, outIds, outDist2, this.defaultContext.get());
+    }
 
     /**
-     * The grid where all the points within the {@link SpatialQueryArray} are located within.
-     * The grid is laid out with horizontal strips being kept intact, with y values closer to
-     * positive infinity being put more towards to the end of the list, with y values closer to
-     * negative infinity tending towards the front of the list.
+     * Variant of {@link #queryKnn(float, float, int, int[], float[])} which uses a caller-supplied
+     * {@link QueryContext} instead of the thread-local default.
+     *
+     * @param x The X-coordinate of the query point.
+     * @param y The Y-coordinate of the query point.
+     * @param nearestNeighbours The maximum amount of points to find.
+     * @param outIds The array to write the ids of the points to, must have a size of at least {@code nearestNeighbours}.
+     * @param outDist2 The array to write the squared distances of the points to, must have a size of at least {@code nearestNeighbours}.
+     * @param context The context to store intermediate results in.
+     * @return The amount of points found, which is smaller than {@code nearestNeighbours} only if the index contains fewer points.
      */
-    private final List<PointObjectPair<E>>[] points;
+    public int queryKnn(float x, float y, int nearestNeighbours, int @NotNull[] outIds, float @NotNull[] outDist2, @NotNull QueryContext<E> context) {
+        if (outIds.length < nearestNeighbours || outDist2.length < nearestNeighbours) {
+            throw new IllegalArgumentException("Output arrays too small: Expected at least " + nearestNeighbours + " elements, but got " + outIds.length + " and " + outDist2.length);
+        }
 
-    private final ResultContainer<E> rc;
+        final ResultContainer rc = context.rc;
+        this.searchKnn(x, y, nearestNeighbours, context);
+        rc.sort();
+
+        for (int i = 0; i < rc.found; i++) {
+            outIds[i] = this.ids[rc.slots[i]];
+        }
+        System.arraycopy(rc.distances2, 0, outDist2, 0, rc.found);
+        return rc.found;
+    }
 
     /**
-     * Amount of cells in a vertical column within the grid.
-     * Note that only rows (called strips as far as this class is concerned) are stored
-     * continuously in memory, individual columns will be chopped up in memory, but will
-     * be stored with a stride corresponding to the size of the rows, as defined
-     * by {@link SpatialQueryArray#cellStripSize}.
+     * Search the K nearest points of the query point, leaving their slots and squared distances sorted
+     * in the {@link ResultContainer} of the given context. Slots can be resolved through {@link #payload(int)},
+     * {@link #slotX(int)} and {@link #slotY(int)}.
+     *
+     * @param x The X-coordinate of the query point.
+     * @param y The Y-coordinate of the query point.
+     * @param nearestNeighbours The maximum amount of points to find.
+     * @param context The context to store the results in.
+     * @return The container holding the found points, which is only valid until the context is used again.
      */
-    private final int verticalCellCount;
+    @NotNull
+    ResultContainer queryKnnSlots(float x, float y, int nearestNeighbours, @NotNull QueryContext<E> context) {
+        this.searchKnn(x, y, nearestNeighbours, context);
+        context.rc.sort();
+        return context.rc;
+    }
 
-    @SuppressWarnings("unchecked")
-    public SpatialQueryArray(Collection<PointObjectPair<E>> points, float minX, float minY, float maxX, float maxY, float cellWidth, float cellHeight) {
-        this.maxX = maxX;
-        this.maxY = maxY;
-        this.minX = minX;
-        this.minY = minY;
-        this.cellWidth = cellWidth;
-        this.cellHeight = cellHeight;
-        this.cellStripSize = (int) ((this.maxX - this.minX) / this.cellWidth) + 1;
-        this.verticalCellCount = ((int) ((this.maxY - this.minY) / this.cellHeight) + 1);
+    /**
+     * Obtain an iterator which yields the elements of this index in ascending order of their distance
+     * to the query point. Unlike {@link #queryKnn(float, float, int, Consumer)}, the amount of elements
+     * does not need to be known in advance, as the search is performed lazily: The cost of the iteration
+     * is proportional to the amount of elements consumed. Elements with equal distance are all yielded,
+     * in no particular order.
+     *
+     * <p>The returned iterator is not thread-safe, but any amount of iterators may be used concurrently.
+     *
+     * @param x The X-coordinate of the query point.
+     * @param y The Y-coordinate of the query point.
+     * @return An iterator over all elements of the index, nearest element first.
+     */
+    @NotNull
+    public Iterator<@NotNull E> queryKnn(float x, float y) {
+        return new IncrementalIterator(x, y);
+    }
+
+    @Override
+    public void queryKnnApproximate(float x, float y, int nearestNeighbours, float epsilon, @NotNull Consumer<@NotNull E> out) {
+        this.queryKnnApproximate(x, y, nearestNeighbours, epsilon, out, this.defaultContext.get());
+    }
+
+    /**
+     * Variant of {@link #queryKnnApproximate(float, float, int, float, Consumer)} which uses a caller-supplied
+     * {@link QueryContext} instead of the thread-local default. The context must not be used
+     * by any other thread while this method is running.
+     *
+     * @param x The X-coordinate of the query point.
+     * @param y The Y-coordinate of the query point.
+     * @param nearestNeighbours The maximum amount of elements to emit.
+     * @param epsilon The relative error bound, where 0 yields the exact K nearest elements.
+     * @param out The consumer to which the elements are emitted, nearest element first.
+     * @param context The context to store intermediate results in.
+     */
+    public void queryKnnApproximate(float x, float y, int nearestNeighbours, float epsilon, @NotNull Consumer<@NotNull E> out, @NotNull QueryContext<E> context) {
+        final ResultContainer rc = context.rc;
+        this.searchKnn(x, y, nearestNeighbours, SpatialQueryArray.pruneScale(epsilon), 0, context);
+        rc.sort();
 
-        this.rc = new ResultContainer<>(40);
-        this.points = new List[this.cellStripSize * verticalCellCount];
+        for (int i = 0; i < rc.found; i++) {
+            out.accept(this.payload(rc.slots[i]));
+        }
+    }
+
+    /**
+     * Primitive variant of {@link #queryKnnApproximate(float, float, int, float, Consumer)}, which writes the ids
+     * of the approximate K nearest points alongside of their squared distances to the supplied arrays in the
+     * same manner as {@link #queryKnn(float, float, int, int[], float[])}.
+     *
+     * @param x The X-coordinate of the query point.
+     * @param y The Y-coordinate of the query point.
+     * @param nearestNeighbours The maximum amount of points to find.
+     * @param epsilon The relative error bound, where 0 yields the exact K nearest points.
+     * @param outIds The array to write the ids of the points to, must have a size of at least {@code nearestNeighbours}.
+     * @param outDist2 The array to write the squared distances of the points to, must have a size of at least {@code nearestNeighbours}.
+     * @return The amount of points found, which is smaller than {@code nearestNeighbours} only if the index contains fewer points.
+     */
+    public int queryKnnApproximate(float x, float y, int nearestNeighbours, float epsilon, int @NotNull[] outIds, float @NotNull[] outDist2) {
+        return this.queryKnnApproximate(x, y, nearestNeighbours, epsilon, outIds, outDist2, this.defaultContext.get());
+    }
 
-        for (int i = 0; i < this.points.length; i++) {
-            this.points[i] = new ArrayList<>();
+    /**
+     * Variant of {@link #queryKnnApproximate(float, float, int, float, int[], float[])} which uses a caller-supplied
+     * {@link QueryContext} instead of the thread-local default.
+     *
+     * @param x The X-coordinate of the query point.
+     * @param y The Y-coordinate of the query point.
+     * @param nearestNeighbours The maximum amount of points to find.
+     * @param epsilon The relative error bound, where 0 yields the exact K nearest points.
+     * @param outIds The array to write the ids of the points to, must have a size of at least {@code nearestNeighbours}.
+     * @param outDist2 The array to write the squared distances of the points to, must have a size of at least {@code nearestNeighbours}.
+     * @param context The context to store intermediate results in.
+     * @return The amount of points found, which is smaller than {@code nearestNeighbours} only if the index contains fewer points.
+     */
+    public int queryKnnApproximate(float x, float y, int nearestNeighbours, float epsilon, int @NotNull[] outIds, float @NotNull[] outDist2, @NotNull QueryContext<E> context) {
+        if (outIds.length < nearestNeighbours || outDist2.length < nearestNeighbours) {
+            throw new IllegalArgumentException("Output arrays too small: Expected at least " + nearestNeighbours + " elements, but got " + outIds.length + " and " + outDist2.length);
         }
 
-        for (PointObjectPair<E> pair : points) {
-            int cellX = Math.max(0, (int) ((Math.min(pair.x, this.maxX) - this.minX) / this.cellWidth));
-            int cellY = Math.max(0, (int) ((Math.min(pair.y, this.maxY) - this.minY) / this.cellHeight));
+        final ResultContainer rc = context.rc;
+        this.searchKnn(x, y, nearestNeighbours, SpatialQueryArray.pruneScale(epsilon), 0, context);
+        rc.sort();
 
-            this.points[cellY * this.cellStripSize + cellX].add(pair);
+        for (int i = 0; i < rc.found; i++) {
+            outIds[i] = this.ids[rc.slots[i]];
         }
+        System.arraycopy(rc.distances2, 0, outDist2, 0, rc.found);
+        return rc.found;
     }
 
     @Override
-    @Nullable
-    public E query1nn(float x, float y) {
-        AtomicReference<E> ref = new AtomicReference<>();
-        this.queryKnn(x, y, 1, ref::set);
-        return ref.get();
+    public void queryKnnBatch(float @NotNull[] xs, float @NotNull[] ys, int neighbourCount, int @NotNull[] outIndices, float @NotNull[] outDist2) {
+        this.queryKnnBatch(xs, ys, neighbourCount, outIndices, outDist2, this.defaultContext.get());
     }
 
-    @Override
-    public void queryKnn(float x, float y, int nearestNeighbours, @NotNull Consumer<@NotNull E> out) {
-        final int cellX = Math.max(0, (int) ((Math.min(x, this.maxX) - this.minX) / this.cellWidth));
-        final int cellY = Math.max(0, (int) ((Math.min(y, this.maxY) - this.minY) / this.cellHeight));
+    /**
+     * Variant of {@link #queryKnnBatch(float[], float[], int, int[], float[])} which uses a caller-supplied
+     * {@link QueryContext} instead of the thread-local default. All queries are executed on the calling thread,
+     * and the context must not be used by any other thread while this method is running.
+     *
+     * @param xs The X-coordinates of the query points.
+     * @param ys The Y-coordinates of the query points.
+     * @param neighbourCount The amount of neighbours (K) to query for each query point.
+     * @param outIndices The array to write the ids of the found elements to, must have a size of at least
+     * {@code xs.length * neighbourCount}.
+     * @param outDist2 The array to write the squared distances of the found elements to, must have a size
+     * of at least {@code xs.length * neighbourCount}.
+     * @param context The context to store intermediate results in.
+     */
+    public void queryKnnBatch(float @NotNull[] xs, float @NotNull[] ys, int neighbourCount, int @NotNull[] outIndices, float @NotNull[] outDist2, @NotNull QueryContext<E> context) {
+        KnnBatch.checkArguments(xs, ys, neighbourCount, outIndices, outDist2);
+        long[] order = this.queryKnnBatchOrder(xs, ys);
+        this.queryKnnBatch0(xs, ys, neighbourCount, outIndices, outDist2, order, 0, xs.length, context);
+    }
+
+    /**
+     * Variant of {@link #queryKnnBatch(float[], float[], int, int[], float[])} which can optionally split
+     * large batches into multiple tasks that are executed on the given {@link ForkJoinPool}.
+     * If the pool is null or the batch is small, all queries are executed on the calling thread.
+     * Regardless of how the batch is executed, this method only returns once all queries have completed.
+     *
+     * <p>The query points are processed in the order of the cells they are located in,
+     * so consecutive queries touch the same cells while they are still cached.
+     *
+     * @param xs The X-coordinates of the query points.
+     * @param ys The Y-coordinates of the query points.
+     * @param neighbourCount The amount of neighbours (K) to query for each query point.
+     * @param outIndices The array to write the ids of the found elements to, must have a size of at least
+     * {@code xs.length * neighbourCount}.
+     * @param outDist2 The array to write the squared distances of the found elements to, must have a size
+     * of at least {@code xs.length * neighbourCount}.
+     * @param pool The pool to execute large batches on, or null to always execute on the calling thread.
+     */
+    public void queryKnnBatch(float @NotNull[] xs, float @NotNull[] ys, int neighbourCount, int @NotNull[] outIndices, float @NotNull[] outDist2, @Nullable ForkJoinPool pool) {
+        KnnBatch.checkArguments(xs, ys, neighbourCount, outIndices, outDist2);
+        long[] order = this.queryKnnBatchOrder(xs, ys);
+
+        int queryCount = xs.length;
+        if (pool == null || queryCount <= SpatialQueryArray.BATCH_SPLIT_SIZE) {
+            this.queryKnnBatch0(xs, ys, neighbourCount, outIndices, outDist2, order, 0, queryCount, this.defaultContext.get());
+        } else {
+            pool.invoke(new BatchTask(xs, ys, neighbourCount, outIndices, outDist2, order, 0, queryCount));
+        }
+    }
+
+    private void queryKnnBatch0(float @NotNull[] xs, float @NotNull[] ys, int neighbourCount, int @NotNull[] outIndices, float @NotNull[] outDist2, long @NotNull[] order, int start, int end, @NotNull QueryContext<E> context) {
+        KnnBatch.run(xs, ys, neighbourCount, outIndices, outDist2, order, start, end, (x, y, nearestNeighbours) -> {
+            this.searchKnn(x, y, nearestNeighbours, context);
+            return context.rc;
+        }, (slot) -> this.ids[slot]);
+    }
+
+    /**
+     * Sort the query points of a batch by the cell they are located in, so that consecutive queries touch
+     * the same cells while they are still cached.
+     */
+    private long @NotNull[] queryKnnBatchOrder(float @NotNull[] xs, float @NotNull[] ys) {
+        return KnnBatch.order(xs, ys, (x, y) -> this.cellIndex(this.cellGrid.cellX(x), this.cellGrid.cellY(y)));
+    }
+
+    /**
+     * Compute the K nearest neighbours of every point within the index (also known as the K nearest neighbour graph,
+     * or the self-join of the index). The neighbours of a point do not include the point itself, but may include
+     * other points at the same location.
+     *
+     * <p>Unlike querying the neighbours of each point separately, this method processes the points cell by cell
+     * and determines the cells which need to be searched only once for all points of a cell (or sub-cell if the
+     * cell is subdivided), see {@link KnnJoin}. If a pool is given, the cells are split among multiple
+     * {@link ForkJoinTask fork-join tasks}. Regardless of how the computation is executed, this method only returns
+     * once the neighbours of all points have been written.
+     *
+     * <p>The neighbours of the point with id {@code i} are written to the range from {@code i * neighbourCount}
+     * (inclusive) to {@code (i + 1) * neighbourCount} (exclusive) of both output arrays, in ascending order of their
+     * distance. If fewer than {@code neighbourCount} other points exist, the remaining entries are set to
+     * {@code -1} and {@link Float#POSITIVE_INFINITY} respectively.
+     *
+     * @param neighbourCount The amount of neighbours (K) to compute for each point.
+     * @param outIndices The array to write the ids of the neighbours to, must have a size of at least
+     * {@code getPointCount() * neighbourCount}.
+     * @param outDist2 The array to write the squared distances of the neighbours to, must have a size
+     * of at least {@code getPointCount() * neighbourCount}.
+     * @param pool The pool to execute the computation on, or null to execute it on the calling thread.
+     */
+    public void queryKnnGraph(int neighbourCount, int @NotNull[] outIndices, float @NotNull[] outDist2, @Nullable ForkJoinPool pool) {
+        if (neighbourCount < 0) {
+            throw new IllegalArgumentException("Negative neighbour count: " + neighbourCount);
+        } else if (outIndices.length < (long) this.pointCount * neighbourCount || outDist2.length < (long) this.pointCount * neighbourCount) {
+            throw new IllegalArgumentException("Output arrays too small: Expected at least " + ((long) this.pointCount * neighbourCount) + " elements, but got " + outIndices.length + " and " + outDist2.length);
+        } else if (neighbourCount == 0 || this.pointCount == 0) {
+            return;
+        }
+
+        int cellCount = this.cellCount;
+        float[] bounds = new float[(cellCount + this.subcellTableSize) << 2];
+        SpatialQueryArray.forEachRange(pool, 0, cellCount, SpatialQueryArray.BUILD_CELL_GRAIN, (fromCell, toCell) -> {
+            this.computeBlockBounds(bounds, fromCell, toCell);
+        });
+
+        int rowGrain = Math.max(1, SpatialQueryArray.JOIN_CELL_GRAIN / this.cellStripSize);
+        SpatialQueryArray.forEachRange(pool, 0, this.verticalCellCount, rowGrain, (fromRow, toRow) -> {
+            new KnnJoin(bounds, neighbourCount, outIndices, outDist2).run(fromRow, toRow);
+        });
+    }
+
+    /**
+     * Query the K nearest elements whose category mask shares at least one bit with the given mask, emitting them
+     * nearest element first. Points which do not match are skipped within the distance computation, and cells
+     * which do not contain any matching point are skipped entirely, so the search is not slowed down by
+     * nearer points of other categories.
+     *
+     * <p>If the index was built without category masks, all points match any mask except 0. A mask of 0 never
+     * matches any point.
+     *
+     * @param x The X-coordinate of the query point.
+     * @param y The Y-coordinate of the query point.
+     * @param nearestNeighbours The maximum amount of elements to emit.
+     * @param mask The mask the category masks of the elements need to share at least one bit with.
+     * @param out The consumer to which the elements are emitted, nearest element first.
+     * @see #build(Collection, int[], GridParameters, ForkJoinPool)
+     */
+    public void queryKnnMatching(float x, float y, int nearestNeighbours, int mask, @NotNull Consumer<@NotNull E> out) {
+        this.queryKnnMatching(x, y, nearestNeighbours, mask, out, this.defaultContext.get());
+    }
+
+    /**
+     * Variant of {@link #queryKnnMatching(float, float, int, int, Consumer)} which uses a caller-supplied
+     * {@link QueryContext} instead of the thread-local default. The context must not be used
+     * by any other thread while this method is running.
+     *
+     * @param x The X-coordinate of the query point.
+     * @param y The Y-coordinate of the query point.
+     * @param nearestNeighbours The maximum amount of elements to emit.
+     * @param mask The mask the category masks of the elements need to share at least one bit with.
+     * @param out The consumer to which the elements are emitted, nearest element first.
+     * @param context The context to store intermediate results in.
+     */
+    public void queryKnnMatching(float x, float y, int nearestNeighbours, int mask, @NotNull Consumer<@NotNull E> out, @NotNull QueryContext<E> context) {
+        final ResultContainer rc = context.rc;
+        this.searchKnnMatching(x, y, nearestNeighbours, mask, context);
+        rc.sort();
+
+        for (int i = 0; i < rc.found; i++) {
+            out.accept(this.payload(rc.slots[i]));
+        }
+    }
 
-        this.rc.reset(nearestNeighbours);
+    /**
+     * Primitive variant of {@link #queryKnnMatching(float, float, int, int, Consumer)}, which writes the ids
+     * of the K nearest matching points alongside of their squared distances to the supplied arrays in the
+     * same manner as {@link #queryKnn(float, float, int, int[], float[])}.
+     *
+     * @param x The X-coordinate of the query point.
+     * @param y The Y-coordinate of the query point.
+     * @param nearestNeighbours The maximum amount of points to find.
+     * @param mask The mask the category masks of the points need to share at least one bit with.
+     * @param outIds The array to write the ids of the points to, must have a size of at least {@code nearestNeighbours}.
+     * @param outDist2 The array to write the squared distances of the points to, must have a size of at least {@code nearestNeighbours}.
+     * @return The amount of points found, which is smaller than {@code nearestNeighbours} only if the index contains fewer matching points.
+     */
+    public int queryKnnMatching(float x, float y, int nearestNeighbours, int mask, int @NotNull[] outIds, float @NotNull[] outDist2) {
+        return this.queryKnnMatching(x, y, nearestNeighbours, mask, outIds, outDist2, this.defaultContext.get());
+    }
+
+    /**
+     * Variant of {@link #queryKnnMatching(float, float, int, int, int[], float[])} which uses a caller-supplied
+     * {@link QueryContext} instead of the thread-local default.
+     *
+     * @param x The X-coordinate of the query point.
+     * @param y The Y-coordinate of the query point.
+     * @param nearestNeighbours The maximum amount of points to find.
+     * @param mask The mask the category masks of the points need to share at least one bit with.
+     * @param outIds The array to write the ids of the points to, must have a size of at least {@code nearestNeighbours}.
+     * @param outDist2 The array to write the squared distances of the points to, must have a size of at least {@code nearestNeighbours}.
+     * @param context The context to store intermediate results in.
+     * @return The amount of points found, which is smaller than {@code nearestNeighbours} only if the index contains fewer matching points.
+     */
+    public int queryKnnMatching(float x, float y, int nearestNeighbours, int mask, int @NotNull[] outIds, float @NotNull[] outDist2, @NotNull QueryContext<E> context) {
+        if (outIds.length < nearestNeighbours || outDist2.length < nearestNeighbours) {
+            throw new IllegalArgumentException("Output arrays too small: Expected at least " + nearestNeighbours + " elements, but got " + outIds.length + " and " + outDist2.length);
+        }
+
+        final ResultContainer rc = context.rc;
+        this.searchKnnMatching(x, y, nearestNeighbours, mask, context);
+        rc.sort();
+
+        for (int i = 0; i < rc.found; i++) {
+            outIds[i] = this.ids[rc.slots[i]];
+        }
+        System.arraycopy(rc.distances2, 0, outDist2, 0, rc.found);
+        return rc.found;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>If K exceeds a small threshold, only the elements which are actually emitted are put in order,
+     * so that the cost of emitting the first few elements does not grow with K.
+     */
+    @Override
+    public void queryKnnWhile(float x, float y, int nearestNeighbours, @NotNull Predicate<@NotNull E> out) {
+        this.queryKnnWhile(x, y, nearestNeighbours, out, this.defaultContext.get());
+    }
 
-        List<PointObjectPair<E>> values = this.points[cellY * this.cellStripSize + cellX];
-        for (int i = 0; i < values.size(); ++i) {
-            PointObjectPair<E> pop = values.get(i);
-            float x2 = x - pop.x;
-            float y2 = y - pop.y;
-            float dst2 = x2*x2 + y2*y2;
+    /**
+     * Variant of {@link #queryKnnWhile(float, float, int, Predicate)} which uses a caller-supplied
+     * {@link QueryContext} instead of the thread-local default. The context must not be used
+     * by any other thread while this method is running.
+     *
+     * @param x The X-coordinate of the query point.
+     * @param y The Y-coordinate of the query point.
+     * @param nearestNeighbours The maximum amount of elements to emit.
+     * @param out The predicate to which the elements are emitted, nearest element first, returning false to stop the emission.
+     * @param context The context to store intermediate results in.
+     */
+    public void queryKnnWhile(float x, float y, int nearestNeighbours, @NotNull Predicate<@NotNull E> out, @NotNull QueryContext<E> context) {
+        final ResultContainer rc = context.rc;
+        this.searchKnn(x, y, nearestNeighbours, context);
 
-            if (this.rc.found < nearestNeighbours) {
-                this.rc.addValueNotFull(dst2, pop.object);
-            } else if (dst2 < this.rc.maxDist2) {
-                this.rc.addValueFull(dst2, pop.object);
+        rc.beginPoll();
+        for (int i = 0; i < rc.found; i++) {
+            if (!out.test(this.payload(rc.pollSlot()))) {
+                return;
             }
         }
+    }
 
-        float cellMinX = cellX * this.cellWidth + this.minX;
-        float cellMaxX = cellMinX + this.cellWidth;
-        float cellMinY = cellY * this.cellHeight + this.minY;
-        float cellMaxY = cellMinY + this.cellHeight;
+    /**
+     * Search the K nearest points to the query point, storing their slots and distances in the
+     * {@link ResultContainer} of the given context. The cells are visited in the order defined by the
+     * {@link QueryContext#getSearchMode() search mode} of the context.
+     *
+     * @param x The X-coordinate of the query point.
+     * @param y The Y-coordinate of the query point.
+     * @param nearestNeighbours The amount of neighbours (K) to search.
+     * @param context The context to store the results in.
+     */
+    private void searchKnn(float x, float y, int nearestNeighbours, @NotNull QueryContext<E> context) {
+        this.searchKnn(x, y, nearestNeighbours, 1F, 0, context);
+    }
 
-        float nearestCellBorderX = Math.min(Math.abs(x - cellMinX), Math.abs(x - cellMaxX));
-        float nearestCellBorderY = Math.min(Math.abs(x - cellMinY), Math.abs(x - cellMaxY));
-        float nearestCellBorderDist = Math.min(nearestCellBorderX, nearestCellBorderY);
+    /**
+     * Variant of {@link #searchKnn(float, float, int, QueryContext)} which prunes cells whose minimum distance
+     * to the query point exceeds the distance of the K-th nearest point found so far scaled by the given factor.
+     * A factor below 1 trades accuracy for speed, see {@link #queryKnnApproximate(float, float, int, float, Consumer)}.
+     * Additionally, the search can be restricted to the points of certain categories.
+     *
+     * @param x The X-coordinate of the query point.
+     * @param y The Y-coordinate of the query point.
+     * @param nearestNeighbours The amount of neighbours (K) to search.
+     * @param pruneScale The factor applied to the squared distance of the K-th nearest point before it is compared against cells.
+     * @param mask The mask the category masks of the points need to share at least one bit with, or 0 to search all points.
+     * @param context The context to store the results in.
+     */
+    private void searchKnn(float x, float y, int nearestNeighbours, float pruneScale, int mask, @NotNull QueryContext<E> context) {
+        final ResultContainer rc = context.rc;
+        rc.pruneScale = pruneScale;
+        rc.mask = mask;
+        QueryStatistics.Termination termination;
+        if (context.searchMode == SearchMode.BEST_FIRST) {
+            termination = this.cellGrid.searchBestFirst(x, y, nearestNeighbours, rc, context.cells, this.scanner);
+        } else {
+            termination = this.cellGrid.searchRings(x, y, nearestNeighbours, rc, this.scanner);
+        }
+        if (QueryStatistics.ENABLED) {
+            this.recordStatistics(rc.statistics, termination);
+        }
+    }
 
-        if (this.rc.found != nearestNeighbours || this.rc.maxDist2 > nearestCellBorderDist * nearestCellBorderDist) {
+    /**
+     * Search the K nearest points whose category mask shares at least one bit with the given mask, see
+     * {@link #queryKnnMatching(float, float, int, int, Consumer)}.
+     *
+     * @param x The X-coordinate of the query point.
+     * @param y The Y-coordinate of the query point.
+     * @param nearestNeighbours The amount of neighbours (K) to search.
+     * @param mask The mask the category masks of the points need to share at least one bit with.
+     * @param context The context to store the results in.
+     */
+    private void searchKnnMatching(float x, float y, int nearestNeighbours, int mask, @NotNull QueryContext<E> context) {
+        if (mask == 0) {
+            // No point matches, not even within indices without category masks
+            this.searchKnn(x, y, 0, 1F, 0, context);
+        } else {
+            this.searchKnn(x, y, nearestNeighbours, 1F, this.masks == null ? 0 : mask, context);
+        }
+    }
 
-            int cellXLow = cellX;
-            int cellXUp = cellX;
-            int cellYLow = cellY;
-            int cellYUp = cellY;
+    @Override
+    public void queryRadius(float x, float y, float radius, @NotNull Consumer<@NotNull E> out) {
+        if (!(radius >= 0)) {
+            return;
+        }
 
-            while (true) {
+        final float radius2 = radius * radius;
+        final int startX = this.cellGrid.cellX(x - radius);
+        final int endX = this.cellGrid.cellX(x + radius);
+        final int startY = this.cellGrid.cellY(y - radius);
+        final int endY = this.cellGrid.cellY(y + radius);
+        final float[] xs = this.xs;
+        final float[] ys = this.ys;
 
-                int startX = cellXLow;
-                boolean shrinkX = false;
-                if (cellXLow > 0) {
-                    startX--;
-                    shrinkX = true;
+        for (int cy = startY; cy <= endY; cy++) {
+            for (int cx = startX; cx <= endX; cx++) {
+                if (this.cellGrid.cellDistance2(cx, cy, x, y) > radius2) {
+                    continue;
                 }
-
-                int endX = cellXUp;
-                boolean growX = false;
-                if (cellXUp < this.cellStripSize - 1) {
-                    endX++;
-                    growX = true;
+                int cell = this.cellIndex(cx, cy);
+                for (int i = this.cellStart[cell], end = this.cellStart[cell + 1]; i < end; i++) {
+                    float dx = x - xs[i];
+                    float dy = y - ys[i];
+                    if (dx * dx + dy * dy <= radius2) {
+                        E object = this.payload(i);
+                        out.accept(object);
+                    }
                 }
+            }
+        }
+    }
+
+    @Override
+    public void queryRect(float minX, float minY, float maxX, float maxY, @NotNull Consumer<@NotNull E> out) {
+        if (!(minX <= maxX) || !(minY <= maxY)) {
+            return;
+        }
 
-                int startY = cellYLow;
-                boolean shrinkY = false;
-                if (cellYLow > 0) {
-                    startY--;
-                    shrinkY = true;
+        final int startX = this.cellGrid.cellX(minX);
+        final int endX = this.cellGrid.cellX(maxX);
+        final int startY = this.cellGrid.cellY(minY);
+        final int endY = this.cellGrid.cellY(maxY);
+        final float[] xs = this.xs;
+        final float[] ys = this.ys;
+
+        for (int cy = startY; cy <= endY; cy++) {
+            for (int cx = startX; cx <= endX; cx++) {
+                int cell = this.cellIndex(cx, cy);
+                for (int i = this.cellStart[cell], end = this.cellStart[cell + 1]; i < end; i++) {
+                    float px = xs[i];
+                    float py = ys[i];
+                    if (px >= minX && px <= maxX && py >= minY && py <= maxY) {
+                        E object = this.payload(i);
+                        out.accept(object);
+                    }
                 }
+            }
+        }
+    }
+
+    /**
+     * Complete the statistics of the current query and add them to the aggregated statistics of this index.
+     * Must only be called if {@link QueryStatistics#ENABLED statistics are enabled}.
+     *
+     * @param statistics The statistics of the current query.
+     * @param termination The reason why the query stopped searching.
+     */
+    private void recordStatistics(@Nullable QueryStatistics statistics, QueryStatistics.@NotNull Termination termination) {
+        assert statistics != null;
+        statistics.termination = termination;
+        this.statistics.add(statistics);
+    }
+
+    /**
+     * Compute the distance of all points within the range from {@code start} (inclusive) to {@code end}
+     * (exclusive) to the query point and offer them to the provided {@link ResultContainer}.
+     * Points which do not match the {@link ResultContainer#mask category mask} of the container are skipped.
+     * See {@link DistanceKernel}.
+     *
+     * @param start The first slot to scan.
+     * @param end The slot after the last slot to scan.
+     * @param x The X-coordinate of the query point.
+     * @param y The Y-coordinate of the query point.
+     * @param nearestNeighbours The maximum amount of results to collect.
+     * @param rc The container to collect the results in.
+     */
+    private void scanRange(int start, int end, float x, float y, int nearestNeighbours, @NotNull ResultContainer rc) {
+        if (QueryStatistics.ENABLED) {
+            rc.statistics.pointsExamined += end - start;
+        }
+        int[] masks = this.masks;
+        if (rc.mask == 0 || masks == null) {
+            DistanceKernel.scanRange(this.xs, this.ys, start, end, x, y, nearestNeighbours, rc);
+        } else {
+            DistanceKernel.scanRangeMatching(this.xs, this.ys, masks, rc.mask, start, end, x, y, nearestNeighbours, rc);
+        }
+    }
+
+    /**
+     * Offer all points within the given cell to the provided {@link ResultContainer}.
+     * If the cell is subdivided, sub-cells which cannot contain a point nearer than the
+     * K-th nearest point found so far are skipped. Cells which do not contain any point matching
+     * the {@link ResultContainer#mask category mask} of the container are skipped entirely.
+     *
+     * @param cellX The X-coordinate of the cell, in cells.
+     * @param cellY The Y-coordinate of the cell, in cells.
+     * @param x The X-coordinate of the query point.
+     * @param y The Y-coordinate of the query point.
+     * @param nearestNeighbours The maximum amount of results to collect.
+     * @param rc The container to collect the results in.
+     */
+    private void scanCell(int cellX, int cellY, float x, float y, int nearestNeighbours, @NotNull ResultContainer rc) {
+        int cell = this.cellIndex(cellX, cellY);
+        if (rc.mask != 0 && !this.cellMatches(cell, rc.mask)) {
+            return;
+        }
+        if (QueryStatistics.ENABLED) {
+            rc.statistics.cellsVisited++;
+        }
+        int offset = this.subdivisions.length == 0 ? -1 : this.subdivisions[cell];
+        if (offset < 0) {
+            this.scanRange(this.cellStart[cell], this.cellStart[cell + 1], x, y, nearestNeighbours, rc);
+            return;
+        }
 
-                int endY = cellYUp;
-                boolean growY = false;
-                if (cellYUp < this.verticalCellCount - 1) {
-                    endY++;
-                    growY = true;
+        int subdivisions = this.subcellStart[offset];
+        for (int sy = 0, subcell = offset + 1; sy < subdivisions; sy++) {
+            for (int sx = 0; sx < subdivisions; sx++, subcell++) {
+                if (rc.found == nearestNeighbours && this.cellGrid.subcellDistance2(cellX, cellY, subdivisions, sx, sy, x, y) >= rc.maxDist2 * rc.pruneScale) {
+                    continue;
                 }
+                this.scanRange(this.subcellStart[subcell], this.subcellStart[subcell + 1], x, y, nearestNeighbours, rc);
+            }
+        }
+    }
+
+    /**
+     * Search the point nearest to the query point within the given cell, ignoring all points whose
+     * squared distance is not below {@code bestDist2} or is below {@code minDist2}. If the cell is
+     * subdivided, sub-cells which cannot contain a sufficiently near point are skipped.
+     *
+     * @param cellX The X-coordinate of the cell, in cells.
+     * @param cellY The Y-coordinate of the cell, in cells.
+     * @param x The X-coordinate of the query point.
+     * @param y The Y-coordinate of the query point.
+     * @param minDist2 The minimum squared distance of the point (inclusive).
+     * @param bestDist2 The squared distance of the nearest point found so far.
+     * @param statistics The statistics to record the visited cell and examined points in, null if statistics are disabled.
+     * @return The slot of the nearest point, or -1 if no point is nearer than {@code bestDist2}.
+     */
+    private int scanCell1nn(int cellX, int cellY, float x, float y, float minDist2, float bestDist2, @Nullable QueryStatistics statistics) {
+        final float[] xs = this.xs;
+        final float[] ys = this.ys;
+        int cell = this.cellIndex(cellX, cellY);
+        int offset = this.subdivisions.length == 0 ? -1 : this.subdivisions[cell];
+        int bestSlot = -1;
 
-                if (shrinkY) {
-                    for (int cx = startX; cx <= endX; cx++) {
-                        values = this.points[startY * this.cellStripSize + cx];
-                        for (int i = 0; i < values.size(); i++) {
-                            PointObjectPair<E> pop = values.get(i);
-                            float x2 = x - pop.x;
-                            float y2 = y - pop.y;
-                            float dst2 = x2 * x2 + y2 * y2;
+        if (QueryStatistics.ENABLED && statistics != null) {
+            statistics.cellsVisited++;
+        }
 
-                            if (this.rc.found < nearestNeighbours) {
-                                this.rc.addValueNotFull(dst2, pop.object);
-                            } else if (dst2 < this.rc.maxDist2) {
-                                this.rc.addValueFull(dst2, pop.object);
-                            }
-                        }
-                    }
+        if (offset < 0) {
+            if (QueryStatistics.ENABLED && statistics != null) {
+                statistics.pointsExamined += this.cellStart[cell + 1] - this.cellStart[cell];
+            }
+            for (int i = this.cellStart[cell], end = this.cellStart[cell + 1]; i < end; i++) {
+                float dx = x - xs[i];
+                float dy = y - ys[i];
+                float dst2 = dx * dx + dy * dy;
+                if (dst2 < bestDist2 && dst2 >= minDist2) {
+                    bestDist2 = dst2;
+                    bestSlot = i;
                 }
+            }
+            return bestSlot;
+        }
 
-                if (growY) {
-                    for (int cx = startX; cx <= endX; cx++) {
-                        values = this.points[endY * this.cellStripSize + cx];
-                        for (int i = 0; i < values.size(); i++) {
-                            PointObjectPair<E> pop = values.get(i);
-                            float x2 = x - pop.x;
-                            float y2 = y - pop.y;
-                            float dst2 = x2 * x2 + y2 * y2;
-
-                            if (this.rc.found < nearestNeighbours) {
-                                this.rc.addValueNotFull(dst2, pop.object);
-                            } else if (dst2 < this.rc.maxDist2) {
-                                this.rc.addValueFull(dst2, pop.object);
-                            }
-                        }
+        int subdivisions = this.subcellStart[offset];
+        for (int sy = 0, subcell = offset + 1; sy < subdivisions; sy++) {
+            for (int sx = 0; sx < subdivisions; sx++, subcell++) {
+                if (this.cellGrid.subcellDistance2(cellX, cellY, subdivisions, sx, sy, x, y) >= bestDist2) {
+                    continue;
+                }
+                if (QueryStatistics.ENABLED && statistics != null) {
+                    statistics.pointsExamined += this.subcellStart[subcell + 1] - this.subcellStart[subcell];
+                }
+                for (int i = this.subcellStart[subcell], end = this.subcellStart[subcell + 1]; i < end; i++) {
+                    float dx = x - xs[i];
+                    float dy = y - ys[i];
+                    float dst2 = dx * dx + dy * dy;
+                    if (dst2 < bestDist2 && dst2 >= minDist2) {
+                        bestDist2 = dst2;
+                        bestSlot = i;
                     }
                 }
+            }
+        }
 
-                if (shrinkX) {
-                    for (int cY = cellYLow; cY <= cellYUp; cY++){
-                        values = this.points[cY * this.cellStripSize + startX];
-                        for (int i = 0; i < values.size(); i++) {
-                            PointObjectPair<E> pop = values.get(i);
-                            float x2 = x - pop.x;
-                            float y2 = y - pop.y;
-                            float dst2 = x2 * x2 + y2 * y2;
-
-                            if (this.rc.found < nearestNeighbours) {
-                                this.rc.addValueNotFull(dst2, pop.object);
-                            } else if (dst2 < this.rc.maxDist2) {
-                                this.rc.addValueFull(dst2, pop.object);
-                            }
-                        }
-                    }
+        return bestSlot;
+    }
+
+    /**
+     * Search the point nearest to the query point in rings around the cell of the query point, ignoring all points
+     * whose squared distance is below {@code minDist2} or not below {@code maxDist2}. Cells which cannot contain
+     * such a point are skipped, and the search stops once the inner border of the next ring is not nearer than
+     * the nearest point found so far.
+     *
+     * @param x The X-coordinate of the query point.
+     * @param y The Y-coordinate of the query point.
+     * @param minDist2 The minimum squared distance of the point (inclusive), {@link Float#NEGATIVE_INFINITY} if unbounded.
+     * @param maxDist2 The maximum squared distance of the point (exclusive), {@link Float#POSITIVE_INFINITY} if unbounded.
+     * @return The slot of the nearest point, or -1 if no point lies within the given distances.
+     */
+    private int search1nn(float x, float y, float minDist2, float maxDist2) {
+        final CellGrid grid = this.cellGrid;
+        final int cellX = grid.cellX(x);
+        final int cellY = grid.cellY(y);
+
+        int bestSlot = -1;
+        float bestDist2 = maxDist2;
+        QueryStatistics statistics = null;
+        if (QueryStatistics.ENABLED) {
+            statistics = this.defaultContext.get().rc.statistics;
+            statistics.reset();
+        }
+
+        // Squared distances are never negative, such that the inner radius only needs to be tested if it is positive
+        final boolean innerRadius = minDist2 > 0;
+        if (!innerRadius || grid.cellMaxDistance2(cellX, cellY, x, y) >= minDist2) {
+            int slot = this.scanCell1nn(cellX, cellY, x, y, minDist2, bestDist2, statistics);
+            if (slot >= 0) {
+                bestSlot = slot;
+                bestDist2 = this.distance2(slot, x, y);
+            }
+        }
+
+        for (int ring = 1;; ring++) {
+            // No point within the ring (or any subsequent ring) can be nearer than its inner border.
+            // This also stops the expansion once the outer radius is reached.
+            float ringDist2 = grid.ringDistance2(cellX, cellY, ring, x, y);
+            if (ringDist2 == Float.POSITIVE_INFINITY) {
+                if (QueryStatistics.ENABLED) {
+                    this.recordStatistics(statistics, QueryStatistics.Termination.EXHAUSTED);
                 }
+                break; // The ring lies entirely outside of the grid
+            } else if (ringDist2 >= bestDist2) {
+                if (QueryStatistics.ENABLED) {
+                    this.recordStatistics(statistics, QueryStatistics.Termination.DISTANCE_BOUND);
+                }
+                break;
+            }
 
-                if (growX) {
-                    for (int cY = cellYLow; cY <= cellYUp; cY++) {
-                        values = this.points[cY * this.cellStripSize + endX];
-                        for (int i = 0; i < values.size(); i++) {
-                            PointObjectPair<E> pop = values.get(i);
-                            float x2 = x - pop.x;
-                            float y2 = y - pop.y;
-                            float dst2 = x2*x2 + y2*y2;
-
-                            if (this.rc.found < nearestNeighbours) {
-                                this.rc.addValueNotFull(dst2, pop.object);
-                            } else if (dst2 < this.rc.maxDist2) {
-                                this.rc.addValueFull(dst2, pop.object);
-                            }
-                        }
+            if (QueryStatistics.ENABLED && statistics != null) {
+                statistics.ringExpansions++;
+            }
+
+            int lowX = cellX - ring;
+            int upX = cellX + ring;
+            int lowY = cellY - ring;
+            int upY = cellY + ring;
+            int startX = Math.max(0, lowX);
+            int endX = Math.min(grid.cellStripSize - 1, upX);
+            int startY = Math.max(0, lowY + 1);
+            int endY = Math.min(grid.verticalCellCount - 1, upY - 1);
+
+            for (int cx = startX; cx <= endX; cx++) {
+                for (int cy = lowY; cy <= upY; cy += upY - lowY) {
+                    if (cy < 0 || cy >= grid.verticalCellCount
+                            || grid.cellDistance2(cx, cy, x, y) >= bestDist2
+                            || innerRadius && grid.cellMaxDistance2(cx, cy, x, y) < minDist2) {
+                        continue;
+                    }
+                    int slot = this.scanCell1nn(cx, cy, x, y, minDist2, bestDist2, statistics);
+                    if (slot >= 0) {
+                        bestSlot = slot;
+                        bestDist2 = this.distance2(slot, x, y);
                     }
                 }
+            }
 
-                if (growX || shrinkX) {
-                    nearestCellBorderX += this.cellWidth;
+            for (int cy = startY; cy <= endY; cy++) {
+                for (int cx = lowX; cx <= upX; cx += upX - lowX) {
+                    if (cx < 0 || cx >= grid.cellStripSize
+                            || grid.cellDistance2(cx, cy, x, y) >= bestDist2
+                            || innerRadius && grid.cellMaxDistance2(cx, cy, x, y) < minDist2) {
+                        continue;
+                    }
+                    int slot = this.scanCell1nn(cx, cy, x, y, minDist2, bestDist2, statistics);
+                    if (slot >= 0) {
+                        bestSlot = slot;
+                        bestDist2 = this.distance2(slot, x, y);
+                    }
                 }
+            }
+        }
 
-                if (growY || shrinkY) {
-                    nearestCellBorderY += this.cellHeight;
-                } else if (!(growX || shrinkX)) {
-                    break; // Emergency break
-                }
+        return bestSlot;
+    }
 
-                nearestCellBorderDist = Math.min(nearestCellBorderX, nearestCellBorderY);
-                float distSqr = nearestCellBorderDist * nearestCellBorderDist;
+    /**
+     * Write this index to the given channel in the format read by {@link MappedSpatialQueryArray#map(java.nio.file.Path, java.util.function.IntFunction)}.
+     * Only the coordinates and ids of the points are written, the elements need to be supplied
+     * separately when the index is loaded again. The format neither stores category masks nor
+     * supports cells which are laid out in any order other than {@link GridParameters.CellOrder#ROW_MAJOR row by row}.
+     *
+     * @param channel The channel to write the index to. The channel is not closed by this method.
+     * @throws IOException If writing to the channel fails.
+     * @throws IllegalStateException If the cells of this index are not laid out row by row, or if the
+     * points of this index have category masks.
+     */
+    public void writeTo(@NotNull WritableByteChannel channel) throws IOException {
+        if (this.mortonXs != null) {
+            throw new IllegalStateException("Only indices whose cells are laid out row by row can be written, but the cells are laid out in " + this.parameters.getCellOrder() + " order");
+        } else if (this.cellMasks != null) {
+            throw new IllegalStateException("Only indices without category masks can be written, as the format does not store category masks");
+        }
 
-                if (this.rc.found == nearestNeighbours && this.rc.maxDist2 < distSqr) {
-                    break;
-                }
+        ByteBuffer buffer = ByteBuffer.allocate(SpatialQueryArray.WRITE_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MappedSpatialQueryArray.MAGIC);
+        buffer.putInt(MappedSpatialQueryArray.FORMAT_VERSION);
+        buffer.putFloat(this.minX);
+        buffer.putFloat(this.minY);
+        buffer.putFloat(this.maxX);
+        buffer.putFloat(this.maxY);
+        buffer.putFloat(this.cellWidth);
+        buffer.putFloat(this.cellHeight);
+        buffer.putInt(this.parameters.getSubdivisionThreshold());
+        buffer.putInt(this.cellStripSize);
+        buffer.putInt(this.verticalCellCount);
+        int cellCount = this.cellCount;
+        int subdivisionsLength = this.subcellTableSize == 0 ? 0 : cellCount;
+        buffer.putInt(this.pointCount);
+        buffer.putInt(subdivisionsLength);
+        buffer.putInt(this.subcellTableSize);
+        assert buffer.position() == MappedSpatialQueryArray.HEADER_SIZE;
 
-                cellYLow = Math.max(0, cellYLow - 1);
-                cellYUp = Math.min(this.verticalCellCount - 1, cellYUp + 1);
-                cellXLow = Math.max(0, cellXLow - 1);
-                cellXUp = Math.min(this.cellStripSize - 1, cellXUp + 1);
-            }
-        } 
+        SpatialQueryArray.writeInts(channel, buffer, this.cellStart, cellCount + 1);
+        SpatialQueryArray.writeInts(channel, buffer, this.subdivisions, subdivisionsLength);
+        SpatialQueryArray.writeInts(channel, buffer, this.subcellStart, this.subcellTableSize);
+        SpatialQueryArray.writeFloats(channel, buffer, this.xs, this.pointCount);
+        SpatialQueryArray.writeFloats(channel, buffer, this.ys, this.pointCount);
+        SpatialQueryArray.writeInts(channel, buffer, this.ids, this.pointCount);
 
-        for (int i = 0; i < this.rc.found; i++) {
-            @Nullable
-            E object = this.rc.result.get(i).object;
-            assert object != null;
-            out.accept(object);
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
         }
     }
 }
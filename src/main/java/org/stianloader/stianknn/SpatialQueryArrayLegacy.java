@@ -4,18 +4,94 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 import java.util.function.Consumer;
 
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 @Deprecated
-public class SpatialQueryArrayLegacy<E> implements SpatialRingIndex1NN<E> {
+public class SpatialQueryArrayLegacy<E> implements SpatialRingIndex1NN<E>, SpatialRangeIndex<E> {
+
+    /**
+     * Sorts a range of points by their X-coordinate, forking the sorting of both halves of the range onto the pool
+     * the task is executed on and merging the sorted halves afterwards. Like {@link Arrays#sort(Object[])}, the sort
+     * is stable, so the resulting order is the same as if the points were sorted on the calling thread.
+     */
+    private static final class SortTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final @NotNull PointObjectPair<?>[] buffer;
+        private final int end;
+        private final @NotNull PointObjectPair<?>[] points;
+        private final int start;
+
+        SortTask(@NotNull PointObjectPair<?>[] points, @NotNull PointObjectPair<?>[] buffer, int start, int end) {
+            this.points = points;
+            this.buffer = buffer;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.end - this.start <= SpatialQueryArrayLegacy.SORT_SPLIT_SIZE) {
+                Arrays.sort(this.points, this.start, this.end);
+                return;
+            }
+
+            int center = (this.start + this.end) >>> 1;
+            ForkJoinTask.invokeAll(new SortTask(this.points, this.buffer, this.start, center),
+                    new SortTask(this.points, this.buffer, center, this.end));
+
+            // Merge the lower half (moved to the buffer) and the upper half, preferring the lower half on ties
+            System.arraycopy(this.points, this.start, this.buffer, this.start, center - this.start);
+            int lower = this.start;
+            int upper = center;
+            int out = this.start;
+            while (lower < center && upper < this.end) {
+                if (this.points[upper].compareTo(this.buffer[lower]) < 0) {
+                    this.points[out++] = this.points[upper++];
+                } else {
+                    this.points[out++] = this.buffer[lower++];
+                }
+            }
+            System.arraycopy(this.buffer, lower, this.points, out, center - lower);
+        }
+    }
+
+    /**
+     * The amount of points a range needs to at least have in order to be sorted by multiple
+     * {@link ForkJoinTask fork-join tasks}. Smaller ranges are sorted by a single task.
+     */
+    private static final int SORT_SPLIT_SIZE = 8192;
+
+    @NotNull
+    private final ThreadLocal<QueryStatistics> lastStatistics = ThreadLocal.withInitial(QueryStatistics::new);
     private final @NotNull PointObjectPair<E>[] points;
+    @NotNull
+    private final QueryStatisticsAggregate statistics = new QueryStatisticsAggregate();
 
     public SpatialQueryArrayLegacy(@NotNull Collection<@NotNull PointObjectPair<E>> points) {
+        this(points, null);
+    }
+
+    /**
+     * Construct a new index containing the given points, sorting the points in parallel on the
+     * given {@link ForkJoinPool}.
+     *
+     * @param points The points to store in the index.
+     * @param pool The pool to sort the points on, or null to sort the points on the calling thread.
+     */
+    public SpatialQueryArrayLegacy(@NotNull Collection<@NotNull PointObjectPair<E>> points, @Nullable ForkJoinPool pool) {
         this.points = points.toArray(new @NotNull PointObjectPair[0]);
-        Arrays.sort(this.points);
+        if (pool == null) {
+            Arrays.sort(this.points);
+        } else {
+            pool.invoke(new SortTask(this.points, new PointObjectPair[this.points.length], 0, this.points.length));
+        }
     }
 
     private int binarySearch(int leftAnchor, int rightAnchor, float x) {
@@ -36,15 +112,79 @@ public class SpatialQueryArrayLegacy<E> implements SpatialRingIndex1NN<E> {
         return leftAnchor;
     }
 
+    /**
+     * Obtain the statistics of the last nearest-neighbour query of the calling thread.
+     * The returned instance is updated by every subsequent query of the calling thread.
+     * The statistics are only collected if {@link QueryStatistics#ENABLED statistics are enabled}.
+     *
+     * <p>As this index is not divided into cells, no cells are ever visited. Every search beyond the first
+     * search of a K-nearest-neighbour query is counted as a ring expansion.
+     *
+     * @return The statistics of the last query of the calling thread.
+     */
+    @NotNull
+    public QueryStatistics getLastQueryStatistics() {
+        return this.lastStatistics.get();
+    }
+
+    /**
+     * Obtain the statistics aggregated over all queries of this index.
+     * The statistics are only collected if {@link QueryStatistics#ENABLED statistics are enabled}.
+     *
+     * @return The aggregated statistics of this index.
+     */
+    @NotNull
+    public QueryStatisticsAggregate getStatistics() {
+        return this.statistics;
+    }
+
+    /**
+     * Obtain the index of the first point whose X-coordinate is not smaller than the given value.
+     *
+     * @param x The X-coordinate to search for.
+     * @return The index of the first point with an X-coordinate of at least {@code x},
+     * or the amount of points if no such point exists.
+     */
+    private int lowerBound(float x) {
+        int low = 0;
+        int high = this.points.length;
+        while (low < high) {
+            final int center = (low + high) >>> 1;
+            if (this.points[center].x < x) {
+                low = center + 1;
+            } else {
+                high = center;
+            }
+        }
+        return low;
+    }
+
     @Nullable
     @Override
     public E query1nn(float x, float y, float minDistSq, float maxDistSq) {
-        PointObjectPair<E> pair = this.query1nn0(x, y, minDistSq, maxDistSq);
+        QueryStatistics statistics = null;
+        if (QueryStatistics.ENABLED) {
+            statistics = this.lastStatistics.get();
+            statistics.reset();
+        }
+
+        PointObjectPair<E> pair = this.query1nn0(x, y, minDistSq, maxDistSq, statistics);
+
+        if (QueryStatistics.ENABLED && statistics != null) {
+            this.statistics.add(statistics);
+        }
         return pair == null ? null : pair.object;
     }
 
+    /**
+     * Search the point nearest to the query point whose squared distance is at least {@code minDistSq}
+     * and below {@code maxDistSq}.
+     *
+     * @param statistics The statistics to record the examined points and the termination of the search in,
+     * null if statistics are disabled or should not be recorded.
+     */
     @Nullable
-    private PointObjectPair<E> query1nn0(float x, float y, float minDistSq, float maxDistSq) {
+    private PointObjectPair<E> query1nn0(float x, float y, float minDistSq, float maxDistSq, @Nullable QueryStatistics statistics) {
         int maxPoints = this.points.length;
         int searchOrigin = this.binarySearch(0, maxPoints, x);
 
@@ -52,12 +192,17 @@ public class SpatialQueryArrayLegacy<E> implements SpatialRingIndex1NN<E> {
         int rightEdge = searchOrigin;
 
         PointObjectPair<E> currentNearest = null;
+        QueryStatistics.Termination termination = QueryStatistics.Termination.EXHAUSTED;
         while (true) {
             if (leftEdge >= 0) {
                 PointObjectPair<E> pair = this.points[leftEdge--];
+                if (QueryStatistics.ENABLED && statistics != null) {
+                    statistics.pointsExamined++;
+                }
                 float dx = pair.x - x;
                 dx *= dx;
                 if (dx > maxDistSq) {
+                    termination = QueryStatistics.Termination.DISTANCE_BOUND;
                     if (rightEdge >= maxPoints) {
                         break;
                     }
@@ -73,9 +218,13 @@ public class SpatialQueryArrayLegacy<E> implements SpatialRingIndex1NN<E> {
             }
             if (rightEdge < maxPoints) {
                 PointObjectPair<E> pair = this.points[rightEdge++];
+                if (QueryStatistics.ENABLED && statistics != null) {
+                    statistics.pointsExamined++;
+                }
                 float dx = pair.x - x;
                 dx *= dx;
                 if (dx > maxDistSq) {
+                    termination = QueryStatistics.Termination.DISTANCE_BOUND;
                     if (leftEdge < 0) {
                         break;
                     }
@@ -93,6 +242,9 @@ public class SpatialQueryArrayLegacy<E> implements SpatialRingIndex1NN<E> {
             }
         }
 
+        if (QueryStatistics.ENABLED && statistics != null) {
+            statistics.termination = termination;
+        }
         return currentNearest;
     }
 
@@ -109,7 +261,7 @@ public class SpatialQueryArrayLegacy<E> implements SpatialRingIndex1NN<E> {
                     if (this.minDistance == Float.POSITIVE_INFINITY) {
                         return false;
                     }
-                    PointObjectPair<E> element = SpatialQueryArrayLegacy.this.query1nn0(x, y, this.minDistance, Float.POSITIVE_INFINITY);
+                    PointObjectPair<E> element = SpatialQueryArrayLegacy.this.query1nn0(x, y, this.minDistance, Float.POSITIVE_INFINITY, null);
                     if (element == null) {
                         this.minDistance = Float.POSITIVE_INFINITY;
                         return false;
@@ -140,12 +292,23 @@ public class SpatialQueryArrayLegacy<E> implements SpatialRingIndex1NN<E> {
 
     public void queryKnn(float x, float y, int nearestNeighbours, Consumer<E> out) {
         // FIXME this algorithm is inappropriate if multiple objects have the same distance
+        QueryStatistics statistics = null;
+        if (QueryStatistics.ENABLED) {
+            statistics = this.lastStatistics.get();
+            statistics.reset();
+            statistics.termination = QueryStatistics.Termination.NOTHING_REQUESTED;
+        }
+
         float minDistance = 0F;
+        int searches = 0;
         while (nearestNeighbours-- != 0) {
+            if (QueryStatistics.ENABLED && statistics != null && searches++ != 0) {
+                statistics.ringExpansions++;
+            }
             @Nullable
-            PointObjectPair<E> element = this.query1nn0(x, y, minDistance, Float.POSITIVE_INFINITY);
+            PointObjectPair<E> element = this.query1nn0(x, y, minDistance, Float.POSITIVE_INFINITY, statistics);
             if (element == null) {
-                return;
+                break;
             } else {
                 out.accept(element.object);
                 float dx = element.x - x;
@@ -153,5 +316,47 @@ public class SpatialQueryArrayLegacy<E> implements SpatialRingIndex1NN<E> {
                 minDistance = Math.nextUp(dx * dx + dy * dy); // That is this line is especially bad, but that's a little bit mandated here
             }
         }
+
+        if (QueryStatistics.ENABLED && statistics != null) {
+            this.statistics.add(statistics);
+        }
+    }
+
+    @Override
+    public void queryRadius(float x, float y, float radius, @NotNull Consumer<@NotNull E> out) {
+        if (!(radius >= 0)) {
+            return;
+        }
+
+        float radius2 = radius * radius;
+        float maxX = x + radius;
+        for (int i = this.lowerBound(x - radius); i < this.points.length; i++) {
+            PointObjectPair<E> pair = this.points[i];
+            if (pair.x > maxX) {
+                break;
+            }
+            float dx = pair.x - x;
+            float dy = pair.y - y;
+            if (dx * dx + dy * dy <= radius2) {
+                out.accept(pair.object);
+            }
+        }
+    }
+
+    @Override
+    public void queryRect(float minX, float minY, float maxX, float maxY, @NotNull Consumer<@NotNull E> out) {
+        if (!(minY <= maxY)) {
+            return;
+        }
+
+        for (int i = this.lowerBound(minX); i < this.points.length; i++) {
+            PointObjectPair<E> pair = this.points[i];
+            if (pair.x > maxX) {
+                break;
+            }
+            if (pair.y >= minY && pair.y <= maxY) {
+                out.accept(pair.object);
+            }
+        }
     }
 }
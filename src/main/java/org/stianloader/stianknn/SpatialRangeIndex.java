@@ -0,0 +1,39 @@
+package org.stianloader.stianknn;
+
+import java.util.function.Consumer;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * A 2D spatial index that is capable of looking up all elements within a provided area,
+ * that is within a circle or an axis-aligned rectangle. Elements are emitted as they are
+ * found, in no particular order.
+ *
+ * <p>Mutability is undefined for this interface, it is best to assume that it is unsupported.
+ *
+ * @param <T> The type of the elements stored in the index.
+ */
+public interface SpatialRangeIndex<T> {
+
+    /**
+     * Emit all elements whose distance to the provided point is smaller than or equal to the given radius.
+     *
+     * @param x The X-coordinate of the center of the circle.
+     * @param y The Y-coordinate of the center of the circle.
+     * @param radius The radius of the circle.
+     * @param out The consumer to which the elements are emitted.
+     */
+    void queryRadius(float x, float y, float radius, @NotNull Consumer<@NotNull T> out);
+
+    /**
+     * Emit all elements located within the given axis-aligned rectangle. The bounds of the
+     * rectangle are inclusive.
+     *
+     * @param minX The minimum X-coordinate of the rectangle.
+     * @param minY The minimum Y-coordinate of the rectangle.
+     * @param maxX The maximum X-coordinate of the rectangle.
+     * @param maxY The maximum Y-coordinate of the rectangle.
+     * @param out The consumer to which the elements are emitted.
+     */
+    void queryRect(float minX, float minY, float maxX, float maxY, @NotNull Consumer<@NotNull T> out);
+}
@@ -0,0 +1,383 @@
+package org.stianloader.stianknn;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * An acceleration structure for nearest-neighbour queries against a static {@link SpatialQueryArray}.
+ * The bounds of the grid of the index are rasterized into square texels, and for each texel all points
+ * whose Voronoi region may intersect the texel are stored. A query then only needs to look up the texel of
+ * the query point and compare the distances of its few candidates, which yields exactly the same distance as
+ * {@link SpatialQueryArray#query1nn(float, float)}. Queries outside of the bounds of the grid are delegated to the index.
+ *
+ * <p>The resolution of the raster is chosen through the size of a texel. Smaller texels intersect the Voronoi
+ * regions of fewer points, so fewer candidates need to be compared per query, at the cost of more texels. Each texel
+ * requires 4 bytes, while each candidate of a texel requires 8 bytes plus a reference to the element. Once texels are
+ * considerably smaller than the typical distance between two points, most texels only have a single candidate and
+ * further reducing their size mostly increases the memory footprint. See {@link #getTexelCount()} and
+ * {@link #getCandidateCount()} for the actual footprint of a raster.
+ *
+ * <p>Texels far away from any point, especially next to dense clusters or lines of points, may intersect the Voronoi
+ * regions of many points. The amount of candidates stored per texel is thus bounded, and queries within texels which
+ * exceed this bound are delegated to the index, too (see {@link #getFallbackTexelCount()}). Building a raster
+ * costs about one kNN query per texel, so it only pays off for indices which are queried far more often than rebuilt.
+ *
+ * <p>Like the index, the raster is immutable once built and can be queried by any amount of threads concurrently.
+ *
+ * @param <E> The type of the elements stored in the index.
+ */
+public final class VoronoiRaster<@NotNull E> implements SpatialIndex1NN<E> {
+
+    /**
+     * The candidates of the texels of a single row, collected while building the raster.
+     */
+    private static final class TexelRow {
+        private int candidateCount;
+        private final int @NotNull[] candidateCounts;
+        private @NotNull Object @NotNull[] payloads = new Object[16];
+        private float @NotNull[] xs = new float[16];
+        private float @NotNull[] ys = new float[16];
+
+        TexelRow(int columns) {
+            this.candidateCounts = new int[columns];
+        }
+
+        void add(int column, float x, float y, @NotNull Object payload) {
+            if (this.candidateCount == this.xs.length) {
+                this.xs = Arrays.copyOf(this.xs, this.candidateCount * 2);
+                this.ys = Arrays.copyOf(this.ys, this.candidateCount * 2);
+                this.payloads = Arrays.copyOf(this.payloads, this.candidateCount * 2);
+            }
+            this.xs[this.candidateCount] = x;
+            this.ys[this.candidateCount] = y;
+            this.payloads[this.candidateCount++] = payload;
+            this.candidateCounts[column]++;
+        }
+
+        void clear(int column) {
+            this.candidateCount -= this.candidateCounts[column];
+            this.candidateCounts[column] = 0;
+        }
+    }
+
+    /**
+     * The minimum amount of points the search for the candidates of a texel may visit before the texel is left
+     * to the index, regardless of the maximum amount of candidates.
+     */
+    private static final int MIN_SEARCH_LIMIT = 64;
+
+    /**
+     * The amount of points the search for the candidates of a texel may visit per permitted candidate.
+     * Searches are limited as the points nearest to the center of a texel far away from any point mostly
+     * turn out to be dominated by few other points, while still being expensive to visit.
+     */
+    private static final int SEARCH_LIMIT_FACTOR = 16;
+
+    /**
+     * The relative tolerance of distance comparisons while building the raster. Candidates are only discarded
+     * if they are farther by more than this tolerance, which is far larger than the rounding error of the
+     * compared distances. As such, no point which may be nearest to a query point under floating point arithmetic
+     * is discarded.
+     */
+    private static final float TOLERANCE = 1e-4F;
+
+    private final @NotNull Object @NotNull[] candidatePayloads;
+    /**
+     * The start of the candidates of each texel within the candidate arrays, followed by the total amount of candidates.
+     * Texels are stored row by row.
+     */
+    private final int @NotNull[] candidateStart;
+    private final float @NotNull[] candidateXs;
+    private final float @NotNull[] candidateYs;
+    private final int columns;
+    private final int fallbackTexelCount;
+    @NotNull
+    private final SpatialQueryArray<E> index;
+    private final float inverseTexelSize;
+    private final int maxCandidates;
+    private final float minX;
+    private final float minY;
+    private final int rows;
+    private final float texelSize;
+
+    private VoronoiRaster(@NotNull SpatialQueryArray<E> index, float minX, float minY, float texelSize, int columns, int rows, int maxCandidates, @Nullable ForkJoinPool pool) {
+        this.index = index;
+        this.maxCandidates = maxCandidates;
+        this.minX = minX;
+        this.minY = minY;
+        this.texelSize = texelSize;
+        this.inverseTexelSize = 1 / texelSize;
+        this.columns = columns;
+        this.rows = rows;
+
+        TexelRow[] texelRows = new TexelRow[rows];
+        SpatialQueryArray.forEachRange(pool, 0, rows, 1, (fromRow, toRow) -> {
+            SpatialQueryArray.QueryContext<E> context = new SpatialQueryArray.QueryContext<>();
+            for (int row = fromRow; row < toRow; row++) {
+                texelRows[row] = this.rasterizeRow(row, context);
+            }
+        });
+
+        int candidateCount = 0;
+        for (TexelRow row : texelRows) {
+            candidateCount += row.candidateCount;
+        }
+
+        this.candidateStart = new int[columns * rows + 1];
+        this.candidateXs = new float[candidateCount];
+        this.candidateYs = new float[candidateCount];
+        this.candidatePayloads = new Object[candidateCount];
+        int offset = 0;
+        int fallbackTexelCount = 0;
+        for (int row = 0; row < rows; row++) {
+            TexelRow texelRow = texelRows[row];
+            for (int column = 0; column < columns; column++) {
+                this.candidateStart[row * columns + column] = offset;
+                offset += texelRow.candidateCounts[column];
+                if (texelRow.candidateCounts[column] == 0) {
+                    fallbackTexelCount++;
+                }
+            }
+            int rowStart = this.candidateStart[row * columns];
+            System.arraycopy(texelRow.xs, 0, this.candidateXs, rowStart, texelRow.candidateCount);
+            System.arraycopy(texelRow.ys, 0, this.candidateYs, rowStart, texelRow.candidateCount);
+            System.arraycopy(texelRow.payloads, 0, this.candidatePayloads, rowStart, texelRow.candidateCount);
+        }
+        this.candidateStart[columns * rows] = offset;
+        this.fallbackTexelCount = fallbackTexelCount;
+    }
+
+    /**
+     * Build a raster over the bounds of the grid of the given index.
+     *
+     * @param <E> The type of the elements stored in the index.
+     * @param index The index to accelerate. The raster must be rebuilt if a different index is to be accelerated.
+     * @param texelSize The width and height of a texel.
+     * @param maxCandidates The maximum amount of candidates stored for a single texel. Queries within texels which
+     * would require more candidates are delegated to the index instead.
+     * @param pool The pool to build the raster on, or null to build it on the calling thread.
+     * @return The newly built raster.
+     */
+    @NotNull
+    public static <E> VoronoiRaster<E> build(@NotNull SpatialQueryArray<E> index, float texelSize, int maxCandidates, @Nullable ForkJoinPool pool) {
+        if (!(texelSize > 0) || texelSize == Float.POSITIVE_INFINITY) {
+            throw new IllegalArgumentException("Invalid texel size: " + texelSize);
+        } else if (maxCandidates <= 0) {
+            throw new IllegalArgumentException("Invalid maximum amount of candidates: " + maxCandidates);
+        }
+
+        GridParameters parameters = index.getParameters();
+        long columns = Math.max(1L, (long) Math.ceil((parameters.getMaxX() - parameters.getMinX()) / (double) texelSize));
+        long rows = Math.max(1L, (long) Math.ceil((parameters.getMaxY() - parameters.getMinY()) / (double) texelSize));
+        if (columns * rows >= Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Texel size " + texelSize + " results in too many texels: " + columns + "x" + rows);
+        }
+
+        return new VoronoiRaster<>(index, parameters.getMinX(), parameters.getMinY(), texelSize, (int) columns, (int) rows, maxCandidates, pool);
+    }
+
+    /**
+     * Check whether the first point is nearer than the second point to every point of the given rectangle, by more
+     * than the {@link #TOLERANCE}. As the set of points nearer to the first point is a half-plane, it suffices to check
+     * the corners of the rectangle.
+     */
+    private static boolean dominates(float x1, float y1, float x2, float y2, float minX, float minY, float maxX, float maxY) {
+        return VoronoiRaster.nearer(x1, y1, x2, y2, minX, minY)
+                && VoronoiRaster.nearer(x1, y1, x2, y2, maxX, minY)
+                && VoronoiRaster.nearer(x1, y1, x2, y2, minX, maxY)
+                && VoronoiRaster.nearer(x1, y1, x2, y2, maxX, maxY);
+    }
+
+    /**
+     * Obtain the total amount of candidates stored across all texels.
+     *
+     * @return The amount of candidates.
+     */
+    public int getCandidateCount() {
+        return this.candidateStart[this.candidateStart.length - 1];
+    }
+
+    /**
+     * Obtain the amount of texels without any candidates, whose queries are delegated to the index. These are texels which
+     * would require more candidates than permitted, or all texels if the index is empty.
+     *
+     * @return The amount of texels which fall back to the index.
+     */
+    public int getFallbackTexelCount() {
+        return this.fallbackTexelCount;
+    }
+
+    /**
+     * Obtain the index accelerated by this raster.
+     *
+     * @return The index.
+     */
+    @NotNull
+    public SpatialQueryArray<E> getIndex() {
+        return this.index;
+    }
+
+    /**
+     * Obtain the amount of texels of this raster.
+     *
+     * @return The amount of texels.
+     */
+    public int getTexelCount() {
+        return this.columns * this.rows;
+    }
+
+    /**
+     * Obtain the width and height of a texel.
+     *
+     * @return The size of a texel.
+     */
+    public float getTexelSize() {
+        return this.texelSize;
+    }
+
+    private static float maxDistance2(float x, float y, float minX, float minY, float maxX, float maxY) {
+        float dx = Math.max(x - minX, maxX - x);
+        float dy = Math.max(y - minY, maxY - y);
+        return dx * dx + dy * dy;
+    }
+
+    private static float minDistance2(float x, float y, float minX, float minY, float maxX, float maxY) {
+        float dx = Math.max(0, Math.max(minX - x, x - maxX));
+        float dy = Math.max(0, Math.max(minY - y, y - maxY));
+        return dx * dx + dy * dy;
+    }
+
+    private static boolean nearer(float x1, float y1, float x2, float y2, float x, float y) {
+        float dx1 = x - x1;
+        float dy1 = y - y1;
+        float dx2 = x - x2;
+        float dy2 = y - y2;
+        float dist1 = dx1 * dx1 + dy1 * dy1;
+        float dist2 = dx2 * dx2 + dy2 * dy2;
+        return dist2 - dist1 > (dist1 + dist2) * VoronoiRaster.TOLERANCE;
+    }
+
+    @Override
+    @Nullable
+    @SuppressWarnings("unchecked")
+    public E query1nn(float x, float y) {
+        float u = (x - this.minX) * this.inverseTexelSize;
+        float v = (y - this.minY) * this.inverseTexelSize;
+        if (!(u >= 0 && u < this.columns && v >= 0 && v < this.rows)) {
+            return this.index.query1nn(x, y);
+        }
+
+        int texel = (int) v * this.columns + (int) u;
+        int start = this.candidateStart[texel];
+        int end = this.candidateStart[texel + 1];
+        if (start == end) {
+            return this.index.query1nn(x, y);
+        }
+
+        int best = -1;
+        float bestDist2 = Float.POSITIVE_INFINITY;
+        for (int i = start; i < end; i++) {
+            float dx = x - this.candidateXs[i];
+            float dy = y - this.candidateYs[i];
+            float dist2 = dx * dx + dy * dy;
+            if (dist2 < bestDist2) {
+                bestDist2 = dist2;
+                best = i;
+            }
+        }
+
+        return (E) this.candidatePayloads[best];
+    }
+
+    /**
+     * Collect the candidates of all texels within the given row.
+     */
+    @NotNull
+    private TexelRow rasterizeRow(int row, SpatialQueryArray.@NotNull QueryContext<E> context) {
+        TexelRow texelRow = new TexelRow(this.columns);
+        // Texels are slightly enlarged, such that they also cover query points which are mapped onto the texel
+        // due to rounding errors. Rounding errors of the coordinates themselves are relative to their magnitude.
+        float magnitude = Math.max(Math.max(Math.abs(this.minX), Math.abs(this.minY)),
+                Math.max(Math.abs(this.minX + this.columns * this.texelSize), Math.abs(this.minY + this.rows * this.texelSize)));
+        float slack = this.texelSize * VoronoiRaster.TOLERANCE + Math.ulp(magnitude) * 4;
+        float minY = this.minY + row * this.texelSize - slack;
+        float maxY = this.minY + (row + 1) * this.texelSize + slack;
+
+        float[] xs = new float[16];
+        float[] ys = new float[16];
+        int searchLimit = Math.max(VoronoiRaster.MIN_SEARCH_LIMIT, (int) Math.min(Integer.MAX_VALUE / 2, (long) this.maxCandidates * VoronoiRaster.SEARCH_LIMIT_FACTOR));
+        // Adjacent texels tend to require a similar amount of points to be searched
+        int searchHint = 4;
+        texels:
+        for (int column = 0; column < this.columns; column++) {
+            float minX = this.minX + column * this.texelSize - slack;
+            float maxX = this.minX + (column + 1) * this.texelSize + slack;
+            float centerX = (minX + maxX) / 2;
+            float centerY = (minY + maxY) / 2;
+            float halfDiagonal = (float) Math.hypot((maxX - minX) / 2, (maxY - minY) / 2);
+
+            // Every point of the texel is at most maxDist2 away from the point nearest to the center of the texel,
+            // so any point which is nearest to some point of the texel is within (maxDist + halfDiagonal) of the center.
+            ResultContainer rc;
+            float maxDist2;
+            float searchRadius2;
+            for (int neighbours = searchHint; ; neighbours = Math.min(neighbours * 2, searchLimit)) {
+                rc = this.index.queryKnnSlots(centerX, centerY, neighbours, context);
+                if (rc.found == 0) {
+                    continue texels;
+                }
+                int nearest = rc.slots[0];
+                maxDist2 = VoronoiRaster.maxDistance2(this.index.slotX(nearest), this.index.slotY(nearest), minX, minY, maxX, maxY) * (1 + VoronoiRaster.TOLERANCE);
+                float searchRadius = (float) Math.sqrt(maxDist2) + halfDiagonal;
+                searchRadius2 = searchRadius * searchRadius * (1 + VoronoiRaster.TOLERANCE);
+                if (rc.found < neighbours || rc.distances2[rc.found - 1] > searchRadius2) {
+                    break;
+                } else if (neighbours == searchLimit) {
+                    // Leave the texel to the index
+                    searchHint = searchLimit;
+                    continue texels;
+                }
+            }
+
+            int searched = 1;
+            while (searched < rc.found && rc.distances2[searched] <= searchRadius2) {
+                searched++;
+            }
+            searchHint = Math.max(4, Math.min(searchLimit, Integer.highestOneBit(searched) * 2));
+
+            // Candidates are visited in ascending distance from the center of the texel, so points which are farther than
+            // another point from every point of the texel are usually dominated by one of the few points kept before them.
+            int count = 0;
+            candidates:
+            for (int i = 0; i < searched; i++) {
+                int slot = rc.slots[i];
+                float x = this.index.slotX(slot);
+                float y = this.index.slotY(slot);
+                if (VoronoiRaster.minDistance2(x, y, minX, minY, maxX, maxY) > maxDist2) {
+                    continue;
+                }
+                for (int j = 0; j < count; j++) {
+                    if ((xs[j] == x && ys[j] == y) || VoronoiRaster.dominates(xs[j], ys[j], x, y, minX, minY, maxX, maxY)) {
+                        continue candidates;
+                    }
+                }
+                if (count == this.maxCandidates) {
+                    // Leave the texel to the index
+                    texelRow.clear(column);
+                    continue texels;
+                } else if (count == xs.length) {
+                    xs = Arrays.copyOf(xs, count * 2);
+                    ys = Arrays.copyOf(ys, count * 2);
+                }
+                xs[count] = x;
+                ys[count++] = y;
+                texelRow.add(column, x, y, this.index.payload(slot));
+            }
+        }
+
+        return texelRow;
+    }
+}
@@ -0,0 +1,104 @@
+package org.stianloader.stianknn;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * The innermost loop of K-nearest-neighbour queries on grid-based indices: Computing the squared
+ * distance between the query point and a contiguous range of points, offering each point to a
+ * {@link ResultContainer}.
+ *
+ * <p>This is the Java 17 variant of this class. If the {@code jdk.incubator.vector} module is present
+ * (e.g. by passing {@code --add-modules jdk.incubator.vector} to the JVM), ranges are scanned by
+ * {@link VectorDistanceKernel}. Otherwise, or if the system property {@code org.stianloader.stianknn.vector}
+ * is set to {@code false}, the scalar implementation is used.
+ */
+final class DistanceKernel {
+
+    /**
+     * Whether the vectorized implementation is in use.
+     */
+    private static final boolean VECTORIZED = !"false".equals(System.getProperty("org.stianloader.stianknn.vector"))
+            && ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent();
+
+    /**
+     * Check whether the vectorized implementation is in use.
+     *
+     * @return True if ranges are scanned by {@link VectorDistanceKernel}.
+     */
+    static boolean isVectorized() {
+        return DistanceKernel.VECTORIZED;
+    }
+
+    /**
+     * Compute the distance of all points within the range from {@code start} (inclusive) to {@code end}
+     * (exclusive) to the query point and offer them to the provided {@link ResultContainer}, in ascending order of their slot.
+     *
+     * @param xs The X-coordinates of the points, indexed by slot.
+     * @param ys The Y-coordinates of the points, indexed by slot.
+     * @param start The first slot to scan.
+     * @param end The slot after the last slot to scan.
+     * @param x The X-coordinate of the query point.
+     * @param y The Y-coordinate of the query point.
+     * @param nearestNeighbours The maximum amount of results to collect.
+     * @param rc The container to collect the results in.
+     */
+    static void scanRange(float @NotNull[] xs, float @NotNull[] ys, int start, int end, float x, float y, int nearestNeighbours, @NotNull ResultContainer rc) {
+        if (DistanceKernel.VECTORIZED) {
+            VectorDistanceKernel.scanRange(xs, ys, start, end, x, y, nearestNeighbours, rc);
+        } else {
+            DistanceKernel.scanRangeScalar(xs, ys, start, end, x, y, nearestNeighbours, rc);
+        }
+    }
+
+    /**
+     * Variant of {@link #scanRange(float[], float[], int, int, float, float, int, ResultContainer)} which only
+     * offers points whose category mask shares at least one bit with the given mask. Non-matching points are
+     * skipped before their distance is computed, which is why this variant is never vectorized.
+     *
+     * @param xs The X-coordinates of the points, indexed by slot.
+     * @param ys The Y-coordinates of the points, indexed by slot.
+     * @param masks The category masks of the points, indexed by slot.
+     * @param mask The mask the category mask of a point needs to share at least one bit with.
+     * @param start The first slot to scan.
+     * @param end The slot after the last slot to scan.
+     * @param x The X-coordinate of the query point.
+     * @param y The Y-coordinate of the query point.
+     * @param nearestNeighbours The maximum amount of results to collect.
+     * @param rc The container to collect the results in.
+     */
+    static void scanRangeMatching(float @NotNull[] xs, float @NotNull[] ys, int @NotNull[] masks, int mask, int start, int end, float x, float y, int nearestNeighbours, @NotNull ResultContainer rc) {
+        for (int i = start; i < end; i++) {
+            if ((masks[i] & mask) == 0) {
+                continue;
+            }
+
+            float x2 = x - xs[i];
+            float y2 = y - ys[i];
+            float dst2 = x2 * x2 + y2 * y2;
+
+            if (rc.found < nearestNeighbours) {
+                rc.addValueNotFull(dst2, i);
+            } else if (dst2 < rc.maxDist2) {
+                rc.addValueFull(dst2, i);
+            }
+        }
+    }
+
+    static void scanRangeScalar(float @NotNull[] xs, float @NotNull[] ys, int start, int end, float x, float y, int nearestNeighbours, @NotNull ResultContainer rc) {
+        for (int i = start; i < end; i++) {
+            float x2 = x - xs[i];
+            float y2 = y - ys[i];
+            float dst2 = x2 * x2 + y2 * y2;
+
+            if (rc.found < nearestNeighbours) {
+                rc.addValueNotFull(dst2, i);
+            } else if (dst2 < rc.maxDist2) {
+                rc.addValueFull(dst2, i);
+            }
+        }
+    }
+
+    private DistanceKernel() {
+        throw new AssertionError();
+    }
+}
@@ -0,0 +1,82 @@
+package org.stianloader.stianknn;
+
+import org.jetbrains.annotations.NotNull;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Vectorized implementation of {@link DistanceKernel#scanRange(float[], float[], int, int, float, float, int, ResultContainer)}.
+ * The squared distances of a whole vector of points are computed at once and compared against the
+ * squared distance of the K-th nearest point found so far. Only points which are nearer are inserted into
+ * the {@link ResultContainer} (in ascending order of their slot, just like the scalar implementation),
+ * so the results are identical to the scalar implementation.
+ *
+ * <p>Must only be loaded if the {@code jdk.incubator.vector} module is present.
+ */
+final class VectorDistanceKernel {
+
+    @NotNull
+    private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+
+    /**
+     * Scratch buffer to which the distances of a vector are written to before being inserted.
+     * Only accessed by the thread owning the {@link ResultContainer}.
+     */
+    @NotNull
+    private static final ThreadLocal<float[]> LANE_DISTANCES = ThreadLocal.withInitial(() -> new float[VectorDistanceKernel.SPECIES.length()]);
+
+    static void scanRange(float @NotNull[] xs, float @NotNull[] ys, int start, int end, float x, float y, int nearestNeighbours, @NotNull ResultContainer rc) {
+        int i = start;
+
+        // The container needs to be filled first, after which all points have to beat maxDist2
+        for (; i < end && rc.found < nearestNeighbours; i++) {
+            float x2 = x - xs[i];
+            float y2 = y - ys[i];
+            rc.addValueNotFull(x2 * x2 + y2 * y2, i);
+        }
+
+        int length = VectorDistanceKernel.SPECIES.length();
+        if (end - i >= length) {
+            FloatVector queryX = FloatVector.broadcast(VectorDistanceKernel.SPECIES, x);
+            FloatVector queryY = FloatVector.broadcast(VectorDistanceKernel.SPECIES, y);
+            float[] laneDistances = null;
+
+            for (int upperBound = i + VectorDistanceKernel.SPECIES.loopBound(end - i); i < upperBound; i += length) {
+                FloatVector dx = queryX.sub(FloatVector.fromArray(VectorDistanceKernel.SPECIES, xs, i));
+                FloatVector dy = queryY.sub(FloatVector.fromArray(VectorDistanceKernel.SPECIES, ys, i));
+                FloatVector dst2 = dx.mul(dx).add(dy.mul(dy));
+                VectorMask<Float> candidates = dst2.lt(rc.maxDist2);
+                if (!candidates.anyTrue()) {
+                    continue;
+                }
+
+                if (laneDistances == null) {
+                    laneDistances = VectorDistanceKernel.LANE_DISTANCES.get();
+                }
+                dst2.intoArray(laneDistances, 0);
+                for (long lanes = candidates.toLong(); lanes != 0; lanes &= lanes - 1) {
+                    int lane = Long.numberOfTrailingZeros(lanes);
+                    // Earlier lanes might have lowered maxDist2 in the meantime
+                    if (laneDistances[lane] < rc.maxDist2) {
+                        rc.addValueFull(laneDistances[lane], i + lane);
+                    }
+                }
+            }
+        }
+
+        for (; i < end; i++) {
+            float x2 = x - xs[i];
+            float y2 = y - ys[i];
+            float dst2 = x2 * x2 + y2 * y2;
+            if (dst2 < rc.maxDist2) {
+                rc.addValueFull(dst2, i);
+            }
+        }
+    }
+
+    private VectorDistanceKernel() {
+        throw new AssertionError();
+    }
+}
@@ -0,0 +1,129 @@
+package org.stianloader.stianknn;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.jetbrains.annotations.NotNull;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The points and query points benchmarks operate on. The dataset is generated once per trial,
+ * so generating it is not part of the measured time.
+ *
+ * <p>All distributions cover the same area as the map produced by {@link TestStarGenerator} for the
+ * same amount of points, such that the average density of points (and thus the average occupancy of a
+ * cell of a given size) is comparable between distributions.
+ */
+@State(Scope.Benchmark)
+public class BenchmarkDataset {
+
+    public static enum Distribution {
+        /**
+         * 90% of all points are located within a single area covering 0.01% of the map,
+         * the remaining points are distributed uniformly.
+         */
+        CLUSTER,
+
+        /**
+         * All points are located on the diagonal of the map.
+         */
+        LINE,
+
+        /**
+         * Points are distributed according to the star map of {@link TestStarGenerator}.
+         */
+        STARMAP,
+
+        /**
+         * Points are distributed uniformly across the map.
+         */
+        UNIFORM;
+    }
+
+    /**
+     * The amount of query points generated. Benchmarks cycle through the query points.
+     */
+    public static final int QUERY_COUNT = 1 << 16;
+
+    /**
+     * The seed used to generate the dataset, such that all benchmarks operate on the same points.
+     */
+    private static final long SEED = 0x5EED_5EEDL;
+
+    @Param({"STARMAP", "UNIFORM", "CLUSTER", "LINE"})
+    public Distribution distribution;
+
+    public float height;
+
+    @Param({"10000", "100000", "1000000", "10000000"})
+    public int pointCount;
+
+    public List<PointObjectPair<Map.@NotNull Entry<Float, Float>>> points;
+
+    public float[] queryXs;
+    public float[] queryYs;
+    public float width;
+    public float[] xs;
+    public float[] ys;
+
+    @Setup
+    public void setup() {
+        TestStarGenerator generator;
+        try {
+            generator = new TestStarGenerator();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        this.width = generator.getMapWidth(this.pointCount);
+        this.height = generator.getMapHeight(this.pointCount);
+
+        Random random = new Random(BenchmarkDataset.SEED);
+        List<Map.Entry<Float, Float>> stars;
+        if (this.distribution == Distribution.STARMAP) {
+            stars = generator.generateStars(this.pointCount);
+        } else {
+            stars = new ArrayList<>(this.pointCount);
+            for (int i = 0; i < this.pointCount; i++) {
+                float x;
+                float y;
+                if (this.distribution == Distribution.LINE) {
+                    float t = random.nextFloat();
+                    x = t * this.width;
+                    y = t * this.height;
+                } else if (this.distribution == Distribution.CLUSTER && random.nextInt(10) != 0) {
+                    x = (0.5F + random.nextFloat() / 100) * this.width;
+                    y = (0.5F + random.nextFloat() / 100) * this.height;
+                } else {
+                    x = random.nextFloat() * this.width;
+                    y = random.nextFloat() * this.height;
+                }
+                stars.add(new AbstractMap.SimpleImmutableEntry<>(x, y));
+            }
+        }
+
+        this.points = new ArrayList<>(stars.size());
+        this.xs = new float[stars.size()];
+        this.ys = new float[stars.size()];
+        for (int i = 0; i < this.xs.length; i++) {
+            Map.Entry<Float, Float> star = stars.get(i);
+            this.xs[i] = star.getKey();
+            this.ys[i] = star.getValue();
+            this.points.add(new PointObjectPair<>(star, this.xs[i], this.ys[i]));
+        }
+
+        this.queryXs = new float[BenchmarkDataset.QUERY_COUNT];
+        this.queryYs = new float[BenchmarkDataset.QUERY_COUNT];
+        for (int i = 0; i < BenchmarkDataset.QUERY_COUNT; i++) {
+            this.queryXs[i] = random.nextFloat() * this.width;
+            this.queryYs[i] = random.nextFloat() * this.height;
+        }
+    }
+}
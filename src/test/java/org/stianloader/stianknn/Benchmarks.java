@@ -2,131 +2,489 @@ package org.stianloader.stianknn;
 
 import java.io.IOException;
 import java.io.UncheckedIOException;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.Map;
-import java.util.concurrent.ThreadLocalRandom;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
 
 import org.jetbrains.annotations.NotNull;
 import org.openjdk.jmh.annotations.Benchmark;
 import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
 import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
 import org.openjdk.jmh.annotations.Warmup;
 import org.openjdk.jmh.infra.Blackhole;
 
+/**
+ * Measures the throughput and latency of individual queries. Datasets and indices are built
+ * during setup, so each operation consists of exactly one query (or one query per point of a batch,
+ * as declared through {@link OperationsPerInvocation}). See {@link BuildBenchmarks} for the time
+ * it takes to build the indices.
+ *
+ * <p>The parameter space spans all point counts, distributions, neighbour counts and cell sizes,
+ * which takes a long time to run in its entirety. Use JMH's {@code -p} option to restrict the parameters,
+ * e.g. {@code -p pointCount=100000 -p distribution=STARMAP}.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@Fork(1)
+@Measurement(iterations = 3, time = 2)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 2)
 public class Benchmarks {
 
+    /**
+     * The error bound of approximate queries. The recall, that is the fraction of the returned neighbours which are
+     * among the true K nearest neighbours, is measured over all query points during setup and printed alongside
+     * of the results, so that the speed of each epsilon can be weighed against its accuracy.
+     */
+    @State(Scope.Benchmark)
+    public static class Approximation {
+        @Param({"0", "0.1", "0.5", "2"})
+        public float epsilon;
+
+        public double recall;
+
+        @Setup
+        public void setup(BenchmarkDataset dataset, GridIndex index, NeighbourCount neighbours) {
+            int[] ids = new int[neighbours.k];
+            float[] exact = new float[neighbours.k];
+            float[] approximate = new float[neighbours.k];
+            long recalled = 0;
+            long total = 0;
+            for (int query = 0; query < BenchmarkDataset.QUERY_COUNT; query++) {
+                float x = dataset.queryXs[query];
+                float y = dataset.queryYs[query];
+                int expected = index.index.queryKnn(x, y, neighbours.k, ids, exact);
+                int found = index.index.queryKnnApproximate(x, y, neighbours.k, this.epsilon, ids, approximate);
+                for (int i = 0; i < found; i++) {
+                    if (approximate[i] <= exact[expected - 1]) {
+                        recalled++;
+                    }
+                }
+                total += expected;
+            }
+            this.recall = (double) recalled / total;
+            System.out.println("Recall at epsilon " + this.epsilon + ": " + this.recall);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class BatchBuffers {
+        public float[] queryXs;
+        public float[] queryYs;
+        public float[] outDist2;
+        public int[] outIndices;
+
+        @Setup
+        public void setup(BenchmarkDataset dataset, NeighbourCount neighbours) {
+            this.queryXs = Arrays.copyOf(dataset.queryXs, Benchmarks.BATCH_SIZE);
+            this.queryYs = Arrays.copyOf(dataset.queryYs, Benchmarks.BATCH_SIZE);
+            this.outDist2 = new float[Benchmarks.BATCH_SIZE * neighbours.k];
+            this.outIndices = new int[Benchmarks.BATCH_SIZE * neighbours.k];
+        }
+    }
+
+    /**
+     * An index whose points are each assigned one of several categories at random. Queries only match the first category,
+     * comparing {@link SpatialQueryArray#queryKnnMatching(float, float, int, int, int[], float[])} against filtering the
+     * elements yielded by {@link SpatialQueryArray#queryKnn(float, float)} until K matching elements were found.
+     */
+    @State(Scope.Benchmark)
+    public static class CategoryIndex {
+        @Param({"2", "32"})
+        public int categories;
+
+        public SpatialQueryArray<@NotNull Integer> index;
+        public int[] masks;
+
+        @Setup
+        public void setup(BenchmarkDataset dataset) {
+            Random random = new Random(dataset.pointCount);
+            this.masks = new int[dataset.pointCount];
+            for (int i = 0; i < this.masks.length; i++) {
+                this.masks[i] = 1 << random.nextInt(this.categories);
+            }
+            this.index = SpatialQueryArray.ofCoordinates(dataset.xs, dataset.ys, this.masks, GridParameters.derive(dataset.points, 40), null);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class CoherentQuery {
+        /**
+         * The margin of the handle, relative to the mean distance between points if they were distributed uniformly.
+         */
+        @Param({"0.5", "2"})
+        public float marginScale;
+
+        public CoherentKnnQuery<Map.@NotNull Entry<Float, Float>> query;
+
+        @Setup
+        public void setup(BenchmarkDataset dataset, GridIndex index, NeighbourCount neighbours) {
+            float spacing = (float) Math.sqrt(dataset.width * dataset.height / dataset.pointCount);
+            this.query = new CoherentKnnQuery<>(index.index, neighbours.k, spacing * this.marginScale, 16);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class GridIndex {
+        /**
+         * The width and height of a cell, or "auto" to derive the layout through
+         * {@link GridParameters#derive(java.util.Collection, int)}.
+         */
+        @Param({"auto", "2", "4", "8"})
+        public String cellSize;
+
+        public SpatialQueryArray<Map.@NotNull Entry<Float, Float>> index;
+
+        @Setup
+        public void setup(BenchmarkDataset dataset) {
+            this.index = new SpatialQueryArray<>(dataset.points, Benchmarks.getParameters(dataset, this.cellSize));
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class KDTreeIndex {
+        public SpatialKDTree<Map.@NotNull Entry<Float, Float>> index;
+
+        @Setup
+        public void setup(BenchmarkDataset dataset) {
+            this.index = new SpatialKDTree<>(dataset.points);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class LegacyIndex {
+        public SpatialQueryArrayLegacy<Map.@NotNull Entry<Float, Float>> index;
+
+        @Setup
+        public void setup(BenchmarkDataset dataset) {
+            this.index = new SpatialQueryArrayLegacy<>(dataset.points);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class MappedIndex {
+        public MappedSpatialQueryArray<Map.@NotNull Entry<Float, Float>> index;
+        private Path file;
+
+        @Setup
+        public void setup(BenchmarkDataset dataset) throws IOException {
+            this.file = Files.createTempFile("stianknn-benchmark", ".bin");
+            try (FileChannel channel = FileChannel.open(this.file, StandardOpenOption.WRITE)) {
+                SpatialQueryArray.create(dataset.points, 40).writeTo(channel);
+            }
+            this.index = MappedSpatialQueryArray.map(this.file, id -> dataset.points.get(id).object);
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            Files.deleteIfExists(this.file);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class NeighbourCount {
+        @Param({"1", "10", "40"})
+        public int k;
+    }
+
+    /**
+     * A grid whose cells are laid out in the given order, where the cells of large grids do not fit into the CPU caches.
+     */
+    @State(Scope.Benchmark)
+    public static class OrderedGridIndex {
+        @Param({"ROW_MAJOR", "MORTON"})
+        public GridParameters.CellOrder cellOrder;
+
+        public SpatialQueryArray<@NotNull Integer> index;
+
+        @Setup
+        public void setup(BenchmarkDataset dataset) {
+            GridParameters parameters = GridParameters.derive(dataset.points, 40).withCellOrder(this.cellOrder);
+            this.index = SpatialQueryArray.ofCoordinates(dataset.xs, dataset.ys, parameters);
+        }
+    }
+
+    /**
+     * Queries for many neighbours of which only the first few are read, comparing
+     * {@link SpatialQueryArray#queryKnn(float, float, int, java.util.function.Consumer)} (which orders all neighbours)
+     * against {@link SpatialQueryArray#queryKnnWhile(float, float, int, java.util.function.Predicate)}.
+     */
+    @State(Scope.Thread)
+    public static class PartialRead {
+        @Param({"100", "500"})
+        public int k;
+
+        @Param({"5"})
+        public int read;
+
+        private int remaining;
+    }
+
+    @State(Scope.Benchmark)
+    public static class PrimitiveGridIndex {
+        @Param({"auto", "2", "4", "8"})
+        public String cellSize;
+
+        public SpatialQueryArray<@NotNull Integer> index;
+
+        @Setup
+        public void setup(BenchmarkDataset dataset) {
+            this.index = SpatialQueryArray.ofCoordinates(dataset.xs, dataset.ys, Benchmarks.getParameters(dataset, this.cellSize));
+        }
+    }
+
+    /**
+     * The position of a thread within the query points of the {@link BenchmarkDataset}.
+     */
+    @State(Scope.Thread)
+    public static class QueryCursor {
+        public int[] ids;
+        public float[] dist2;
+        private int next;
+
+        int next() {
+            return this.next++ & (BenchmarkDataset.QUERY_COUNT - 1);
+        }
+
+        @Setup
+        public void setup(NeighbourCount neighbours) {
+            this.ids = new int[neighbours.k];
+            this.dist2 = new float[neighbours.k];
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Query1nnCursor {
+        private int next;
+
+        int next() {
+            return this.next++ & (BenchmarkDataset.QUERY_COUNT - 1);
+        }
+    }
+
+    /**
+     * A random walk across the dataset, as performed by a query point which moves only slightly between consecutive queries.
+     */
+    @State(Scope.Benchmark)
+    public static class QueryPath {
+        public float[] xs = new float[BenchmarkDataset.QUERY_COUNT];
+        public float[] ys = new float[BenchmarkDataset.QUERY_COUNT];
+
+        @Setup
+        public void setup(BenchmarkDataset dataset) {
+            float step = (float) Math.sqrt(dataset.width * dataset.height / dataset.pointCount) * 0.1F;
+            Random random = new Random(dataset.pointCount);
+            float x = dataset.width / 2;
+            float y = dataset.height / 2;
+            for (int i = 0; i < BenchmarkDataset.QUERY_COUNT; i++) {
+                x = Math.max(0, Math.min(dataset.width, x + (random.nextFloat() - 0.5F) * step));
+                y = Math.max(0, Math.min(dataset.height, y + (random.nextFloat() - 0.5F) * step));
+                this.xs[i] = x;
+                this.ys[i] = y;
+            }
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class VoronoiIndex {
+        /**
+         * The width and height of a texel, relative to the mean distance between points if they were distributed uniformly.
+         */
+        @Param({"0.5", "1"})
+        public float texelScale;
+
+        public VoronoiRaster<Map.@NotNull Entry<Float, Float>> raster;
+
+        @Setup
+        public void setup(BenchmarkDataset dataset) {
+            SpatialQueryArray<Map.@NotNull Entry<Float, Float>> index = SpatialQueryArray.create(dataset.points, 40);
+            float spacing = (float) Math.sqrt(dataset.width * dataset.height / dataset.pointCount);
+            this.raster = VoronoiRaster.build(index, spacing * this.texelScale, 16, ForkJoinPool.commonPool());
+        }
+    }
+
+    /**
+     * The amount of query points within a single batch query.
+     */
+    private static final int BATCH_SIZE = 1024;
+
+    @NotNull
+    private static GridParameters getParameters(@NotNull BenchmarkDataset dataset, @NotNull String cellSize) {
+        if (cellSize.equals("auto")) {
+            return GridParameters.derive(dataset.points, 40);
+        }
+        float size = Float.parseFloat(cellSize);
+        return new GridParameters(0, 0, dataset.width, dataset.height, size, size, Integer.MAX_VALUE);
+    }
+
+    @Benchmark
+    public int benchmarkCoherentKnnPath(CoherentQuery coherent, QueryPath path, QueryCursor cursor) {
+        int query = cursor.next();
+        return coherent.query.queryKnn(path.xs[query], path.ys[query], cursor.ids, cursor.dist2);
+    }
+
+    @Benchmark
+    public Object benchmarkKDT1nn(BenchmarkDataset dataset, KDTreeIndex index, Query1nnCursor cursor) {
+        int query = cursor.next();
+        return index.index.query1nn(dataset.queryXs[query], dataset.queryYs[query]);
+    }
+
+    @Benchmark
+    public void benchmarkKDTKnn(Blackhole bh, BenchmarkDataset dataset, KDTreeIndex index, NeighbourCount neighbours, QueryCursor cursor) {
+        int query = cursor.next();
+        index.index.queryKnn(dataset.queryXs[query], dataset.queryYs[query], neighbours.k, bh::consume);
+    }
+
+    @Benchmark
+    public void benchmarkMappedKnn(Blackhole bh, BenchmarkDataset dataset, MappedIndex index, NeighbourCount neighbours, QueryCursor cursor) {
+        int query = cursor.next();
+        index.index.queryKnn(dataset.queryXs[query], dataset.queryYs[query], neighbours.k, bh::consume);
+    }
+
+    @Benchmark
+    public Object benchmarkSQAG1nn(BenchmarkDataset dataset, GridIndex index, Query1nnCursor cursor) {
+        int query = cursor.next();
+        return index.index.query1nn(dataset.queryXs[query], dataset.queryYs[query]);
+    }
+
+    @Benchmark
+    public void benchmarkSQAGIteratorKnn(Blackhole bh, BenchmarkDataset dataset, GridIndex index, NeighbourCount neighbours, QueryCursor cursor) {
+        int query = cursor.next();
+        Iterator<Map.@NotNull Entry<Float, Float>> it = index.index.queryKnn(dataset.queryXs[query], dataset.queryYs[query]);
+        for (int j = 0; j < neighbours.k && it.hasNext(); j++) {
+            bh.consume(it.next());
+        }
+    }
+
+    @Benchmark
+    public void benchmarkSQAGKnn(Blackhole bh, BenchmarkDataset dataset, GridIndex index, NeighbourCount neighbours, QueryCursor cursor) {
+        int query = cursor.next();
+        index.index.queryKnn(dataset.queryXs[query], dataset.queryYs[query], neighbours.k, bh::consume);
+    }
+
+    @Benchmark
+    public int benchmarkSQAGKnnApproximate(BenchmarkDataset dataset, GridIndex index, NeighbourCount neighbours, Approximation approximation, QueryCursor cursor) {
+        int query = cursor.next();
+        return index.index.queryKnnApproximate(dataset.queryXs[query], dataset.queryYs[query], neighbours.k, approximation.epsilon, cursor.ids, cursor.dist2);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Benchmarks.BATCH_SIZE)
+    public void benchmarkSQAGKnnBatch(Blackhole bh, GridIndex index, NeighbourCount neighbours, BatchBuffers buffers) {
+        index.index.queryKnnBatch(buffers.queryXs, buffers.queryYs, neighbours.k, buffers.outIndices, buffers.outDist2);
+        bh.consume(buffers.outIndices);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Benchmarks.BATCH_SIZE)
+    public void benchmarkSQAGKnnBatchParallel(Blackhole bh, GridIndex index, NeighbourCount neighbours, BatchBuffers buffers) {
+        index.index.queryKnnBatch(buffers.queryXs, buffers.queryYs, neighbours.k, buffers.outIndices, buffers.outDist2, ForkJoinPool.commonPool());
+        bh.consume(buffers.outIndices);
+    }
+
+    @Benchmark
+    public int benchmarkSQAGKnnMatching(BenchmarkDataset dataset, CategoryIndex index, NeighbourCount neighbours, QueryCursor cursor) {
+        int query = cursor.next();
+        return index.index.queryKnnMatching(dataset.queryXs[query], dataset.queryYs[query], neighbours.k, 1, cursor.ids, cursor.dist2);
+    }
+
     @Benchmark
-    @BenchmarkMode(Mode.SampleTime)
-    @Warmup(iterations = 1)
-    public void benchmarkSQAL40nn(Blackhole bh) {
-        final int starCount = 50_000;
-        
-        TestStarGenerator generator;
-        try {
-            generator = new TestStarGenerator();
-        } catch (IOException e) {
-            throw new UncheckedIOException(e);
-        }
-        List<Map.Entry<Float, Float>> stars = generator.generateStars(starCount);
-        List<PointObjectPair<Map.Entry<Float, Float>>> points = new ArrayList<>(stars.size());
-        for (Map.Entry<Float, Float> star : stars) {
-            points.add(new PointObjectPair<>(star, star.getKey(), star.getValue()));
-        }
-        SpatialQueryArrayLegacy<Map.Entry<Float, Float>> query = new SpatialQueryArrayLegacy<>(points);
-
-        ThreadLocalRandom random = ThreadLocalRandom.current();
-        float width = generator.getMapWidth(starCount);
-        float height = generator.getMapHeight(starCount);
-        for (int i = 0; i < starCount; i++) {
-            float x = random.nextFloat() * width;
-            float y = random.nextFloat() * height;
-            query.queryKnn(x, y, 40, bh::consume);
-        }
-    }
-
-    @Benchmark
-    @BenchmarkMode(Mode.SampleTime)
-    @Warmup(iterations = 1)
-    public void benchmarkSQAL1nn50(Blackhole bh) {
-        final int starCount = 50_000;
-        TestStarGenerator generator;
-        try {
-            generator = new TestStarGenerator();
-        } catch (IOException e) {
-            throw new UncheckedIOException(e);
-        }
-        List<Map.Entry<Float, Float>> stars = generator.generateStars(starCount);
-        List<PointObjectPair<Map.Entry<Float, Float>>> points = new ArrayList<>(stars.size());
-        for (Map.Entry<Float, Float> star : stars) {
-            points.add(new PointObjectPair<>(star, star.getKey(), star.getValue()));
-        }
-        SpatialQueryArrayLegacy<Map.Entry<Float, Float>> query = new SpatialQueryArrayLegacy<>(points);
-
-        ThreadLocalRandom random = ThreadLocalRandom.current();
-        float width = generator.getMapWidth(starCount);
-        float height = generator.getMapHeight(starCount);
-        for (int i = 0; i < starCount * 50; i++) {
-            float x = random.nextFloat() * width;
-            float y = random.nextFloat() * height;
-            bh.consume(query.query1nn(x, y, 0, Float.MAX_VALUE));
-        }
-    }
-
-    @Benchmark
-    @BenchmarkMode(Mode.SampleTime)
-    @Warmup(iterations = 1)
-    public void benchmarkSQAG40nn(Blackhole bh) {
-        final int starCount = 50_000;
-        
-        TestStarGenerator generator;
-        try {
-            generator = new TestStarGenerator();
-        } catch (IOException e) {
-            throw new UncheckedIOException(e);
-        }
-        List<Map.Entry<Float, Float>> stars = generator.generateStars(starCount);
-        List<PointObjectPair<Map.@NotNull Entry<Float, Float>>> points = new ArrayList<>(stars.size());
-        for (Map.Entry<Float, Float> star : stars) {
-            points.add(new PointObjectPair<>(star, star.getKey(), star.getValue()));
-        }
-        float width = generator.getMapWidth(starCount);
-        float height = generator.getMapHeight(starCount);
-        SpatialQueryArray<Map.@NotNull Entry<Float, Float>> query = new SpatialQueryArray<>(points, 0, 0, width, height, 4, 4);
-
-        ThreadLocalRandom random = ThreadLocalRandom.current();
-        for (int i = 0; i < starCount; i++) {
-            float x = random.nextFloat() * width;
-            float y = random.nextFloat() * height;
-            query.queryKnn(x, y, 40, bh::consume);
-        }
-    }
-
-    @Benchmark
-    @BenchmarkMode(Mode.SampleTime)
-    @Warmup(iterations = 1)
-    public void benchmarkSQAG1nn50(Blackhole bh) {
-        final int starCount = 50_000;
-        TestStarGenerator generator;
-        try {
-            generator = new TestStarGenerator();
-        } catch (IOException e) {
-            throw new UncheckedIOException(e);
-        }
-        List<Map.Entry<Float, Float>> stars = generator.generateStars(starCount);
-        List<PointObjectPair<Map.@NotNull Entry<Float, Float>>> points = new ArrayList<>(stars.size());
-        for (Map.Entry<Float, Float> star : stars) {
-            points.add(new PointObjectPair<>(star, star.getKey(), star.getValue()));
-        }
-        float width = generator.getMapWidth(starCount);
-        float height = generator.getMapHeight(starCount);
-        SpatialQueryArray<Map.@NotNull Entry<Float, Float>> query = new SpatialQueryArray<>(points, 0, 0, width, height, 4, 4);
-
-        ThreadLocalRandom random = ThreadLocalRandom.current();
-        for (int i = 0; i < starCount * 50; i++) {
-            float x = random.nextFloat() * width;
-            float y = random.nextFloat() * height;
-            query.queryKnn(x, y, 1, bh::consume);
+    public int benchmarkSQAGKnnMatchingIterator(BenchmarkDataset dataset, CategoryIndex index, NeighbourCount neighbours, QueryCursor cursor) {
+        int query = cursor.next();
+        Iterator<@NotNull Integer> it = index.index.queryKnn(dataset.queryXs[query], dataset.queryYs[query]);
+        int found = 0;
+        while (found < neighbours.k && it.hasNext()) {
+            int id = it.next();
+            if ((index.masks[id] & 1) != 0) {
+                cursor.ids[found++] = id;
+            }
         }
+        return found;
+    }
+
+    @Benchmark
+    public void benchmarkSQAGKnnPartialConsumer(Blackhole bh, BenchmarkDataset dataset, GridIndex index, PartialRead partial, Query1nnCursor cursor) {
+        int query = cursor.next();
+        partial.remaining = partial.read;
+        index.index.queryKnn(dataset.queryXs[query], dataset.queryYs[query], partial.k, (element) -> {
+            if (partial.remaining > 0) {
+                partial.remaining--;
+                bh.consume(element);
+            }
+        });
+    }
+
+    @Benchmark
+    public void benchmarkSQAGKnnPartialWhile(Blackhole bh, BenchmarkDataset dataset, GridIndex index, PartialRead partial, Query1nnCursor cursor) {
+        int query = cursor.next();
+        partial.remaining = partial.read;
+        index.index.queryKnnWhile(dataset.queryXs[query], dataset.queryYs[query], partial.k, (element) -> {
+            bh.consume(element);
+            return --partial.remaining > 0;
+        });
+    }
+
+    @Benchmark
+    public int benchmarkSQAGKnnPrimitive(BenchmarkDataset dataset, PrimitiveGridIndex index, NeighbourCount neighbours, QueryCursor cursor) {
+        int query = cursor.next();
+        return index.index.queryKnn(dataset.queryXs[query], dataset.queryYs[query], neighbours.k, cursor.ids, cursor.dist2);
+    }
+
+    @Benchmark
+    public int benchmarkSQAGKnnPath(GridIndex index, NeighbourCount neighbours, QueryPath path, QueryCursor cursor) {
+        int query = cursor.next();
+        return index.index.queryKnn(path.xs[query], path.ys[query], neighbours.k, cursor.ids, cursor.dist2);
+    }
+
+    @Benchmark
+    public int benchmarkSQAGOrderedKnn(BenchmarkDataset dataset, OrderedGridIndex index, NeighbourCount neighbours, QueryCursor cursor) {
+        int query = cursor.next();
+        return index.index.queryKnn(dataset.queryXs[query], dataset.queryYs[query], neighbours.k, cursor.ids, cursor.dist2);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Benchmarks.BATCH_SIZE)
+    public void benchmarkSQAGOrderedKnnBatch(Blackhole bh, OrderedGridIndex index, NeighbourCount neighbours, BatchBuffers buffers) {
+        index.index.queryKnnBatch(buffers.queryXs, buffers.queryYs, neighbours.k, buffers.outIndices, buffers.outDist2);
+        bh.consume(buffers.outIndices);
+    }
+
+    @Benchmark
+    public Object benchmarkSQAGRing1nn(BenchmarkDataset dataset, GridIndex index, Query1nnCursor cursor) {
+        int query = cursor.next();
+        return index.index.query1nn(dataset.queryXs[query], dataset.queryYs[query], 0, Float.MAX_VALUE);
+    }
+
+    @Benchmark
+    public Object benchmarkSQAL1nn(BenchmarkDataset dataset, LegacyIndex index, Query1nnCursor cursor) {
+        int query = cursor.next();
+        return index.index.query1nn(dataset.queryXs[query], dataset.queryYs[query], 0, Float.MAX_VALUE);
+    }
+
+    @Benchmark
+    public void benchmarkSQALKnn(Blackhole bh, BenchmarkDataset dataset, LegacyIndex index, NeighbourCount neighbours, QueryCursor cursor) {
+        int query = cursor.next();
+        index.index.queryKnn(dataset.queryXs[query], dataset.queryYs[query], neighbours.k, bh::consume);
+    }
+
+    @Benchmark
+    public Object benchmarkVoronoi1nn(BenchmarkDataset dataset, VoronoiIndex index, Query1nnCursor cursor) {
+        int query = cursor.next();
+        return index.raster.query1nn(dataset.queryXs[query], dataset.queryYs[query]);
     }
 }
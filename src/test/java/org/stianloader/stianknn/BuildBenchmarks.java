@@ -0,0 +1,100 @@
+package org.stianloader.stianknn;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.jetbrains.annotations.NotNull;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the time it takes to build the indices from a {@link BenchmarkDataset}, independently
+ * of the time queries take (see {@link Benchmarks}).
+ * Sequential builds are compared against builds on the common {@link ForkJoinPool} and against
+ * memory-mapping a previously written index. Republishing a {@link SnapshotSpatialQueryArray} measures
+ * rebuilds which reuse the arrays of the retired snapshot.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@Fork(1)
+@Measurement(iterations = 5)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 2)
+public class BuildBenchmarks {
+
+    private BenchmarkDataset dataset;
+    private Path mappedFile;
+    private GridParameters parameters;
+    private SnapshotSpatialQueryArray<Map.@NotNull Entry<Float, Float>> snapshots;
+
+    @Benchmark
+    public SpatialKDTree<Map.@NotNull Entry<Float, Float>> benchmarkKDTBuild() {
+        return new SpatialKDTree<>(this.dataset.points);
+    }
+
+    @Benchmark
+    public SpatialQueryArrayLegacy<Map.@NotNull Entry<Float, Float>> benchmarkLegacyBuild() {
+        return new SpatialQueryArrayLegacy<>(this.dataset.points);
+    }
+
+    @Benchmark
+    public SpatialQueryArrayLegacy<Map.@NotNull Entry<Float, Float>> benchmarkLegacyBuildParallel() {
+        return new SpatialQueryArrayLegacy<>(this.dataset.points, ForkJoinPool.commonPool());
+    }
+
+    @Benchmark
+    public MappedSpatialQueryArray<Map.@NotNull Entry<Float, Float>> benchmarkMappedLoad() throws IOException {
+        return MappedSpatialQueryArray.map(this.mappedFile, id -> this.dataset.points.get(id).object);
+    }
+
+    @Benchmark
+    public SpatialQueryArray<Map.@NotNull Entry<Float, Float>> benchmarkSQAGBuild() {
+        return new SpatialQueryArray<>(this.dataset.points, this.parameters);
+    }
+
+    @Benchmark
+    public SpatialQueryArray<Map.@NotNull Entry<Float, Float>> benchmarkSQAGBuildParallel() {
+        return SpatialQueryArray.build(this.dataset.points, this.parameters, ForkJoinPool.commonPool());
+    }
+
+    @Benchmark
+    public GridParameters benchmarkSQAGDeriveParameters() {
+        return GridParameters.derive(this.dataset.points, 40);
+    }
+
+    @Benchmark
+    public SpatialQueryArray<Map.@NotNull Entry<Float, Float>> benchmarkSQAGRepublish() {
+        return this.snapshots.publish(this.dataset.points, this.parameters);
+    }
+
+    @Setup
+    public void setup(BenchmarkDataset dataset) throws IOException {
+        this.dataset = dataset;
+        this.parameters = GridParameters.derive(dataset.points, 40);
+        this.snapshots = new SnapshotSpatialQueryArray<>(new SpatialQueryArray<>(dataset.points, this.parameters), null);
+        this.mappedFile = Files.createTempFile("stianknn-benchmark", ".bin");
+        try (FileChannel channel = FileChannel.open(this.mappedFile, StandardOpenOption.WRITE)) {
+            new SpatialQueryArray<>(dataset.points, this.parameters).writeTo(channel);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(this.mappedFile);
+    }
+}
@@ -0,0 +1,106 @@
+package org.stianloader.stianknn;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.jetbrains.annotations.NotNull;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks a single shared {@link SpatialQueryArray} being queried by a varying amount of threads.
+ * The throughput reported per thread count shows how well querying scales across cores.
+ */
+@State(Scope.Benchmark)
+public class ConcurrentBenchmarks {
+
+    @State(Scope.Thread)
+    public static class ThreadContext {
+        public final SpatialQueryArray.QueryContext<Map.@NotNull Entry<Float, Float>> context = new SpatialQueryArray.QueryContext<>();
+    }
+
+    private static final int STAR_COUNT = 50_000;
+
+    private float height;
+    private SpatialQueryArray<Map.@NotNull Entry<Float, Float>> query;
+    private float width;
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @Warmup(iterations = 1)
+    @Threads(1)
+    public void benchmarkSQAG40nnThreads1(Blackhole bh, ThreadContext ctx) {
+        this.query40nn(bh, ctx);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @Warmup(iterations = 1)
+    @Threads(2)
+    public void benchmarkSQAG40nnThreads2(Blackhole bh, ThreadContext ctx) {
+        this.query40nn(bh, ctx);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @Warmup(iterations = 1)
+    @Threads(4)
+    public void benchmarkSQAG40nnThreads4(Blackhole bh, ThreadContext ctx) {
+        this.query40nn(bh, ctx);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @Warmup(iterations = 1)
+    @Threads(Threads.MAX)
+    public void benchmarkSQAG40nnThreadsMax(Blackhole bh, ThreadContext ctx) {
+        this.query40nn(bh, ctx);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @Warmup(iterations = 1)
+    @Threads(Threads.MAX)
+    public void benchmarkSQAG40nnThreadsMaxThreadLocal(Blackhole bh) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        float x = random.nextFloat() * this.width;
+        float y = random.nextFloat() * this.height;
+        this.query.queryKnn(x, y, 40, bh::consume);
+    }
+
+    private void query40nn(Blackhole bh, ThreadContext ctx) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        float x = random.nextFloat() * this.width;
+        float y = random.nextFloat() * this.height;
+        this.query.queryKnn(x, y, 40, bh::consume, ctx.context);
+    }
+
+    @Setup
+    public void setup() {
+        TestStarGenerator generator;
+        try {
+            generator = new TestStarGenerator();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        List<Map.Entry<Float, Float>> stars = generator.generateStars(ConcurrentBenchmarks.STAR_COUNT);
+        List<PointObjectPair<Map.@NotNull Entry<Float, Float>>> points = new ArrayList<>(stars.size());
+        for (Map.Entry<Float, Float> star : stars) {
+            points.add(new PointObjectPair<>(star, star.getKey(), star.getValue()));
+        }
+        this.width = generator.getMapWidth(ConcurrentBenchmarks.STAR_COUNT);
+        this.height = generator.getMapHeight(ConcurrentBenchmarks.STAR_COUNT);
+        this.query = new SpatialQueryArray<>(points, 0, 0, this.width, this.height, 4, 4);
+    }
+}
@@ -8,8 +8,17 @@ import java.net.URLClassLoader;
 public class JMHTestEntry {
     public static void main(String[] args) throws IOException {
         URLClassLoader classLoader = (URLClassLoader) JMHTestEntry.class.getClassLoader();
+        String specificationVersion = System.getProperty("java.specification.version");
+        int javaVersion = Integer.parseInt(specificationVersion.startsWith("1.") ? specificationVersion.substring(2) : specificationVersion);
         StringBuilder classpath = new StringBuilder();
         for (URL url : classLoader.getURLs()) {
+            // Class directories are not multi-release aware, so the versioned classes need to be put in front of them manually
+            for (int version = javaVersion; version > 8; version--) {
+                File versionedDirectory = new File(url.getPath(), "META-INF/versions/" + version);
+                if (versionedDirectory.isDirectory()) {
+                    classpath.append(versionedDirectory.getPath()).append(File.pathSeparator);
+                }
+            }
             classpath.append(url.getPath()).append(File.pathSeparator);
         }
         System.setProperty("java.class.path", classpath.toString());
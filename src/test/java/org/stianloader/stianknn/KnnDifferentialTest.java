@@ -0,0 +1,1253 @@
+package org.stianloader.stianknn;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Compares the K nearest neighbours found by {@link SpatialQueryArray} in every {@link SpatialQueryArray.SearchMode}
+ * against a brute-force search over all points of every {@link BenchmarkDataset.Distribution}.
+ * Query points are also placed outside of the bounds of the dataset, and cell sizes are varied such that
+ * both sparse and subdivided cells are covered, with cells laid out both row by row and in Morton order.
+ *
+ * <p>The K nearest neighbour graph computed by {@link SpatialQueryArray#queryKnnGraph(int, int[], float[], ForkJoinPool)}
+ * is in turn compared against the neighbours found by querying each point separately, and the nearest neighbours
+ * found through a {@link VoronoiRaster} are compared against the brute-force search as well. A {@link CoherentKnnQuery}
+ * follows a random walk which occasionally returns to earlier positions, and is compared against querying the index directly.
+ * Batch queries must yield identical results whether they are executed on the calling thread or split across a pool.
+ * Approximate queries are checked against the error bound they guarantee, alongside of the fraction of true neighbours they return.
+ * Queries filtered by category masks are compared against a brute-force search over the matching points.
+ * Indices are written to a file and queried through a {@link MappedSpatialQueryArray}, which must reject
+ * files whose offset tables were corrupted.
+ * Radius and rectangle queries of both {@link SpatialQueryArray} and {@link SpatialQueryArrayLegacy} are compared
+ * against the set of points found by a brute-force search, including areas extending beyond the bounds of the grid
+ * and areas whose boundary passes exactly through points.
+ * The incremental iterator of {@link SpatialQueryArray#queryKnn(float, float)} must yield a prefix of the points sorted
+ * by their distance, including within an index storing every point twice, such that every distance is tied.
+ * The grid indices and a {@link SpatialKDTree} are compared against the brute-force search through every query of {@link SpatialIndexKNN}.
+ * The {@link SpatialRingIndex1NN} queries of all three indices are compared against the brute-force search as well, using
+ * rings bounded by the distances of actual points such that both the inclusive inner bound and the exclusive outer bound are exercised.
+ * A {@link MutableSpatialQueryArray} is modified through random insertions, removals and moves, and queried against the
+ * brute-force search over the points alive at the time.
+ * Indices built on a pool must store their points in the same order as indices built on the calling thread.
+ * Lastly, a {@link SnapshotSpatialQueryArray} is queried while new snapshots are published, checking that every
+ * result stems from a single snapshot.
+ *
+ * <p>Neighbours with equal distance may be returned in any order, so only the distances are compared.
+ */
+public class KnnDifferentialTest {
+
+    private static final float[] APPROXIMATION_EPSILONS = {0.1F, 0.5F, 2};
+    private static final int[] BATCH_NEIGHBOUR_COUNTS = {1, 10, 40};
+    /**
+     * The amount of query points of the batches queried by {@link #checkBatch(BenchmarkDataset, SpatialQueryArray, String)},
+     * which is large enough for batches to be split across the tasks of a pool.
+     */
+    private static final int BATCH_QUERY_COUNT = 10000;
+    private static final float[] COHERENT_MARGINS = {0.25F, 2};
+    private static final int[] GRAPH_NEIGHBOUR_COUNTS = {1, 10, 40};
+    /**
+     * The masks queried by {@link #checkMatching(BenchmarkDataset, SpatialQueryArray, String)}, where the bit 4 is only set
+     * for few points and the bit 5 for no point at all.
+     */
+    /**
+     * The amount of insertions, removals and moves applied to the {@link MutableSpatialQueryArray} between two rounds of queries.
+     */
+    private static final int MUTABLE_OPERATIONS = 2000;
+    private static final int MUTABLE_ROUNDS = 20;
+    private static final int[] MATCHING_MASKS = {1, 0b0110, 1 << 4, 1 << 5, 0, -1};
+    private static final int[] NEIGHBOUR_COUNTS = {1, 2, 10, 40, 300, 1000};
+    /**
+     * The amount of points of the datasets built by {@link #checkParallelBuild(BenchmarkDataset, String)}, which is large
+     * enough for the points to be split into multiple chunks when building on a pool.
+     */
+    private static final int PARALLEL_POINT_COUNT = 100000;
+    private static final int POINT_COUNT = 20000;
+    private static final int QUERY_COUNT = 2000;
+    /**
+     * The amount of distinct positions the points of the snapshots published by {@link #checkSnapshots(BenchmarkDataset, String)} are shifted to.
+     */
+    private static final int SNAPSHOT_SHIFTS = 4;
+    private static final float[] TEXEL_SCALES = {0.25F, 1, 4};
+
+    private static void check(@NotNull BenchmarkDataset dataset, @NotNull SpatialQueryArray<?> index, @NotNull String description) {
+        @SuppressWarnings("unchecked")
+        SpatialQueryArray<Object> grid = (SpatialQueryArray<Object>) index;
+        SpatialQueryArray.QueryContext<Object> context = new SpatialQueryArray.QueryContext<>();
+        Random random = new Random(description.hashCode());
+        float[] expected = new float[dataset.xs.length];
+        int mismatches = 0;
+
+        for (int query = 0; query < KnnDifferentialTest.QUERY_COUNT; query++) {
+            // Cover a slightly larger area than the dataset so that the edges of the grid are exercised, too
+            float x = (random.nextFloat() * 1.2F - 0.1F) * dataset.width;
+            float y = (random.nextFloat() * 1.2F - 0.1F) * dataset.height;
+            int k = KnnDifferentialTest.NEIGHBOUR_COUNTS[query % KnnDifferentialTest.NEIGHBOUR_COUNTS.length];
+
+            for (int i = 0; i < expected.length; i++) {
+                expected[i] = KnnDifferentialTest.distance2(dataset, i, x, y);
+            }
+            Arrays.sort(expected);
+            int expectedCount = Math.min(k, expected.length);
+
+            int[] ids = new int[k];
+            float[] dist2 = new float[k];
+            for (SpatialQueryArray.SearchMode mode : SpatialQueryArray.SearchMode.values()) {
+                context.setSearchMode(mode);
+                int found = grid.queryKnn(x, y, k, ids, dist2, context);
+                boolean mismatch = found != expectedCount;
+                for (int i = 0; i < found && !mismatch; i++) {
+                    mismatch = dist2[i] != expected[i] || KnnDifferentialTest.distance2(dataset, ids[i], x, y) != dist2[i];
+                }
+
+                if (mismatch) {
+                    if (mismatches++ < 10) {
+                        System.err.println("Mismatch for " + description + ", mode " + mode + ", query (" + x + ", " + y + "), k = " + k
+                                + ": expected " + expectedCount + " neighbours up to a squared distance of " + expected[expectedCount - 1]
+                                + ", got " + found + " neighbours up to a squared distance of " + (found == 0 ? Float.NaN : dist2[found - 1]));
+                    }
+                }
+            }
+        }
+
+        System.out.println(description + ": " + grid.getParameters() + ", " + mismatches + " mismatches");
+        if (mismatches != 0) {
+            throw new AssertionError(mismatches + " mismatches for " + description);
+        }
+    }
+
+    private static void checkApproximate(@NotNull BenchmarkDataset dataset, @NotNull SpatialQueryArray<?> index, @NotNull String description) {
+        @SuppressWarnings("unchecked")
+        SpatialQueryArray<Object> grid = (SpatialQueryArray<Object>) index;
+        SpatialQueryArray.QueryContext<Object> context = new SpatialQueryArray.QueryContext<>();
+        Random random = new Random(description.hashCode());
+        float[] expected = new float[dataset.xs.length];
+        long[] recalled = new long[KnnDifferentialTest.APPROXIMATION_EPSILONS.length];
+        long requested = 0;
+        int mismatches = 0;
+
+        for (int query = 0; query < KnnDifferentialTest.QUERY_COUNT; query++) {
+            float x = (random.nextFloat() * 1.2F - 0.1F) * dataset.width;
+            float y = (random.nextFloat() * 1.2F - 0.1F) * dataset.height;
+            int k = KnnDifferentialTest.NEIGHBOUR_COUNTS[query % KnnDifferentialTest.NEIGHBOUR_COUNTS.length];
+
+            for (int i = 0; i < expected.length; i++) {
+                expected[i] = KnnDifferentialTest.distance2(dataset, i, x, y);
+            }
+            Arrays.sort(expected);
+            int expectedCount = Math.min(k, expected.length);
+            requested += expectedCount * SpatialQueryArray.SearchMode.values().length;
+
+            int[] ids = new int[k];
+            float[] dist2 = new float[k];
+            for (int e = 0; e < KnnDifferentialTest.APPROXIMATION_EPSILONS.length; e++) {
+                float epsilon = KnnDifferentialTest.APPROXIMATION_EPSILONS[e];
+                // Allow for the rounding of the squared distances, which are compared in single precision
+                float bound = (1 + epsilon) * (1 + epsilon) * 1.00001F;
+                for (SpatialQueryArray.SearchMode mode : SpatialQueryArray.SearchMode.values()) {
+                    context.setSearchMode(mode);
+                    int found = grid.queryKnnApproximate(x, y, k, epsilon, ids, dist2, context);
+                    boolean mismatch = found != expectedCount;
+                    for (int i = 0; i < found && !mismatch; i++) {
+                        mismatch = dist2[i] > expected[i] * bound || KnnDifferentialTest.distance2(dataset, ids[i], x, y) != dist2[i]
+                                || (i != 0 && dist2[i] < dist2[i - 1]);
+                        if (dist2[i] <= expected[expectedCount - 1]) {
+                            recalled[e]++;
+                        }
+                    }
+
+                    if (mismatch && mismatches++ < 10) {
+                        System.err.println("Approximate mismatch for " + description + ", mode " + mode + ", epsilon = " + epsilon
+                                + ", query (" + x + ", " + y + "), k = " + k);
+                    }
+                }
+            }
+        }
+
+        StringBuilder recall = new StringBuilder();
+        for (int e = 0; e < KnnDifferentialTest.APPROXIMATION_EPSILONS.length; e++) {
+            recall.append(e == 0 ? "" : ", ").append("recall ").append(String.format("%.4f", (double) recalled[e] / requested))
+                .append(" at epsilon ").append(KnnDifferentialTest.APPROXIMATION_EPSILONS[e]);
+        }
+        System.out.println(description + " (approximate): " + mismatches + " mismatches, " + recall);
+        if (mismatches != 0) {
+            throw new AssertionError(mismatches + " approximate mismatches for " + description);
+        }
+    }
+
+    /**
+     * Compare the results of batches queried on the calling thread, with a caller-supplied context and split across
+     * a pool against each other, which must be identical. Every eighth query of the batch is also compared against
+     * the brute-force search.
+     */
+    private static void checkBatch(@NotNull BenchmarkDataset dataset, @NotNull SpatialQueryArray<?> index, @NotNull String description) {
+        @SuppressWarnings("unchecked")
+        SpatialQueryArray<Object> grid = (SpatialQueryArray<Object>) index;
+        Random random = new Random(description.hashCode());
+        float[] xs = new float[KnnDifferentialTest.BATCH_QUERY_COUNT];
+        float[] ys = new float[KnnDifferentialTest.BATCH_QUERY_COUNT];
+        for (int query = 0; query < KnnDifferentialTest.BATCH_QUERY_COUNT; query++) {
+            xs[query] = (random.nextFloat() * 1.2F - 0.1F) * dataset.width;
+            ys[query] = (random.nextFloat() * 1.2F - 0.1F) * dataset.height;
+        }
+
+        float[] expected = new float[dataset.xs.length];
+        int mismatches = 0;
+        for (int k : KnnDifferentialTest.BATCH_NEIGHBOUR_COUNTS) {
+            int[] ids = new int[KnnDifferentialTest.BATCH_QUERY_COUNT * k];
+            float[] dist2 = new float[KnnDifferentialTest.BATCH_QUERY_COUNT * k];
+            grid.queryKnnBatch(xs, ys, k, ids, dist2);
+
+            int[] contextIds = new int[ids.length];
+            float[] contextDist2 = new float[dist2.length];
+            grid.queryKnnBatch(xs, ys, k, contextIds, contextDist2, new SpatialQueryArray.QueryContext<>());
+
+            int[] pooledIds = new int[ids.length];
+            float[] pooledDist2 = new float[dist2.length];
+            grid.queryKnnBatch(xs, ys, k, pooledIds, pooledDist2, ForkJoinPool.commonPool());
+
+            if (!Arrays.equals(ids, contextIds) || !Arrays.equals(dist2, contextDist2)) {
+                mismatches++;
+                System.err.println("Batch mismatch for " + description + ", k = " + k + ": The results differ when using a caller-supplied context");
+            }
+            if (!Arrays.equals(ids, pooledIds) || !Arrays.equals(dist2, pooledDist2)) {
+                mismatches++;
+                System.err.println("Batch mismatch for " + description + ", k = " + k + ": The results differ when using a pool");
+            }
+
+            for (int query = 0; query < KnnDifferentialTest.BATCH_QUERY_COUNT; query += 8) {
+                KnnDifferentialTest.distances2(dataset, xs[query], ys[query], expected);
+                boolean mismatch = false;
+                for (int i = query * k, j = 0; j < k && !mismatch; i++, j++) {
+                    mismatch = dist2[i] != expected[j] || KnnDifferentialTest.distance2(dataset, ids[i], xs[query], ys[query]) != dist2[i];
+                }
+
+                if (mismatch && mismatches++ < 10) {
+                    System.err.println("Batch mismatch for " + description + ", query (" + xs[query] + ", " + ys[query] + "), k = " + k);
+                }
+            }
+        }
+
+        System.out.println(description + " (batch): " + mismatches + " mismatches");
+        if (mismatches != 0) {
+            throw new AssertionError(mismatches + " batch mismatches for " + description);
+        }
+    }
+
+    private static void checkCoherent(@NotNull BenchmarkDataset dataset, @NotNull SpatialQueryArray<?> index, @NotNull String description) {
+        @SuppressWarnings("unchecked")
+        SpatialQueryArray<Object> grid = (SpatialQueryArray<Object>) index;
+        SpatialQueryArray.QueryContext<Object> context = new SpatialQueryArray.QueryContext<>();
+        float spacing = (float) Math.sqrt(dataset.width * dataset.height / dataset.xs.length);
+        Random random = new Random(description.hashCode());
+        int mismatches = 0;
+        long hits = 0;
+
+        for (int k : KnnDifferentialTest.GRAPH_NEIGHBOUR_COUNTS) {
+            int[] expectedIds = new int[k];
+            float[] expected = new float[k];
+            int[] ids = new int[k];
+            float[] dist2 = new float[k];
+            for (float margin : KnnDifferentialTest.COHERENT_MARGINS) {
+                CoherentKnnQuery<Object> query = new CoherentKnnQuery<>(grid, k, spacing * margin, 4);
+                float[] visitedXs = new float[8];
+                float[] visitedYs = new float[8];
+                float x = dataset.width / 2;
+                float y = dataset.height / 2;
+
+                for (int step = 0; step < KnnDifferentialTest.QUERY_COUNT; step++) {
+                    if (step % 50 == 49) {
+                        // Return to a recently visited position, which may still be cached
+                        int visited = random.nextInt(visitedXs.length);
+                        x = visitedXs[visited];
+                        y = visitedYs[visited];
+                    } else {
+                        x = Math.max(-0.1F * dataset.width, Math.min(1.1F * dataset.width, x + (random.nextFloat() - 0.5F) * spacing * margin));
+                        y = Math.max(-0.1F * dataset.height, Math.min(1.1F * dataset.height, y + (random.nextFloat() - 0.5F) * spacing * margin));
+                    }
+                    visitedXs[step % visitedXs.length] = x;
+                    visitedYs[step % visitedYs.length] = y;
+
+                    int expectedCount = grid.queryKnn(x, y, k, expectedIds, expected, context);
+                    int found = query.queryKnn(x, y, ids, dist2);
+                    boolean mismatch = found != expectedCount;
+                    for (int i = 0; i < found && !mismatch; i++) {
+                        mismatch = dist2[i] != expected[i] || KnnDifferentialTest.distance2(dataset, ids[i], x, y) != dist2[i];
+                    }
+
+                    if (mismatch && mismatches++ < 10) {
+                        System.err.println("Coherent mismatch for " + description + ", k = " + k + ", margin = " + query.getMargin() + ", query (" + x + ", " + y + ")");
+                    }
+                }
+                hits += query.getCoherentHits() + query.getCacheHits();
+            }
+        }
+
+        int queries = KnnDifferentialTest.GRAPH_NEIGHBOUR_COUNTS.length * KnnDifferentialTest.COHERENT_MARGINS.length * KnnDifferentialTest.QUERY_COUNT;
+        System.out.println(description + " (coherent): " + mismatches + " mismatches, " + hits + " of " + queries + " queries without a full search");
+        if (mismatches != 0) {
+            throw new AssertionError(mismatches + " coherent mismatches for " + description);
+        }
+    }
+
+    private static void checkGraph(@NotNull BenchmarkDataset dataset, @NotNull SpatialQueryArray<?> index, @NotNull String description) {
+        @SuppressWarnings("unchecked")
+        SpatialQueryArray<Object> grid = (SpatialQueryArray<Object>) index;
+        SpatialQueryArray.QueryContext<Object> context = new SpatialQueryArray.QueryContext<>();
+        int pointCount = grid.getPointCount();
+        int mismatches = 0;
+
+        for (int k : KnnDifferentialTest.GRAPH_NEIGHBOUR_COUNTS) {
+            int[] expectedIds = new int[k + 1];
+            float[] expected = new float[k + 1];
+            for (ForkJoinPool pool : new ForkJoinPool[] {null, ForkJoinPool.commonPool()}) {
+                int[] ids = new int[pointCount * k];
+                float[] dist2 = new float[pointCount * k];
+                grid.queryKnnGraph(k, ids, dist2, pool);
+
+                for (int id = 0; id < pointCount; id++) {
+                    // The point itself is the first of the K + 1 nearest points, or at least shares its distance of 0
+                    int expectedCount = grid.queryKnn(dataset.xs[id], dataset.ys[id], k + 1, expectedIds, expected, context) - 1;
+                    boolean mismatch = false;
+                    for (int i = 0; i < k && !mismatch; i++) {
+                        int offset = id * k + i;
+                        if (i >= expectedCount) {
+                            mismatch = ids[offset] != -1 || dist2[offset] != Float.POSITIVE_INFINITY;
+                        } else {
+                            mismatch = ids[offset] == id || dist2[offset] != expected[i + 1]
+                                    || KnnDifferentialTest.distance2(dataset, ids[offset], dataset.xs[id], dataset.ys[id]) != dist2[offset];
+                        }
+                    }
+
+                    if (mismatch && mismatches++ < 10) {
+                        System.err.println("Graph mismatch for " + description + ", k = " + k + ", pool = " + pool + ", point " + id);
+                    }
+                }
+            }
+        }
+
+        System.out.println(description + " (graph): " + mismatches + " mismatches");
+        if (mismatches != 0) {
+            throw new AssertionError(mismatches + " graph mismatches for " + description);
+        }
+    }
+
+    private static void checkRaster(@NotNull BenchmarkDataset dataset, @NotNull SpatialQueryArray<?> index, @NotNull String description) {
+        // Use the same layout, but with the ids as elements so that the distances of the found elements can be checked
+        SpatialQueryArray<@NotNull Integer> grid = SpatialQueryArray.ofCoordinates(dataset.xs, dataset.ys, index.getParameters());
+        float spacing = (float) Math.sqrt(dataset.width * dataset.height / dataset.xs.length);
+        Random random = new Random(description.hashCode());
+        int mismatches = 0;
+
+        for (float texelScale : KnnDifferentialTest.TEXEL_SCALES) {
+            for (ForkJoinPool pool : new ForkJoinPool[] {null, ForkJoinPool.commonPool()}) {
+                VoronoiRaster<@NotNull Integer> raster = VoronoiRaster.build(grid, spacing * texelScale, 16, pool);
+                for (int query = 0; query < KnnDifferentialTest.QUERY_COUNT; query++) {
+                    float x = (random.nextFloat() * 1.2F - 0.1F) * dataset.width;
+                    float y = (random.nextFloat() * 1.2F - 0.1F) * dataset.height;
+                    if ((query & 1) != 0) {
+                        // Query points exactly on a point or on the edges of the texels
+                        x = dataset.xs[random.nextInt(dataset.xs.length)];
+                        y = raster.getTexelSize() * random.nextInt(Math.max(1, (int) (dataset.height / raster.getTexelSize())));
+                    }
+
+                    float expected = Float.POSITIVE_INFINITY;
+                    for (int i = 0; i < dataset.xs.length; i++) {
+                        expected = Math.min(expected, KnnDifferentialTest.distance2(dataset, i, x, y));
+                    }
+
+                    Integer found = raster.query1nn(x, y);
+                    if ((found == null || KnnDifferentialTest.distance2(dataset, found, x, y) != expected) && mismatches++ < 10) {
+                        System.err.println("Raster mismatch for " + description + ", texel size " + raster.getTexelSize() + ", query (" + x + ", " + y + "): expected a squared distance of "
+                                + expected + ", got " + (found == null ? Float.NaN : KnnDifferentialTest.distance2(dataset, found, x, y)));
+                    }
+                }
+            }
+        }
+
+        System.out.println(description + " (raster): " + mismatches + " mismatches");
+        if (mismatches != 0) {
+            throw new AssertionError(mismatches + " raster mismatches for " + description);
+        }
+    }
+
+    /**
+     * Compare the elements yielded by the {@link SpatialQueryArray#queryKnn(float, float) incremental iterator} against
+     * the brute-force search, where the element of every point is its id. The index stores every point of the dataset
+     * {@code copies} times, the point with the id {@code i} being located at the position of the point {@code i % pointCount}
+     * of the dataset, so all copies of a point are tied.
+     */
+    private static void checkIterator(@NotNull BenchmarkDataset dataset, @NotNull SpatialQueryArray<@NotNull Integer> index, int copies, @NotNull String description) {
+        Random random = new Random(description.hashCode());
+        int pointCount = dataset.xs.length;
+        float[] expected = new float[pointCount];
+        boolean[] yielded = new boolean[pointCount * copies];
+        int mismatches = 0;
+
+        for (int query = 0; query < KnnDifferentialTest.QUERY_COUNT; query++) {
+            float x;
+            float y;
+            if ((query & 1) == 0) {
+                int center = random.nextInt(pointCount);
+                x = dataset.xs[center];
+                y = dataset.ys[center];
+            } else {
+                x = (random.nextFloat() * 1.2F - 0.1F) * dataset.width;
+                y = (random.nextFloat() * 1.2F - 0.1F) * dataset.height;
+            }
+            KnnDifferentialTest.distances2(dataset, x, y, expected);
+
+            // Occasionally exhaust the iterator, which must then have yielded every point exactly once
+            int count = query % 100 == 0 ? pointCount * copies : KnnDifferentialTest.NEIGHBOUR_COUNTS[query % KnnDifferentialTest.NEIGHBOUR_COUNTS.length];
+            Arrays.fill(yielded, false);
+            Iterator<@NotNull Integer> iterator = index.queryKnn(x, y);
+            int found = 0;
+            boolean mismatch = false;
+            while (found < count && iterator.hasNext() && !mismatch) {
+                int id = iterator.next();
+                mismatch = yielded[id] || KnnDifferentialTest.distance2(dataset, id % pointCount, x, y) != expected[found / copies];
+                yielded[id] = true;
+                found++;
+            }
+            mismatch |= found != count || (count == pointCount * copies && iterator.hasNext());
+
+            if (mismatch && mismatches++ < 10) {
+                System.err.println("Iterator mismatch for " + description + ", query (" + x + ", " + y + "): "
+                        + found + " of " + count + " elements matched");
+            }
+        }
+
+        System.out.println(description + " (iterator): " + mismatches + " mismatches");
+        if (mismatches != 0) {
+            throw new AssertionError(mismatches + " iterator mismatches for " + description);
+        }
+    }
+
+    /**
+     * Compare all K nearest neighbour queries of the {@link SpatialIndexKNN} interface against the brute-force search,
+     * where the elements of the index are the ids of the points.
+     */
+    private static void checkKnn(@NotNull BenchmarkDataset dataset, @NotNull SpatialIndexKNN<@NotNull Integer> index, @NotNull String description) {
+        Random random = new Random(description.hashCode());
+        float[] expected = new float[dataset.xs.length];
+        float[] queryXs = new float[KnnDifferentialTest.QUERY_COUNT];
+        float[] queryYs = new float[KnnDifferentialTest.QUERY_COUNT];
+        List<@NotNull Integer> found = new ArrayList<>();
+        int mismatches = 0;
+
+        for (int query = 0; query < KnnDifferentialTest.QUERY_COUNT; query++) {
+            float x = (random.nextFloat() * 1.2F - 0.1F) * dataset.width;
+            float y = (random.nextFloat() * 1.2F - 0.1F) * dataset.height;
+            int k = KnnDifferentialTest.NEIGHBOUR_COUNTS[query % KnnDifferentialTest.NEIGHBOUR_COUNTS.length];
+            queryXs[query] = x;
+            queryYs[query] = y;
+            KnnDifferentialTest.distances2(dataset, x, y, expected);
+            int expectedCount = Math.min(k, expected.length);
+
+            found.clear();
+            index.queryKnn(x, y, k, found::add);
+            boolean mismatch = !KnnDifferentialTest.isPrefix(dataset, found, x, y, expected, expectedCount);
+
+            Integer nearest = index.query1nn(x, y);
+            mismatch |= nearest == null || KnnDifferentialTest.distance2(dataset, nearest, x, y) != expected[0];
+
+            // Stop after a random amount of elements, which must be the nearest ones
+            int limit = 1 + random.nextInt(expectedCount);
+            found.clear();
+            index.queryKnnWhile(x, y, k, (id) -> {
+                found.add(id);
+                return found.size() < limit;
+            });
+            mismatch |= !KnnDifferentialTest.isPrefix(dataset, found, x, y, expected, limit);
+
+            if (mismatch && mismatches++ < 10) {
+                System.err.println("Mismatch for " + description + ", query (" + x + ", " + y + "), k = " + k + ", limit = " + limit);
+            }
+        }
+
+        for (int k : KnnDifferentialTest.BATCH_NEIGHBOUR_COUNTS) {
+            int[] ids = new int[KnnDifferentialTest.QUERY_COUNT * k];
+            float[] dist2 = new float[KnnDifferentialTest.QUERY_COUNT * k];
+            index.queryKnnBatch(queryXs, queryYs, k, ids, dist2);
+
+            for (int query = 0; query < KnnDifferentialTest.QUERY_COUNT; query++) {
+                float x = queryXs[query];
+                float y = queryYs[query];
+                KnnDifferentialTest.distances2(dataset, x, y, expected);
+                boolean mismatch = false;
+                for (int i = query * k, j = 0; j < k && !mismatch; i++, j++) {
+                    mismatch = dist2[i] != expected[j] || KnnDifferentialTest.distance2(dataset, ids[i], x, y) != dist2[i];
+                }
+
+                if (mismatch && mismatches++ < 10) {
+                    System.err.println("Batch mismatch for " + description + ", query (" + x + ", " + y + "), k = " + k);
+                }
+            }
+        }
+
+        System.out.println(description + ": " + mismatches + " mismatches");
+        if (mismatches != 0) {
+            throw new AssertionError(mismatches + " mismatches for " + description);
+        }
+    }
+
+    private static void checkMapped(@NotNull BenchmarkDataset dataset, @NotNull SpatialQueryArray<?> index, @NotNull String description) throws IOException {
+        if (index.getParameters().getCellOrder() != GridParameters.CellOrder.ROW_MAJOR) {
+            return; // Not supported by the file format
+        }
+
+        Path file = Files.createTempFile("knn-differential", ".sknn");
+        try {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                index.writeTo(channel);
+            }
+
+            MappedSpatialQueryArray<@NotNull Integer> mapped = MappedSpatialQueryArray.map(file, Integer::valueOf);
+            Random random = new Random(description.hashCode());
+            float[] expected = new float[dataset.xs.length];
+            int mismatches = 0;
+
+            for (int query = 0; query < KnnDifferentialTest.QUERY_COUNT; query++) {
+                float x = (random.nextFloat() * 1.2F - 0.1F) * dataset.width;
+                float y = (random.nextFloat() * 1.2F - 0.1F) * dataset.height;
+                int k = KnnDifferentialTest.NEIGHBOUR_COUNTS[query % KnnDifferentialTest.NEIGHBOUR_COUNTS.length];
+
+                for (int i = 0; i < expected.length; i++) {
+                    expected[i] = KnnDifferentialTest.distance2(dataset, i, x, y);
+                }
+                Arrays.sort(expected);
+                int expectedCount = Math.min(k, expected.length);
+
+                int[] ids = new int[k];
+                float[] dist2 = new float[k];
+                int found = mapped.queryKnn(x, y, k, ids, dist2);
+                boolean mismatch = found != expectedCount;
+                for (int i = 0; i < found && !mismatch; i++) {
+                    mismatch = dist2[i] != expected[i] || KnnDifferentialTest.distance2(dataset, ids[i], x, y) != dist2[i];
+                }
+
+                if (mismatch && mismatches++ < 10) {
+                    System.err.println("Mapped mismatch for " + description + ", query (" + x + ", " + y + "), k = " + k
+                            + ": expected " + expectedCount + " neighbours up to a squared distance of " + expected[expectedCount - 1]
+                            + ", got " + found + " neighbours up to a squared distance of " + (found == 0 ? Float.NaN : dist2[found - 1]));
+                }
+            }
+
+            // Every corruption of the offset tables must be detected when the file is loaded
+            byte[] contents = Files.readAllBytes(file);
+            ByteBuffer header = ByteBuffer.wrap(contents).order(ByteOrder.LITTLE_ENDIAN);
+            int cellCount = header.getInt(36) * header.getInt(40);
+            List<int[]> corruptions = new ArrayList<>();
+            corruptions.add(new int[] {MappedSpatialQueryArray.HEADER_SIZE + 4, -1});
+            corruptions.add(new int[] {MappedSpatialQueryArray.HEADER_SIZE + 4 * cellCount, header.getInt(44) + 1});
+            if (header.getInt(48) != 0) {
+                corruptions.add(new int[] {MappedSpatialQueryArray.HEADER_SIZE + 4 * (cellCount + 1), header.getInt(52)});
+            }
+
+            int undetected = 0;
+            for (int[] corruption : corruptions) {
+                ByteBuffer corrupt = ByteBuffer.wrap(contents.clone()).order(ByteOrder.LITTLE_ENDIAN);
+                corrupt.putInt(corruption[0], corruption[1]);
+                Files.write(file, corrupt.array());
+                try {
+                    MappedSpatialQueryArray.map(file, Integer::valueOf);
+                    undetected++;
+                    System.err.println("Undetected corruption for " + description + ": " + corruption[1] + " at byte " + corruption[0]);
+                } catch (IOException expectedException) {
+                    // Expected
+                }
+            }
+
+            System.out.println(description + " (mapped): " + mismatches + " mismatches, " + undetected + " undetected corruptions");
+            if (mismatches != 0 || undetected != 0) {
+                throw new AssertionError(mismatches + " mismatches and " + undetected + " undetected corruptions for the mapped " + description);
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private static void checkMatching(@NotNull BenchmarkDataset dataset, @NotNull SpatialQueryArray<?> index, @NotNull String description) {
+        Random random = new Random(description.hashCode());
+        int[] masks = new int[dataset.xs.length];
+        for (int i = 0; i < masks.length; i++) {
+            // Categories are loosely tied to the location of the points, so that the summaries of some cells exclude them
+            int category = (int) (dataset.xs[i] * 4 / dataset.width) + random.nextInt(2);
+            masks[i] = (1 << (category & 3)) | (random.nextInt(100) == 0 ? 1 << 4 : 0);
+        }
+
+        SpatialQueryArray<@NotNull Integer> grid = SpatialQueryArray.ofCoordinates(dataset.xs, dataset.ys, masks, index.getParameters(), null);
+        SpatialQueryArray.QueryContext<@NotNull Integer> context = new SpatialQueryArray.QueryContext<>();
+        float[] expected = new float[dataset.xs.length];
+        int mismatches = 0;
+
+        for (int query = 0; query < KnnDifferentialTest.QUERY_COUNT; query++) {
+            float x = (random.nextFloat() * 1.2F - 0.1F) * dataset.width;
+            float y = (random.nextFloat() * 1.2F - 0.1F) * dataset.height;
+            int k = KnnDifferentialTest.NEIGHBOUR_COUNTS[query % KnnDifferentialTest.NEIGHBOUR_COUNTS.length];
+            int mask = KnnDifferentialTest.MATCHING_MASKS[(query / KnnDifferentialTest.NEIGHBOUR_COUNTS.length) % KnnDifferentialTest.MATCHING_MASKS.length];
+
+            int expectedCount = 0;
+            for (int i = 0; i < expected.length; i++) {
+                if ((masks[i] & mask) != 0) {
+                    expected[expectedCount++] = KnnDifferentialTest.distance2(dataset, i, x, y);
+                }
+            }
+            Arrays.sort(expected, 0, expectedCount);
+            expectedCount = Math.min(k, expectedCount);
+
+            int[] ids = new int[k];
+            float[] dist2 = new float[k];
+            for (SpatialQueryArray.SearchMode mode : SpatialQueryArray.SearchMode.values()) {
+                context.setSearchMode(mode);
+                int found = grid.queryKnnMatching(x, y, k, mask, ids, dist2, context);
+                boolean mismatch = found != expectedCount;
+                for (int i = 0; i < found && !mismatch; i++) {
+                    mismatch = dist2[i] != expected[i] || KnnDifferentialTest.distance2(dataset, ids[i], x, y) != dist2[i] || (masks[ids[i]] & mask) == 0;
+                }
+
+                if (mismatch && mismatches++ < 10) {
+                    System.err.println("Matching mismatch for " + description + ", mode " + mode + ", mask = " + Integer.toBinaryString(mask)
+                            + ", query (" + x + ", " + y + "), k = " + k + ": expected " + expectedCount + " neighbours, got " + found);
+                }
+            }
+        }
+
+        System.out.println(description + " (matching): " + mismatches + " mismatches");
+        if (mismatches != 0) {
+            throw new AssertionError(mismatches + " matching mismatches for " + description);
+        }
+    }
+
+    /**
+     * Compare the points emitted by {@link SpatialRangeIndex#queryRadius(float, float, float, java.util.function.Consumer)} and
+     * {@link SpatialRangeIndex#queryRect(float, float, float, float, java.util.function.Consumer)} against the points found
+     * by a brute-force search, where the elements of the index are the ids of the points. Every point must be emitted exactly once.
+     */
+    /**
+     * Apply random insertions, removals and moves (both within a cell and across cells) to a {@link MutableSpatialQueryArray}
+     * and compare its queries against a brute-force search over the points which are alive after every round of modifications.
+     * The element of every point is the serial number of its insertion, while the batch queries report the handles of the points.
+     */
+    private static void checkMutable(@NotNull BenchmarkDataset dataset, @NotNull String description) {
+        Random random = new Random(description.hashCode());
+        int pointCount = dataset.xs.length;
+        float cellSize = Math.max(dataset.width, dataset.height) / 32;
+        MutableSpatialQueryArray<@NotNull Integer> index = new MutableSpatialQueryArray<>(0, 0, dataset.width, dataset.height, cellSize, cellSize);
+
+        int serialCount = pointCount / 4 + KnnDifferentialTest.MUTABLE_ROUNDS * KnnDifferentialTest.MUTABLE_OPERATIONS;
+        float[] serialXs = new float[serialCount];
+        float[] serialYs = new float[serialCount];
+        int[] handleSerials = new int[serialCount];
+        List<@NotNull Integer> handles = new ArrayList<>();
+        List<@NotNull Integer> removedHandles = new ArrayList<>();
+        int serial = 0;
+        int reusedHandles = 0;
+        int mismatches = 0;
+
+        int queryCount = KnnDifferentialTest.QUERY_COUNT / KnnDifferentialTest.MUTABLE_ROUNDS;
+        float[] queryXs = new float[queryCount];
+        float[] queryYs = new float[queryCount];
+        float[] expected = new float[serialCount];
+        List<@NotNull Integer> found = new ArrayList<>();
+
+        for (int round = 0; round <= KnnDifferentialTest.MUTABLE_ROUNDS; round++) {
+            int operations = round == 0 ? pointCount / 4 : KnnDifferentialTest.MUTABLE_OPERATIONS;
+            for (int operation = 0; operation < operations; operation++) {
+                int kind = round == 0 || handles.isEmpty() ? 0 : random.nextInt(4);
+                if (kind == 0) {
+                    int point = random.nextInt(pointCount);
+                    serialXs[serial] = dataset.xs[point];
+                    serialYs[serial] = dataset.ys[point];
+                    int handle = index.insert(serial, serialXs[serial], serialYs[serial]);
+                    if (removedHandles.remove((Integer) handle)) {
+                        reusedHandles++;
+                    } else if (handles.contains(handle)) {
+                        mismatches++;
+                        System.err.println("Mutable mismatch for " + description + ": The handle " + handle + " was handed out twice");
+                    }
+                    handles.add(handle);
+                    handleSerials[handle] = serial++;
+                } else if (kind == 1) {
+                    int handle = handles.remove(random.nextInt(handles.size()));
+                    index.remove(handle);
+                    removedHandles.add(handle);
+                } else {
+                    int handle = handles.get(random.nextInt(handles.size()));
+                    int moved = handleSerials[handle];
+                    if (kind == 2) {
+                        // Small steps mostly stay within the cell of the point
+                        serialXs[moved] += (random.nextFloat() - 0.5F) * cellSize / 8;
+                        serialYs[moved] += (random.nextFloat() - 0.5F) * cellSize / 8;
+                    } else {
+                        // Jumps mostly cross cells, occasionally leaving the bounds of the grid
+                        serialXs[moved] = (random.nextFloat() * 1.2F - 0.1F) * dataset.width;
+                        serialYs[moved] = (random.nextFloat() * 1.2F - 0.1F) * dataset.height;
+                    }
+                    index.move(handle, serialXs[moved], serialYs[moved]);
+                }
+            }
+
+            if (index.size() != handles.size()) {
+                mismatches++;
+                System.err.println("Mutable mismatch for " + description + ", round " + round + ": Expected " + handles.size() + " points, got " + index.size());
+            }
+
+            for (int query = 0; query < queryCount; query++) {
+                float x = (random.nextFloat() * 1.2F - 0.1F) * dataset.width;
+                float y = (random.nextFloat() * 1.2F - 0.1F) * dataset.height;
+                int k = KnnDifferentialTest.NEIGHBOUR_COUNTS[query % KnnDifferentialTest.NEIGHBOUR_COUNTS.length];
+                queryXs[query] = x;
+                queryYs[query] = y;
+                int liveCount = KnnDifferentialTest.mutableDistances2(serialXs, serialYs, handleSerials, handles, x, y, expected);
+                int expectedCount = Math.min(k, liveCount);
+
+                found.clear();
+                index.queryKnn(x, y, k, found::add);
+                boolean mismatch = found.size() != expectedCount;
+                for (int i = 0; i < found.size() && !mismatch; i++) {
+                    mismatch = KnnDifferentialTest.serialDistance2(serialXs, serialYs, found.get(i), x, y) != expected[i];
+                }
+
+                int limit = 1 + random.nextInt(Math.max(1, expectedCount));
+                found.clear();
+                index.queryKnnWhile(x, y, k, (element) -> {
+                    found.add(element);
+                    return found.size() < limit;
+                });
+                mismatch |= found.size() != Math.min(limit, expectedCount);
+                for (int i = 0; i < found.size() && !mismatch; i++) {
+                    mismatch = KnnDifferentialTest.serialDistance2(serialXs, serialYs, found.get(i), x, y) != expected[i];
+                }
+
+                if (mismatch && mismatches++ < 10) {
+                    System.err.println("Mutable mismatch for " + description + ", round " + round + ", query (" + x + ", " + y + "), k = " + k + ", limit = " + limit);
+                }
+            }
+
+            for (int k : KnnDifferentialTest.BATCH_NEIGHBOUR_COUNTS) {
+                int[] ids = new int[queryCount * k];
+                float[] dist2 = new float[queryCount * k];
+                index.queryKnnBatch(queryXs, queryYs, k, ids, dist2);
+
+                for (int query = 0; query < queryCount; query++) {
+                    float x = queryXs[query];
+                    float y = queryYs[query];
+                    int expectedCount = Math.min(k, KnnDifferentialTest.mutableDistances2(serialXs, serialYs, handleSerials, handles, x, y, expected));
+                    boolean mismatch = false;
+                    for (int i = query * k, j = 0; j < k && !mismatch; i++, j++) {
+                        if (j >= expectedCount) {
+                            mismatch = ids[i] != -1 || dist2[i] != Float.POSITIVE_INFINITY;
+                        } else {
+                            // The ids are the handles of the points
+                            mismatch = dist2[i] != expected[j] || index.get(ids[i]) != handleSerials[ids[i]]
+                                    || KnnDifferentialTest.serialDistance2(serialXs, serialYs, handleSerials[ids[i]], x, y) != dist2[i];
+                        }
+                    }
+
+                    if (mismatch && mismatches++ < 10) {
+                        System.err.println("Mutable batch mismatch for " + description + ", round " + round + ", query (" + x + ", " + y + "), k = " + k);
+                    }
+                }
+            }
+        }
+
+        System.out.println(description + " (mutable): " + mismatches + " mismatches, " + reusedHandles + " reused handles");
+        if (mismatches != 0) {
+            throw new AssertionError(mismatches + " mutable mismatches for " + description);
+        } else if (reusedHandles == 0) {
+            throw new AssertionError("No handle was reused for " + description);
+        }
+    }
+
+    /**
+     * Compare indices built on a pool against the same indices built on the calling thread, which must store their points
+     * in the same order and answer queries identically. Grids with subdivided cells, cells laid out in Morton order and
+     * category masks are covered, alongside of the sorted array of {@link SpatialQueryArrayLegacy}.
+     */
+    private static void checkParallelBuild(@NotNull BenchmarkDataset dataset, @NotNull String description) {
+        Random random = new Random(description.hashCode());
+        int[] masks = new int[dataset.xs.length];
+        for (int i = 0; i < masks.length; i++) {
+            masks[i] = 1 << random.nextInt(4);
+        }
+
+        float cellSize = Math.max(dataset.width, dataset.height) / 16;
+        GridParameters coarse = new GridParameters(0, 0, dataset.width, dataset.height, cellSize, cellSize / 2, 32);
+        GridParameters derived = GridParameters.derive(dataset.points, 4);
+        GridParameters[] parameters = {derived, coarse, derived.withCellOrder(GridParameters.CellOrder.MORTON), coarse.withCellOrder(GridParameters.CellOrder.MORTON)};
+        ForkJoinPool pool = new ForkJoinPool(4);
+        int mismatches = 0;
+
+        try {
+            for (GridParameters grid : parameters) {
+                String gridDescription = description + ", " + grid;
+                mismatches += KnnDifferentialTest.compareBuilds(dataset, SpatialQueryArray.build(dataset.points, grid, null),
+                        SpatialQueryArray.build(dataset.points, grid, pool), random, gridDescription);
+                mismatches += KnnDifferentialTest.compareBuilds(dataset, SpatialQueryArray.ofCoordinates(dataset.xs, dataset.ys, masks, grid, null),
+                        SpatialQueryArray.ofCoordinates(dataset.xs, dataset.ys, masks, grid, pool), random, gridDescription + ", masks");
+            }
+
+            // Rectangle queries emit the points of the legacy index in the order they are stored in
+            List<Object> sequential = new ArrayList<>();
+            List<Object> parallel = new ArrayList<>();
+            new SpatialQueryArrayLegacy<>(dataset.points).queryRect(Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, sequential::add);
+            new SpatialQueryArrayLegacy<>(dataset.points, pool).queryRect(Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, parallel::add);
+            boolean mismatch = sequential.size() != parallel.size() || sequential.size() != dataset.xs.length;
+            for (int i = 0; i < sequential.size() && !mismatch; i++) {
+                mismatch = sequential.get(i) != parallel.get(i);
+            }
+            if (mismatch) {
+                mismatches++;
+                System.err.println("Parallel build mismatch for " + description + ": The legacy index sorted its points differently");
+            }
+        } finally {
+            pool.shutdown();
+        }
+
+        System.out.println(description + " (parallel build): " + mismatches + " mismatches");
+        if (mismatches != 0) {
+            throw new AssertionError(mismatches + " parallel build mismatches for " + description);
+        }
+    }
+
+    private static void checkRange(@NotNull BenchmarkDataset dataset, @NotNull SpatialRangeIndex<@NotNull Integer> index, @NotNull String description) {
+        Random random = new Random(description.hashCode());
+        int pointCount = dataset.xs.length;
+        float size = Math.max(dataset.width, dataset.height);
+        List<@NotNull Integer> found = new ArrayList<>();
+        List<@NotNull Integer> expected = new ArrayList<>();
+        int mismatches = 0;
+
+        for (int query = 0; query < KnnDifferentialTest.QUERY_COUNT; query++) {
+            // Circles centered on a point either only contain the points at the center, or pass through another point
+            int center = random.nextInt(pointCount);
+            float x = dataset.xs[center];
+            float y = dataset.ys[center];
+            float radius = 0;
+            if (query % 3 == 1) {
+                radius = (float) Math.sqrt(KnnDifferentialTest.distance2(dataset, random.nextInt(pointCount), x, y));
+            } else if (query % 3 == 2) {
+                // Cover an area far larger than the dataset so that circles extend beyond the grid, or lie outside of it entirely
+                x = (random.nextFloat() * 2 - 0.5F) * dataset.width;
+                y = (random.nextFloat() * 2 - 0.5F) * dataset.height;
+                radius = random.nextFloat() * random.nextFloat() * size / 2;
+            }
+
+            found.clear();
+            index.queryRadius(x, y, radius, found::add);
+            expected.clear();
+            for (int i = 0; i < pointCount; i++) {
+                if (KnnDifferentialTest.distance2(dataset, i, x, y) <= radius * radius) {
+                    expected.add(i);
+                }
+            }
+
+            if (!KnnDifferentialTest.isSameSet(found, expected) && mismatches++ < 10) {
+                System.err.println("Radius mismatch for " + description + ", query (" + x + ", " + y + "), radius " + radius
+                        + ": expected " + expected.size() + " points, got " + found.size());
+            }
+
+            // Rectangles either collapse onto a point, are bounded by the coordinates of points, or are placed randomly
+            int a = random.nextInt(pointCount);
+            int b = query % 3 == 0 ? a : random.nextInt(pointCount);
+            float minX = Math.min(dataset.xs[a], dataset.xs[b]);
+            float minY = Math.min(dataset.ys[a], dataset.ys[b]);
+            float maxX = Math.max(dataset.xs[a], dataset.xs[b]);
+            float maxY = Math.max(dataset.ys[a], dataset.ys[b]);
+            if (query % 3 == 2) {
+                minX = (random.nextFloat() * 2 - 0.5F) * dataset.width;
+                minY = (random.nextFloat() * 2 - 0.5F) * dataset.height;
+                maxX = minX + random.nextFloat() * random.nextFloat() * size;
+                maxY = minY + random.nextFloat() * random.nextFloat() * size;
+            }
+
+            found.clear();
+            index.queryRect(minX, minY, maxX, maxY, found::add);
+            expected.clear();
+            for (int i = 0; i < pointCount; i++) {
+                if (dataset.xs[i] >= minX && dataset.xs[i] <= maxX && dataset.ys[i] >= minY && dataset.ys[i] <= maxY) {
+                    expected.add(i);
+                }
+            }
+
+            if (!KnnDifferentialTest.isSameSet(found, expected) && mismatches++ < 10) {
+                System.err.println("Rectangle mismatch for " + description + ", query (" + minX + ", " + minY + ") to (" + maxX + ", " + maxY
+                        + "): expected " + expected.size() + " points, got " + found.size());
+            }
+        }
+
+        System.out.println(description + " (range): " + mismatches + " mismatches");
+        if (mismatches != 0) {
+            throw new AssertionError(mismatches + " range mismatches for " + description);
+        }
+    }
+
+    /**
+     * Compare {@link SpatialRingIndex1NN#query1nn(float, float, float, float)} against the brute-force search,
+     * where the elements of the index are the ids of the points.
+     */
+    private static void checkRing(@NotNull BenchmarkDataset dataset, @NotNull SpatialRingIndex1NN<@NotNull Integer> index, @NotNull String description) {
+        Random random = new Random(description.hashCode());
+        float[] distances = new float[dataset.xs.length];
+        int mismatches = 0;
+
+        for (int query = 0; query < KnnDifferentialTest.QUERY_COUNT; query++) {
+            float x = (random.nextFloat() * 1.2F - 0.1F) * dataset.width;
+            float y = (random.nextFloat() * 1.2F - 0.1F) * dataset.height;
+            KnnDifferentialTest.distances2(dataset, x, y, distances);
+
+            // Bound the ring by the distances of actual points, so that points on either bound are present
+            int inner = random.nextInt(distances.length);
+            int outer = inner + random.nextInt(Math.min(distances.length - inner, 50));
+            float minDistanceSquared = distances[inner];
+            float maxDistanceSquared = distances[outer];
+            if (query % 4 == 1) {
+                maxDistanceSquared = Float.POSITIVE_INFINITY;
+            } else if (query % 4 == 2) {
+                minDistanceSquared = Float.NEGATIVE_INFINITY;
+            } else if (query % 4 == 3) {
+                minDistanceSquared /= 2;
+                maxDistanceSquared *= 2;
+            }
+
+            float expected = Float.NaN;
+            for (float distance : distances) {
+                if (distance >= minDistanceSquared) {
+                    expected = distance < maxDistanceSquared ? distance : Float.NaN;
+                    break;
+                }
+            }
+
+            Integer nearest = index.query1nn(x, y, minDistanceSquared, maxDistanceSquared);
+            float actual = nearest == null ? Float.NaN : KnnDifferentialTest.distance2(dataset, nearest, x, y);
+            if (Float.compare(actual, expected) != 0 && mismatches++ < 10) {
+                System.err.println("Ring mismatch for " + description + ", query (" + x + ", " + y + "), ring from " + minDistanceSquared
+                        + " to " + maxDistanceSquared + ": expected a squared distance of " + expected + ", got " + actual);
+            }
+        }
+
+        System.out.println(description + " (ring): " + mismatches + " mismatches");
+        if (mismatches != 0) {
+            throw new AssertionError(mismatches + " ring mismatches for " + description);
+        }
+    }
+
+    private static void checkSnapshots(@NotNull BenchmarkDataset dataset, @NotNull String description) throws InterruptedException {
+        // Every snapshot holds the points of the dataset shifted by a multiple of its width, and the element of a point
+        // encodes the snapshot it belongs to. Results which mix up snapshots thus carry the wrong distances or elements.
+        int pointCount = dataset.xs.length;
+        float cellSize = Math.max(dataset.width, dataset.height) / 32;
+        GridParameters parameters = new GridParameters(0, 0, dataset.width * KnnDifferentialTest.SNAPSHOT_SHIFTS, dataset.height, cellSize, cellSize, 32);
+        SnapshotSpatialQueryArray<@NotNull Integer> snapshots = new SnapshotSpatialQueryArray<>(KnnDifferentialTest.snapshot(dataset, 0, parameters), null);
+        AtomicBoolean published = new AtomicBoolean();
+        AtomicInteger mismatches = new AtomicInteger();
+        AtomicInteger queries = new AtomicInteger();
+
+        Thread[] readers = new Thread[2];
+        for (int reader = 0; reader < readers.length; reader++) {
+            Random random = new Random(description.hashCode() + reader);
+            readers[reader] = new Thread(() -> {
+                float[] expected = new float[pointCount];
+                float[] xs = new float[8];
+                float[] ys = new float[8];
+                List<@NotNull Integer> elements = new ArrayList<>();
+                while (!published.get()) {
+                    int k = KnnDifferentialTest.GRAPH_NEIGHBOUR_COUNTS[random.nextInt(KnnDifferentialTest.GRAPH_NEIGHBOUR_COUNTS.length)];
+                    for (int i = 0; i < xs.length; i++) {
+                        xs[i] = (random.nextFloat() * (KnnDifferentialTest.SNAPSHOT_SHIFTS + 0.2F) - 0.1F) * dataset.width;
+                        ys[i] = (random.nextFloat() * 1.2F - 0.1F) * dataset.height;
+                    }
+
+                    // The elements tell which snapshot a query was answered by
+                    elements.clear();
+                    snapshots.queryKnn(xs[0], ys[0], k, elements::add);
+                    int snapshot = elements.isEmpty() ? -1 : elements.get(0) / pointCount;
+                    int shift = snapshot % KnnDifferentialTest.SNAPSHOT_SHIFTS;
+                    KnnDifferentialTest.snapshotDistances2(dataset, shift, xs[0], ys[0], expected);
+                    boolean mismatch = elements.size() != Math.min(k, pointCount);
+                    for (int i = 0; i < elements.size() && !mismatch; i++) {
+                        int element = elements.get(i);
+                        mismatch = element / pointCount != snapshot
+                                || KnnDifferentialTest.snapshotDistance2(dataset, shift, element % pointCount, xs[0], ys[0]) != expected[i];
+                    }
+
+                    // Batches only report ids and distances, whose distances need to match the points of a single snapshot
+                    int[] ids = new int[xs.length * k];
+                    float[] dist2 = new float[xs.length * k];
+                    snapshots.queryKnnBatch(xs, ys, k, ids, dist2);
+                    for (int query = 0; query < xs.length && !mismatch; query++) {
+                        int offset = query * k;
+                        boolean matched = false;
+                        for (shift = 0; shift < KnnDifferentialTest.SNAPSHOT_SHIFTS && !matched; shift++) {
+                            KnnDifferentialTest.snapshotDistances2(dataset, shift, xs[query], ys[query], expected);
+                            matched = true;
+                            for (int i = 0; i < k && matched; i++) {
+                                matched = dist2[offset + i] == expected[i]
+                                        && KnnDifferentialTest.snapshotDistance2(dataset, shift, ids[offset + i], xs[query], ys[query]) == expected[i];
+                            }
+                        }
+                        mismatch = !matched;
+                    }
+
+                    if (mismatch && mismatches.getAndIncrement() < 10) {
+                        System.err.println("Snapshot mismatch for " + description + ", k = " + k + ", query (" + xs[0] + ", " + ys[0] + ")");
+                    }
+                    queries.addAndGet(1 + xs.length);
+                }
+            });
+            readers[reader].start();
+        }
+
+        // Keep publishing until the readers issued enough queries, no matter how the threads are scheduled
+        int snapshot = 0;
+        while (queries.get() < KnnDifferentialTest.QUERY_COUNT) {
+            snapshots.publish(KnnDifferentialTest.snapshotPoints(dataset, ++snapshot), parameters);
+            Thread.yield();
+        }
+        published.set(true);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+
+        System.out.println(description + " (snapshots): " + mismatches + " mismatches, " + queries + " queries across " + snapshot + " snapshots");
+        if (mismatches.get() != 0) {
+            throw new AssertionError(mismatches + " snapshot mismatches for " + description);
+        }
+    }
+
+    /**
+     * Compare the layout of an index built on the calling thread against the layout of the same index built on a pool,
+     * alongside of the results of some queries.
+     *
+     * @return The amount of mismatches, either 0 or 1.
+     */
+    private static int compareBuilds(@NotNull BenchmarkDataset dataset, @NotNull SpatialQueryArray<?> sequential, @NotNull SpatialQueryArray<?> parallel,
+            @NotNull Random random, @NotNull String description) {
+        int pointCount = sequential.getPointCount();
+        if (pointCount != parallel.getPointCount() || sequential.getSubdividedCellCount() != parallel.getSubdividedCellCount()) {
+            System.err.println("Parallel build mismatch for " + description + ": Expected " + pointCount + " points and " + sequential.getSubdividedCellCount()
+                    + " subdivided cells, got " + parallel.getPointCount() + " points and " + parallel.getSubdividedCellCount() + " subdivided cells");
+            return 1;
+        }
+
+        for (int slot = 0; slot < pointCount; slot++) {
+            if (sequential.slotId(slot) != parallel.slotId(slot) || sequential.slotX(slot) != parallel.slotX(slot)
+                    || sequential.slotY(slot) != parallel.slotY(slot) || !Objects.equals(sequential.payload(slot), parallel.payload(slot))) {
+                System.err.println("Parallel build mismatch for " + description + ": The points differ at the slot " + slot);
+                return 1;
+            }
+        }
+
+        int k = 10;
+        int[] expectedIds = new int[k];
+        float[] expected = new float[k];
+        int[] ids = new int[k];
+        float[] dist2 = new float[k];
+        for (int query = 0; query < KnnDifferentialTest.QUERY_COUNT / 10; query++) {
+            float x = (random.nextFloat() * 1.2F - 0.1F) * dataset.width;
+            float y = (random.nextFloat() * 1.2F - 0.1F) * dataset.height;
+            int mask = 1 << random.nextInt(4);
+            Arrays.fill(expectedIds, -1);
+            Arrays.fill(ids, -1);
+            Arrays.fill(expected, Float.NaN);
+            Arrays.fill(dist2, Float.NaN);
+            int expectedCount = sequential.queryKnnMatching(x, y, k, mask, expectedIds, expected);
+            int found = parallel.queryKnnMatching(x, y, k, mask, ids, dist2);
+            if (found != expectedCount || !Arrays.equals(expectedIds, ids) || !Arrays.equals(expected, dist2)) {
+                System.err.println("Parallel build mismatch for " + description + ": The results differ for the query (" + x + ", " + y + "), mask " + mask);
+                return 1;
+            }
+        }
+        return 0;
+    }
+
+    private static float distance2(@NotNull BenchmarkDataset dataset, int id, float x, float y) {
+        float dx = x - dataset.xs[id];
+        float dy = y - dataset.ys[id];
+        return dx * dx + dy * dy;
+    }
+
+    /**
+     * Compute the sorted squared distances between the query point and all points of the dataset.
+     */
+    private static void distances2(@NotNull BenchmarkDataset dataset, float x, float y, float @NotNull[] out) {
+        for (int i = 0; i < out.length; i++) {
+            out[i] = KnnDifferentialTest.distance2(dataset, i, x, y);
+        }
+        Arrays.sort(out);
+    }
+
+    /**
+     * Check whether the given ids are the {@code count} nearest points to the query point, nearest point first.
+     */
+    private static boolean isPrefix(@NotNull BenchmarkDataset dataset, @NotNull List<@NotNull Integer> ids, float x, float y, float @NotNull[] expected, int count) {
+        if (ids.size() != count) {
+            return false;
+        }
+        for (int i = 0; i < count; i++) {
+            if (KnnDifferentialTest.distance2(dataset, ids.get(i), x, y) != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Check whether the emitted ids contain every expected id exactly once, and no other id.
+     * The expected ids must be sorted in ascending order.
+     */
+    private static boolean isSameSet(@NotNull List<@NotNull Integer> ids, @NotNull List<@NotNull Integer> expected) {
+        List<@NotNull Integer> sorted = new ArrayList<>(ids);
+        sorted.sort(null);
+        return sorted.equals(expected);
+    }
+
+    public static void main(String[] args) throws InterruptedException, IOException {
+        for (BenchmarkDataset.Distribution distribution : BenchmarkDataset.Distribution.values()) {
+            BenchmarkDataset dataset = new BenchmarkDataset();
+            dataset.distribution = distribution;
+            dataset.pointCount = KnnDifferentialTest.POINT_COUNT;
+            dataset.setup();
+
+            float cellSize = Math.max(dataset.width, dataset.height) / 16;
+            GridParameters coarse = new GridParameters(0, 0, dataset.width, dataset.height, cellSize, cellSize / 2, 32);
+            SpatialQueryArray<?>[] indices = {
+                SpatialQueryArray.create(dataset.points, 40),
+                SpatialQueryArray.create(dataset.points, 4),
+                SpatialQueryArray.ofCoordinates(dataset.xs, dataset.ys, coarse),
+                new SpatialQueryArray<>(dataset.points, GridParameters.derive(dataset.points, 4).withCellOrder(GridParameters.CellOrder.MORTON)),
+                SpatialQueryArray.ofCoordinates(dataset.xs, dataset.ys, coarse.withCellOrder(GridParameters.CellOrder.MORTON))
+            };
+            String[] descriptions = {"derived", "derived, small cells", "coarse, subdivided", "derived, small cells, Morton order", "coarse, subdivided, Morton order"};
+            for (int i = 0; i < indices.length; i++) {
+                KnnDifferentialTest.check(dataset, indices[i], distribution + " (" + descriptions[i] + ")");
+                KnnDifferentialTest.checkApproximate(dataset, indices[i], distribution + " (" + descriptions[i] + ")");
+                KnnDifferentialTest.checkBatch(dataset, indices[i], distribution + " (" + descriptions[i] + ")");
+                KnnDifferentialTest.checkCoherent(dataset, indices[i], distribution + " (" + descriptions[i] + ")");
+                KnnDifferentialTest.checkGraph(dataset, indices[i], distribution + " (" + descriptions[i] + ")");
+                KnnDifferentialTest.checkMapped(dataset, indices[i], distribution + " (" + descriptions[i] + ")");
+                KnnDifferentialTest.checkMatching(dataset, indices[i], distribution + " (" + descriptions[i] + ")");
+                KnnDifferentialTest.checkRaster(dataset, indices[i], distribution + " (" + descriptions[i] + ")");
+            }
+
+            List<PointObjectPair<@NotNull Integer>> points = KnnDifferentialTest.points(dataset);
+            List<SpatialQueryArray<@NotNull Integer>> grids = Arrays.asList(
+                new SpatialQueryArray<>(points, GridParameters.derive(points, 4)),
+                SpatialQueryArray.ofCoordinates(dataset.xs, dataset.ys, coarse),
+                SpatialQueryArray.ofCoordinates(dataset.xs, dataset.ys, coarse.withCellOrder(GridParameters.CellOrder.MORTON))
+            );
+            String[] gridDescriptions = {"derived, small cells", "coarse, subdivided", "coarse, subdivided, Morton order"};
+            for (int i = 0; i < grids.size(); i++) {
+                KnnDifferentialTest.checkIterator(dataset, grids.get(i), 1, distribution + " (" + gridDescriptions[i] + ")");
+                KnnDifferentialTest.checkKnn(dataset, grids.get(i), distribution + " (" + gridDescriptions[i] + ")");
+                KnnDifferentialTest.checkRange(dataset, grids.get(i), distribution + " (" + gridDescriptions[i] + ")");
+                KnnDifferentialTest.checkRing(dataset, grids.get(i), distribution + " (" + gridDescriptions[i] + ")");
+            }
+
+            List<PointObjectPair<@NotNull Integer>> duplicated = new ArrayList<>(points);
+            for (PointObjectPair<@NotNull Integer> point : points) {
+                duplicated.add(new PointObjectPair<>(point.object + points.size(), point.x, point.y));
+            }
+            KnnDifferentialTest.checkIterator(dataset, new SpatialQueryArray<>(duplicated, coarse), 2, distribution + " (coarse, subdivided, every point twice)");
+
+            SpatialQueryArrayLegacy<@NotNull Integer> legacy = new SpatialQueryArrayLegacy<>(points);
+            KnnDifferentialTest.checkRange(dataset, legacy, distribution + " (legacy)");
+            KnnDifferentialTest.checkRing(dataset, legacy, distribution + " (legacy)");
+
+            SpatialKDTree<@NotNull Integer> tree = new SpatialKDTree<>(points);
+            KnnDifferentialTest.checkKnn(dataset, tree, distribution + " (k-d tree)");
+            KnnDifferentialTest.checkRing(dataset, tree, distribution + " (k-d tree)");
+            KnnDifferentialTest.checkMutable(dataset, distribution.toString());
+            KnnDifferentialTest.checkSnapshots(dataset, distribution.toString());
+
+            BenchmarkDataset large = new BenchmarkDataset();
+            large.distribution = distribution;
+            large.pointCount = KnnDifferentialTest.PARALLEL_POINT_COUNT;
+            large.setup();
+            KnnDifferentialTest.checkParallelBuild(large, distribution.toString());
+        }
+    }
+
+    /**
+     * Compute the sorted squared distances between the query point and the points with the given handles within the
+     * model of a {@link MutableSpatialQueryArray}.
+     *
+     * @return The amount of points, that is the amount of distances written to {@code out}.
+     */
+    private static int mutableDistances2(float @NotNull[] serialXs, float @NotNull[] serialYs, int @NotNull[] handleSerials,
+            @NotNull List<@NotNull Integer> handles, float x, float y, float @NotNull[] out) {
+        int count = handles.size();
+        for (int i = 0; i < count; i++) {
+            out[i] = KnnDifferentialTest.serialDistance2(serialXs, serialYs, handleSerials[handles.get(i)], x, y);
+        }
+        Arrays.sort(out, 0, count);
+        return count;
+    }
+
+    /**
+     * Obtain the points of the dataset, where the element of every point is its id.
+     */
+    @NotNull
+    private static List<PointObjectPair<@NotNull Integer>> points(@NotNull BenchmarkDataset dataset) {
+        return KnnDifferentialTest.snapshotPoints(dataset, 0);
+    }
+
+    private static float serialDistance2(float @NotNull[] serialXs, float @NotNull[] serialYs, int serial, float x, float y) {
+        float dx = x - serialXs[serial];
+        float dy = y - serialYs[serial];
+        return dx * dx + dy * dy;
+    }
+
+    @NotNull
+    private static SpatialQueryArray<@NotNull Integer> snapshot(@NotNull BenchmarkDataset dataset, int snapshot, @NotNull GridParameters parameters) {
+        return new SpatialQueryArray<>(KnnDifferentialTest.snapshotPoints(dataset, snapshot), parameters);
+    }
+
+    /**
+     * Compute the squared distance between the query point and a point of the snapshots shifted by the given
+     * multiple of the width of the dataset, rounding the shifted point exactly like {@link #snapshotPoints(BenchmarkDataset, int)}.
+     */
+    private static float snapshotDistance2(@NotNull BenchmarkDataset dataset, int shift, int id, float x, float y) {
+        float dx = x - (dataset.xs[id] + shift * dataset.width);
+        float dy = y - dataset.ys[id];
+        return dx * dx + dy * dy;
+    }
+
+    /**
+     * Compute the sorted squared distances between the query point and all points of the snapshots shifted by the given
+     * multiple of the width of the dataset.
+     */
+    private static void snapshotDistances2(@NotNull BenchmarkDataset dataset, int shift, float x, float y, float @NotNull[] out) {
+        for (int i = 0; i < out.length; i++) {
+            out[i] = KnnDifferentialTest.snapshotDistance2(dataset, shift, i, x, y);
+        }
+        Arrays.sort(out);
+    }
+
+    @NotNull
+    private static List<PointObjectPair<@NotNull Integer>> snapshotPoints(@NotNull BenchmarkDataset dataset, int snapshot) {
+        int pointCount = dataset.xs.length;
+        int shift = snapshot % KnnDifferentialTest.SNAPSHOT_SHIFTS;
+        List<PointObjectPair<@NotNull Integer>> points = new ArrayList<>(pointCount);
+        for (int i = 0; i < pointCount; i++) {
+            points.add(new PointObjectPair<>(snapshot * pointCount + i, dataset.xs[i] + shift * dataset.width, dataset.ys[i]));
+        }
+        return points;
+    }
+}
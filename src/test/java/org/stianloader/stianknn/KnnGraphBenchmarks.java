@@ -0,0 +1,85 @@
+package org.stianloader.stianknn;
+
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.jetbrains.annotations.NotNull;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the time it takes to compute the K nearest neighbours of every point of a {@link BenchmarkDataset}
+ * through {@link SpatialQueryArray#queryKnnGraph(int, int[], float[], ForkJoinPool)}, compared against
+ * querying the neighbours of each point separately.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@Fork(1)
+@Measurement(iterations = 5)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 2)
+public class KnnGraphBenchmarks {
+
+    private SpatialQueryArray.QueryContext<Map.@NotNull Entry<Float, Float>> context;
+    private BenchmarkDataset dataset;
+    private float[] dist2;
+    private int[] ids;
+    private SpatialQueryArray<Map.@NotNull Entry<Float, Float>> index;
+
+    @Param({"10"})
+    public int k;
+
+    private float[] queryDist2;
+    private int[] queryIds;
+
+    @Benchmark
+    public int[] benchmarkSQAGKnnGraph() {
+        this.index.queryKnnGraph(this.k, this.ids, this.dist2, null);
+        return this.ids;
+    }
+
+    @Benchmark
+    public int[] benchmarkSQAGKnnGraphParallel() {
+        this.index.queryKnnGraph(this.k, this.ids, this.dist2, ForkJoinPool.commonPool());
+        return this.ids;
+    }
+
+    @Benchmark
+    public int[] benchmarkSQAGKnnLoop() {
+        float[] xs = this.dataset.xs;
+        float[] ys = this.dataset.ys;
+        for (int id = 0; id < xs.length; id++) {
+            // The point itself is found as well, so query one more neighbour and skip it
+            int found = this.index.queryKnn(xs[id], ys[id], this.k + 1, this.queryIds, this.queryDist2, this.context);
+            int written = 0;
+            for (int i = 0; i < found && written < this.k; i++) {
+                if (this.queryIds[i] != id) {
+                    this.ids[id * this.k + written] = this.queryIds[i];
+                    this.dist2[id * this.k + written++] = this.queryDist2[i];
+                }
+            }
+        }
+        return this.ids;
+    }
+
+    @Setup
+    public void setup(BenchmarkDataset dataset) {
+        this.dataset = dataset;
+        this.index = SpatialQueryArray.create(dataset.points, this.k);
+        this.context = new SpatialQueryArray.QueryContext<>();
+        this.ids = new int[dataset.xs.length * this.k];
+        this.dist2 = new float[dataset.xs.length * this.k];
+        this.queryIds = new int[this.k + 1];
+        this.queryDist2 = new float[this.k + 1];
+    }
+}
@@ -0,0 +1,103 @@
+package org.stianloader.stianknn;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.jetbrains.annotations.NotNull;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Simulates a tick of a game in which all entities move slightly and afterwards a series of
+ * queries are performed. Compares updating a {@link MutableSpatialQueryArray} in place against
+ * rebuilding a {@link SpatialQueryArray} on every tick.
+ */
+@State(Scope.Thread)
+public class MutableBenchmarks {
+
+    private static final int QUERIES_PER_TICK = 5_000;
+    private static final int STAR_COUNT = 50_000;
+
+    private int[] handles;
+    private float height;
+    private MutableSpatialQueryArray<Map.@NotNull Entry<Float, Float>> mutableQuery;
+    private List<Map.@NotNull Entry<Float, Float>> stars;
+    private float width;
+    private float[] xs;
+    private float[] ys;
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @Warmup(iterations = 1)
+    public void benchmarkMutableTick(Blackhole bh) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < MutableBenchmarks.STAR_COUNT; i++) {
+            this.moveStar(random, i);
+            this.mutableQuery.move(this.handles[i], this.xs[i], this.ys[i]);
+        }
+
+        for (int i = 0; i < MutableBenchmarks.QUERIES_PER_TICK; i++) {
+            float x = random.nextFloat() * this.width;
+            float y = random.nextFloat() * this.height;
+            this.mutableQuery.queryKnn(x, y, 40, bh::consume);
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @Warmup(iterations = 1)
+    public void benchmarkRebuildTick(Blackhole bh) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        List<PointObjectPair<Map.@NotNull Entry<Float, Float>>> points = new ArrayList<>(MutableBenchmarks.STAR_COUNT);
+        for (int i = 0; i < MutableBenchmarks.STAR_COUNT; i++) {
+            this.moveStar(random, i);
+            points.add(new PointObjectPair<>(this.stars.get(i), this.xs[i], this.ys[i]));
+        }
+        SpatialQueryArray<Map.@NotNull Entry<Float, Float>> query = new SpatialQueryArray<>(points, 0, 0, this.width, this.height, 4, 4);
+
+        for (int i = 0; i < MutableBenchmarks.QUERIES_PER_TICK; i++) {
+            float x = random.nextFloat() * this.width;
+            float y = random.nextFloat() * this.height;
+            query.queryKnn(x, y, 40, bh::consume);
+        }
+    }
+
+    private void moveStar(ThreadLocalRandom random, int star) {
+        this.xs[star] = Math.max(0, Math.min(this.width, this.xs[star] + random.nextFloat() - 0.5F));
+        this.ys[star] = Math.max(0, Math.min(this.height, this.ys[star] + random.nextFloat() - 0.5F));
+    }
+
+    @Setup
+    public void setup() {
+        TestStarGenerator generator;
+        try {
+            generator = new TestStarGenerator();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        this.stars = new ArrayList<>(generator.generateStars(MutableBenchmarks.STAR_COUNT));
+        this.width = generator.getMapWidth(MutableBenchmarks.STAR_COUNT);
+        this.height = generator.getMapHeight(MutableBenchmarks.STAR_COUNT);
+        this.mutableQuery = new MutableSpatialQueryArray<>(0, 0, this.width, this.height, 4, 4);
+        this.handles = new int[MutableBenchmarks.STAR_COUNT];
+        this.xs = new float[MutableBenchmarks.STAR_COUNT];
+        this.ys = new float[MutableBenchmarks.STAR_COUNT];
+
+        for (int i = 0; i < MutableBenchmarks.STAR_COUNT; i++) {
+            Map.Entry<Float, Float> star = this.stars.get(i);
+            this.xs[i] = star.getKey();
+            this.ys[i] = star.getValue();
+            this.handles[i] = this.mutableQuery.insert(star, this.xs[i], this.ys[i]);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package org.stianloader.stianknn;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.jetbrains.annotations.NotNull;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the {@link SpatialQueryArray.SearchMode search modes} of K nearest neighbour queries.
+ *
+ * <p>{@link #benchmarkSQAGKnnStatistics(BenchmarkDataset, Benchmarks.GridIndex, Benchmarks.NeighbourCount, SearchContext, WorkCounters)}
+ * runs with {@link QueryStatistics statistics} enabled and reports the amount of cells visited and points examined
+ * as secondary results. These are reported as rates like the primary result, so dividing them by the primary result
+ * yields the average amount per query. The timings of that benchmark include the overhead of collecting
+ * statistics, use {@link #benchmarkSQAGKnn(BenchmarkDataset, Benchmarks.GridIndex, Benchmarks.NeighbourCount, SearchContext)}
+ * to compare timings.
+ */
+@BenchmarkMode(Mode.Throughput)
+@Fork(1)
+@Measurement(iterations = 3, time = 2)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 2)
+public class SearchModeBenchmarks {
+
+    @State(Scope.Thread)
+    public static class SearchContext {
+        public SpatialQueryArray.QueryContext<Map.@NotNull Entry<Float, Float>> context;
+        public float[] dist2;
+        public int[] ids;
+
+        @Param({"RINGS", "BEST_FIRST"})
+        public SpatialQueryArray.SearchMode mode;
+
+        private int next;
+
+        int next() {
+            return this.next++ & (BenchmarkDataset.QUERY_COUNT - 1);
+        }
+
+        @Setup
+        public void setup(Benchmarks.NeighbourCount neighbours) {
+            this.context = new SpatialQueryArray.QueryContext<>();
+            this.context.setSearchMode(this.mode);
+            this.ids = new int[neighbours.k];
+            this.dist2 = new float[neighbours.k];
+        }
+    }
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class WorkCounters {
+        public long cellsVisited;
+        public long pointsExamined;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            this.cellsVisited = 0;
+            this.pointsExamined = 0;
+        }
+    }
+
+    @Benchmark
+    public int benchmarkSQAGKnn(BenchmarkDataset dataset, Benchmarks.GridIndex index, Benchmarks.NeighbourCount neighbours, SearchContext search) {
+        int query = search.next();
+        return index.index.queryKnn(dataset.queryXs[query], dataset.queryYs[query], neighbours.k, search.ids, search.dist2, search.context);
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = "-Dorg.stianloader.stianknn.statistics=true")
+    public int benchmarkSQAGKnnStatistics(BenchmarkDataset dataset, Benchmarks.GridIndex index, Benchmarks.NeighbourCount neighbours, SearchContext search, WorkCounters counters) {
+        int query = search.next();
+        int found = index.index.queryKnn(dataset.queryXs[query], dataset.queryYs[query], neighbours.k, search.ids, search.dist2, search.context);
+        QueryStatistics statistics = search.context.getStatistics();
+        counters.cellsVisited += statistics.getCellsVisited();
+        counters.pointsExamined += statistics.getPointsExamined();
+        return found;
+    }
+}
@@ -0,0 +1,82 @@
+package org.stianloader.stianknn;
+
+import java.util.concurrent.TimeUnit;
+
+import org.jetbrains.annotations.NotNull;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the scalar {@link DistanceKernel} against its vectorized Java 17 variant for varying
+ * cell occupancies. Both variants run in their own fork, as the variant is selected once per JVM.
+ * Requires Java 17 or newer, as the forks are started with {@code --add-modules jdk.incubator.vector}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@Measurement(iterations = 3, time = 2)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 2, time = 2)
+public class VectorBenchmarks {
+
+    private static final int POINT_COUNT = 1_000_000;
+
+    private float[] dist2;
+    private int[] ids;
+
+    @Param({"40"})
+    private int k;
+
+    private int next;
+
+    /**
+     * The average amount of points per cell.
+     */
+    @Param({"4", "16", "64", "256", "1024"})
+    private int occupancy;
+
+    private SpatialQueryArray<@NotNull Integer> query;
+    private BenchmarkDataset dataset;
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector", "-Dorg.stianloader.stianknn.vector=false"})
+    public int benchmarkScalar() {
+        return this.query();
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+    public int benchmarkVector() {
+        if (!DistanceKernel.isVectorized()) {
+            throw new IllegalStateException("The vectorized distance kernel is not in use");
+        }
+        return this.query();
+    }
+
+    private int query() {
+        int query = this.next++ & (BenchmarkDataset.QUERY_COUNT - 1);
+        return this.query.queryKnn(this.dataset.queryXs[query], this.dataset.queryYs[query], this.k, this.ids, this.dist2);
+    }
+
+    @Setup
+    public void setup() {
+        this.dataset = new BenchmarkDataset();
+        this.dataset.distribution = BenchmarkDataset.Distribution.UNIFORM;
+        this.dataset.pointCount = VectorBenchmarks.POINT_COUNT;
+        this.dataset.setup();
+
+        float cellSize = (float) Math.sqrt(this.dataset.width * (double) this.dataset.height * this.occupancy / VectorBenchmarks.POINT_COUNT);
+        GridParameters parameters = new GridParameters(0, 0, this.dataset.width, this.dataset.height, cellSize, cellSize, Integer.MAX_VALUE);
+        this.query = SpatialQueryArray.ofCoordinates(this.dataset.xs, this.dataset.ys, parameters);
+        this.ids = new int[this.k];
+        this.dist2 = new float[this.k];
+    }
+}